@@ -24,6 +24,15 @@ public final class BrokerConstants {
     public static final String BROKER_INTERCEPTOR_THREAD_POOL_SIZE = "intercept.thread_pool.size";
     public static final String PERSISTENT_STORE_PROPERTY_NAME = "persistent_store";
     public static final String AUTOSAVE_INTERVAL_PROPERTY_NAME = "autosave_interval";
+    public static final String GROUP_COMMIT_RECORDS_PROPERTY_NAME = "group_commit.records";
+    public static final String GROUP_COMMIT_MAX_DELAY_PROPERTY_NAME = "group_commit.max_delay_micros";
+    public static final String MMAP_STORAGE_SEGMENT_SIZE = "mmap_storage.segment_size";
+    public static final String MMAP_STORAGE_COMPACTION_INTERVAL = "mmap_storage.compaction.interval";
+    public static final String MMAP_STORAGE_COMPACTION_LIVE_RATIO = "mmap_storage.compaction.live_ratio";
+    public static final String MEMORY_QUEUE_CAPACITY = "memory_queue.capacity";
+    public static final String MEMORY_QUEUE_OVERFLOW = "memory_queue.overflow";
+    public static final String MEMORY_QUEUE_SPILL_DIRECTORY = "memory_queue.spill_directory";
+    public static final String MEMORY_QUEUE_SPILL_MAX_BYTES = "memory_queue.spill_max_bytes";
     public static final String PASSWORD_FILE_PROPERTY_NAME = "password_file";
     public static final String PORT_PROPERTY_NAME = "port";
     public static final String HOST_PROPERTY_NAME = "host";
@@ -32,6 +41,7 @@ public final class BrokerConstants {
             + DEFAULT_MOQUETTE_STORE_MAP_DB_FILENAME;
     public static final String WEB_SOCKET_PORT_PROPERTY_NAME = "websocket_port";
     public static final String WSS_PORT_PROPERTY_NAME = "secure_websocket_port";
+    public static final String WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME = "websocket_max_frame_size";
     public static final String SSL_PORT_PROPERTY_NAME = "ssl_port";
     public static final String JKS_PATH_PROPERTY_NAME = "jks_path";
     public static final String KEY_STORE_PASSWORD_PROPERTY_NAME = "key_store_password";
@@ -58,10 +68,29 @@ public final class BrokerConstants {
     public static final String NETTY_SO_KEEPALIVE_PROPERTY_NAME = "netty.so_keepalive";
     public static final String NETTY_CHANNEL_TIMEOUT_SECONDS_PROPERTY_NAME = "netty.channel_timeout.seconds";
     public static final String NETTY_EPOLL_PROPERTY_NAME = "netty.epoll";
+    public static final String NETTY_BOSS_THREADS_PROPERTY_NAME = "netty.boss_threads";
+    public static final String NETTY_WORKER_THREADS_PROPERTY_NAME = "netty.worker_threads";
+    public static final String NETTY_SO_REUSEPORT_PROPERTY_NAME = "netty.so_reuseport";
+    public static final String NETTY_ACCEPTORS_PROPERTY_NAME = "netty.so_reuseport.acceptors";
+    public static final String NETTY_BYTES_METRICS_PROPERTY_NAME = "netty.bytes_metrics";
+    public static final String NETTY_MESSAGE_METRICS_PROPERTY_NAME = "netty.message_metrics";
+    public static final String NETTY_MESSAGE_LOGGER_PROPERTY_NAME = "netty.message_logger";
+    public static final String NETTY_MESSAGE_LOGGER_SAMPLE_RATE_PROPERTY_NAME = "netty.message_logger.sample_rate";
+    public static final String NETTY_MESSAGE_LOGGER_MAX_PER_SECOND_PROPERTY_NAME =
+        "netty.message_logger.max_per_second";
+    public static final String NETTY_WRITE_BATCH_MAX_MESSAGES_PROPERTY_NAME = "netty.write_batch.max_messages";
+    public static final String NETTY_WRITE_BATCH_MAX_BYTES_PROPERTY_NAME = "netty.write_batch.max_bytes";
+    public static final String NETTY_WRITE_BATCH_FLUSH_INTERVAL_MS_PROPERTY_NAME =
+        "netty.write_batch.flush_interval_ms";
+    public static final String NETTY_WRITE_BUFFER_LOW_WATER_MARK_PROPERTY_NAME = "netty.write_buffer.low_water_mark";
+    public static final String NETTY_WRITE_BUFFER_HIGH_WATER_MARK_PROPERTY_NAME =
+        "netty.write_buffer.high_water_mark";
     public static final String METRICS_ENABLE_PROPERTY_NAME = "use_metrics";
     public static final String METRICS_LIBRATO_EMAIL_PROPERTY_NAME = "metrics.librato.email";
     public static final String METRICS_LIBRATO_TOKEN_PROPERTY_NAME = "metrics.librato.token";
     public static final String METRICS_LIBRATO_SOURCE_PROPERTY_NAME = "metrics.librato.source";
+    // name of the Dropwizard registry, in SharedMetricRegistries, holding the metrics of the broker
+    public static final String METRICS_REGISTRY_NAME = "moquette";
 
     public static final String BUGSNAG_ENABLE_PROPERTY_NAME = "use_bugsnag";
     public static final String BUGSNAG_TOKEN_PROPERTY_NAME = "bugsnag.token";
@@ -72,6 +101,10 @@ public final class BrokerConstants {
     public static final String STORAGE_CLASS_MAX_SESSIONS = "storage_class.max_sessions";
     public static final String STORAGE_CLASS_SESSION_EXPIRE = "storage_class.session_expire";
 
+    public static final String SUBSCRIPTIONS_MATCH_CACHE_SIZE = "subscriptions.match_cache.size";
+    public static final String SHARED_SUBSCRIPTIONS_STRATEGY = "shared_subscriptions.strategy";
+    public static final String TOPICS_INTERN_CACHE_SIZE = "topics.intern_cache.size";
+
     private BrokerConstants() {
     }
 }
@@ -55,6 +55,19 @@ public interface IConnectionsManager {
      */
     boolean closeConnection(String clientID, boolean closeImmediately);
 
+    /**
+     * Sets the water marks of the outbound buffer of a connection. While the buffer is over the high
+     * water mark the QoS 1 and 2 publishes are queued in the session and the QoS 0 ones are dropped.
+     *
+     * @param clientID
+     * @param lowWaterMark
+     *            the size, in bytes, below which the connection is writable again.
+     * @param highWaterMark
+     *            the size, in bytes, above which the connection is unwritable.
+     * @return false if the client isn't connected.
+     */
+    boolean setWriteBufferWaterMark(String clientID, int lowWaterMark, int highWaterMark);
+
     /**
      * Returns the state of the session of a given client.
      *
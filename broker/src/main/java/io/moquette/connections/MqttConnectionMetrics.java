@@ -25,12 +25,21 @@ public class MqttConnectionMetrics {
     private long writtenKb;
     private long readMessages;
     private long writtenMessages;
+    private long deferredPublishes;
+    private long droppedPublishes;
 
     public MqttConnectionMetrics(long readBytes, long writtenBytes, long readMessages, long writtenMessages) {
+        this(readBytes, writtenBytes, readMessages, writtenMessages, 0, 0);
+    }
+
+    public MqttConnectionMetrics(long readBytes, long writtenBytes, long readMessages, long writtenMessages,
+                                 long deferredPublishes, long droppedPublishes) {
         this.readKb = readBytes / 1024;
         this.writtenKb = writtenBytes / 1024;
         this.readMessages = readMessages;
         this.writtenMessages = writtenMessages;
+        this.deferredPublishes = deferredPublishes;
+        this.droppedPublishes = droppedPublishes;
     }
 
     public long getReadKb() {
@@ -49,4 +58,18 @@ public class MqttConnectionMetrics {
         return writtenMessages;
     }
 
+    /**
+     * @return the publishes queued in the session because the connection was over its high water mark.
+     */
+    public long getDeferredPublishes() {
+        return deferredPublishes;
+    }
+
+    /**
+     * @return the QoS 0 publishes dropped because the connection was over its high water mark.
+     */
+    public long getDroppedPublishes() {
+        return droppedPublishes;
+    }
+
 }
@@ -28,6 +28,8 @@ public class MqttSession {
     private boolean cleanSession;
     private int inflightMessages;
     private int pendingPublishMessagesNo;
+    private int spilledPublishMessagesNo;
+    private long droppedPublishMessagesNo;
     private int secondPhaseAckPendingMessages;
     private Collection<MqttSubscription> activeSubscriptions;
     private MqttConnectionMetrics connectionMetrics;
@@ -56,6 +58,22 @@ public class MqttSession {
         this.pendingPublishMessagesNo = pendingPublishMessagesNo;
     }
 
+    public int getSpilledPublishMessagesNo() {
+        return spilledPublishMessagesNo;
+    }
+
+    public void setSpilledPublishMessagesNo(int spilledPublishMessagesNo) {
+        this.spilledPublishMessagesNo = spilledPublishMessagesNo;
+    }
+
+    public long getDroppedPublishMessagesNo() {
+        return droppedPublishMessagesNo;
+    }
+
+    public void setDroppedPublishMessagesNo(long droppedPublishMessagesNo) {
+        this.droppedPublishMessagesNo = droppedPublishMessagesNo;
+    }
+
     public int getInflightMessages() {
         return inflightMessages;
     }
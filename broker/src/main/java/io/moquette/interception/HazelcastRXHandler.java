@@ -21,6 +21,7 @@ import com.hazelcast.core.ITopic;
 import io.moquette.BrokerConstants;
 import io.moquette.interception.messages.InterceptPublishMessage;
 import io.moquette.server.Server;
+import io.netty.util.ReferenceCountUtil;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
 import org.slf4j.Logger;
@@ -45,8 +46,15 @@ public class HazelcastRXHandler {
         sub = server.getProcessor().getBus().getEvents()
             .filter(msg -> msg instanceof InterceptPublishMessage)
             .cast(InterceptPublishMessage.class)
+            .doOnNext(msg -> msg.msg.retain()) // the payload is released once published on Hazelcast
             .observeOn(Schedulers.single()) // Don't pause netty eventloop thread
-            .subscribe(msg -> onPublish(topic, msg));
+            .subscribe(msg -> {
+                try {
+                    onPublish(topic, msg);
+                } finally {
+                    ReferenceCountUtil.release(msg.msg);
+                }
+            });
     }
 
     public Disposable getSub() {
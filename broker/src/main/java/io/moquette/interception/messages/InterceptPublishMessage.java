@@ -37,6 +37,10 @@ public class InterceptPublishMessage extends InterceptAbstractMessage<MqttPublis
         return topic;
     }
 
+    /**
+     * @return the payload of the PUBLISH, it's valid only while the handler is notified and must not
+     *         be modified.
+     */
     public ByteBuf getPayload() {
         return msg.payload();
     }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the commits requested by the acknowledgements waiting for durability: the store is committed once
+ * maxRecords are waiting, or maxDelayMicros after the first of them, and then all the waiting actions are run.
+ * If the commit fails the actions are dropped, so that nothing is acknowledged that could be lost.
+ */
+public class GroupCommitter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommitter.class);
+
+    private final Runnable commitAction;
+    private final ScheduledExecutorService scheduler;
+    private final int maxRecords;
+    private final long maxDelayMicros;
+
+    private List<Runnable> waiting = new ArrayList<>();
+    private boolean commitScheduled;
+
+    /**
+     * @param commitAction
+     *            commits and syncs the store.
+     * @param scheduler
+     *            the executor running the commits.
+     * @param maxRecords
+     *            the number of waiting actions that triggers a commit.
+     * @param maxDelayMicros
+     *            the longest time an action waits for the commit.
+     */
+    public GroupCommitter(Runnable commitAction, ScheduledExecutorService scheduler, int maxRecords,
+                          long maxDelayMicros) {
+        if (maxRecords <= 0) {
+            throw new IllegalArgumentException("maxRecords must be positive");
+        }
+        this.commitAction = commitAction;
+        this.scheduler = scheduler;
+        this.maxRecords = maxRecords;
+        this.maxDelayMicros = maxDelayMicros;
+    }
+
+    /**
+     * Run the action once the changes done before this call have been committed.
+     *
+     * @param action
+     *            the action to run, typically the acknowledge of a message.
+     */
+    public void whenDurable(Runnable action) {
+        synchronized (this) {
+            waiting.add(action);
+            if (waiting.size() >= maxRecords) {
+                // the commit runs as soon as possible, a delayed commit already scheduled finds nothing to do
+                commitScheduled = true;
+                scheduler.execute(this::commit);
+            } else if (!commitScheduled) {
+                commitScheduled = true;
+                scheduler.schedule(this::commit, maxDelayMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+
+    private void commit() {
+        final List<Runnable> committed;
+        synchronized (this) {
+            if (waiting.isEmpty()) {
+                return;
+            }
+            committed = waiting;
+            waiting = new ArrayList<>();
+            commitScheduled = false;
+        }
+        try {
+            commitAction.run();
+        } catch (Throwable t) {
+            LOG.error("Group commit failed, dropping {} acknowledgements", committed.size(), t);
+            return;
+        }
+        for (Runnable action : committed) {
+            try {
+                action.run();
+            } catch (Throwable t) {
+                LOG.error("Error running an action after the group commit", t);
+            }
+        }
+    }
+}
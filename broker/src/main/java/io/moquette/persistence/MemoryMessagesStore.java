@@ -19,18 +19,18 @@ package io.moquette.persistence;
 import io.moquette.HashColletions;
 import io.moquette.spi.impl.subscriptions.Subscription;
 import io.moquette.spi.impl.subscriptions.Topic;
+import io.moquette.spi.impl.subscriptions.TopicIndex;
 import io.moquette.spi.IMessagesStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class MemoryMessagesStore implements IMessagesStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(MemoryMessagesStore.class);
 
-    private Map<Topic, Message> m_retainedStore = new ConcurrentHashMap<>();
+    private final TopicIndex<Message> m_retainedStore = new TopicIndex<>();
 
     MemoryMessagesStore() {
     }
@@ -47,24 +47,24 @@ public class MemoryMessagesStore implements IMessagesStore {
 
     @Override
     public Map<Subscription, Collection<Message>> searchMatching(List<Subscription> newSubscriptions) {
-        LOG.debug("Scanning retained messages...");
+        LOG.debug("Searching retained messages...");
         Map<Subscription, Collection<Message>> results = HashColletions.createHashMap(newSubscriptions.size());
 
         for (Subscription sub : newSubscriptions) {
-            m_retainedStore.forEach((topic, storedMsg) -> {
-                // TODO this is ugly, it does a linear scan on potential big dataset
-                if (topic.match(sub.getTopicFilter())) {
-                    results.computeIfAbsent(sub, k -> new LinkedList<>());
-                    results.get(sub).add(storedMsg);
-                }
-            });
+            m_retainedStore.forEachMatching(sub.getTopicFilter(), (topic, storedMsg) ->
+                results.computeIfAbsent(sub, k -> new LinkedList<>()).add(storedMsg));
         }
 
-        LOG.trace("The retained messages have been scanned. MatchingMessages = {}.", results);
+        LOG.trace("The retained messages have been searched. MatchingMessages = {}.", results);
 
         return results;
     }
 
+    @Override
+    public Iterator<Message> retainedMatching(Subscription newSubscription) {
+        return m_retainedStore.matchingValues(newSubscription.getTopicFilter(), m_retainedStore::get);
+    }
+
     @Override
     public void cleanRetained(Topic topic) {
         m_retainedStore.remove(topic);
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISessionQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Queue of the messages of a session of the memory store. The oldest messages, up to the capacity, are kept
+ * in memory, when the queue is full the overflow policy decides what to do with a new message.
+ *
+ * With {@link OverflowPolicy#SPILL} the new messages are appended to a file of the session, up to a size
+ * limit of the messages still spilled, and they are moved back in memory as the queue drains. The file is
+ * truncated once all the spilled messages are back in memory, or compacted when the messages already read
+ * take more space than the ones still to read, and it's deleted when the queue is closed, or as soon as it's
+ * opened where the platform allows it.
+ */
+public class MemorySessionQueue extends AbstractQueue<StoredMessage> implements ISessionQueue<StoredMessage> {
+
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest message to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Reject the new message.
+         */
+        DROP_NEWEST,
+        /**
+         * Append the new message to the spill file.
+         */
+        SPILL
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemorySessionQueue.class);
+
+    private static final int LENGTH_BYTES = 4;
+    // the read part of the spill file is reclaimed only past this size, to not compact at each refill
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    private final String clientID;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final File spillDirectory;
+    private final long maxSpillBytes;
+    private final StoreCodec<StoredMessage> codec;
+    private final Deque<StoredMessage> memory = new ArrayDeque<>();
+    // opened at the first spill
+    private FileChannel spillFile;
+    private long spillReadPosition;
+    private long spillWritePosition;
+    private int spilled;
+    private long dropped;
+
+    /**
+     * @param capacity
+     *            the number of messages kept in memory.
+     * @param spillDirectory
+     *            the directory of the spill file, used only by the SPILL policy.
+     * @param maxSpillBytes
+     *            the size limit of the spilled messages, the messages beyond it are dropped.
+     * @param codec
+     *            encodes the spilled messages.
+     */
+    public MemorySessionQueue(String clientID, int capacity, OverflowPolicy policy, File spillDirectory,
+                              long maxSpillBytes, StoreCodec<StoredMessage> codec) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity of the queue must be positive: " + capacity);
+        }
+        this.clientID = clientID;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.spillDirectory = spillDirectory;
+        this.maxSpillBytes = maxSpillBytes;
+        this.codec = codec;
+    }
+
+    @Override
+    public synchronized boolean offer(StoredMessage msg) {
+        if (msg == null) {
+            throw new NullPointerException("Inserted element can't be null");
+        }
+        if (spilled == 0 && memory.size() < capacity) {
+            memory.add(msg);
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                memory.poll();
+                memory.add(msg);
+                dropped++;
+                LOG.debug("Dropped the oldest queued message, the queue is full. CId={}", clientID);
+                return true;
+            case SPILL:
+                if (spill(msg)) {
+                    spilled++;
+                    return true;
+                }
+                dropped++;
+                LOG.debug("Dropped a message, the spill file is full. CId={}", clientID);
+                return false;
+            case DROP_NEWEST:
+            default:
+                dropped++;
+                LOG.debug("Dropped a message, the queue is full. CId={}", clientID);
+                return false;
+        }
+    }
+
+    private boolean spill(StoredMessage msg) {
+        final byte[] bytes = codec.toBytes(msg);
+        if (spillWritePosition - spillReadPosition + LENGTH_BYTES + bytes.length > maxSpillBytes) {
+            return false;
+        }
+        final ByteBuffer entry = ByteBuffer.allocate(LENGTH_BYTES + bytes.length);
+        entry.putInt(bytes.length).put(bytes).flip();
+        try {
+            if (spillFile == null) {
+                final Path path = Files.createTempFile(spillDirectory.toPath(), "moquette-queue-", ".spill");
+                spillFile = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+                LOG.info("Spilling the queued messages to file. CId={}, path={}", clientID, path);
+            }
+            while (entry.hasRemaining()) {
+                spillWritePosition += spillFile.write(entry, spillWritePosition);
+            }
+            return true;
+        } catch (IOException ex) {
+            LOG.error("Can't spill a queued message. CId={}", clientID, ex);
+            return false;
+        }
+    }
+
+    private int spilledLength(long position) throws IOException {
+        final ByteBuffer length = ByteBuffer.allocate(LENGTH_BYTES);
+        readFully(length, position);
+        return length.getInt(0);
+    }
+
+    private StoredMessage readSpilled(long position, int length) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.allocate(length);
+        readFully(bytes, position + LENGTH_BYTES);
+        return codec.fromBytes(bytes.array());
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (spillFile.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the spill file");
+            }
+        }
+    }
+
+    /**
+     * Move the oldest spilled messages in memory, up to the capacity.
+     */
+    private void refill() {
+        try {
+            while (spilled > 0 && memory.size() < capacity) {
+                final int length = spilledLength(spillReadPosition);
+                memory.add(readSpilled(spillReadPosition, length));
+                spillReadPosition += LENGTH_BYTES + length;
+                spilled--;
+            }
+        } catch (IOException ex) {
+            LOG.error("Can't read the spilled messages, dropping them. CId={}, count={}", clientID, spilled, ex);
+            dropped += spilled;
+            spilled = 0;
+        }
+        if (spilled == 0) {
+            resetSpillFile();
+        } else if (spillReadPosition >= MIN_COMPACTION_BYTES
+                && spillReadPosition >= spillWritePosition - spillReadPosition) {
+            compactSpillFile();
+        }
+    }
+
+    /**
+     * Move the messages still spilled at the start of the file and truncate it. The moved bytes are at most
+     * the ones already read, so the cost of the copies is bounded by the bytes spilled.
+     */
+    private void compactSpillFile() {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) MIN_COMPACTION_BYTES);
+        long source = spillReadPosition;
+        long target = 0;
+        try {
+            while (source < spillWritePosition) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), spillWritePosition - source));
+                readFully(buffer, source);
+                buffer.flip();
+                source += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    target += spillFile.write(buffer, target);
+                }
+            }
+            spillFile.truncate(target);
+        } catch (IOException ex) {
+            LOG.error("Can't compact the spill file, dropping the spilled messages. CId={}, count={}", clientID,
+                spilled, ex);
+            dropped += spilled;
+            spilled = 0;
+            resetSpillFile();
+            return;
+        }
+        spillReadPosition = 0;
+        spillWritePosition = target;
+    }
+
+    private void resetSpillFile() {
+        spillReadPosition = 0;
+        spillWritePosition = 0;
+        if (spillFile == null) {
+            return;
+        }
+        try {
+            spillFile.truncate(0);
+        } catch (IOException ex) {
+            LOG.warn("Can't truncate the spill file. CId={}", clientID, ex);
+        }
+    }
+
+    @Override
+    public synchronized StoredMessage poll() {
+        final StoredMessage msg = memory.poll();
+        if (msg != null && spilled > 0) {
+            refill();
+        }
+        return msg;
+    }
+
+    @Override
+    public synchronized StoredMessage peek() {
+        return memory.peek();
+    }
+
+    @Override
+    public synchronized int size() {
+        return memory.size() + spilled;
+    }
+
+    /**
+     * @return a snapshot of the queued messages, it reads also the spilled ones.
+     */
+    @Override
+    public synchronized Iterator<StoredMessage> iterator() {
+        final List<StoredMessage> snapshot = new ArrayList<>(memory);
+        long position = spillReadPosition;
+        try {
+            for (int i = 0; i < spilled; i++) {
+                final int length = spilledLength(position);
+                snapshot.add(readSpilled(position, length));
+                position += LENGTH_BYTES + length;
+            }
+        } catch (IOException ex) {
+            LOG.error("Can't read the spilled messages. CId={}", clientID, ex);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    @Override
+    public synchronized void clear() {
+        memory.clear();
+        spilled = 0;
+        resetSpillFile();
+    }
+
+    /**
+     * Drop the queued messages and delete the spill file.
+     */
+    public synchronized void close() {
+        clear();
+        if (spillFile == null) {
+            return;
+        }
+        try {
+            spillFile.close();
+        } catch (IOException ex) {
+            LOG.warn("Can't close the spill file. CId={}", clientID, ex);
+        }
+        spillFile = null;
+    }
+
+    public synchronized QueueMetrics metrics() {
+        return new QueueMetrics(memory.size(), spilled, spillWritePosition, dropped);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super StoredMessage> c, int maxElements) {
+        return ISessionQueue.super.drainTo(c, maxElements);
+    }
+}
@@ -16,21 +16,26 @@
 
 package io.moquette.persistence;
 
+import io.moquette.BrokerConstants;
+import io.moquette.persistence.MemorySessionQueue.OverflowPolicy;
 import io.moquette.server.Constants;
+import io.moquette.server.config.IConfig;
 import io.moquette.spi.ClientSession;
 import io.moquette.spi.IMessagesStore.Message;
 import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISessionQueue;
 import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.ISubscriptionsStore;
 import io.moquette.spi.impl.subscriptions.Subscription;
 import io.moquette.spi.impl.subscriptions.Topic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+
+import java.io.File;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
 
@@ -41,7 +46,7 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
         final ClientSession clientSession;
         final Map<Topic, Subscription> subscriptions = new ConcurrentHashMap<>();
         final AtomicReference<PersistentSession> persistentSession = new AtomicReference<>(null);
-        final BlockingQueue<StoredMessage> queue = new ArrayBlockingQueue<>(Constants.MAX_MESSAGE_QUEUE);
+        final MemorySessionQueue queue;
         final Map<Integer, Message> secondPhaseStore = new ConcurrentHashMap<>();
         final Map<Integer, Message> outboundFlightMessages =
                 Collections.synchronizedMap(new HashMap<Integer, Message>());
@@ -50,6 +55,8 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
         Session(String clientID, ClientSession clientSession) {
             this.clientID = clientID;
             this.clientSession = clientSession;
+            this.queue = new MemorySessionQueue(clientID, queueCapacity, queueOverflow, spillDirectory,
+                spillMaxBytes, spillCodec);
         }
 
         public void clean() {
@@ -69,8 +76,36 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
     }
 
     private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final int queueCapacity;
+    private final OverflowPolicy queueOverflow;
+    private final File spillDirectory;
+    private final long spillMaxBytes;
+    // the topics of the spilled messages are kept only in memory, like the spill files
+    private final StoreCodec<StoredMessage> spillCodec =
+        StoreCodecs.binary(new TopicDictionary(new ConcurrentHashMap<>(), new ConcurrentHashMap<>())).storedMessages();
 
     public MemorySessionStore() {
+        this(null);
+    }
+
+    /**
+     * @param props
+     *            the configuration of the queues of the sessions, null to use the defaults.
+     */
+    public MemorySessionStore(IConfig props) {
+        this.queueCapacity = Integer.parseInt(property(props, BrokerConstants.MEMORY_QUEUE_CAPACITY,
+            String.valueOf(Constants.MAX_MESSAGE_QUEUE)));
+        this.queueOverflow = OverflowPolicy.valueOf(
+            property(props, BrokerConstants.MEMORY_QUEUE_OVERFLOW, "drop_newest").toUpperCase(Locale.ROOT));
+        this.spillDirectory = new File(property(props, BrokerConstants.MEMORY_QUEUE_SPILL_DIRECTORY,
+            System.getProperty("java.io.tmpdir")));
+        this.spillMaxBytes = Long.parseLong(property(props, BrokerConstants.MEMORY_QUEUE_SPILL_MAX_BYTES,
+            String.valueOf(64 * 1024 * 1024)));
+        LOG.info("Configured the queues of the sessions. Capacity={}, overflow={}", queueCapacity, queueOverflow);
+    }
+
+    private static String property(IConfig props, String name, String defaultValue) {
+        return props == null ? defaultValue : props.getProperty(name, defaultValue);
     }
 
     private Session getSession(String clientID) {
@@ -196,6 +231,20 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
         return subscriptions;
     }
 
+    @Override
+    public void forEachSubscription(Consumer<Subscription> action) {
+        sessions.forEach((k, v) -> v.subscriptions.values().forEach(action));
+    }
+
+    @Override
+    public List<Subscription> getClientSubscriptions(String clientID) {
+        Session session = sessions.get(clientID);
+        if (session == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(session.subscriptions.values());
+    }
+
     @Override
     public Message inFlightAck(String clientID, int messageID) {
         return getSession(clientID).outboundFlightMessages.remove(messageID);
@@ -230,7 +279,7 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
     }
 
     @Override
-    public BlockingQueue<StoredMessage> queue(String clientID) {
+    public ISessionQueue<StoredMessage> queue(String clientID) {
         if (!sessions.containsKey(clientID)) {
             LOG.error("Can't find the session for client <{}>", clientID);
             return null;
@@ -298,6 +347,18 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
         return sessions.get(clientID).queue.size();
     }
 
+    @Override
+    public int getSpilledPublishMessagesNo(String clientID) {
+        Session session = sessions.get(clientID);
+        return session == null ? 0 : session.queue.metrics().spilled();
+    }
+
+    @Override
+    public long getDroppedPublishMessagesNo(String clientID) {
+        Session session = sessions.get(clientID);
+        return session == null ? 0 : session.queue.metrics().dropped();
+    }
+
     @Override
     public int getSecondPhaseAckPendingMessages(String clientID) {
         if (!sessions.containsKey(clientID)) {
@@ -334,7 +395,17 @@ public class MemorySessionStore implements ISessionsStore, ISubscriptionsStore {
     @Override
     public void remove(String clientID) {
         cleanSession(clientID);
-        sessions.remove(clientID);
+        Session session = sessions.remove(clientID);
+        if (session != null) {
+            session.queue.close();
+        }
+    }
+
+    /**
+     * Close the queues of the sessions, deleting their spill files.
+     */
+    void close() {
+        sessions.values().forEach(session -> session.queue.close());
     }
 
     @Override
@@ -30,7 +30,7 @@ public class MemoryStorageService implements IStore {
 
     public MemoryStorageService(IConfig props, ScheduledExecutorService scheduler) {
         m_messagesStore = new MemoryMessagesStore();
-        m_sessionsStore = new MemorySessionStore();
+        m_sessionsStore = new MemorySessionStore(props);
         m_messagesStore.initStore();
         m_sessionsStore.initStore();
     }
@@ -51,5 +51,6 @@ public class MemoryStorageService implements IStore {
 
     @Override
     public void close() {
+        m_sessionsStore.close();
     }
 }
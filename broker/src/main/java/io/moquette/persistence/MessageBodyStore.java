@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bodies of the queued messages, shared by the queues of the sessions. A message published to many offline
+ * sessions is stored once, keyed by its guid, and each queue keeps only a reference made of the guid and
+ * the QoS. The body counts its references and it's removed when the last queue referring to it drops it.
+ *
+ * The queues have to call {@link #retain(StoredMessage)} with each message they add, store the references
+ * encoded by {@link #references()} and call {@link #release(Object)} with each value they remove.
+ */
+public class MessageBodyStore {
+
+    // the encoded messages start with the format version, the references with this tag
+    private static final byte REFERENCE_TAG = (byte) 0x80;
+
+    private final ConcurrentMap<String, byte[]> bodies;
+    private final ConcurrentMap<String, Integer> referenceCounts;
+    private final StoreCodec<StoredMessage> codec;
+    private final StoreCodec<StoredMessage> references = new ReferenceCodec();
+
+    /**
+     * @param bodies
+     *            the map of the store from the guid to the encoded message.
+     * @param referenceCounts
+     *            the map of the store from the guid to the number of queues referring to the message.
+     * @param codec
+     *            the codec of the bodies, used also for the messages queued by the previous versions.
+     */
+    public MessageBodyStore(ConcurrentMap<String, byte[]> bodies, ConcurrentMap<String, Integer> referenceCounts,
+                            StoreCodec<StoredMessage> codec) {
+        this.bodies = bodies;
+        this.referenceCounts = referenceCounts;
+        this.codec = codec;
+    }
+
+    /**
+     * Codec of the values of the queues, it encodes the reference to the body of a retained message.
+     */
+    public StoreCodec<StoredMessage> references() {
+        return references;
+    }
+
+    /**
+     * Drop the reference of a value removed from a queue, the values that aren't references are ignored.
+     */
+    public void release(Object stored) {
+        if (!(stored instanceof byte[])) {
+            return;
+        }
+        final ByteBuf in = Unpooled.wrappedBuffer((byte[]) stored);
+        if (!in.isReadable() || in.readByte() != REFERENCE_TAG) {
+            return;
+        }
+        in.skipBytes(1);
+        release(new UUID(in.readLong(), in.readLong()).toString());
+    }
+
+    /**
+     * Add a reference to the body of a message being queued, the body is stored by the first one. The
+     * message gets a guid, if it has none, that identifies its body.
+     */
+    public synchronized void retain(StoredMessage msg) {
+        UUID guid = msg.getGuid();
+        if (guid == null) {
+            guid = UUID.randomUUID();
+            msg.setGuid(guid);
+        }
+        final String key = guid.toString();
+        final Integer count = referenceCounts.get(key);
+        if (count == null) {
+            bodies.put(key, codec.toBytes(msg));
+            referenceCounts.put(key, 1);
+        } else {
+            referenceCounts.put(key, count + 1);
+        }
+    }
+
+    private synchronized void release(String key) {
+        final Integer count = referenceCounts.get(key);
+        if (count == null || count <= 1) {
+            referenceCounts.remove(key);
+            bodies.remove(key);
+        } else {
+            referenceCounts.put(key, count - 1);
+        }
+    }
+
+    private StoredMessage body(UUID guid, MqttQoS qos) {
+        final byte[] body = bodies.get(guid.toString());
+        if (body == null) {
+            throw new IllegalStateException("Missing body of the queued message " + guid);
+        }
+        final StoredMessage stored = codec.fromBytes(body);
+        if (stored.getQos() == qos) {
+            return stored;
+        }
+        final StoredMessage msg = new StoredMessage(stored.getPayload(), qos, stored.getTopic());
+        msg.setRetained(stored.isRetained());
+        msg.setClientID(stored.getClientID());
+        msg.setGuid(guid);
+        return msg;
+    }
+
+    private final class ReferenceCodec implements StoreCodec<StoredMessage> {
+
+        @Override
+        public void encode(StoredMessage msg, ByteBuf out) {
+            if (msg.getGuid() == null) {
+                throw new IllegalStateException("The body of the message must be retained before it's queued");
+            }
+            out.writeByte(REFERENCE_TAG);
+            out.writeByte(msg.getQos().value());
+            out.writeLong(msg.getGuid().getMostSignificantBits());
+            out.writeLong(msg.getGuid().getLeastSignificantBits());
+        }
+
+        @Override
+        public StoredMessage decode(ByteBuf in) {
+            if (in.getByte(in.readerIndex()) != REFERENCE_TAG) {
+                // queued by a previous version with the whole message
+                return codec.decode(in);
+            }
+            in.skipBytes(1);
+            final MqttQoS qos = MqttQoS.valueOf(in.readUnsignedByte());
+            return body(new UUID(in.readLong(), in.readLong()), qos);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Packet identifiers in use by a client, kept sorted in an array sized to the identifiers in flight, so an
+ * idle session costs a few bytes. The next identifier is searched after the last one returned so that an
+ * identifier isn't reused soon after its release.
+ */
+public final class PacketIDs {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PacketIDs.class);
+
+    public static final int MAX_PACKET_ID = 0xFFFF;
+    private static final int MIN_CAPACITY = 4;
+
+    private int[] used = new int[MIN_CAPACITY];
+    private int size;
+    private int last;
+
+    /**
+     * @return the first identifier not in use after the last one returned, marked as used.
+     */
+    public synchronized int next() {
+        int next = firstFreeFrom(last + 1);
+        if (next > MAX_PACKET_ID) {
+            next = firstFreeFrom(1);
+        }
+        if (next > MAX_PACKET_ID) {
+            LOG.warn("All the packet identifiers are in use, reusing one");
+            next = (last % MAX_PACKET_ID) + 1;
+        } else {
+            insert(-Arrays.binarySearch(used, 0, size, next) - 1, next);
+        }
+        last = next;
+        return next;
+    }
+
+    private int firstFreeFrom(int from) {
+        int idx = Arrays.binarySearch(used, 0, size, from);
+        if (idx < 0) {
+            return from;
+        }
+        int candidate = from;
+        while (idx < size && used[idx] == candidate) {
+            idx++;
+            candidate++;
+        }
+        return candidate;
+    }
+
+    public synchronized void use(int packetID) {
+        final int idx = Arrays.binarySearch(used, 0, size, packetID);
+        if (idx < 0) {
+            insert(-idx - 1, packetID);
+        }
+    }
+
+    public synchronized void release(int packetID) {
+        final int idx = Arrays.binarySearch(used, 0, size, packetID);
+        if (idx < 0) {
+            return;
+        }
+        System.arraycopy(used, idx + 1, used, idx, size - idx - 1);
+        size--;
+        if (used.length > MIN_CAPACITY && size < used.length / 4) {
+            used = Arrays.copyOf(used, Math.max(MIN_CAPACITY, used.length / 2));
+        }
+    }
+
+    public synchronized void clear() {
+        used = new int[MIN_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * @return the number of identifiers in use.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void insert(int idx, int packetID) {
+        if (size == used.length) {
+            used = Arrays.copyOf(used, used.length * 2);
+        }
+        System.arraycopy(used, idx, used, idx + 1, size - idx);
+        used[idx] = packetID;
+        size++;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+/**
+ * Snapshot of the state of the queue of a session.
+ */
+public class QueueMetrics {
+
+    private final int inMemory;
+    private final int spilled;
+    private final long spillFileBytes;
+    private final long dropped;
+
+    public QueueMetrics(int inMemory, int spilled, long spillFileBytes, long dropped) {
+        this.inMemory = inMemory;
+        this.spilled = spilled;
+        this.spillFileBytes = spillFileBytes;
+        this.dropped = dropped;
+    }
+
+    /**
+     * @return the number of queued messages.
+     */
+    public int depth() {
+        return inMemory + spilled;
+    }
+
+    public int inMemory() {
+        return inMemory;
+    }
+
+    public int spilled() {
+        return spilled;
+    }
+
+    /**
+     * @return the size of the spill file, including the messages already read back and not yet reclaimed.
+     */
+    public long spillFileBytes() {
+        return spillFileBytes;
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full, since the session was created.
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueMetrics{depth=" + depth() + ", inMemory=" + inMemory + ", spilled=" + spilled + ", spillFileBytes="
+            + spillFileBytes + ", dropped=" + dropped + '}';
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Binary encoding of a value kept by a persistent store.
+ *
+ * @param <T>
+ *            the type of the encoded values.
+ */
+public interface StoreCodec<T> {
+
+    void encode(T value, ByteBuf out);
+
+    /**
+     * Decode a value from the readable bytes of the buffer, the value may refer to the buffer (e.g. the
+     * payload of a message) so the buffer must not be modified afterwards.
+     */
+    T decode(ByteBuf in);
+
+    default byte[] toBytes(T value) {
+        final ByteBuf out = Unpooled.buffer();
+        encode(value, out);
+        return ByteBufUtil.getBytes(out);
+    }
+
+    default T fromBytes(byte[] bytes) {
+        return decode(Unpooled.wrappedBuffer(bytes));
+    }
+
+    /**
+     * Decode a value read from a map of a store, that contains either the bytes encoded by this codec or,
+     * when it was written by a previous version, the value itself.
+     */
+    @SuppressWarnings("unchecked")
+    default T fromStored(Object stored) {
+        if (stored == null) {
+            return null;
+        }
+        if (stored instanceof byte[]) {
+            return fromBytes((byte[]) stored);
+        }
+        return (T) stored;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.spi.IMessagesStore.Message;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import io.moquette.spi.impl.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The codecs used by a persistent store for the values it keeps.
+ */
+public final class StoreCodecs {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final int QOS_MASK = 0x03;
+    private static final int RETAINED_FLAG = 0x04;
+    private static final int STORED_FLAG = 0x08;
+    private static final int CLIENT_ID_FLAG = 0x10;
+    private static final int GUID_FLAG = 0x20;
+
+    private final StoreCodec<Message> messages;
+    private final StoreCodec<StoredMessage> storedMessages;
+    private final StoreCodec<Subscription> subscriptions;
+    private final StoreCodec<PersistentSession> sessions;
+
+    public StoreCodecs(StoreCodec<Message> messages, StoreCodec<StoredMessage> storedMessages,
+                       StoreCodec<Subscription> subscriptions, StoreCodec<PersistentSession> sessions) {
+        this.messages = messages;
+        this.storedMessages = storedMessages;
+        this.subscriptions = subscriptions;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Compact binary codecs: lengths are varints, the topic of a message is its identifier in the dictionary
+     * and the payload is written as it is, at the end of the message.
+     */
+    public static StoreCodecs binary(TopicDictionary topics) {
+        return new StoreCodecs(
+            new MessageCodec<Message>(topics) {
+
+                @Override
+                Message create(ByteBuf payload, MqttQoS qos, String topic, boolean stored) {
+                    return stored ? new StoredMessage(payload, qos, topic) : new Message(payload, qos, topic);
+                }
+            },
+            new MessageCodec<StoredMessage>(topics) {
+
+                @Override
+                StoredMessage create(ByteBuf payload, MqttQoS qos, String topic, boolean stored) {
+                    return new StoredMessage(payload, qos, topic);
+                }
+            },
+            new SubscriptionCodec(),
+            new SessionCodec());
+    }
+
+    /**
+     * @return the topic identifier of a message encoded by the binary codecs, or -1 if the stored value isn't
+     *         one, e.g. a message stored by a previous version or a reference to a message body.
+     */
+    public static int topicIdOf(Object stored) {
+        if (!(stored instanceof byte[])) {
+            return -1;
+        }
+        final byte[] bytes = (byte[]) stored;
+        if (bytes.length < 3 || bytes[0] != FORMAT_VERSION) {
+            return -1;
+        }
+        return readVarInt(Unpooled.wrappedBuffer(bytes, 2, bytes.length - 2));
+    }
+
+    public StoreCodec<Message> messages() {
+        return messages;
+    }
+
+    public StoreCodec<StoredMessage> storedMessages() {
+        return storedMessages;
+    }
+
+    public StoreCodec<Subscription> subscriptions() {
+        return subscriptions;
+    }
+
+    public StoreCodec<PersistentSession> sessions() {
+        return sessions;
+    }
+
+    private abstract static class MessageCodec<T extends Message> implements StoreCodec<T> {
+
+        private final TopicDictionary topics;
+
+        MessageCodec(TopicDictionary topics) {
+            this.topics = topics;
+        }
+
+        abstract T create(ByteBuf payload, MqttQoS qos, String topic, boolean stored);
+
+        @Override
+        public void encode(T msg, ByteBuf out) {
+            String clientID = null;
+            UUID guid = null;
+            int flags = msg.getQos().value();
+            if (msg.isRetained()) {
+                flags |= RETAINED_FLAG;
+            }
+            if (msg instanceof StoredMessage) {
+                flags |= STORED_FLAG;
+                clientID = ((StoredMessage) msg).getClientID();
+                guid = ((StoredMessage) msg).getGuid();
+                if (clientID != null) {
+                    flags |= CLIENT_ID_FLAG;
+                }
+                if (guid != null) {
+                    flags |= GUID_FLAG;
+                }
+            }
+            out.writeByte(FORMAT_VERSION);
+            out.writeByte(flags);
+            writeVarInt(out, topics.idOf(msg.getTopic()));
+            if (clientID != null) {
+                writeString(out, clientID);
+            }
+            if (guid != null) {
+                out.writeLong(guid.getMostSignificantBits());
+                out.writeLong(guid.getLeastSignificantBits());
+            }
+            final ByteBuf payload = msg.getPayload();
+            out.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        }
+
+        @Override
+        public T decode(ByteBuf in) {
+            checkVersion(in);
+            final int flags = in.readUnsignedByte();
+            final String topic = topics.topicOf(readVarInt(in));
+            final String clientID = (flags & CLIENT_ID_FLAG) != 0 ? readString(in) : null;
+            final UUID guid = (flags & GUID_FLAG) != 0 ? new UUID(in.readLong(), in.readLong()) : null;
+            final T msg = create(in.slice(), MqttQoS.valueOf(flags & QOS_MASK), topic,
+                (flags & STORED_FLAG) != 0);
+            msg.setRetained((flags & RETAINED_FLAG) != 0);
+            if (msg instanceof StoredMessage) {
+                ((StoredMessage) msg).setClientID(clientID);
+                ((StoredMessage) msg).setGuid(guid);
+            }
+            return msg;
+        }
+    }
+
+    private static final class SubscriptionCodec implements StoreCodec<Subscription> {
+
+        @Override
+        public void encode(Subscription subscription, ByteBuf out) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeByte(subscription.getRequestedQos().value());
+            writeString(out, subscription.getClientId());
+            writeString(out, subscription.getTopicFilter().toString());
+        }
+
+        @Override
+        public Subscription decode(ByteBuf in) {
+            checkVersion(in);
+            final MqttQoS qos = MqttQoS.valueOf(in.readUnsignedByte());
+            final String clientID = readString(in);
+            return new Subscription(clientID, new Topic(readString(in)), qos);
+        }
+    }
+
+    private static final class SessionCodec implements StoreCodec<PersistentSession> {
+
+        @Override
+        public void encode(PersistentSession session, ByteBuf out) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeBoolean(session.cleanSession);
+            writeVarLong(out, session.lastContatct);
+        }
+
+        @Override
+        public PersistentSession decode(ByteBuf in) {
+            checkVersion(in);
+            final boolean cleanSession = in.readBoolean();
+            return new PersistentSession(cleanSession, readVarLong(in));
+        }
+    }
+
+    private static void checkVersion(ByteBuf in) {
+        final byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown format version of a stored value: " + version);
+        }
+    }
+
+    static void writeVarInt(ByteBuf out, int value) {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    static int readVarInt(ByteBuf in) {
+        return (int) readVarLong(in);
+    }
+
+    static void writeVarLong(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(ByteBuf in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in a stored value");
+    }
+
+    private static void writeString(ByteBuf out, String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static String readString(ByteBuf in) {
+        final int length = readVarInt(in);
+        final String value = in.toString(in.readerIndex(), length, StandardCharsets.UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+}
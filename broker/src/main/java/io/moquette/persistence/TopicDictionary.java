@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Assigns a numeric identifier to each topic, so that the stored messages carry the identifier instead of
+ * the topic name. The identifiers are kept in two maps of the store, one for each direction, and cached in
+ * memory.
+ *
+ * An identifier is claimed with a putIfAbsent on the map of the names, so dictionaries sharing the same
+ * maps don't assign the same identifier to different topics.
+ *
+ * The identifiers are never removed while the stored messages are being encoded, the store reclaims the
+ * ones no longer referenced by its messages with {@link #reclaim(Consumer)} when it's opened.
+ */
+public class TopicDictionary {
+
+    private final ConcurrentMap<String, Integer> storedIds;
+    private final ConcurrentMap<Integer, String> storedTopics;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> topics = new ConcurrentHashMap<>();
+    private int nextId;
+
+    /**
+     * @param storedIds
+     *            the map of the store from the topics to their identifiers.
+     * @param storedTopics
+     *            the map of the store from the identifiers to their topics.
+     */
+    public TopicDictionary(ConcurrentMap<String, Integer> storedIds, ConcurrentMap<Integer, String> storedTopics) {
+        this.storedIds = storedIds;
+        this.storedTopics = storedTopics;
+        this.nextId = storedTopics.size();
+    }
+
+    public int idOf(String topic) {
+        final Integer id = ids.get(topic);
+        if (id != null) {
+            return id;
+        }
+        return assignId(topic);
+    }
+
+    private synchronized int assignId(String topic) {
+        Integer id = storedIds.get(topic);
+        if (id == null) {
+            while (storedTopics.putIfAbsent(nextId, topic) != null) {
+                nextId++;
+            }
+            final Integer existing = storedIds.putIfAbsent(topic, nextId);
+            if (existing != null) {
+                // another dictionary assigned the topic meanwhile, free the identifier claimed for it
+                storedTopics.remove(nextId, topic);
+                id = existing;
+            } else {
+                id = nextId;
+                nextId++;
+            }
+        }
+        ids.put(topic, id);
+        topics.put(id, topic);
+        return id;
+    }
+
+    public String topicOf(int id) {
+        final String topic = topics.get(id);
+        if (topic != null) {
+            return topic;
+        }
+        final String stored = storedTopics.get(id);
+        if (stored == null) {
+            throw new IllegalStateException("Unknown topic identifier " + id);
+        }
+        topics.put(id, stored);
+        return stored;
+    }
+
+    /**
+     * Remove the identifiers not referenced by the stored messages, as {@link #retainOnly(Set)}.
+     *
+     * @param scan
+     *            passes to the given action each stored value that can be an encoded message.
+     * @return the number of removed identifiers.
+     */
+    public int reclaim(Consumer<Consumer<Object>> scan) {
+        final Set<Integer> usedIds = new HashSet<>();
+        scan.accept(stored -> {
+            final int id = StoreCodecs.topicIdOf(stored);
+            if (id >= 0) {
+                usedIds.add(id);
+            }
+        });
+        return retainOnly(usedIds);
+    }
+
+    /**
+     * Remove the identifiers not in the given set, with their topics. It must run while no message is
+     * encoded or decoded, and no other dictionary shares the maps of the store, because the removed
+     * identifiers are assigned again to the next topics.
+     *
+     * @param usedIds
+     *            the identifiers referenced by the messages of the store.
+     * @return the number of removed identifiers.
+     */
+    public synchronized int retainOnly(Set<Integer> usedIds) {
+        final List<Integer> unused = new ArrayList<>();
+        for (Integer id : storedTopics.keySet()) {
+            if (!usedIds.contains(id)) {
+                unused.add(id);
+            }
+        }
+        for (Integer id : unused) {
+            final String topic = storedTopics.remove(id);
+            if (topic != null) {
+                storedIds.remove(topic, id);
+                ids.remove(topic);
+            }
+            topics.remove(id);
+        }
+        if (!unused.isEmpty()) {
+            // the free identifiers are claimed again from the lowest one
+            nextId = 0;
+        }
+        return unused.size();
+    }
+}
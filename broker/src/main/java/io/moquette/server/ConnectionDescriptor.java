@@ -16,18 +16,20 @@
 
 package io.moquette.server;
 
-import java.util.NoSuchElementException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import io.moquette.server.netty.AutoFlushHandler;
 import io.moquette.server.netty.NettyUtils;
 import io.moquette.server.netty.metrics.BytesMetrics;
 import io.moquette.server.netty.metrics.BytesMetricsHandler;
 import io.moquette.server.netty.metrics.MessageMetrics;
 import io.moquette.server.netty.metrics.MessageMetricsHandler;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.WriteBufferWaterMark;
 
 /**
  * Value object to maintain the information of single connection, like ClientID, Channel, and clean
@@ -54,6 +56,10 @@ public class ConnectionDescriptor {
     private final Channel channel;
     public final boolean cleanSession;
     private final AtomicReference<ConnectionState> channelState = new AtomicReference<>(ConnectionState.DISCONNECTED);
+    // publishes queued or dropped because the channel was over its high water mark
+    private final AtomicLong deferredPublishes = new AtomicLong();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicLong droppedPublishes = new AtomicLong();
 
     public ConnectionDescriptor(String clientID, Channel session, boolean cleanSession) {
         this.clientID = clientID;
@@ -65,19 +71,65 @@ public class ConnectionDescriptor {
         this.channel.writeAndFlush(payload);
     }
 
-    public void setupAutoFlusher(int flushIntervalMs) {
-        try {
-            this.channel.pipeline().addAfter(
-                    "idleEventHandler",
-                    "autoFlusher",
-                    new AutoFlushHandler(flushIntervalMs, TimeUnit.MILLISECONDS));
-        } catch (NoSuchElementException nseex) {
-            // the idleEventHandler is not present on the pipeline
-            this.channel.pipeline()
-                    .addFirst("autoFlusher", new AutoFlushHandler(flushIntervalMs, TimeUnit.MILLISECONDS));
+    /**
+     * Write without flushing, must be invoked from the event loop of the channel.
+     */
+    void write(Object payload) {
+        this.channel.write(payload);
+    }
+
+    void flush() {
+        this.channel.flush();
+    }
+
+    EventLoop eventLoop() {
+        return this.channel.eventLoop();
+    }
+
+    /**
+     * @return false while the outbound buffer of the channel is over its high water mark, until it drains
+     *         below the low water mark.
+     */
+    public boolean isWritable() {
+        return this.channel.isWritable();
+    }
+
+    public void setWriteBufferWaterMark(WriteBufferWaterMark waterMark) {
+        this.channel.config().setWriteBufferWaterMark(waterMark);
+    }
+
+    /**
+     * Count a publish queued in the session instead of being written. The queue is drained when the channel
+     * becomes writable, if it already is the drain is scheduled on the event loop of the channel, once for
+     * all the publishes deferred meanwhile.
+     *
+     * @param drainQueue
+     *            writes the queued publishes to the channel.
+     */
+    void publishDeferred(Consumer<Channel> drainQueue) {
+        deferredPublishes.incrementAndGet();
+        if (this.channel.isWritable() && drainScheduled.compareAndSet(false, true)) {
+            this.channel.eventLoop().execute(() -> {
+                drainScheduled.set(false);
+                if (this.channel.isActive()) {
+                    drainQueue.accept(this.channel);
+                }
+            });
         }
     }
 
+    void publishDropped() {
+        droppedPublishes.incrementAndGet();
+    }
+
+    public long getDeferredPublishes() {
+        return deferredPublishes.get();
+    }
+
+    public long getDroppedPublishes() {
+        return droppedPublishes.get();
+    }
+
     public boolean doesNotUseChannel(Channel channel) {
         return !(this.channel.equals(channel));
     }
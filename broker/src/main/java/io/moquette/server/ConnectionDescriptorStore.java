@@ -25,6 +25,8 @@ import io.moquette.server.netty.metrics.MessageMetrics;
 import io.moquette.spi.ClientSession;
 import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.impl.subscriptions.Subscription;
+import io.netty.channel.Channel;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
 import org.slf4j.Logger;
@@ -33,6 +35,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 public class ConnectionDescriptorStore implements IConnectionsManager {
 
@@ -47,6 +50,15 @@ public class ConnectionDescriptorStore implements IConnectionsManager {
     }
 
     public boolean sendMessage(MqttMessage message, Integer messageID, String clientID) {
+        return sendMessage(message, messageID, clientID, null);
+    }
+
+    /**
+     * @param batch
+     *            if not null the message is added to the batch, and written when the batch is flushed,
+     *            instead of being written and flushed immediately.
+     */
+    public boolean sendMessage(MqttMessage message, Integer messageID, String clientID, PublishBatch batch) {
         final MqttMessageType messageType = message.fixedHeader().messageType();
         try {
             if (messageID != null) {
@@ -69,7 +81,11 @@ public class ConnectionDescriptorStore implements IConnectionsManager {
                  */
                 return false;
             }
-            descriptor.writeAndFlush(message);
+            if (batch != null) {
+                batch.add(descriptor, message);
+            } else {
+                descriptor.writeAndFlush(message);
+            }
             return true;
         } catch (Throwable e) {
             String errorMsg = "Unable to send " + messageType + " message. CId=<" + clientID + ">";
@@ -81,6 +97,48 @@ public class ConnectionDescriptorStore implements IConnectionsManager {
         }
     }
 
+    /**
+     * @return false when the client is connected and its channel is over the high water mark.
+     */
+    public boolean isWritable(String clientID) {
+        ConnectionDescriptor descriptor = connectionDescriptors.get(clientID);
+        return descriptor == null || descriptor.isWritable();
+    }
+
+    /**
+     * Record a publish queued in the session of the client instead of being written to its channel, and
+     * drain the queue if the channel is writable.
+     */
+    public void publishDeferred(String clientID, Consumer<Channel> drainQueue) {
+        ConnectionDescriptor descriptor = connectionDescriptors.get(clientID);
+        if (descriptor != null) {
+            descriptor.publishDeferred(drainQueue);
+        }
+    }
+
+    /**
+     * Record a QoS 0 publish dropped because the channel of the client was unwritable.
+     */
+    public void publishDropped(String clientID) {
+        ConnectionDescriptor descriptor = connectionDescriptors.get(clientID);
+        if (descriptor != null) {
+            descriptor.publishDropped();
+        }
+    }
+
+    @Override
+    public boolean setWriteBufferWaterMark(String clientID, int lowWaterMark, int highWaterMark) {
+        ConnectionDescriptor descriptor = connectionDescriptors.get(clientID);
+        if (descriptor == null) {
+            LOG.warn("Connection descriptor doesn't exist. The water marks can't be set. CId=<{}>", clientID);
+            return false;
+        }
+        LOG.info("Setting the write buffer water marks. CId=<{}>, low={}, high={}", clientID, lowWaterMark,
+            highWaterMark);
+        descriptor.setWriteBufferWaterMark(new WriteBufferWaterMark(lowWaterMark, highWaterMark));
+        return true;
+    }
+
     public ConnectionDescriptor addConnection(ConnectionDescriptor descriptor) {
         return connectionDescriptors.putIfAbsent(descriptor.clientID, descriptor);
     }
@@ -159,12 +217,22 @@ public class ConnectionDescriptorStore implements IConnectionsManager {
             result.setConnectionEstablished(true);
             BytesMetrics bytesMetrics = descriptor.getBytesMetrics();
             MessageMetrics messageMetrics = descriptor.getMessageMetrics();
+            // the metrics handlers can be disabled
+            if (bytesMetrics == null) {
+                bytesMetrics = new BytesMetrics();
+            }
+            if (messageMetrics == null) {
+                messageMetrics = new MessageMetrics();
+            }
             result.setConnectionMetrics(new MqttConnectionMetrics(bytesMetrics.readBytes(), bytesMetrics.wroteBytes(),
-                messageMetrics.messagesRead(), messageMetrics.messagesWrote()));
+                messageMetrics.messagesRead(), messageMetrics.messagesWrote(), descriptor.getDeferredPublishes(),
+                descriptor.getDroppedPublishes()));
         } else {
             result.setConnectionEstablished(false);
         }
         result.setPendingPublishMessagesNo(session.getPendingPublishMessagesNo());
+        result.setSpilledPublishMessagesNo(session.getSpilledPublishMessagesNo());
+        result.setDroppedPublishMessagesNo(session.getDroppedPublishMessagesNo());
         result.setSecondPhaseAckPendingMessages(session.getSecondPhaseAckPendingMessages());
         result.setInflightMessages(session.getInflightMessagesNo());
         return result;
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the messages of a fan-out grouped by the event loop of the target channels. On flush a
+ * single task is submitted to each loop, that writes all the messages of its channels and then
+ * flushes every channel once, instead of a writeAndFlush (and a wakeup of the loop) per message.
+ *
+ * Not thread safe, a batch is filled and flushed by the thread that does the fan-out.
+ */
+public class PublishBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublishBatch.class);
+
+    private final Map<EventLoop, Map<ConnectionDescriptor, List<Object>>> messagesByLoop = new HashMap<>();
+
+    void add(ConnectionDescriptor descriptor, Object message) {
+        messagesByLoop.computeIfAbsent(descriptor.eventLoop(), k -> new LinkedHashMap<>())
+            .computeIfAbsent(descriptor, k -> new ArrayList<>(1))
+            .add(message);
+    }
+
+    public boolean isEmpty() {
+        return messagesByLoop.isEmpty();
+    }
+
+    /**
+     * Write the collected messages, the ones for channels served by the current event loop are
+     * written immediately, the others in a task submitted to their loop.
+     */
+    public void flush() {
+        for (Map.Entry<EventLoop, Map<ConnectionDescriptor, List<Object>>> entry : messagesByLoop.entrySet()) {
+            final EventLoop loop = entry.getKey();
+            final Map<ConnectionDescriptor, List<Object>> messages = entry.getValue();
+            if (loop.inEventLoop()) {
+                writeAndFlush(messages);
+            } else {
+                try {
+                    loop.execute(() -> writeAndFlush(messages));
+                } catch (Throwable e) {
+                    LOG.error("Unable to submit the writes of a fan-out to the event loop", e);
+                    messages.values().forEach(msgs -> msgs.forEach(ReferenceCountUtil::release));
+                }
+            }
+        }
+        messagesByLoop.clear();
+    }
+
+    private static void writeAndFlush(Map<ConnectionDescriptor, List<Object>> messages) {
+        for (Map.Entry<ConnectionDescriptor, List<Object>> entry : messages.entrySet()) {
+            final ConnectionDescriptor descriptor = entry.getKey();
+            try {
+                for (Object message : entry.getValue()) {
+                    descriptor.write(message);
+                }
+                descriptor.flush();
+            } catch (Throwable e) {
+                LOG.error("Unable to write messages of a fan-out. CId=<{}>", descriptor.clientID, e);
+            }
+        }
+    }
+}
@@ -45,6 +45,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -335,12 +336,17 @@ public class Server {
 
         scheduler.scheduleWithFixedDelay(() -> {
             try {
-                store.remove(store.getExpired(System.currentTimeMillis(), ttlInDays, TimeUnit.DAYS));
+                Set<String> expired = store.getExpired(System.currentTimeMillis(), ttlInDays, TimeUnit.DAYS);
+                m_processor.removeSessionsSubscriptions(expired);
+                store.remove(expired);
 
                 int tooMuch = store.size() - maxSessions;
 
-                if (tooMuch > 0)
-                    store.remove(store.getOldest(tooMuch));
+                if (tooMuch > 0) {
+                    Set<String> oldest = store.getOldest(tooMuch);
+                    m_processor.removeSessionsSubscriptions(oldest);
+                    store.remove(oldest);
+                }
             } catch (Exception e) {
                 LOG.error(e.toString(), e);
             }
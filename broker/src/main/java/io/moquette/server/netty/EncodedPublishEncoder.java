@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server.netty;
+
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.util.List;
+
+/**
+ * Encode an {@link EncodedPublishMessage} as the composition of its shared encoded header, the packet
+ * id and the payload. Must precede the MqttEncoder in the outbound direction, the other messages are
+ * left to it.
+ */
+@ChannelHandler.Sharable
+public final class EncodedPublishEncoder extends MessageToMessageEncoder<EncodedPublishMessage> {
+
+    public static final EncodedPublishEncoder INSTANCE = new EncodedPublishEncoder();
+
+    private EncodedPublishEncoder() {
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, EncodedPublishMessage msg, List<Object> out) {
+        final boolean withPacketId = msg.fixedHeader().qosLevel() != MqttQoS.AT_MOST_ONCE;
+        final CompositeByteBuf buf = ctx.alloc().compositeDirectBuffer(withPacketId ? 3 : 2);
+        buf.addComponent(true, msg.encodedHeader().retainedDuplicate());
+        if (withPacketId) {
+            buf.addComponent(true, ctx.alloc().directBuffer(2).writeShort(msg.variableHeader().packetId()));
+        }
+        buf.addComponent(true, msg.payload().retainedDuplicate());
+        out.add(buf);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * PUBLISH message that carries its fixed header and topic name already encoded, the encoded header
+ * is shared by all the messages of a fan-out with the same QoS. The packet id, when present, and the
+ * payload are appended by {@link EncodedPublishEncoder}, so the topic isn't encoded again for every
+ * subscriber and the payload is never copied.
+ *
+ * Retaining or releasing the message retains or releases both the payload and the encoded header.
+ */
+public class EncodedPublishMessage extends MqttPublishMessage {
+
+    private final ByteBuf encodedHeader;
+
+    /**
+     * @param encodedHeader
+     *            the header built by {@link #encodeHeader}, the message takes ownership of one reference.
+     */
+    public EncodedPublishMessage(MqttFixedHeader mqttFixedHeader, MqttPublishVariableHeader variableHeader,
+                                 ByteBuf payload, ByteBuf encodedHeader) {
+        super(mqttFixedHeader, variableHeader, payload);
+        this.encodedHeader = encodedHeader;
+    }
+
+    /**
+     * Encode the fixed header of a not retained PUBLISH and the topic name of its variable header.
+     *
+     * @param topicName
+     *            the UTF-8 bytes of the topic name.
+     * @param payloadSize
+     *            the readable bytes of the payload, part of the remaining length.
+     */
+    public static ByteBuf encodeHeader(ByteBufAllocator allocator, MqttQoS qos, byte[] topicName, int payloadSize) {
+        final int packetIdSize = qos == MqttQoS.AT_MOST_ONCE ? 0 : 2;
+        final int remainingLength = 2 + topicName.length + packetIdSize + payloadSize;
+        final ByteBuf buf = allocator.directBuffer(1 + remainingLengthSize(remainingLength) + 2 + topicName.length);
+        buf.writeByte(MqttMessageType.PUBLISH.value() << 4 | qos.value() << 1);
+        int num = remainingLength;
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (num > 0);
+        buf.writeShort(topicName.length);
+        buf.writeBytes(topicName);
+        return buf;
+    }
+
+    private static int remainingLengthSize(int remainingLength) {
+        int size = 1;
+        while (remainingLength >= 128) {
+            remainingLength /= 128;
+            size++;
+        }
+        return size;
+    }
+
+    ByteBuf encodedHeader() {
+        return encodedHeader;
+    }
+
+    @Override
+    public MqttPublishMessage retain() {
+        encodedHeader.retain();
+        return super.retain();
+    }
+
+    @Override
+    public MqttPublishMessage retain(int increment) {
+        encodedHeader.retain(increment);
+        return super.retain(increment);
+    }
+
+    @Override
+    public boolean release() {
+        encodedHeader.release();
+        return super.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        encodedHeader.release(decrement);
+        return super.release(decrement);
+    }
+}
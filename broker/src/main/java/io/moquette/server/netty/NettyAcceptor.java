@@ -25,6 +25,7 @@ import io.moquette.spi.security.ISslContextCreator;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -38,6 +39,8 @@ import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 import io.netty.handler.codec.mqtt.MqttDecoder;
 import io.netty.handler.codec.mqtt.MqttEncoder;
@@ -49,6 +52,7 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
@@ -58,30 +62,46 @@ public class NettyAcceptor implements ServerAcceptor {
 
     private static final String MQTT_SUBPROTOCOL_CSV_LIST = "mqtt, mqttv3.1, mqttv3.1.1";
 
-    static class WebSocketFrameToByteBufDecoder extends MessageToMessageDecoder<BinaryWebSocketFrame> {
+    /**
+     * Forwards the content of the binary frames, and of their continuation frames, as it is. The MQTT decoder
+     * accumulates the bytes of a packet that spans many frames, so the frames don't need to be aggregated.
+     * Once the handshake is complete the HTTP aggregator isn't needed anymore and it's removed from the
+     * pipeline, when the handshaker didn't already remove it.
+     */
+    static class WebSocketFrameToByteBufDecoder extends MessageToMessageDecoder<WebSocketFrame> {
 
         @Override
-        protected void decode(ChannelHandlerContext chc, BinaryWebSocketFrame frame, List<Object> out)
-                throws Exception {
-            // convert the frame to a ByteBuf
-            ByteBuf bb = frame.content();
-            // System.out.println("WebSocketFrameToByteBufDecoder decode - " +
-            // ByteBufUtil.hexDump(bb));
-            bb.retain();
-            out.add(bb);
+        public boolean acceptInboundMessage(Object msg) throws Exception {
+            return msg instanceof BinaryWebSocketFrame || msg instanceof ContinuationWebSocketFrame;
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext chc, WebSocketFrame frame, List<Object> out) throws Exception {
+            out.add(frame.content().retain());
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete
+                    || evt == WebSocketServerProtocolHandler.ServerHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+                ChannelPipeline pipeline = ctx.pipeline();
+                if (pipeline.get("aggregator") != null) {
+                    pipeline.remove("aggregator");
+                }
+            }
+            super.userEventTriggered(ctx, evt);
         }
     }
 
+    /**
+     * Wraps each encoded MQTT buffer in a binary frame, without copying it.
+     */
     static class ByteBufToWebSocketFrameEncoder extends MessageToMessageEncoder<ByteBuf> {
 
         @Override
         protected void encode(ChannelHandlerContext chc, ByteBuf bb, List<Object> out) throws Exception {
-            // convert the ByteBuf to a WebSocketFrame
-            BinaryWebSocketFrame result = new BinaryWebSocketFrame();
-            // System.out.println("ByteBufToWebSocketFrameEncoder encode - " +
-            // ByteBufUtil.hexDump(bb));
-            result.content().writeBytes(bb);
-            out.add(result);
+            out.add(new BinaryWebSocketFrame(bb.retain()));
         }
     }
 
@@ -98,14 +118,23 @@ public class NettyAcceptor implements ServerAcceptor {
     MessageMetricsCollector m_metricsCollector = new MessageMetricsCollector();
     private Optional<? extends ChannelInboundHandler> metrics;
     private Optional<? extends ChannelInboundHandler> errorsCather;
+    private Optional<MQTTMessageLogger> messageLogger;
+    private boolean bytesMetricsEnabled;
+    private boolean messageMetricsEnabled;
+    private WriteBatchingHandler.Batching writeBatching;
 
     private int nettySoBacklog;
     private boolean nettySoReuseaddr;
     private boolean nettyTcpNodelay;
     private boolean nettySoKeepalive;
     private int nettyChannelTimeoutSeconds;
+    private int webSocketMaxFrameSize;
+    private WriteBufferWaterMark writeBufferWaterMark;
+    // number of server channels bound on the same port of each transport, more than 1 only with SO_REUSEPORT
+    private int nettyAcceptors;
 
     private Class<? extends ServerSocketChannel> channelClass;
+    final List<Channel> serverChannels = new ArrayList<>();
 
     @Override
     public void initialize(ProtocolProcessor processor, IConfig props, ISslContextCreator sslCtxCreator)
@@ -121,20 +150,49 @@ public class NettyAcceptor implements ServerAcceptor {
                 .parseBoolean(props.getProperty(BrokerConstants.NETTY_SO_KEEPALIVE_PROPERTY_NAME, "true"));
         nettyChannelTimeoutSeconds = Integer
                 .parseInt(props.getProperty(BrokerConstants.NETTY_CHANNEL_TIMEOUT_SECONDS_PROPERTY_NAME, "10"));
+        webSocketMaxFrameSize = Integer
+                .parseInt(props.getProperty(BrokerConstants.WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME, "65536"));
+        // over the high water mark the channel is unwritable and the publishes are queued or dropped
+        int lowWaterMark = Integer
+                .parseInt(props.getProperty(BrokerConstants.NETTY_WRITE_BUFFER_LOW_WATER_MARK_PROPERTY_NAME, "32768"));
+        int highWaterMark = Integer
+                .parseInt(props.getProperty(BrokerConstants.NETTY_WRITE_BUFFER_HIGH_WATER_MARK_PROPERTY_NAME, "65536"));
+        writeBufferWaterMark = new WriteBufferWaterMark(lowWaterMark, highWaterMark);
+
+        // 0 lets Netty size the groups, twice the number of cores
+        int bossThreads = Integer.parseInt(props.getProperty(BrokerConstants.NETTY_BOSS_THREADS_PROPERTY_NAME, "0"));
+        int workerThreads = Integer
+                .parseInt(props.getProperty(BrokerConstants.NETTY_WORKER_THREADS_PROPERTY_NAME, "0"));
+        boolean reusePort = Boolean
+                .parseBoolean(props.getProperty(BrokerConstants.NETTY_SO_REUSEPORT_PROPERTY_NAME, "false"));
 
         boolean epoll = Boolean.parseBoolean(props.getProperty(BrokerConstants.NETTY_EPOLL_PROPERTY_NAME, "false"));
         if (epoll) {
-            LOG.info("Netty is using Epoll");
-            m_bossGroup = new EpollEventLoopGroup();
-            m_workerGroup = new EpollEventLoopGroup();
+            LOG.info("Netty is using Epoll. BossThreads={}, workerThreads={}", bossThreads, workerThreads);
+            m_bossGroup = new EpollEventLoopGroup(bossThreads);
+            m_workerGroup = new EpollEventLoopGroup(workerThreads);
             channelClass = EpollServerSocketChannel.class;
         } else {
-            LOG.info("Netty is using NIO");
-            m_bossGroup = new NioEventLoopGroup();
-            m_workerGroup = new NioEventLoopGroup();
+            LOG.info("Netty is using NIO. BossThreads={}, workerThreads={}", bossThreads, workerThreads);
+            m_bossGroup = new NioEventLoopGroup(bossThreads);
+            m_workerGroup = new NioEventLoopGroup(workerThreads);
             channelClass = NioServerSocketChannel.class;
         }
 
+        if (reusePort && !epoll) {
+            LOG.warn("Property {} requires {} to be enabled, each transport binds a single acceptor",
+                BrokerConstants.NETTY_SO_REUSEPORT_PROPERTY_NAME, BrokerConstants.NETTY_EPOLL_PROPERTY_NAME);
+            reusePort = false;
+        }
+        if (reusePort) {
+            // each acceptor is registered with its own boss event loop
+            nettyAcceptors = Integer.parseInt(props.getProperty(BrokerConstants.NETTY_ACCEPTORS_PROPERTY_NAME,
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+            LOG.info("Binding each transport with SO_REUSEPORT. Acceptors={}", nettyAcceptors);
+        } else {
+            nettyAcceptors = 1;
+        }
+
         final NettyMQTTHandler mqttHandler = new NettyMQTTHandler(processor);
 
         final boolean useFineMetrics = Boolean.parseBoolean(props.getProperty(METRICS_ENABLE_PROPERTY_NAME, "false"));
@@ -146,6 +204,31 @@ public class NettyAcceptor implements ServerAcceptor {
             this.metrics = Optional.empty();
         }
 
+        bytesMetricsEnabled = Boolean
+                .parseBoolean(props.getProperty(BrokerConstants.NETTY_BYTES_METRICS_PROPERTY_NAME, "true"));
+        messageMetricsEnabled = Boolean
+                .parseBoolean(props.getProperty(BrokerConstants.NETTY_MESSAGE_METRICS_PROPERTY_NAME, "true"));
+        final boolean logMessages = Boolean
+                .parseBoolean(props.getProperty(BrokerConstants.NETTY_MESSAGE_LOGGER_PROPERTY_NAME, "true"));
+        if (logMessages && MQTTMessageLogger.isLoggingEnabled()) {
+            int sampleRate = Integer.parseInt(
+                props.getProperty(BrokerConstants.NETTY_MESSAGE_LOGGER_SAMPLE_RATE_PROPERTY_NAME, "1"));
+            int maxPerSecond = Integer.parseInt(
+                props.getProperty(BrokerConstants.NETTY_MESSAGE_LOGGER_MAX_PER_SECOND_PROPERTY_NAME, "0"));
+            this.messageLogger = Optional.of(new MQTTMessageLogger(sampleRate, maxPerSecond));
+        } else {
+            this.messageLogger = Optional.empty();
+        }
+        int batchMaxMessages = Integer.parseInt(
+            props.getProperty(BrokerConstants.NETTY_WRITE_BATCH_MAX_MESSAGES_PROPERTY_NAME, "64"));
+        long batchMaxBytes = Long.parseLong(
+            props.getProperty(BrokerConstants.NETTY_WRITE_BATCH_MAX_BYTES_PROPERTY_NAME, "65536"));
+        long flushIntervalMs = Long.parseLong(
+            props.getProperty(BrokerConstants.NETTY_WRITE_BATCH_FLUSH_INTERVAL_MS_PROPERTY_NAME, "50"));
+        writeBatching = new WriteBatchingHandler.Batching(batchMaxMessages, batchMaxBytes, flushIntervalMs);
+        LOG.info("Optional pipeline handlers. BytesMetrics={}, messageMetrics={}, messageLogger={}",
+            bytesMetricsEnabled, messageMetricsEnabled, messageLogger.isPresent());
+
         final boolean useBugSnag = Boolean.parseBoolean(props.getProperty(BUGSNAG_ENABLE_PROPERTY_NAME, "false"));
         if (useBugSnag) {
             BugSnagErrorsHandler bugSnagHandler = new BugSnagErrorsHandler();
@@ -186,19 +269,56 @@ public class NettyAcceptor implements ServerAcceptor {
                         }
                     }
                 }).option(ChannelOption.SO_BACKLOG, nettySoBacklog).option(ChannelOption.SO_REUSEADDR, nettySoReuseaddr)
-                .option(ChannelOption.TCP_NODELAY, nettyTcpNodelay)
-                .childOption(ChannelOption.SO_KEEPALIVE, nettySoKeepalive);
+                // the options of the accepted connections
+                .childOption(ChannelOption.TCP_NODELAY, nettyTcpNodelay)
+                .childOption(ChannelOption.SO_KEEPALIVE, nettySoKeepalive)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+        if (nettyAcceptors > 1) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
         try {
-            LOG.info("Binding server. host={}, port={}", host, port);
-            // Bind and start to accept incoming connections.
-            ChannelFuture f = b.bind(host, port);
-            LOG.info("Server has been bound. host={}, port={}", host, port);
-            f.sync();
+            for (int i = 0; i < nettyAcceptors; i++) {
+                LOG.info("Binding server. host={}, port={}", host, port);
+                // Bind and start to accept incoming connections.
+                ChannelFuture f = b.bind(host, port);
+                f.sync();
+                serverChannels.add(f.channel());
+                LOG.info("Server has been bound. host={}, port={}", host, port);
+            }
         } catch (InterruptedException ex) {
             LOG.error("An interruptedException was caught while initializing server. Protocol={}", protocol, ex);
         }
     }
 
+    /**
+     * Add the MQTT handlers after the transport ones, the optional handlers only when they are enabled.
+     */
+    void configureMQTTPipeline(ChannelPipeline pipeline, MoquetteIdleTimeoutHandler timeoutHandler,
+                               NettyMQTTHandler handler) {
+        pipeline.addFirst("idleStateHandler", new IdleStateHandler(nettyChannelTimeoutSeconds, 0, 0));
+        pipeline.addAfter("idleStateHandler", "idleEventHandler", timeoutHandler);
+        if (bytesMetricsEnabled) {
+            pipeline.addFirst("bytemetrics", new BytesMetricsHandler(m_bytesMetricsCollector));
+        }
+        if (errorsCather.isPresent()) {
+            pipeline.addLast("bugsnagCatcher", errorsCather.get());
+        }
+        pipeline.addLast("decoder", new MqttDecoder());
+        pipeline.addLast("encoder", MqttEncoder.INSTANCE);
+        pipeline.addLast("publishEncoder", EncodedPublishEncoder.INSTANCE);
+        if (messageMetricsEnabled) {
+            pipeline.addLast("metrics", new MessageMetricsHandler(m_metricsCollector));
+        }
+        if (messageLogger.isPresent()) {
+            pipeline.addLast("messageLogger", messageLogger.get());
+        }
+        if (metrics.isPresent()) {
+            pipeline.addLast("wizardMetrics", metrics.get());
+        }
+        pipeline.addLast("writeBatcher", new WriteBatchingHandler(writeBatching));
+        pipeline.addLast("handler", handler);
+    }
+
     private void initializePlainTCPTransport(final NettyMQTTHandler handler,
                                              IConfig props) throws IOException {
         LOG.info("Configuring TCP MQTT transport");
@@ -215,21 +335,7 @@ public class NettyAcceptor implements ServerAcceptor {
 
             @Override
             void init(ChannelPipeline pipeline) {
-                pipeline.addFirst("idleStateHandler", new IdleStateHandler(nettyChannelTimeoutSeconds, 0, 0));
-                pipeline.addAfter("idleStateHandler", "idleEventHandler", timeoutHandler);
-                // pipeline.addLast("logger", new LoggingHandler("Netty", LogLevel.ERROR));
-                if (errorsCather.isPresent()) {
-                    pipeline.addLast("bugsnagCatcher", errorsCather.get());
-                }
-                pipeline.addFirst("bytemetrics", new BytesMetricsHandler(m_bytesMetricsCollector));
-                pipeline.addLast("decoder", new MqttDecoder());
-                pipeline.addLast("encoder", MqttEncoder.INSTANCE);
-                pipeline.addLast("metrics", new MessageMetricsHandler(m_metricsCollector));
-                pipeline.addLast("messageLogger", new MQTTMessageLogger());
-                if (metrics.isPresent()) {
-                    pipeline.addLast("wizardMetrics", metrics.get());
-                }
-                pipeline.addLast("handler", handler);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler);
             }
         });
     }
@@ -255,17 +361,11 @@ public class NettyAcceptor implements ServerAcceptor {
                 pipeline.addLast(new HttpServerCodec());
                 pipeline.addLast("aggregator", new HttpObjectAggregator(65536));
                 pipeline.addLast("webSocketHandler",
-                        new WebSocketServerProtocolHandler("/mqtt", MQTT_SUBPROTOCOL_CSV_LIST));
+                        new WebSocketServerProtocolHandler("/mqtt", MQTT_SUBPROTOCOL_CSV_LIST, false,
+                            webSocketMaxFrameSize));
                 pipeline.addLast("ws2bytebufDecoder", new WebSocketFrameToByteBufDecoder());
                 pipeline.addLast("bytebuf2wsEncoder", new ByteBufToWebSocketFrameEncoder());
-                pipeline.addFirst("idleStateHandler", new IdleStateHandler(nettyChannelTimeoutSeconds, 0, 0));
-                pipeline.addAfter("idleStateHandler", "idleEventHandler", timeoutHandler);
-                pipeline.addFirst("bytemetrics", new BytesMetricsHandler(m_bytesMetricsCollector));
-                pipeline.addLast("decoder", new MqttDecoder());
-                pipeline.addLast("encoder", MqttEncoder.INSTANCE);
-                pipeline.addLast("metrics", new MessageMetricsHandler(m_metricsCollector));
-                pipeline.addLast("messageLogger", new MQTTMessageLogger());
-                pipeline.addLast("handler", handler);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler);
             }
         });
     }
@@ -293,15 +393,7 @@ public class NettyAcceptor implements ServerAcceptor {
             @Override
             void init(ChannelPipeline pipeline) throws Exception {
                 pipeline.addLast("ssl", createSslHandler(sslContext, needsClientAuth));
-                pipeline.addFirst("idleStateHandler", new IdleStateHandler(nettyChannelTimeoutSeconds, 0, 0));
-                pipeline.addAfter("idleStateHandler", "idleEventHandler", timeoutHandler);
-                // pipeline.addLast("logger", new LoggingHandler("Netty", LogLevel.ERROR));
-                pipeline.addFirst("bytemetrics", new BytesMetricsHandler(m_bytesMetricsCollector));
-                pipeline.addLast("decoder", new MqttDecoder());
-                pipeline.addLast("encoder", MqttEncoder.INSTANCE);
-                pipeline.addLast("metrics", new MessageMetricsHandler(m_metricsCollector));
-                pipeline.addLast("messageLogger", new MQTTMessageLogger());
-                pipeline.addLast("handler", handler);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler);
             }
         });
     }
@@ -330,17 +422,11 @@ public class NettyAcceptor implements ServerAcceptor {
                 pipeline.addLast("httpDecoder", new HttpRequestDecoder());
                 pipeline.addLast("aggregator", new HttpObjectAggregator(65536));
                 pipeline.addLast("webSocketHandler",
-                        new WebSocketServerProtocolHandler("/mqtt", MQTT_SUBPROTOCOL_CSV_LIST));
+                        new WebSocketServerProtocolHandler("/mqtt", MQTT_SUBPROTOCOL_CSV_LIST, false,
+                            webSocketMaxFrameSize));
                 pipeline.addLast("ws2bytebufDecoder", new WebSocketFrameToByteBufDecoder());
                 pipeline.addLast("bytebuf2wsEncoder", new ByteBufToWebSocketFrameEncoder());
-                pipeline.addFirst("idleStateHandler", new IdleStateHandler(nettyChannelTimeoutSeconds, 0, 0));
-                pipeline.addAfter("idleStateHandler", "idleEventHandler", timeoutHandler);
-                pipeline.addFirst("bytemetrics", new BytesMetricsHandler(m_bytesMetricsCollector));
-                pipeline.addLast("decoder", new MqttDecoder());
-                pipeline.addLast("encoder", MqttEncoder.INSTANCE);
-                pipeline.addLast("metrics", new MessageMetricsHandler(m_metricsCollector));
-                pipeline.addLast("messageLogger", new MQTTMessageLogger());
-                pipeline.addLast("handler", handler);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler);
             }
         });
     }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the flushes of a channel. The flushes requested while the channel is reading are deferred to the
+ * end of the read batch, so the replies to the packets of a read go out with one flush, unless the written
+ * messages or bytes reach the batching thresholds first.
+ *
+ * The writes never followed by a flush are flushed by a single timer of the event loop, shared by all its
+ * channels and scheduled only when some of them have unflushed writes.
+ */
+public class WriteBatchingHandler extends ChannelDuplexHandler {
+
+    /**
+     * Settings and timers shared by the handlers of all the channels.
+     */
+    public static final class Batching {
+
+        private final int maxMessages;
+        private final long maxBytes;
+        private final long flushIntervalNanos;
+        private final ConcurrentMap<EventExecutor, StragglersFlusher> flushers = new ConcurrentHashMap<>();
+
+        /**
+         * @param maxMessages
+         *            the unflushed messages that trigger a flush.
+         * @param maxBytes
+         *            the unflushed bytes that trigger a flush.
+         * @param flushIntervalMillis
+         *            the delay of the flush of the writes not followed by a flush.
+         */
+        public Batching(int maxMessages, long maxBytes, long flushIntervalMillis) {
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+            this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(flushIntervalMillis, 1));
+        }
+
+        private StragglersFlusher flusherOf(EventExecutor loop) {
+            return flushers.computeIfAbsent(loop, l -> new StragglersFlusher(l, flushIntervalNanos));
+        }
+    }
+
+    /**
+     * Timer of an event loop, flushes the channels that registered unflushed writes.
+     */
+    private static final class StragglersFlusher implements Runnable {
+
+        private final EventExecutor loop;
+        private final long intervalNanos;
+        // accessed only from the event loop
+        private List<WriteBatchingHandler> pending = new ArrayList<>();
+        private boolean scheduled;
+
+        StragglersFlusher(EventExecutor loop, long intervalNanos) {
+            this.loop = loop;
+            this.intervalNanos = intervalNanos;
+        }
+
+        void add(WriteBatchingHandler handler) {
+            pending.add(handler);
+            if (!scheduled) {
+                scheduled = true;
+                loop.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            final List<WriteBatchingHandler> handlers = pending;
+            pending = new ArrayList<>();
+            scheduled = false;
+            for (WriteBatchingHandler handler : handlers) {
+                handler.flushStraggler();
+            }
+        }
+    }
+
+    private final Batching batching;
+    private ChannelHandlerContext ctx;
+    private StragglersFlusher flusher;
+    private boolean reading;
+    private boolean flushRequested;
+    private boolean straggling;
+    private int pendingMessages;
+    private long pendingBytes;
+
+    public WriteBatchingHandler(Batching batching) {
+        this.batching = batching;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        this.flusher = batching.flusherOf(ctx.executor());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        reading = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        reading = false;
+        if (flushRequested || pendingMessages > 0) {
+            flushPending(ctx);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        pendingMessages++;
+        pendingBytes += sizeOf(msg);
+        ctx.write(msg, promise);
+        if (pendingMessages >= batching.maxMessages || pendingBytes >= batching.maxBytes) {
+            flushPending(ctx);
+        } else if (!reading && !straggling) {
+            straggling = true;
+            flusher.add(this);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (reading) {
+            flushRequested = true;
+            return;
+        }
+        flushPending(ctx);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        // the writes not flushed would be failed by the close
+        if (flushRequested || pendingMessages > 0) {
+            flushPending(ctx);
+        }
+        ctx.close(promise);
+    }
+
+    private void flushPending(ChannelHandlerContext ctx) {
+        flushRequested = false;
+        pendingMessages = 0;
+        pendingBytes = 0;
+        ctx.flush();
+    }
+
+    private void flushStraggler() {
+        straggling = false;
+        if (pendingMessages > 0 && ctx.channel().isActive()) {
+            flushPending(ctx);
+        }
+    }
+
+    private static int sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        return 0;
+    }
+}
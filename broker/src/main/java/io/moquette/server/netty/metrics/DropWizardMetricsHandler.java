@@ -18,6 +18,7 @@ package io.moquette.server.netty.metrics;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.librato.metrics.reporter.Librato;
 import io.moquette.server.config.IConfig;
 import io.moquette.server.netty.NettyUtils;
@@ -42,7 +43,7 @@ public final class DropWizardMetricsHandler extends ChannelInboundHandlerAdapter
     private Counter connectedClientsMetrics;
 
     public void init(IConfig props) {
-        this.metrics = new MetricRegistry();
+        this.metrics = SharedMetricRegistries.getOrCreate(METRICS_REGISTRY_NAME);
         this.publishesMetrics = metrics.meter("publish.requests");
         this.subscribeMetrics = metrics.meter("subscribe.requests");
         this.connectedClientsMetrics = metrics.counter("connect.num_clients");
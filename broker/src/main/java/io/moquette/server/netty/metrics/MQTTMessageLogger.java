@@ -26,10 +26,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static io.moquette.spi.impl.Utils.messageId;
 
 /**
+ * Logs the MQTT packets read and written by the channels.
+ *
+ * The publishes, their acknowledgements and the pings can be sampled, logging one of every N, and rate
+ * limited, logging at most M per second; the connection and subscription packets are always logged.
  *
  * @author andrea
  */
@@ -38,6 +45,37 @@ public class MQTTMessageLogger extends ChannelDuplexHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger("messageLogger");
 
+    private final int sampleRate;
+    private final int maxPerSecond;
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger loggedInSecond = new AtomicInteger();
+
+    public MQTTMessageLogger() {
+        this(1, 0);
+    }
+
+    /**
+     * @param sampleRate
+     *            log one of every sampleRate frequent packets, 1 logs all of them.
+     * @param maxPerSecond
+     *            the limit of frequent packets logged each second, 0 for no limit.
+     */
+    public MQTTMessageLogger(int sampleRate, int maxPerSecond) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("The sample rate must be positive: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * @return false when the logger of the messages is off, the handler can be left out of the pipeline.
+     */
+    public static boolean isLoggingEnabled() {
+        return LOG.isInfoEnabled();
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object message) {
         logMQTTMessage(ctx, message, "C->B");
@@ -49,8 +87,11 @@ public class MQTTMessageLogger extends ChannelDuplexHandler {
             return;
         }
         MqttMessage msg = (MqttMessage) message;
-        String clientID = NettyUtils.clientID(ctx.channel());
         MqttMessageType messageType = msg.fixedHeader().messageType();
+        if (isFrequent(messageType) && !shouldLogFrequent()) {
+            return;
+        }
+        String clientID = NettyUtils.clientID(ctx.channel());
         switch (messageType) {
             case CONNECT:
             case CONNACK:
@@ -88,6 +129,36 @@ public class MQTTMessageLogger extends ChannelDuplexHandler {
         }
     }
 
+    private static boolean isFrequent(MqttMessageType messageType) {
+        switch (messageType) {
+            case PUBLISH:
+            case PUBACK:
+            case PUBREC:
+            case PUBREL:
+            case PUBCOMP:
+            case PINGREQ:
+            case PINGRESP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean shouldLogFrequent() {
+        if (sampleRate > 1 && sampled.getAndIncrement() % sampleRate != 0) {
+            return false;
+        }
+        if (maxPerSecond <= 0) {
+            return true;
+        }
+        final long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        final long current = currentSecond.get();
+        if (second != current && currentSecond.compareAndSet(current, second)) {
+            loggedInSecond.set(0);
+        }
+        return loggedInSecond.incrementAndGet() <= maxPerSecond;
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         String clientID = NettyUtils.clientID(ctx.channel());
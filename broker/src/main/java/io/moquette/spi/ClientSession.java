@@ -23,7 +23,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashSet;
-import java.util.Queue;
 import java.util.Set;
 
 /**
@@ -110,7 +109,7 @@ public class ClientSession {
      *
      * @return the list of messages to be delivered for client related to the session.
      */
-    public Queue<IMessagesStore.StoredMessage> queue() {
+    public ISessionQueue<IMessagesStore.StoredMessage> queue() {
         LOG.info("Retrieving enqueued messages. CId={}", clientID);
         return this.m_sessionsStore.queue(clientID);
     }
@@ -187,6 +186,7 @@ public class ClientSession {
     public int inFlightAckWaiting(IMessagesStore.Message msg) {
         LOG.debug("Adding message ot inflight zone. CId={}", clientID);
         int messageId = ClientSession.this.nextPacketId();
+        msg.detachPayload();
         outboundFlightZone.waitingAck(messageId, msg);
         return messageId;
     }
@@ -202,7 +202,19 @@ public class ClientSession {
      *            the message to enqueue.
      */
     public void enqueue(IMessagesStore.StoredMessage message) {
-        this.m_sessionsStore.queue(this.clientID).add(message);
+        message.detachPayload();
+        if (!this.m_sessionsStore.queue(this.clientID).offer(message)) {
+            LOG.debug("The message has been dropped, the queue of the session is full. CId={}, topic={}",
+                this.clientID, message.getTopic());
+        }
+    }
+
+    /**
+     * @return true if some messages are waiting in the queue of the session.
+     */
+    public boolean hasQueuedMessages() {
+        ISessionQueue<IMessagesStore.StoredMessage> queue = this.m_sessionsStore.queue(this.clientID);
+        return queue != null && !queue.isEmpty();
     }
 
     public IMessagesStore.StoredMessage inboundInflight(int messageID) {
@@ -210,6 +222,7 @@ public class ClientSession {
     }
 
     public void markAsInboundInflight(int messageID, IMessagesStore.StoredMessage msg) {
+        msg.detachPayload();
         inboundFlightZone.waitingRel(messageID, msg);
     }
 
@@ -217,6 +230,10 @@ public class ClientSession {
         m_sessionsStore.moveInFlightToSecondPhaseAckWaiting(this.clientID, messageID, msg);
     }
 
+    public IMessagesStore.Message moveInFlightToSecondPhase(int messageID) {
+        return m_sessionsStore.moveInFlightToSecondPhase(this.clientID, messageID);
+    }
+
     public Set<Subscription> getSubscriptions() {
         //TODO WARN this doesn'load anything from DB
         return subscriptions;
@@ -226,6 +243,14 @@ public class ClientSession {
         return m_sessionsStore.getPendingPublishMessagesNo(clientID);
     }
 
+    public int getSpilledPublishMessagesNo() {
+        return m_sessionsStore.getSpilledPublishMessagesNo(clientID);
+    }
+
+    public long getDroppedPublishMessagesNo() {
+        return m_sessionsStore.getDroppedPublishMessagesNo(clientID);
+    }
+
     public int getSecondPhaseAckPendingMessages() {
         return m_sessionsStore.getSecondPhaseAckPendingMessages(clientID);
     }
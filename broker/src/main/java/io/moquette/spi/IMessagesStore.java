@@ -18,12 +18,16 @@ package io.moquette.spi;
 
 import io.moquette.spi.impl.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttQoS;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import io.moquette.spi.impl.subscriptions.Subscription;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -37,7 +41,9 @@ public interface IMessagesStore {
 
         private static final long serialVersionUID = 1755296138639817304L;
         final MqttQoS m_qos;
-        final byte[] m_payload;
+        private byte[] m_payload;
+        // the network buffer of the PUBLISH, valid only while the PUBLISH is processed
+        private transient ByteBuf m_payloadBuffer;
         final String m_topic;
         private boolean m_retained;
 
@@ -47,16 +53,51 @@ public interface IMessagesStore {
             m_topic = topic;
         }
 
+        /**
+         * Create a message that refers to the payload without copying it, the buffer isn't retained.
+         * Before the message is kept beyond the processing of the PUBLISH that carried the payload
+         * {@link #detachPayload()} has to be invoked.
+         */
+        public Message(ByteBuf payload, MqttQoS qos, String topic) {
+            m_qos = qos;
+            m_payloadBuffer = payload;
+            m_topic = topic;
+        }
+
         public MqttQoS getQos() {
             return m_qos;
         }
 
         public byte[] getPayloadBytes() {
+            detachPayload();
             return m_payload;
         }
 
+        /**
+         * @return a view of the payload, it's not a copy so it must not be modified.
+         */
         public ByteBuf getPayload() {
-            return Unpooled.copiedBuffer(m_payload);
+            final byte[] payload = m_payload;
+            if (payload != null) {
+                return Unpooled.wrappedBuffer(payload);
+            }
+            return m_payloadBuffer.duplicate();
+        }
+
+        /**
+         * Copy the payload out of the network buffer it refers to, if any. To be invoked before the
+         * message is stored in a queue, an inflight zone or the retained messages.
+         */
+        public void detachPayload() {
+            if (m_payload == null) {
+                m_payload = ByteBufUtil.getBytes(m_payloadBuffer);
+                m_payloadBuffer = null;
+            }
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            detachPayload();
+            out.defaultWriteObject();
         }
 
         public String getTopic() {
@@ -83,7 +124,7 @@ public interface IMessagesStore {
         public int hashCode() {
             final int prime = 31;
             int result = 1;
-            result = prime * result + Arrays.hashCode(m_payload);
+            result = prime * result + ByteBufUtil.hashCode(getPayload());
             result = prime * result + ((m_qos == null) ? 0 : m_qos.hashCode());
             result = prime * result + ((m_topic == null) ? 0 : m_topic.hashCode());
             result = prime * result + (m_retained ? 0 : 1);
@@ -99,7 +140,7 @@ public interface IMessagesStore {
             if (getClass() != obj.getClass())
                 return false;
             Message other = (Message) obj;
-            if (!Arrays.equals(m_payload, other.m_payload))
+            if (!ByteBufUtil.equals(getPayload(), other.getPayload()))
                 return false;
             if (m_qos != other.m_qos)
                 return false;
@@ -127,6 +168,10 @@ public interface IMessagesStore {
             super(message, qos, topic);
         }
 
+        public StoredMessage(ByteBuf payload, MqttQoS qos, String topic) {
+            super(payload, qos, topic);
+        }
+
         public void setGuid(UUID guid) {
             this.m_guid = guid;
         }
@@ -164,6 +209,16 @@ public interface IMessagesStore {
      */
     Map<Subscription, Collection<Message>> searchMatching(List<Subscription> newSubscriptions);
 
+    /**
+     * Return the retained messages matching the topic filter of the subscription. The stores read the
+     * messages while the iterator is consumed, so the matching messages aren't all loaded at once.
+     */
+    default Iterator<Message> retainedMatching(Subscription newSubscription) {
+        final Collection<Message> messages =
+            searchMatching(Collections.singletonList(newSubscription)).get(newSubscription);
+        return messages == null ? Collections.emptyIterator() : messages.iterator();
+    }
+
     void cleanRetained(Topic topic);
 
     void storeRetained(Topic topic, Message storedMessage);
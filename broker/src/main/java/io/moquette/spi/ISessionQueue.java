@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.spi;
+
+import java.util.Collection;
+import java.util.Queue;
+
+/**
+ * Queue of the messages waiting to be delivered to a session.
+ */
+public interface ISessionQueue<E> extends Queue<E> {
+
+    /**
+     * Remove at most maxElements from the head of the queue and add them to the given collection. The
+     * persistent stores override it to read the whole batch with a single scan.
+     *
+     * @param c
+     *            the collection to transfer the elements into.
+     * @param maxElements
+     *            the maximum number of elements to transfer.
+     * @return the number of elements transferred.
+     */
+    default int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("Can't drain a queue into itself");
+        }
+        int count = 0;
+        E e;
+        while (count < maxElements && (e = poll()) != null) {
+            c.add(e);
+            count++;
+        }
+        return count;
+    }
+}
@@ -18,7 +18,6 @@ package io.moquette.spi;
 
 import io.moquette.spi.IMessagesStore.Message;
 import io.moquette.spi.IMessagesStore.StoredMessage;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -80,12 +79,28 @@ public interface ISessionsStore {
      *            the client ID owning the queue.
      * @return the queue of messages.
      */
-    Queue<StoredMessage> queue(String clientID);
+    ISessionQueue<StoredMessage> queue(String clientID);
 
     void dropQueue(String clientID);
 
     void moveInFlightToSecondPhaseAckWaiting(String clientID, int messageID, Message msg);
 
+    /**
+     * Move a message acknowledged by a PUBREC from the flight zone to the second phase, its packet identifier
+     * has to stay in use meanwhile so that it isn't assigned to another message.
+     *
+     * @param clientID
+     *            the client ID owning the flight zone.
+     * @param messageID
+     *            the packet identifier of the message.
+     * @return the message moved.
+     */
+    default Message moveInFlightToSecondPhase(String clientID, int messageID) {
+        final Message msg = inFlightAck(clientID, messageID);
+        moveInFlightToSecondPhaseAckWaiting(clientID, messageID, msg);
+        return msg;
+    }
+
     /**
      * @param clientID
      *            the client ID accessing the second phase.
@@ -126,6 +141,27 @@ public interface ISessionsStore {
      */
     int getSecondPhaseAckPendingMessages(String clientID);
 
+    /**
+     * Returns the number of queued messages kept out of memory for the given client ID, the stores that
+     * keep all the queues on disk return 0.
+     *
+     * @param clientID target client.
+     * @return count of spilled publish messages.
+     */
+    default int getSpilledPublishMessagesNo(String clientID) {
+        return 0;
+    }
+
+    /**
+     * Returns the number of messages dropped because the queue of the given client ID was full.
+     *
+     * @param clientID target client.
+     * @return count of dropped publish messages, since the session was created.
+     */
+    default long getDroppedPublishMessagesNo(String clientID) {
+        return 0;
+    }
+
     void cleanSession(String clientID);
 
     Set<String> getClientIDs();
@@ -134,6 +170,17 @@ public interface ISessionsStore {
 
     void updateValidity(String clientID, long now);
 
+    /**
+     * Run the action once the changes done so far are durable, the stores without a durable commit run it
+     * immediately.
+     *
+     * @param action
+     *            the action to run, typically the acknowledge of a message.
+     */
+    default void whenDurable(Runnable action) {
+        action.run();
+    }
+
     default int size() {
         return getClientIDs().size();
     }
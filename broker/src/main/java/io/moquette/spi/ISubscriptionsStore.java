@@ -4,6 +4,7 @@ import io.moquette.spi.impl.subscriptions.Subscription;
 import io.moquette.spi.impl.subscriptions.Topic;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface ISubscriptionsStore {
     class ClientTopicCouple {
@@ -87,4 +88,21 @@ public interface ISubscriptionsStore {
      */
     List<Subscription> getSubscriptions();
 
+    /**
+     * Pass all the stored subscriptions to the action, without collecting them in a list first.
+     *
+     * @param action
+     *            the callback invoked for each subscription.
+     */
+    default void forEachSubscription(Consumer<Subscription> action) {
+        getSubscriptions().forEach(action);
+    }
+
+    /**
+     * @param clientID
+     *            the session client.
+     * @return the subscriptions stored for the client, empty if the client has none.
+     */
+    List<Subscription> getClientSubscriptions(String clientID);
+
 }
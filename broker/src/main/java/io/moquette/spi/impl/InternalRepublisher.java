@@ -20,17 +20,20 @@ import io.moquette.spi.ClientSession;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.IMessagesStore.Message;
 import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISessionQueue;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.List;
 
 class InternalRepublisher {
 
     private static final Logger LOG = LoggerFactory.getLogger(InternalRepublisher.class);
+    private static final int STORED_DRAIN_BATCH = 64;
 
     private final PersistentQueueMessageSender messageSender;
 
@@ -38,38 +41,56 @@ class InternalRepublisher {
         this.messageSender = messageSender;
     }
 
-    void publishRetained(ClientSession targetSession, Collection<Message> messages) {
+    void publishRetained(ClientSession targetSession, Message storedMsg) {
+        // fire as retained the message
+        MqttPublishMessage publishMsg = retainedPublish(storedMsg);
+        if (storedMsg.getQos() != MqttQoS.AT_MOST_ONCE) {
+            LOG.debug("Adding message to inflight zone. ClientId={}, topic={}", targetSession.clientID,
+                storedMsg.getTopic());
+            int packetID = targetSession.inFlightAckWaiting(storedMsg);
 
-        for (Message storedMsg : messages) {
-            // fire as retained the message
-            MqttPublishMessage publishMsg = retainedPublish(storedMsg);
-            if (storedMsg.getQos() != MqttQoS.AT_MOST_ONCE) {
-                LOG.debug("Adding message to inflight zone. ClientId={}, topic={}", targetSession.clientID,
-                    storedMsg.getTopic());
-                int packetID = targetSession.inFlightAckWaiting(storedMsg);
+            // set the PacketIdentifier only for QoS > 0
+            publishMsg = retainedPublish(storedMsg, packetID);
+        }
 
-                // set the PacketIdentifier only for QoS > 0
-                publishMsg = retainedPublish(storedMsg, packetID);
-            }
+        this.messageSender.sendPublish(targetSession, publishMsg);
+    }
 
-            this.messageSender.sendPublish(targetSession, publishMsg);
+    /**
+     * Write to the channel the messages queued in the session while the channel is writable, the messages
+     * left in the queue are published once the channel is writable again. The messages are written to the
+     * channel directly, so they can't be queued again while the queue is being drained.
+     */
+    void publishStored(Channel channel, ClientSession clientSession,
+                       ISessionQueue<IMessagesStore.StoredMessage> publishedEvents) {
+        // the queue is drained in batches, persistent queues read each batch with a single scan
+        List<IMessagesStore.StoredMessage> batch = new ArrayList<>(STORED_DRAIN_BATCH);
+        while (channel.isWritable() && publishedEvents.drainTo(batch, STORED_DRAIN_BATCH) > 0) {
+            for (IMessagesStore.StoredMessage pubEvt : batch) {
+                // recreate a publish from stored publish in queue, in flight with a packet id for QoS > 0
+                channel.write(storedPublish(clientSession, pubEvt));
+            }
+            batch.clear();
         }
+        channel.flush();
     }
 
-    void publishStored(ClientSession clientSession, Queue<IMessagesStore.StoredMessage> publishedEvents) {
-        IMessagesStore.StoredMessage pubEvt;
-        while ((pubEvt = publishedEvents.poll()) != null) {
-            // put in flight zone
-            LOG.debug("Adding message ot inflight zone. ClientId={}, guid={}, topic={}", clientSession.clientID,
-                pubEvt.getGuid(), pubEvt.getTopic());
-            int messageId = clientSession.inFlightAckWaiting(pubEvt);
-            MqttPublishMessage publishMsg = notRetainedPublish(pubEvt);
-            // set the PacketIdentifier only for QoS > 0
-            if (publishMsg.fixedHeader().qosLevel() != MqttQoS.AT_MOST_ONCE) {
-                publishMsg = notRetainedPublish(pubEvt, messageId);
-            }
-            this.messageSender.sendPublish(clientSession, publishMsg);
+    /**
+     * Put a message taken from the queue of the session in the flight zone.
+     *
+     * @return the publish to send, with the packet id of the flight zone for QoS > 0.
+     */
+    private MqttPublishMessage storedPublish(ClientSession clientSession, IMessagesStore.StoredMessage pubEvt) {
+        // put in flight zone
+        LOG.debug("Adding message ot inflight zone. ClientId={}, guid={}, topic={}", clientSession.clientID,
+            pubEvt.getGuid(), pubEvt.getTopic());
+        int messageId = clientSession.inFlightAckWaiting(pubEvt);
+        MqttPublishMessage publishMsg = notRetainedPublish(pubEvt);
+        // set the PacketIdentifier only for QoS > 0
+        if (publishMsg.fixedHeader().qosLevel() != MqttQoS.AT_MOST_ONCE) {
+            publishMsg = notRetainedPublish(pubEvt, messageId);
         }
+        return publishMsg;
     }
 
     private MqttPublishMessage notRetainedPublish(IMessagesStore.StoredMessage storedMessage, Integer messageID) {
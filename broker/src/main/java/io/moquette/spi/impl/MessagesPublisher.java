@@ -17,6 +17,8 @@
 package io.moquette.spi.impl;
 
 import io.moquette.server.ConnectionDescriptorStore;
+import io.moquette.server.PublishBatch;
+import io.moquette.server.netty.EncodedPublishMessage;
 import io.moquette.spi.ClientSession;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.ISessionsStore;
@@ -24,26 +26,94 @@ import io.moquette.spi.impl.subscriptions.ISubscriptionsDirectory;
 import io.moquette.spi.impl.subscriptions.Subscription;
 import io.moquette.spi.impl.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.handler.codec.mqtt.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
 import static io.moquette.spi.impl.ProtocolProcessor.lowerQosToTheSubscriptionDesired;
 
 class MessagesPublisher {
 
+    /**
+     * The delivery of a published message to many subscribers: the writes are grouped by event loop,
+     * flushing each channel once at the end, and the PUBLISH header is encoded once per QoS.
+     */
+    private static final class FanOut {
+
+        final PublishBatch batch = new PublishBatch();
+        private final String topic;
+        private final ByteBuf[] encodedHeaders = new ByteBuf[MqttQoS.EXACTLY_ONCE.value() + 1];
+        private byte[] topicName;
+
+        FanOut(String topic) {
+            this.topic = topic;
+        }
+
+        MqttPublishMessage publish(MqttQoS qos, ByteBuf payload, int messageId) {
+            ByteBuf encodedHeader = encodedHeaders[qos.value()];
+            if (encodedHeader == null) {
+                if (topicName == null) {
+                    topicName = topic.getBytes(StandardCharsets.UTF_8);
+                }
+                encodedHeader = EncodedPublishMessage.encodeHeader(ByteBufAllocator.DEFAULT, qos, topicName,
+                    payload.readableBytes());
+                encodedHeaders[qos.value()] = encodedHeader;
+            }
+            MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0);
+            MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(topic, messageId);
+            return new EncodedPublishMessage(fixedHeader, varHeader, payload, encodedHeader.retain());
+        }
+
+        void flush() {
+            batch.flush();
+            for (ByteBuf encodedHeader : encodedHeaders) {
+                if (encodedHeader != null) {
+                    encodedHeader.release();
+                }
+            }
+        }
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(MessagesPublisher.class);
     private final ConnectionDescriptorStore connectionDescriptors;
     private final ISessionsStore m_sessionsStore;
     private final PersistentQueueMessageSender messageSender;
     private final ISubscriptionsDirectory subscriptions;
+    private final SharedSubscriptionsSelector sharedSubscriptionsSelector;
 
     public MessagesPublisher(ConnectionDescriptorStore connectionDescriptors, ISessionsStore sessionsStore,
                              PersistentQueueMessageSender messageSender, ISubscriptionsDirectory subscriptions) {
+        this(connectionDescriptors, sessionsStore, messageSender, subscriptions,
+            SharedSubscriptionsSelector.Strategy.ROUND_ROBIN);
+    }
+
+    MessagesPublisher(ConnectionDescriptorStore connectionDescriptors, ISessionsStore sessionsStore,
+                      PersistentQueueMessageSender messageSender, ISubscriptionsDirectory subscriptions,
+                      SharedSubscriptionsSelector.Strategy sharedSubscriptionsStrategy) {
         this.connectionDescriptors = connectionDescriptors;
         this.m_sessionsStore = sessionsStore;
         this.messageSender = messageSender;
         this.subscriptions = subscriptions;
+        this.sharedSubscriptionsSelector = new SharedSubscriptionsSelector(sharedSubscriptionsStrategy,
+            connectionDescriptors, sessionsStore);
+    }
+
+    /**
+     * Notify that a subscription has been removed from the subscriptions directory.
+     *
+     * @param topicFilter
+     *            the topic filter of the subscription removed.
+     */
+    void subscriptionRemoved(Topic topicFilter) {
+        if (topicFilter.isShared()) {
+            this.sharedSubscriptionsSelector.memberRemoved(topicFilter);
+        }
     }
 
     static MqttPublishMessage notRetainedPublish(String topic, MqttQoS qos, ByteBuf message) {
@@ -71,41 +141,74 @@ class MessagesPublisher {
 
     void publish2Subscribers(IMessagesStore.StoredMessage pubMsg, Topic topic) {
         List<Subscription> topicMatchingSubscriptions = subscriptions.matches(topic);
+        final FanOut fanOut = topicMatchingSubscriptions.size() > 1 ? new FanOut(pubMsg.getTopic()) : null;
+        try {
+            publish2Subscribers(pubMsg, topicMatchingSubscriptions, fanOut);
+        } finally {
+            if (fanOut != null) {
+                fanOut.flush();
+            }
+        }
+    }
+
+    private void publish2Subscribers(IMessagesStore.StoredMessage pubMsg, List<Subscription> topicMatchingSubscriptions,
+                                     FanOut fanOut) {
+        Map<Topic, List<Subscription>> sharedGroups = null;
+        for (final Subscription sub : topicMatchingSubscriptions) {
+            if (sub.getTopicFilter().isShared()) {
+                if (sharedGroups == null) {
+                    sharedGroups = new HashMap<>();
+                }
+                sharedGroups.computeIfAbsent(sub.getTopicFilter(), k -> new ArrayList<>()).add(sub);
+                continue;
+            }
+            publish2Subscriber(pubMsg, sub, fanOut);
+        }
+        if (sharedGroups != null) {
+            // each group of a shared subscription receives the message once
+            for (List<Subscription> members : sharedGroups.values()) {
+                publish2Subscriber(pubMsg, this.sharedSubscriptionsSelector.select(members), fanOut);
+            }
+        }
+    }
+
+    private void publish2Subscriber(IMessagesStore.StoredMessage pubMsg, Subscription sub, FanOut fanOut) {
         final String topic1 = pubMsg.getTopic();
         final MqttQoS publishingQos = pubMsg.getQos();
         final ByteBuf origPayload = pubMsg.getPayload();
+        MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
+        ClientSession targetSession = m_sessionsStore.sessionForClient(sub.getClientId());
+        if (targetSession == null) {
+            // the session has been removed while the subscriptions were being matched
+            LOG.debug("Skipping subscriber without session. CId={}, topicFilter={}", sub.getClientId(),
+                sub.getTopicFilter());
+            return;
+        }
 
-        for (final Subscription sub : topicMatchingSubscriptions) {
-            MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
-            ClientSession targetSession = m_sessionsStore.sessionForClient(sub.getClientId());
-
-            boolean targetIsActive = this.connectionDescriptors.isConnected(sub.getClientId());
+        boolean targetIsActive = this.connectionDescriptors.isConnected(sub.getClientId());
 //TODO move all this logic into messageSender, which puts into the flightZone only the messages that pull out of the queue.
-            if (targetIsActive) {
-                LOG.debug("Sending PUBLISH message to active subscriber. CId={}, topicFilter={}, qos={}",
-                    sub.getClientId(), sub.getTopicFilter(), qos);
-                // we need to retain because duplicate only copy r/w indexes and don't retain() causing
-                // refCnt = 0
-                ByteBuf payload = origPayload.retainedDuplicate();
-                MqttPublishMessage publishMsg;
-                if (qos != MqttQoS.AT_MOST_ONCE) {
-                    // QoS 1 or 2
-                    int messageId = targetSession.inFlightAckWaiting(pubMsg);
-                    // set the PacketIdentifier only for QoS > 0
-                    publishMsg = notRetainedPublishWithMessageId(topic1, qos, payload, messageId);
-                } else {
-                    publishMsg = notRetainedPublish(topic1, qos, payload);
-                }
-                this.messageSender.sendPublish(targetSession, publishMsg);
+        if (targetIsActive) {
+            LOG.debug("Sending PUBLISH message to active subscriber. CId={}, topicFilter={}, qos={}",
+                sub.getClientId(), sub.getTopicFilter(), qos);
+            // we need to retain because duplicate only copy r/w indexes and don't retain() causing
+            // refCnt = 0
+            ByteBuf payload = origPayload.retainedDuplicate();
+            // set the PacketIdentifier only for QoS > 0
+            int messageId = qos != MqttQoS.AT_MOST_ONCE ? targetSession.inFlightAckWaiting(pubMsg) : 0;
+            if (fanOut != null) {
+                this.messageSender.sendRoutedPublish(targetSession, fanOut.publish(qos, payload, messageId),
+                    fanOut.batch);
             } else {
-                if (!targetSession.isCleanSession()) {
-                    LOG.debug("Storing pending PUBLISH inactive message. CId={}, topicFilter={}, qos={}",
-                        sub.getClientId(), sub.getTopicFilter(), qos);
-                    // store the message in targetSession queue to deliver
-                    targetSession.enqueue(pubMsg);
-                }
+                this.messageSender.sendRoutedPublish(targetSession,
+                    notRetainedPublishWithMessageId(topic1, qos, payload, messageId), null);
+            }
+        } else {
+            if (!targetSession.isCleanSession()) {
+                LOG.debug("Storing pending PUBLISH inactive message. CId={}, topicFilter={}, qos={}",
+                    sub.getClientId(), sub.getTopicFilter(), qos);
+                // store the message in targetSession queue to deliver
+                targetSession.enqueue(pubMsg);
             }
         }
     }
-
 }
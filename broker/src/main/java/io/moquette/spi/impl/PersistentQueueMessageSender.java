@@ -17,11 +17,17 @@
 package io.moquette.spi.impl;
 
 import io.moquette.server.ConnectionDescriptorStore;
+import io.moquette.server.PublishBatch;
 import io.moquette.spi.ClientSession;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+
+import java.util.function.Consumer;
+
 import static io.moquette.spi.impl.ProtocolProcessor.asStoredMessage;
 import static io.netty.handler.codec.mqtt.MqttQoS.AT_MOST_ONCE;
 
@@ -29,12 +35,44 @@ class PersistentQueueMessageSender {
 
     private static final Logger LOG = LoggerFactory.getLogger(PersistentQueueMessageSender.class);
     private final ConnectionDescriptorStore connectionDescriptorStore;
+    private final Consumer<Channel> drainQueue;
 
-    PersistentQueueMessageSender(ConnectionDescriptorStore connectionDescriptorStore) {
+    /**
+     * @param drainQueue
+     *            writes the publishes queued in the session of the client to its channel, called on the event
+     *            loop of the channel.
+     */
+    PersistentQueueMessageSender(ConnectionDescriptorStore connectionDescriptorStore, Consumer<Channel> drainQueue) {
         this.connectionDescriptorStore = connectionDescriptorStore;
+        this.drainQueue = drainQueue;
+    }
+
+    /**
+     * Send a publish routed to a connected subscriber. The QoS 1 and 2 publishes are queued while the queue
+     * of the session isn't empty, so they don't overtake the deferred ones.
+     *
+     * @param batch
+     *            if not null the message is written when the batch is flushed.
+     */
+    void sendRoutedPublish(ClientSession clientsession, MqttPublishMessage pubMessage, PublishBatch batch) {
+        if (pubMessage.fixedHeader().qosLevel() != AT_MOST_ONCE && clientsession.hasQueuedMessages()) {
+            LOG.debug("Queueing PUBLISH message behind the queued ones. CId={}, topic={}", clientsession.clientID,
+                pubMessage.variableHeader().topicName());
+            deferOrDrop(clientsession, pubMessage);
+            return;
+        }
+        sendPublish(clientsession, pubMessage, batch);
     }
 
     void sendPublish(ClientSession clientsession, MqttPublishMessage pubMessage) {
+        sendPublish(clientsession, pubMessage, null);
+    }
+
+    /**
+     * @param batch
+     *            if not null the message is written when the batch is flushed.
+     */
+    void sendPublish(ClientSession clientsession, MqttPublishMessage pubMessage, PublishBatch batch) {
         String clientId = clientsession.clientID;
         final int messageId = pubMessage.variableHeader().packetId();
         final String topicName = pubMessage.variableHeader().topicName();
@@ -46,7 +84,12 @@ class PersistentQueueMessageSender {
             LOG.info("Sending PUBLISH message. MessageId={}, CId={}, topic={}", messageId, clientId, topicName);
         }
 
-        boolean messageDelivered = connectionDescriptorStore.sendMessage(pubMessage, messageId, clientId);
+        if (!connectionDescriptorStore.isWritable(clientId)) {
+            deferOrDrop(clientsession, pubMessage);
+            return;
+        }
+
+        boolean messageDelivered = connectionDescriptorStore.sendMessage(pubMessage, messageId, clientId, batch);
 
         if (!messageDelivered) {
             if (qos != AT_MOST_ONCE && !clientsession.isCleanSession()) {
@@ -57,6 +100,29 @@ class PersistentQueueMessageSender {
                 LOG.warn("PUBLISH message could not be delivered. It will be discarded. MessageId={}, CId={}, "
                         + "topic={}, qos={}, cleanSession={}", messageId, clientId, topicName, qos, true);
             }
+            ReferenceCountUtil.safeRelease(pubMessage);
+        }
+    }
+
+    /**
+     * The publish can't be written now: a QoS 1 or 2 publish is moved from the flight zone to the queue of
+     * the session, that is drained once the channel is writable, a QoS 0 one is dropped.
+     */
+    private void deferOrDrop(ClientSession clientsession, MqttPublishMessage pubMessage) {
+        String clientId = clientsession.clientID;
+        MqttQoS qos = pubMessage.fixedHeader().qosLevel();
+        if (qos == AT_MOST_ONCE) {
+            LOG.debug("Dropping PUBLISH message, the channel is not writable. CId={}, topic={}", clientId,
+                pubMessage.variableHeader().topicName());
+            connectionDescriptorStore.publishDropped(clientId);
+        } else {
+            LOG.debug("Queueing PUBLISH message, the channel is not writable. CId={}, topic={}", clientId,
+                pubMessage.variableHeader().topicName());
+            // the packet id is assigned again when the message is taken from the queue
+            clientsession.inFlightAcknowledged(pubMessage.variableHeader().packetId());
+            clientsession.enqueue(asStoredMessage(pubMessage));
+            connectionDescriptorStore.publishDeferred(clientId, drainQueue);
         }
+        ReferenceCountUtil.safeRelease(pubMessage);
     }
 }
@@ -37,12 +37,14 @@ import io.moquette.spi.impl.subscriptions.Subscription;
 import io.moquette.spi.impl.subscriptions.Topic;
 import io.moquette.spi.security.IAuthenticator;
 import io.moquette.spi.security.IAuthorizator;
-import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.functions.Consumer;
 import io.reactivex.schedulers.Schedulers;
@@ -52,12 +54,11 @@ import org.slf4j.LoggerFactory;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 import static io.moquette.server.ConnectionDescriptor.ConnectionState.*;
-import static io.moquette.spi.impl.InternalRepublisher.createPublishForQos;
 import static io.moquette.spi.impl.Utils.messageId;
-import static io.moquette.spi.impl.Utils.readBytesAndRewind;
 import static io.netty.handler.codec.mqtt.MqttConnectReturnCode.*;
 import static io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader.from;
 import static io.netty.handler.codec.mqtt.MqttQoS.*;
@@ -136,8 +137,28 @@ public class ProtocolProcessor {
         }
     }
 
+    /**
+     * The retained messages still to publish for a new subscription, read from the store while they are
+     * published.
+     */
+    private static final class RetainedDelivery {
+
+        final ClientSession targetSession;
+        final Subscription subscription;
+        final Iterator<Message> messages;
+
+        RetainedDelivery(ClientSession targetSession, Subscription subscription, Iterator<Message> messages) {
+            this.targetSession = targetSession;
+            this.subscription = subscription;
+            this.messages = messages;
+        }
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(ProtocolProcessor.class);
 
+    private static final AttributeKey<Queue<RetainedDelivery>> ATTR_KEY_RETAINED_DELIVERIES =
+        AttributeKey.valueOf("retainedDeliveries");
+
     protected ConnectionDescriptorStore connectionDescriptors;
     protected ConcurrentMap<RunningSubscription, SubscriptionState> subscriptionInCourse;
 
@@ -186,6 +207,13 @@ public class ProtocolProcessor {
             allowAnonymous, allowZeroByteClientId, authorizator, serverPort);
     }
 
+    void init(ConnectionDescriptorStore connectionDescriptors, ISubscriptionsDirectory subscriptions,
+            IMessagesStore storageService, ISessionsStore sessionsStore, IAuthenticator authenticator,
+            boolean allowAnonymous, boolean allowZeroByteClientId, IAuthorizator authorizator, String serverPort) {
+        init(connectionDescriptors, subscriptions, storageService, sessionsStore, authenticator, allowAnonymous,
+            allowZeroByteClientId, authorizator, serverPort, SharedSubscriptionsSelector.Strategy.ROUND_ROBIN);
+    }
+
     /**
      * @param subscriptions
      *            the subscription store where are stored all the existing clients subscriptions.
@@ -203,10 +231,13 @@ public class ProtocolProcessor {
      *            used to apply ACL policies to publishes and subscriptions.
      * @param interceptor
      *            to notify events to an intercept handler
+     * @param sharedSubscriptionsStrategy
+     *            how the member of a shared subscription group that receives a message is chosen.
      */
     void init(ConnectionDescriptorStore connectionDescriptors, ISubscriptionsDirectory subscriptions,
             IMessagesStore storageService, ISessionsStore sessionsStore, IAuthenticator authenticator,
-            boolean allowAnonymous, boolean allowZeroByteClientId, IAuthorizator authorizator, String serverPort) {
+            boolean allowAnonymous, boolean allowZeroByteClientId, IAuthorizator authorizator, String serverPort,
+            SharedSubscriptionsSelector.Strategy sharedSubscriptionsStrategy) {
         LOG.info("Initializing MQTT protocol processor...");
         this.connectionDescriptors = connectionDescriptors;
         this.subscriptionInCourse = new ConcurrentHashMap<>();
@@ -223,14 +254,15 @@ public class ProtocolProcessor {
         subscriptionStore = sessionsStore.subscriptionStore();
 
         LOG.info("Initializing messages publisher...");
-        final PersistentQueueMessageSender messageSender = new PersistentQueueMessageSender(this.connectionDescriptors);
+        final PersistentQueueMessageSender messageSender = new PersistentQueueMessageSender(this.connectionDescriptors,
+            this::notifyChannelWritable);
         this.messagesPublisher = new MessagesPublisher(connectionDescriptors, sessionsStore, messageSender,
-            subscriptions);
+            subscriptions, sharedSubscriptionsStrategy);
 
         LOG.info("Initializing QoS publish handlers...");
         this.qos0PublishHandler = new Qos0PublishHandler(m_authorizator, m_messagesStore, this.messagesPublisher, bus);
         this.qos1PublishHandler = new Qos1PublishHandler(m_authorizator, m_messagesStore, this.connectionDescriptors,
-                this.messagesPublisher, bus);
+                m_sessionsStore, this.messagesPublisher, bus);
         this.qos2PublishHandler = new Qos2PublishHandler(m_authorizator, subscriptions, m_messagesStore,
                 this.connectionDescriptors, m_sessionsStore, this.messagesPublisher, bus);
 
@@ -300,7 +332,7 @@ public class ProtocolProcessor {
             return;
         }
 
-        if (!republish(descriptor, msg, clientSession)) {
+        if (!republish(channel, descriptor, msg, clientSession)) {
             channel.close();
             return;
         }
@@ -426,12 +458,14 @@ public class ProtocolProcessor {
         if (msg.variableHeader().isCleanSession()) {
             LOG.info("Cleaning session. CId={}", clientId);
             bus.publishSafe(new WipeSubscriptionsMessage(clientId));
+            removeFromSubscriptionsDirectory(clientId);
             clientSession.cleanSession();
         }
         return clientSession;
     }
 
-    private boolean republish(ConnectionDescriptor descriptor, MqttConnectMessage msg, ClientSession clientSession) {
+    private boolean republish(Channel channel, ConnectionDescriptor descriptor, MqttConnectMessage msg,
+                              ClientSession clientSession) {
         final boolean success = descriptor.assignState(SESSION_CREATED, MESSAGES_REPUBLISHED);
         if (!success) {
             return false;
@@ -439,10 +473,8 @@ public class ProtocolProcessor {
 
         if (!msg.variableHeader().isCleanSession()) {
             // force the republish of stored QoS1 and QoS2
-            republishStoredInSession(clientSession);
+            republishStoredInSession(channel, clientSession);
         }
-        int flushIntervalMs = 500/* (keepAlive * 1000) / 2 */;
-        descriptor.setupAutoFlusher(flushIntervalMs);
         return true;
     }
 
@@ -459,17 +491,18 @@ public class ProtocolProcessor {
     }
 
     /**
-     * Republish QoS1 and QoS2 messages stored into the session for the clientID.
+     * Republish QoS1 and QoS2 messages stored into the session for the clientID, until the channel is
+     * writable, the rest is published by {@link #notifyChannelWritable(Channel)}.
      */
-    private void republishStoredInSession(ClientSession clientSession) {
+    private void republishStoredInSession(Channel channel, ClientSession clientSession) {
         LOG.info("Republishing stored publish events. CId={}", clientSession.clientID);
-        Queue<StoredMessage> publishedEvents = clientSession.queue();
+        ISessionQueue<StoredMessage> publishedEvents = clientSession.queue();
         if (publishedEvents.isEmpty()) {
             LOG.info("There are no stored publish events to CId={}", clientSession.clientID);
             return;
         }
 
-        this.internalRepublisher.publishStored(clientSession, publishedEvents);
+        this.internalRepublisher.publishStored(channel, clientSession, publishedEvents);
     }
 
     public void processPubAck(Channel channel, MqttPubAckMessage msg) {
@@ -485,12 +518,12 @@ public class ProtocolProcessor {
         bus.publish(new InterceptAcknowledgedMessage(inflightMsg, topic, username, messageID));
     }
 
+    /**
+     * The stored message refers to the payload of msg, it's copied only when the message is queued,
+     * kept in flight or retained.
+     */
     public static IMessagesStore.StoredMessage asStoredMessage(MqttPublishMessage msg) {
-        // TODO ugly, too much array copy
-        ByteBuf payload = msg.payload();
-        byte[] payloadContent = readBytesAndRewind(payload);
-
-        IMessagesStore.StoredMessage stored = new IMessagesStore.StoredMessage(payloadContent,
+        IMessagesStore.StoredMessage stored = new IMessagesStore.StoredMessage(msg.payload(),
                 msg.fixedHeader().qosLevel(), msg.variableHeader().topicName());
         stored.setRetained(msg.fixedHeader().isRetain());
         return stored;
@@ -538,7 +571,7 @@ public class ProtocolProcessor {
      */
     public void internalPublish(MqttPublishMessage msg, final String clientId, boolean globalDatabase) {
         final MqttQoS qos = msg.fixedHeader().qosLevel();
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.intern(msg.variableHeader().topicName());
         LOG.info("Sending PUBLISH message. Topic={}, qos={}", topic, qos);
 
         IMessagesStore.StoredMessage toStoreMsg = asStoredMessage(msg);
@@ -567,6 +600,7 @@ public class ProtocolProcessor {
 //            // before wasn't stored
 //            guid = m_messagesStore.storePublishForFuture(toStoreMsg);
 //        }
+        toStoreMsg.detachPayload();
         m_messagesStore.storeRetained(topic, toStoreMsg);
     }
 
@@ -579,7 +613,7 @@ public class ProtocolProcessor {
         // NB it's a will publish, it needs a PacketIdentifier for this conn, default to 1
         IMessagesStore.StoredMessage tobeStored = asStoredMessage(will);
         tobeStored.setClientID(clientID);
-        Topic topic = new Topic(tobeStored.getTopic());
+        Topic topic = Topic.intern(tobeStored.getTopic());
         this.messagesPublisher.publish2Subscribers(tobeStored, topic);
 
         MqttPublishMessage msg = MqttMessageBuilders.publish().payload(Unpooled.wrappedBuffer(will.payload))
@@ -622,8 +656,7 @@ public class ProtocolProcessor {
         ClientSession targetSession = m_sessionsStore.sessionForClient(clientID);
         // remove from the inflight and move to the QoS2 second phase queue
         int messageID = messageId(msg);
-        Message ackedMsg = targetSession.inFlightAcknowledged(messageID);
-        targetSession.moveInFlightToSecondPhaseAckWaiting(messageID, ackedMsg);
+        targetSession.moveInFlightToSecondPhase(messageID);
         // once received a PUBREC reply with a PUBREL(messageID)
         LOG.debug("Processing PUBREC message. CId={}, messageId={}", clientID, messageID);
 
@@ -703,12 +736,37 @@ public class ProtocolProcessor {
 
         if (descriptor.cleanSession) {
             LOG.info("Removing saved subscriptions. CId={}", descriptor.clientID);
+            removeFromSubscriptionsDirectory(clientID);
             subscriptionStore.wipeSubscriptions(clientID);
             LOG.info("The saved subscriptions have been removed. CId={}", descriptor.clientID);
         }
         return true;
     }
 
+    /**
+     * Remove from the subscriptions directory all the topic filters stored for the client, so that
+     * the directory doesn't keep routing to subscriptions that are going to be wiped from the store.
+     */
+    private void removeFromSubscriptionsDirectory(String clientID) {
+        for (Subscription existingSub : subscriptionStore.getClientSubscriptions(clientID)) {
+            subscriptions.removeSubscription(existingSub.getTopicFilter(), clientID);
+            messagesPublisher.subscriptionRemoved(existingSub.getTopicFilter());
+        }
+    }
+
+    /**
+     * Remove from the subscriptions directory the topic filters of the sessions that are going to be
+     * dropped from the sessions store, as done by the sessions housekeeping.
+     *
+     * @param clientIDs
+     *            the clients whose sessions are going to be removed.
+     */
+    public void removeSessionsSubscriptions(Iterable<String> clientIDs) {
+        for (String clientID : clientIDs) {
+            removeFromSubscriptionsDirectory(clientID);
+        }
+    }
+
     private boolean dropStoredMessages(ConnectionDescriptor descriptor, String clientID) {
         final boolean success = descriptor.assignState(SUBSCRIPTIONS_REMOVED, MESSAGES_DROPPED);
         if (!success) {
@@ -785,6 +843,7 @@ public class ProtocolProcessor {
 
             LOG.debug("Removing subscription. CId={}, topic={}", clientID, topic);
             subscriptions.removeSubscription(topic, clientID);
+            messagesPublisher.subscriptionRemoved(topic);
             clientSession.unsubscribeFrom(topic);
             String username = NettyUtils.userName(channel);
             bus.publishSafe(new InterceptUnsubscribeMessage(topic, clientID, username));
@@ -826,14 +885,14 @@ public class ProtocolProcessor {
 
         // save session, persist subscriptions from session
         for (Subscription subscription : newSubscriptions) {
-            subscriptions.add(subscription.asClientTopicCouple());
+            subscriptions.add(subscription);
         }
 
         LOG.info("Sending SUBACK response CId={}, messageId={}", clientID, messageID);
         channel.writeAndFlush(ackMessage);
 
         // fire the persisted messages in session
-        publishRetainedMessagesInSession(newSubscriptions, username);
+        publishRetainedMessagesInSession(channel, newSubscriptions);
 
         for (Subscription sub : newSubscriptions) {
             //notify the Observables
@@ -918,41 +977,60 @@ public class ProtocolProcessor {
         return new MqttSubAckMessage(fixedHeader, from(messageId), payload);
     }
 
-    private void publishRetainedMessagesInSession(List<Subscription> newSubscriptions, String username) {
-        //scans retained messages to be published to the new subscription
-        Map<Subscription, Collection<IMessagesStore.Message>> pairs =
-                m_messagesStore.searchMatching(newSubscriptions);
-
-        pairs.forEach((sub, messages) -> {
+    private void publishRetainedMessagesInSession(Channel channel, List<Subscription> newSubscriptions) {
+        final Queue<RetainedDelivery> deliveries = retainedDeliveries(channel);
+        for (Subscription sub : newSubscriptions) {
             LOG.info("Retrieving retained messages. CId = {}, topics = {}.", sub.getClientId(),
                     sub.getTopicFilter());
+            ClientSession targetSession = m_sessionsStore.sessionForClient(sub.getClientId());
+            deliveries.add(new RetainedDelivery(targetSession, sub, m_messagesStore.retainedMatching(sub)));
+        }
+        publishPendingRetained(channel);
+    }
 
-            if (!messages.isEmpty()) {
-                LOG.info("Publishing retained messages. CId = {}, topics = {}, messagesNo = {}.",
-                        sub.getClientId(), sub.getTopicFilter(), messages.size());
-            }
+    private static Queue<RetainedDelivery> retainedDeliveries(Channel channel) {
+        final Attribute<Queue<RetainedDelivery>> attribute = channel.attr(ATTR_KEY_RETAINED_DELIVERIES);
+        final Queue<RetainedDelivery> deliveries = attribute.get();
+        if (deliveries != null) {
+            return deliveries;
+        }
+        final Queue<RetainedDelivery> created = new ConcurrentLinkedQueue<>();
+        final Queue<RetainedDelivery> existing = attribute.setIfAbsent(created);
+        return existing != null ? existing : created;
+    }
 
-            ClientSession targetSession = m_sessionsStore.sessionForClient(sub.getClientId());
-            this.internalRepublisher.publishRetained(targetSession, messages);
-        });
+    /**
+     * Publish the retained messages of the new subscriptions while the channel is writable, the remaining
+     * ones are published by {@link #notifyChannelWritable(Channel)} once the client has read the previous
+     * ones, so a subscription matching many retained messages doesn't fill the outbound buffer.
+     */
+    private void publishPendingRetained(Channel channel) {
+        final Queue<RetainedDelivery> deliveries = channel.attr(ATTR_KEY_RETAINED_DELIVERIES).get();
+        if (deliveries == null) {
+            return;
+        }
+        synchronized (deliveries) {
+            RetainedDelivery delivery;
+            while (channel.isWritable() && (delivery = deliveries.peek()) != null) {
+                if (!delivery.messages.hasNext()) {
+                    LOG.debug("The retained messages have been published. CId = {}, topics = {}.",
+                        delivery.subscription.getClientId(), delivery.subscription.getTopicFilter());
+                    deliveries.poll();
+                    continue;
+                }
+                this.internalRepublisher.publishRetained(delivery.targetSession, delivery.messages.next());
+            }
+        }
     }
 
     public void notifyChannelWritable(Channel channel) {
         String clientID = NettyUtils.clientID(channel);
         ClientSession clientSession = m_sessionsStore.sessionForClient(clientID);
-        boolean emptyQueue = false;
-        while (channel.isWritable() && !emptyQueue) {
-            StoredMessage msg = clientSession.queue().poll();
-            if (msg == null) {
-                emptyQueue = true;
-            } else {
-                // recreate a publish from stored publish in queue
-                MqttPublishMessage pubMsg = createPublishForQos(msg.getTopic(), msg.getQos(), msg.getPayload(),
-                        msg.isRetained(), 0);
-                channel.write(pubMsg);
-            }
+        final ISessionQueue<StoredMessage> queue = clientSession.queue();
+        this.internalRepublisher.publishStored(channel, clientSession, queue);
+        if (queue.isEmpty()) {
+            publishPendingRetained(channel);
         }
-        channel.flush();
     }
 
     private HashMap<InterceptHandler, List<Disposable>> handler = new HashMap<>();
@@ -976,7 +1054,7 @@ public class ProtocolProcessor {
         } else if (clazz.equals(InterceptConnectionLostMessage.class)) {
             return addHandler(InterceptConnectionLostMessage.class, interceptHandler::onConnectionLost);
         } else if (clazz.equals(InterceptPublishMessage.class)) {
-            return addHandler(InterceptPublishMessage.class, interceptHandler::onPublish);
+            return addPublishHandler(interceptHandler);
         } else if (clazz.equals(InterceptSubscribeMessage.class)) {
             return addHandler(InterceptSubscribeMessage.class, interceptHandler::onSubscribe);
         } else if (clazz.equals(InterceptUnsubscribeMessage.class)) {
@@ -988,6 +1066,23 @@ public class ProtocolProcessor {
         return null;
     }
 
+    private Disposable addPublishHandler(InterceptHandler interceptHandler) {
+        // the payload is the network buffer of the PUBLISH, retained until the handler has been notified
+        return getBus()
+                .getEvents()
+                .filter(InterceptPublishMessage.class::isInstance)
+                .cast(InterceptPublishMessage.class)
+                .doOnNext(msg -> msg.msg.retain())
+                .observeOn(Schedulers.single())
+                .subscribe(msg -> {
+                    try {
+                        interceptHandler.onPublish(msg);
+                    } finally {
+                        ReferenceCountUtil.release(msg.msg);
+                    }
+                });
+    }
+
     private <T> Disposable addHandler(Class<T> target, Consumer<T> foo) {
         return getBus()
                 .getEvents()
@@ -16,6 +16,9 @@
 
 package io.moquette.spi.impl;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import io.moquette.BrokerConstants;
 import io.moquette.interception.InterceptHandler;
 import io.moquette.server.ConnectionDescriptorStore;
@@ -28,7 +31,9 @@ import io.moquette.spi.IStore;
 import io.moquette.spi.ISubscriptionsStore;
 import io.moquette.spi.impl.security.*;
 import io.moquette.spi.impl.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.spi.impl.subscriptions.CachingSubscriptionsDirectory;
 import io.moquette.spi.impl.subscriptions.ISubscriptionsDirectory;
+import io.moquette.spi.impl.subscriptions.Topic;
 import io.moquette.spi.impl.subscriptions.Subscription;
 import io.moquette.spi.security.IAuthenticator;
 import io.moquette.spi.security.IAuthorizator;
@@ -56,6 +61,9 @@ public class ProtocolProcessorBootstrapper {
 
     private Runnable storeShutdown;
 
+    private CachingSubscriptionsDirectory matchCache;
+    private final List<String> registeredGauges = new ArrayList<>();
+
     private final ProtocolProcessor m_processor = new ProtocolProcessor();
     private ConnectionDescriptorStore connectionDescriptors;
 
@@ -112,8 +120,26 @@ public class ProtocolProcessorBootstrapper {
                 observers.add(handler);
             }
         }
+        int topicsCacheSize = Integer.parseInt(props.getProperty(BrokerConstants.TOPICS_INTERN_CACHE_SIZE, "10000"));
+        LOG.info("Configuring the cache of the published topics. Max cached topics={}", topicsCacheSize);
+        Topic.configureInternCache(topicsCacheSize);
+
         LOG.info("Initializing subscriptions store...");
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        final CTrieSubscriptionDirectory subscriptionsTree = new CTrieSubscriptionDirectory();
+        registerGauge("subscriptions.reload.subscriptions", subscriptionsTree::reloadedSubscriptions);
+        registerGauge("subscriptions.reload.time_ms", subscriptionsTree::reloadMillis);
+        registerGauge("subscriptions.reload.memory_bytes", subscriptionsTree::reloadMemoryBytes);
+        ISubscriptionsDirectory subscriptions = subscriptionsTree;
+        int matchCacheSize = Integer.parseInt(props.getProperty(BrokerConstants.SUBSCRIPTIONS_MATCH_CACHE_SIZE, "0"));
+        if (matchCacheSize > 0) {
+            LOG.info("Caching the subscriptions matched by published topics. Max cached topics={}", matchCacheSize);
+            matchCache = new CachingSubscriptionsDirectory(subscriptions, matchCacheSize);
+            subscriptions = matchCache;
+            registerGauge("subscriptions.match_cache.topics", matchCache::cachedTopics);
+            registerGauge("subscriptions.match_cache.hits", matchCache::hits);
+            registerGauge("subscriptions.match_cache.misses", matchCache::misses);
+            registerGauge("subscriptions.match_cache.evictions", matchCache::evictions);
+        }
         subscriptions.init(m_sessionsStore);
 
         LOG.info("Configuring MQTT authenticator...");
@@ -164,14 +190,28 @@ public class ProtocolProcessorBootstrapper {
                 .parseBoolean(props.getProperty(BrokerConstants.ALLOW_ANONYMOUS_PROPERTY_NAME, "true"));
         boolean allowZeroByteClientId = Boolean
                 .parseBoolean(props.getProperty(BrokerConstants.ALLOW_ZERO_BYTE_CLIENT_ID_PROPERTY_NAME, "false"));
+        SharedSubscriptionsSelector.Strategy sharedSubscriptionsStrategy = SharedSubscriptionsSelector.Strategy
+                .fromConfig(props.getProperty(BrokerConstants.SHARED_SUBSCRIPTIONS_STRATEGY, "round_robin"));
+        LOG.info("Shared subscriptions strategy={}", sharedSubscriptionsStrategy);
         m_processor.init(connectionDescriptors, subscriptions, messagesStore, m_sessionsStore, authenticator,
                 allowAnonymous, allowZeroByteClientId, authorizator,
-                props.getProperty(BrokerConstants.PORT_PROPERTY_NAME));
+                props.getProperty(BrokerConstants.PORT_PROPERTY_NAME), sharedSubscriptionsStrategy);
 
         observers.forEach(m_processor::addInterceptHandler);
         return m_processor;
     }
 
+    /**
+     * Register the gauge in the shared registry of the broker, replacing the one of a previous start in the
+     * same JVM.
+     */
+    private void registerGauge(String name, Gauge<?> gauge) {
+        final MetricRegistry registry = SharedMetricRegistries.getOrCreate(BrokerConstants.METRICS_REGISTRY_NAME);
+        registry.remove(name);
+        registry.register(name, gauge);
+        registeredGauges.add(name);
+    }
+
     private IStore instantiateConfiguredStore(String storageClassName, IConfig props,
                                               ScheduledExecutorService scheduledExecutor) {
         LOG.info("Loading storage class {}", storageClassName);
@@ -247,6 +287,12 @@ public class ProtocolProcessorBootstrapper {
     }
 
     public void shutdown() {
+        if (matchCache != null) {
+            matchCache.logStatistics();
+        }
+        final MetricRegistry registry = SharedMetricRegistries.getOrCreate(BrokerConstants.METRICS_REGISTRY_NAME);
+        registeredGauges.forEach(registry::remove);
+        registeredGauges.clear();
         if (storeShutdown != null)
             storeShutdown.run();
     }
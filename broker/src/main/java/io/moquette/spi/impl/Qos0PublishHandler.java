@@ -22,15 +22,12 @@ import io.moquette.server.netty.NettyUtils;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.impl.subscriptions.Topic;
 import io.moquette.spi.security.IAuthorizator;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
-import io.netty.handler.codec.mqtt.MqttMessageBuilders;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static io.moquette.spi.impl.ProtocolProcessor.asStoredMessage;
-import static io.moquette.spi.impl.Utils.readBytesAndRewind;
 
 class Qos0PublishHandler extends QosPublishHandler {
 
@@ -48,7 +45,7 @@ class Qos0PublishHandler extends QosPublishHandler {
 
     void receivedPublishQos0(Channel channel, MqttPublishMessage msg) {
         // verify if topic can be write
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.intern(msg.variableHeader().topicName());
         String clientID = NettyUtils.clientID(channel);
         String username = NettyUtils.userName(channel);
         if (!m_authorizator.canWrite(topic, username, clientID)) {
@@ -63,13 +60,8 @@ class Qos0PublishHandler extends QosPublishHandler {
         this.publisher.publish2Subscribers(toStoreMsg, topic);
 
         try {
-            byte[] payload = readBytesAndRewind(msg.payload());
-
-            MqttPublishMessage clone = MqttMessageBuilders.publish().qos(msg.fixedHeader().qosLevel())
-                    .payload(Unpooled.wrappedBuffer(payload)).retained(msg.fixedHeader().isRetain())
-                    .topicName(topic.toString()).build();
-
-            InterceptPublishMessage im = new InterceptPublishMessage(clone, clientID, username, topic);
+            // the interceptors share the payload, each one retains it until notified
+            InterceptPublishMessage im = new InterceptPublishMessage(msg.duplicate(), clientID, username, topic);
 
             bus.publish(im);
         } catch (Throwable t) {
@@ -82,6 +74,7 @@ class Qos0PublishHandler extends QosPublishHandler {
             } else {
                 // before wasn't stored
                 //MessageGUID guid = m_messagesStore.storePublishForFuture(toStoreMsg);
+                toStoreMsg.detachPayload();
                 m_messagesStore.storeRetained(topic, toStoreMsg);
             }
         }
@@ -21,12 +21,11 @@ import io.moquette.interception.messages.InterceptPublishMessage;
 import io.moquette.server.ConnectionDescriptorStore;
 import io.moquette.server.netty.NettyUtils;
 import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.impl.subscriptions.Topic;
 import io.moquette.spi.security.IAuthorizator;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.MqttFixedHeader;
-import io.netty.handler.codec.mqtt.MqttMessageBuilders;
 import io.netty.handler.codec.mqtt.MqttMessageType;
 import io.netty.handler.codec.mqtt.MqttPubAckMessage;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
@@ -34,7 +33,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static io.moquette.spi.impl.ProtocolProcessor.asStoredMessage;
-import static io.moquette.spi.impl.Utils.readBytesAndRewind;
 import static io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader.from;
 import static io.netty.handler.codec.mqtt.MqttQoS.AT_MOST_ONCE;
 
@@ -44,19 +42,22 @@ class Qos1PublishHandler extends QosPublishHandler {
 
     private final IMessagesStore m_messagesStore;
     private final ConnectionDescriptorStore connectionDescriptors;
+    private final ISessionsStore m_sessionsStore;
     private final MessagesPublisher publisher;
 
     public Qos1PublishHandler(IAuthorizator authorizator, IMessagesStore messagesStore,
-            ConnectionDescriptorStore connectionDescriptors, MessagesPublisher messagesPublisher, RxBus bus) {
+            ConnectionDescriptorStore connectionDescriptors, ISessionsStore sessionsStore,
+            MessagesPublisher messagesPublisher, RxBus bus) {
         super(authorizator, bus);
         this.m_messagesStore = messagesStore;
         this.connectionDescriptors = connectionDescriptors;
+        this.m_sessionsStore = sessionsStore;
         this.publisher = messagesPublisher;
     }
 
     void receivedPublishQos1(Channel channel, MqttPublishMessage msg) {
         // verify if topic can be write
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.intern(msg.variableHeader().topicName());
         String clientID = NettyUtils.clientID(channel);
         String username = NettyUtils.userName(channel);
         if (!m_authorizator.canWrite(topic, username, clientID)) {
@@ -73,16 +74,12 @@ class Qos1PublishHandler extends QosPublishHandler {
         this.publisher.publish2Subscribers(toStoreMsg, topic, messageID);
 
         try {
-            byte[] payload = readBytesAndRewind(msg.payload());
-
-            MqttPublishMessage clone = MqttMessageBuilders.publish()
-                    .messageId(messageID).qos(msg.fixedHeader().qosLevel()).payload(Unpooled.wrappedBuffer(payload))
-                    .retained(msg.fixedHeader().isRetain()).topicName(topic.toString()).build();
-
-            InterceptPublishMessage im = new InterceptPublishMessage(clone, clientID, username, topic);
+            // the interceptors share the payload, each one retains it until notified
+            InterceptPublishMessage im = new InterceptPublishMessage(msg.duplicate(), clientID, username, topic);
 
             bus.publish(im);
-            sendPubAck(clientID, messageID);
+            // the PUBACK is sent once the messages stored for the subscribers are durable
+            m_sessionsStore.whenDurable(() -> sendPubAck(clientID, messageID));
         } catch (Throwable t) {
             LOG.error(t.toString(), t);
         }
@@ -92,6 +89,7 @@ class Qos1PublishHandler extends QosPublishHandler {
                 m_messagesStore.cleanRetained(topic);
             } else {
                 // before wasn't stored
+                toStoreMsg.detachPayload();
                 m_messagesStore.storeRetained(topic, toStoreMsg);
             }
         }
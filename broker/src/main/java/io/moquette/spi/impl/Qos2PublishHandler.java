@@ -26,7 +26,6 @@ import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.impl.subscriptions.ISubscriptionsDirectory;
 import io.moquette.spi.impl.subscriptions.Topic;
 import io.moquette.spi.security.IAuthorizator;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
 import org.slf4j.Logger;
@@ -35,7 +34,6 @@ import org.slf4j.LoggerFactory;
 import static io.moquette.spi.impl.DebugUtils.payload2Str;
 import static io.moquette.spi.impl.ProtocolProcessor.asStoredMessage;
 import static io.moquette.spi.impl.Utils.messageId;
-import static io.moquette.spi.impl.Utils.readBytesAndRewind;
 import static io.netty.handler.codec.mqtt.MqttMessageIdVariableHeader.from;
 import static io.netty.handler.codec.mqtt.MqttQoS.AT_MOST_ONCE;
 
@@ -61,7 +59,7 @@ class Qos2PublishHandler extends QosPublishHandler {
     }
 
     void receivedPublishQos2(Channel channel, MqttPublishMessage msg) {
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.intern(msg.variableHeader().topicName());
         // check if the topic can be wrote
         String clientID = NettyUtils.clientID(channel);
         String username = NettyUtils.userName(channel);
@@ -82,7 +80,8 @@ class Qos2PublishHandler extends QosPublishHandler {
         m_sessionsStore.sessionForClient(clientID)
             .markAsInboundInflight(messageID, toStoreMsg);
 
-        sendPubRec(clientID, messageID);
+        // the PUBREC is sent once the inbound inflight message is durable
+        m_sessionsStore.whenDurable(() -> sendPubRec(clientID, messageID));
 
         // Next the client will send us a pub rel
         // NB publish to subscribers for QoS 2 happen upon PUBREL from publisher
@@ -111,7 +110,7 @@ class Qos2PublishHandler extends QosPublishHandler {
             LOG.warn("Can't find inbound inflight message for CId={}, messageId={}", clientID, messageID);
             throw new IllegalArgumentException("Can't find inbound inflight message");
         }
-        final Topic topic = new Topic(evt.getTopic());
+        final Topic topic = Topic.intern(evt.getTopic());
 
         this.publisher.publish2Subscribers(evt, topic, messageID);
 
@@ -124,10 +123,8 @@ class Qos2PublishHandler extends QosPublishHandler {
         }
 
         try {
-            byte[] payload = readBytesAndRewind(evt.getPayload());
-
             MqttPublishMessage clone = MqttMessageBuilders.publish()
-                    .messageId(messageID).qos(evt.getQos()).payload(Unpooled.wrappedBuffer(payload))
+                    .messageId(messageID).qos(evt.getQos()).payload(evt.getPayload())
                     .retained(evt.isRetained()).topicName(topic.toString()).build();
 
             InterceptPublishMessage im = new InterceptPublishMessage(clone, clientID, username, topic);
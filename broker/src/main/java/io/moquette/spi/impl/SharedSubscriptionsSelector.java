@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.spi.impl;
+
+import io.moquette.server.ConnectionDescriptorStore;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import io.moquette.spi.impl.subscriptions.Topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the member of a shared subscription group ($share/&lt;share name&gt;/&lt;filter&gt;) that
+ * receives a message. Connected members are preferred, a message goes to an offline member only when
+ * nobody in the group is connected.
+ */
+class SharedSubscriptionsSelector {
+
+    enum Strategy {
+        ROUND_ROBIN, LEAST_INFLIGHT;
+
+        static Strategy fromConfig(String value) {
+            if (value == null || value.isEmpty()) {
+                return ROUND_ROBIN;
+            }
+            return Strategy.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private final Strategy strategy;
+    private final ConnectionDescriptorStore connectionDescriptors;
+    private final ISessionsStore sessionsStore;
+    private final ConcurrentMap<Topic, AtomicInteger> nextMembers = new ConcurrentHashMap<>();
+
+    SharedSubscriptionsSelector(Strategy strategy, ConnectionDescriptorStore connectionDescriptors,
+                                ISessionsStore sessionsStore) {
+        this.strategy = strategy;
+        this.connectionDescriptors = connectionDescriptors;
+        this.sessionsStore = sessionsStore;
+    }
+
+    /**
+     * @param members
+     *            the subscriptions of a group, all with the same shared topic filter.
+     * @return the subscription to deliver the message to.
+     */
+    Subscription select(List<Subscription> members) {
+        if (members.size() == 1) {
+            return members.get(0);
+        }
+        List<Subscription> candidates = new ArrayList<>(members.size());
+        for (Subscription member : members) {
+            if (this.connectionDescriptors.isConnected(member.getClientId())) {
+                candidates.add(member);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates = members;
+        }
+
+        switch (this.strategy) {
+            case LEAST_INFLIGHT:
+                return leastInflight(candidates);
+            case ROUND_ROBIN:
+            default:
+                return roundRobin(candidates);
+        }
+    }
+
+    /**
+     * Forget the rotation of a group once one of its members leaves, so that the groups left by all
+     * their members don't keep a counter. The rotation restarts from the first member.
+     *
+     * @param topicFilter
+     *            the shared topic filter of the group.
+     */
+    void memberRemoved(Topic topicFilter) {
+        this.nextMembers.remove(topicFilter);
+    }
+
+    private Subscription roundRobin(List<Subscription> candidates) {
+        final Topic group = candidates.get(0).getTopicFilter();
+        AtomicInteger next = this.nextMembers.get(group);
+        if (next == null) {
+            next = this.nextMembers.computeIfAbsent(group, k -> new AtomicInteger());
+        }
+        final int idx = next.getAndIncrement() & Integer.MAX_VALUE;
+        return candidates.get(idx % candidates.size());
+    }
+
+    private Subscription leastInflight(List<Subscription> candidates) {
+        Subscription selected = null;
+        int selectedInflight = Integer.MAX_VALUE;
+        for (Subscription candidate : candidates) {
+            final int inflight = this.sessionsStore.getInflightMessagesNo(candidate.getClientId());
+            if (inflight < selectedInflight) {
+                selected = candidate;
+                selectedInflight = inflight;
+            }
+        }
+        return selected;
+    }
+}
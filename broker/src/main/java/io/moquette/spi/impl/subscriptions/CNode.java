@@ -15,71 +15,170 @@
  */
 package io.moquette.spi.impl.subscriptions;
 
-import io.moquette.spi.ISubscriptionsStore.ClientTopicCouple;
-
 import java.util.*;
 
 class CNode {
 
     String token;
-    private List<INode> children;
-    Set<ClientTopicCouple> subscriptions = new HashSet<>();
+    private Map<String, INode> children;
+    private INode singleWildcardChild;
+    private INode multiWildcardChild;
+    Set<Subscription> subscriptions;
 
     //private int subtreeSubscriptions;
 
     CNode() {
-        this.children = new ArrayList<>();
+        this.children = new HashMap<>();
         this.subscriptions = new HashSet<>();
     }
 
     //Copy constructor
-    private CNode(String token, List<INode> children, Set<ClientTopicCouple> subscriptions) {
+    private CNode(String token, Map<String, INode> children, INode singleWildcardChild, INode multiWildcardChild,
+                  Set<Subscription> subscriptions) {
         this.token = token;
         this.children = children;
+        this.singleWildcardChild = singleWildcardChild;
+        this.multiWildcardChild = multiWildcardChild;
         this.subscriptions = subscriptions;
     }
 
     boolean anyChildrenMatch(String token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equals(token)) {
-                return true;
-            }
-        }
-        return false;
+        return liveChild(token) != null;
     }
 
     List<INode> allChildren() {
-        return this.children;
+        List<INode> res = new ArrayList<>(this.children.size() + 2);
+        res.addAll(this.children.values());
+        if (this.singleWildcardChild != null) {
+            res.add(this.singleWildcardChild);
+        }
+        if (this.multiWildcardChild != null) {
+            res.add(this.multiWildcardChild);
+        }
+        return res;
     }
 
     INode childOf(String token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equals(token)) {
-                return iNode;
-            }
+        INode child = liveChild(token);
+        if (child == null) {
+            throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
         }
-        throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
+        return child;
+    }
+
+    /**
+     * @return the child reached by the concrete token, or null if not present. Wildcard children are not
+     * considered, use singleWildcardChild and multiWildcardChild for those.
+     * */
+    INode concreteChild(String token) {
+        return this.children.get(token);
     }
 
-    private boolean equals(String token) {
-        if (this.token == null) {
-            return false;
+    INode singleWildcardChild() {
+        return this.singleWildcardChild;
+    }
+
+    INode multiWildcardChild() {
+        return this.multiWildcardChild;
+    }
+
+    private INode slotFor(String token) {
+        if (Tokens.MULTI.equals(token)) {
+            return this.multiWildcardChild;
+        }
+        if (Tokens.SINGLE.equals(token)) {
+            return this.singleWildcardChild;
         }
-        return this.token.equals(token);
+        return this.children.get(token);
     }
 
+    /**
+     * @return the child for the token unless it has been tombed by a removal.
+     * */
+    private INode liveChild(String token) {
+        INode child = slotFor(token);
+        if (child == null || child.mainNode() instanceof TNode) {
+            return null;
+        }
+        return child;
+    }
+
+    /**
+     * A CNode is never changed once it's published into an INode, every update is done on a copy
+     * that replaces the original with a CAS on the INode. So the copy doesn't share the children and
+     * the subscriptions with the original.
+     * */
     CNode copy() {
-        return new CNode(this.token, this.children, this.subscriptions);
+        return new CNode(this.token, new HashMap<>(this.children), this.singleWildcardChild,
+                         this.multiWildcardChild, new HashSet<>(this.subscriptions));
+    }
+
+    /**
+     * @return a copy of this node without the children that have been tombed by a removal, or null
+     * if there aren't any.
+     * */
+    CNode copyWithoutTombs() {
+        CNode contracted = null;
+        for (Map.Entry<String, INode> child : this.children.entrySet()) {
+            if (child.getValue().mainNode() instanceof TNode) {
+                if (contracted == null) {
+                    contracted = copy();
+                }
+                contracted.children.remove(child.getKey());
+            }
+        }
+        if (this.singleWildcardChild != null && this.singleWildcardChild.mainNode() instanceof TNode) {
+            if (contracted == null) {
+                contracted = copy();
+            }
+            contracted.singleWildcardChild = null;
+        }
+        if (this.multiWildcardChild != null && this.multiWildcardChild.mainNode() instanceof TNode) {
+            if (contracted == null) {
+                contracted = copy();
+            }
+            contracted.multiWildcardChild = null;
+        }
+        return contracted;
+    }
+
+    /**
+     * @return true iff the node has neither subscriptions nor children, so it can be tombed.
+     * */
+    boolean isEmpty() {
+        return this.subscriptions.isEmpty() && this.children.isEmpty() && this.singleWildcardChild == null
+            && this.multiWildcardChild == null;
     }
 
     public void add(INode newINode) {
-        this.children.add(newINode);
+        final String childToken = newINode.mainNode().token;
+        if (Tokens.MULTI.equals(childToken)) {
+            this.multiWildcardChild = newINode;
+        } else if (Tokens.SINGLE.equals(childToken)) {
+            this.singleWildcardChild = newINode;
+        } else {
+            this.children.put(childToken, newINode);
+        }
     }
 
-    CNode addSubscription(String clientId, Topic topic) {
-        this.subscriptions.add(new ClientTopicCouple(clientId, topic));
+    /**
+     * Subscriptions are equal when they have the same client and topic filter, if the client is
+     * already subscribed to the filter the one with the greatest QoS is kept, as the store does.
+     * */
+    CNode addSubscription(Subscription newSubscription) {
+        if (this.subscriptions.add(newSubscription)) {
+            return this;
+        }
+        for (Subscription existing : this.subscriptions) {
+            if (existing.equals(newSubscription)) {
+                if (existing.getRequestedQos().value() >= newSubscription.getRequestedQos().value()) {
+                    return this;
+                }
+                this.subscriptions.remove(existing);
+                break;
+            }
+        }
+        this.subscriptions.add(newSubscription);
         return this;
     }
 
@@ -87,28 +186,31 @@ class CNode {
      * @return true iff the subscriptions contained in this node are owned by clientId
      * */
     boolean containsOnly(String clientId) {
-        for (ClientTopicCouple sub : this.subscriptions) {
-            if (!sub.clientID.equals(clientId)) {
+        for (Subscription sub : this.subscriptions) {
+            if (!sub.clientId.equals(clientId)) {
                 return false;
             }
         }
         return true;
     }
 
-    //TODO this is equivalent to negate(containsOnly(clientId))
-    public boolean contains(String clientId) {
-        for (ClientTopicCouple sub : this.subscriptions) {
-            if (sub.clientID.equals(clientId)) {
+    /**
+     * @return true iff clientId is subscribed to topicFilter on this node. The node of a filter could
+     * also hold the shared subscriptions to it, that have a different topic filter.
+     * */
+    public boolean contains(String clientId, Topic topicFilter) {
+        for (Subscription sub : this.subscriptions) {
+            if (sub.clientId.equals(clientId) && sub.topicFilter.equals(topicFilter)) {
                 return true;
             }
         }
         return false;
     }
 
-    void removeSubscriptionsFor(String clientId) {
-        Set<ClientTopicCouple> toRemove = new HashSet<>();
-        for (ClientTopicCouple sub : this.subscriptions) {
-            if (sub.clientID.equals(clientId)) {
+    void removeSubscriptionsFor(String clientId, Topic topicFilter) {
+        Set<Subscription> toRemove = new HashSet<>();
+        for (Subscription sub : this.subscriptions) {
+            if (sub.clientId.equals(clientId) && sub.topicFilter.equals(topicFilter)) {
                 toRemove.add(sub);
             }
         }
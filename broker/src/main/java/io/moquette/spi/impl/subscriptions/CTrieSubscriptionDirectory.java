@@ -16,13 +16,15 @@
 package io.moquette.spi.impl.subscriptions;
 
 import io.moquette.spi.ISessionsStore;
-import io.moquette.spi.ISubscriptionsStore;
-import io.moquette.spi.ISubscriptionsStore.ClientTopicCouple;
 import io.netty.util.internal.StringUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
@@ -30,9 +32,14 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     private static final Logger LOG = LoggerFactory.getLogger(CTrieSubscriptionDirectory.class);
 
     private static final String ROOT = "root";
+    // subtrees with at least this number of subscriptions are built in a separate task during the reload
+    private static final int BULK_LOAD_FORK_THRESHOLD = 1024;
 
     protected INode root;
-    private volatile ISubscriptionsStore subscriptionsStore;
+
+    private long reloadedSubscriptions;
+    private long reloadMillis;
+    private long reloadMemoryBytes;
 
     private interface IVisitor<T> {
 
@@ -57,10 +64,10 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             }
             StringBuilder subScriptionsStr = new StringBuilder(" ~~[");
             int counter = 0;
-            for (ClientTopicCouple couple : node.subscriptions) {
+            for (Subscription couple : node.subscriptions) {
                 subScriptionsStr
                     .append("{filter=").append(couple.topicFilter).append(", ")
-                    .append("client='").append(couple.clientID).append("'}");
+                    .append("client='").append(couple.clientId).append("'}");
                 counter++;
                 if (counter < node.subscriptions.size()) {
                     subScriptionsStr.append(";");
@@ -92,129 +99,287 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     public void init(ISessionsStore sessionsStore) {
         LOG.info("Initializing CTrie");
-        final CNode mainNode = new CNode();
-        mainNode.token = ROOT;
-        this.root = new INode(mainNode);
-
-        LOG.info("Initializing subscriptions store...");
-        this.subscriptionsStore = sessionsStore.subscriptionStore();
-        List<ClientTopicCouple> subscriptions = this.subscriptionsStore.listAllSubscriptions();
-        // reload any subscriptions persisted
+        final long startTime = System.nanoTime();
+        final long usedMemoryBefore = usedMemory();
+
+        LOG.info("Reloading stored subscriptions...");
+        // the subscriptions are grouped by their first level while they are read from the store
+        final CNode rootNode = new CNode();
+        rootNode.token = ROOT;
+        final Map<String, List<Subscription>> byFirstToken = new HashMap<>();
+        final long[] loaded = new long[1];
+        sessionsStore.subscriptionStore().forEachSubscription(subscription -> {
+            loaded[0]++;
+            SubtreeBuilder.place(rootNode, byFirstToken, subscription, 0);
+        });
+        this.root = ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(
+            () -> SubtreeBuilder.buildChildren(rootNode, byFirstToken, 0)));
+
+        this.reloadedSubscriptions = loaded[0];
+        this.reloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        this.reloadMemoryBytes = usedMemory() - usedMemoryBefore;
+        LOG.info("Stored subscriptions have been reloaded. Subscriptions={}, time={} ms, memory={} bytes",
+            this.reloadedSubscriptions, this.reloadMillis, this.reloadMemoryBytes);
         if (LOG.isTraceEnabled()) {
-            LOG.trace("Reloading all stored subscriptions. SubscriptionTree = {}", dumpTree());
+            LOG.trace("SubscriptionTree = {}", dumpTree());
         }
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
 
-        for (ClientTopicCouple clientTopic : subscriptions) {
-            LOG.info("Re-subscribing client to topic CId={}, topicFilter={}", clientTopic.clientID,
-                clientTopic.topicFilter);
-            add(clientTopic);
+    /**
+     * Builds the subtree of the subscriptions that share the tokens before depth. The nodes are filled
+     * in place, because nobody can see them until the whole tree is installed as root, and the
+     * children with many subscriptions are built by tasks forked on the pool.
+     */
+    private static final class SubtreeBuilder extends RecursiveTask<INode> {
+
+        private static final long serialVersionUID = 4862398162730465914L;
+
+        private final String token;
+        private final List<Subscription> subscriptions;
+        private final int depth;
+
+        SubtreeBuilder(String token, List<Subscription> subscriptions, int depth) {
+            this.token = token;
+            this.subscriptions = subscriptions;
+            this.depth = depth;
         }
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("Stored subscriptions have been reloaded. SubscriptionTree = {}", dumpTree());
+
+        @Override
+        protected INode compute() {
+            final CNode cnode = new CNode();
+            cnode.token = this.token;
+            final Map<String, List<Subscription>> byChildToken = new HashMap<>();
+            for (Subscription subscription : this.subscriptions) {
+                place(cnode, byChildToken, subscription, this.depth);
+            }
+            return buildChildren(cnode, byChildToken, this.depth);
+        }
+
+        /**
+         * Add the subscription to the node, if its filter ends at depth, else to the group of its child.
+         */
+        static void place(CNode cnode, Map<String, List<Subscription>> byChildToken, Subscription subscription,
+                          int depth) {
+            final List<String> tokens = subscription.topicFilter.getSharedFilter().getTokens();
+            if (tokens == null) {
+                LOG.warn("Skipping stored subscription with invalid topic filter. CId={}, topicFilter={}",
+                    subscription.clientId, subscription.topicFilter);
+            } else if (tokens.size() == depth) {
+                cnode.addSubscription(subscription);
+            } else {
+                byChildToken.computeIfAbsent(tokens.get(depth), k -> new ArrayList<>()).add(subscription);
+            }
         }
+
+        /**
+         * Build the children of the node from the groups of their subscriptions, to be invoked from a task of
+         * the pool.
+         */
+        static INode buildChildren(CNode cnode, Map<String, List<Subscription>> byChildToken, int depth) {
+            final List<SubtreeBuilder> forked = new ArrayList<>();
+            for (Map.Entry<String, List<Subscription>> child : byChildToken.entrySet()) {
+                final SubtreeBuilder childBuilder = new SubtreeBuilder(child.getKey(), child.getValue(), depth + 1);
+                if (child.getValue().size() >= BULK_LOAD_FORK_THRESHOLD) {
+                    childBuilder.fork();
+                    forked.add(childBuilder);
+                } else {
+                    cnode.add(childBuilder.compute());
+                }
+            }
+            for (SubtreeBuilder childBuilder : forked) {
+                cnode.add(childBuilder.join());
+            }
+            return new INode(cnode);
+        }
+    }
+
+    /**
+     * @return the number of subscriptions loaded from the store by the last init.
+     */
+    public long reloadedSubscriptions() {
+        return reloadedSubscriptions;
+    }
+
+    /**
+     * @return the time spent by the last init to load the stored subscriptions.
+     */
+    public long reloadMillis() {
+        return reloadMillis;
+    }
+
+    /**
+     * @return the growth of the used heap during the last init, it's an estimate because it includes
+     * any other allocation done meanwhile.
+     */
+    public long reloadMemoryBytes() {
+        return reloadMemoryBytes;
     }
 
     Optional<CNode> lookup(Topic topic) {
+        final List<String> tokens = topic.getTokens();
+        if (tokens == null) {
+            return Optional.empty();
+        }
         INode inode = this.root;
-        String token = topic.headToken();
-        while (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
-            topic = topic.exceptHeadToken();
-            inode = inode.mainNode().childOf(token);
-            token = topic.headToken();
+        int idx = 0;
+        while (idx < tokens.size() && inode.mainNode().anyChildrenMatch(tokens.get(idx))) {
+            inode = inode.mainNode().childOf(tokens.get(idx));
+            idx++;
         }
-        if (inode == null || !topic.isEmpty()) {
+        if (idx < tokens.size()) {
             return Optional.empty();
         }
         return Optional.of(inode.mainNode());
     }
 
+    /**
+     * Accumulates the matches of a single trie walk and the per client QoS selection. One instance
+     * is kept per thread and cleared after every match, so that routing a PUBLISH doesn't allocate
+     * intermediate collections at each level of the tree.
+     */
+    private static final class MatchCollector {
+
+        final List<Subscription> subscriptions = new ArrayList<>();
+        final Map<String, Subscription> subsForClient = new HashMap<>();
+        final List<Subscription> shared = new ArrayList<>();
 
-    @Override
-    public List<Subscription> matches(Topic topic) {
-        return new ArrayList<>(match(topic));
+        void clear() {
+            subscriptions.clear();
+            subsForClient.clear();
+            shared.clear();
+        }
     }
 
+    private static final ThreadLocal<MatchCollector> COLLECTORS = ThreadLocal.withInitial(MatchCollector::new);
 
     /**
      * Given a topic string return the clients subscriptions that matches it. Topic string can't
      * contain character # and + because they are reserved to listeners subscriptions, and not topic
-     * publishing.
+     * publishing. The subscriptions are read from the tree, the subscriptions store is not accessed.
+     * Shared subscriptions are returned as they are, it's up to the caller to select a member of each
+     * group.
      *
      * @param topic
      *            to use fo searching matching subscriptions.
      * @return the list of matching subscriptions, or empty if not matching.
      */
-     Set<Subscription> match(Topic topic) {
-        final Set<ClientTopicCouple> matchingSubs = recursiveMatch(topic, this.root);
-        // remove the overlapping subscriptions, selecting ones with greatest qos
-        Map<String, Subscription> subsForClient = new HashMap<>();
-        for (ClientTopicCouple matchingCouple : matchingSubs) {
-            Subscription existingSub = subsForClient.get(matchingCouple.clientID);
-            Subscription sub = this.subscriptionsStore.getSubscription(matchingCouple);
-            if (sub == null) {
-                // if the m_sessionStore hasn't the sub because the client disconnected
-                continue;
-            }
-            // update the selected subscriptions if not present or if has a greater qos
-            if (existingSub == null || existingSub.getRequestedQos().value() < sub.getRequestedQos().value()) {
-                subsForClient.put(matchingCouple.clientID, sub);
+    @Override
+    public List<Subscription> matches(Topic topic) {
+        final MatchCollector collector = COLLECTORS.get();
+        try {
+            collectMatching(topic, collector.subscriptions);
+            // remove the overlapping subscriptions, selecting ones with greatest qos
+            final Map<String, Subscription> subsForClient = collector.subsForClient;
+            for (Subscription sub : collector.subscriptions) {
+                if (sub.topicFilter.isShared()) {
+                    collector.shared.add(sub);
+                    continue;
+                }
+                Subscription existingSub = subsForClient.get(sub.clientId);
+                // update the selected subscriptions if not present or if has a greater qos
+                if (existingSub == null || existingSub.getRequestedQos().value() < sub.getRequestedQos().value()) {
+                    subsForClient.put(sub.clientId, sub);
+                }
             }
+            final List<Subscription> matching = new ArrayList<>(subsForClient.size() + collector.shared.size());
+            matching.addAll(subsForClient.values());
+            matching.addAll(collector.shared);
+            return matching;
+        } finally {
+            collector.clear();
         }
-        return new HashSet<>(subsForClient.values());
     }
 
-    Set<ClientTopicCouple> recursiveMatch(Topic topic, INode inode) {
-        CNode cnode = inode.mainNode();
-        if (cnode.token == Tokens.MULTI) {
-            return cnode.subscriptions;
+    Set<Subscription> match(Topic topic) {
+        return new HashSet<>(matches(topic));
+    }
+
+    Set<Subscription> recursiveMatch(Topic topic, INode inode) {
+        final List<Subscription> matching = new ArrayList<>();
+        final List<String> tokens = topic.getTokens();
+        if (tokens != null && !tokens.isEmpty()) {
+            collectMatching(tokens, 0, inode.mainNode(), matching);
         }
-        if (topic.isEmpty()) {
-            return Collections.emptySet();
+        return new HashSet<>(matching);
+    }
+
+    private void collectMatching(Topic topic, List<Subscription> matching) {
+        final List<String> tokens = topic.getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            return;
         }
-        if (cnode instanceof TNode) {
-            return Collections.emptySet();
+        collectMatching(tokens, 0, this.root.mainNode(), matching);
+    }
+
+    /**
+     * Walk the tree from cnode, which already consumed the tokens before idx. Concrete tokens are
+     * resolved by hash lookup, while + and # are looked at in their dedicated slots, so the cost
+     * of a level doesn't depend on the number of siblings.
+     */
+    private void collectMatching(List<String> tokens, int idx, CNode cnode, List<Subscription> matching) {
+        final INode multi = cnode.multiWildcardChild();
+        if (multi != null) {
+            // # matches also the parent level
+            matching.addAll(multi.mainNode().subscriptions);
         }
-        final String token = topic.headToken();
-        if (!(cnode.token == Tokens.SINGLE || cnode.token.equals(token) || cnode.token == ROOT)) {
-            return Collections.emptySet();
+        if (idx == tokens.size()) {
+            matching.addAll(cnode.subscriptions);
+            return;
         }
-        Topic remainingTopic = (cnode.token == ROOT) ? topic : topic.exceptHeadToken();
-        Set<ClientTopicCouple> subscriptions = new HashSet<>();
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.subscriptions);
+        final INode single = cnode.singleWildcardChild();
+        if (single != null) {
+            collectMatchingChild(tokens, idx + 1, single, matching);
         }
-        for (INode subInode : cnode.allChildren()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode));
+        final INode child = cnode.concreteChild(tokens.get(idx));
+        if (child != null) {
+            collectMatchingChild(tokens, idx + 1, child, matching);
         }
-        return subscriptions;
     }
 
+    private void collectMatchingChild(List<String> tokens, int idx, INode inode, List<Subscription> matching) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            return;
+        }
+        collectMatching(tokens, idx, cnode, matching);
+    }
 
-    public void add(ClientTopicCouple newSubscription) {
+    public void add(Subscription newSubscription) {
+        // shared subscriptions are kept on the node of the filter they apply to
+        final List<String> tokens = newSubscription.topicFilter.getSharedFilter().getTokens();
         Action res;
         do {
-            res = insert(newSubscription.clientID, newSubscription.topicFilter, this.root, newSubscription.topicFilter);
+            res = insert(newSubscription, tokens, 0, this.root, null);
         } while (res == Action.REPEAT);
     }
 
-    private Action insert(String clientId, Topic topic, final INode inode, Topic fullpath) {
-        String token = topic.headToken();
-        if (!topic.isEmpty() && inode.mainNode().anyChildrenMatch(token)) {
-            Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
-            return insert(clientId, remainingTopic, nextInode, fullpath);
+    private Action insert(Subscription newSubscription, List<String> tokens, int idx, final INode inode,
+                          INode parent) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            // the node has been removed concurrently, drop it from the parent and start again
+            contract(parent);
+            return Action.REPEAT;
+        }
+        if (idx < tokens.size() && cnode.anyChildrenMatch(tokens.get(idx))) {
+            INode nextInode = cnode.childOf(tokens.get(idx));
+            return insert(newSubscription, tokens, idx + 1, nextInode, inode);
         } else {
-            if (topic.isEmpty()) {
-                return insertSubscription(clientId, fullpath, inode);
+            if (idx == tokens.size()) {
+                return insertSubscription(newSubscription, inode, cnode);
             } else {
-                return createNodeAndInsertSubscription(clientId, topic, inode, fullpath);
+                return createNodeAndInsertSubscription(newSubscription, tokens, idx, inode, cnode);
             }
         }
     }
 
-    private Action insertSubscription(String clientId, Topic topic, INode inode) {
-        CNode cnode = inode.mainNode();
-        CNode updatedCnode = cnode.copy().addSubscription(clientId, topic);
+    private Action insertSubscription(Subscription newSubscription, INode inode, CNode cnode) {
+        CNode updatedCnode = cnode.copy().addSubscription(newSubscription);
         if (inode.compareAndSet(cnode, updatedCnode)) {
             return Action.OK;
         } else {
@@ -222,65 +387,99 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
         }
     }
 
-    private Action createNodeAndInsertSubscription(String clientId, Topic topic, INode inode, Topic fullpath) {
-        INode newInode = createPathRec(clientId, topic, fullpath);
-        CNode cnode = inode.mainNode();
+    private Action createNodeAndInsertSubscription(Subscription newSubscription, List<String> tokens, int idx,
+                                                   INode inode, CNode cnode) {
+        INode newInode = createPathRec(newSubscription, tokens, idx);
         CNode updatedCnode = cnode.copy();
         updatedCnode.add(newInode);
 
         return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
     }
 
-    private INode createLeafNodes(String clientId, Topic fullpath, String token) {
+    private INode createLeafNodes(Subscription newSubscription, String token) {
         CNode newLeafCnode = new CNode();
         newLeafCnode.token = token;
-        newLeafCnode.addSubscription(clientId, fullpath);
+        newLeafCnode.addSubscription(newSubscription);
 
         return new INode(newLeafCnode);
     }
 
-    private INode createPathRec(String clientId, Topic topic, Topic fullpath) {
-        Topic remainingTopic = topic.exceptHeadToken();
-        if (!remainingTopic.isEmpty()) {
-            INode inode = createPathRec(clientId, remainingTopic, fullpath);
+    private INode createPathRec(Subscription newSubscription, List<String> tokens, int idx) {
+        if (idx < tokens.size() - 1) {
+            INode inode = createPathRec(newSubscription, tokens, idx + 1);
             CNode cnode = new CNode();
-            cnode.token = topic.headToken();
+            cnode.token = tokens.get(idx);
             cnode.add(inode);
             return new INode(cnode);
         } else {
-            return createLeafNodes(clientId, fullpath, topic.headToken());
+            return createLeafNodes(newSubscription, tokens.get(idx));
         }
     }
 
     public void removeSubscription(Topic topic, String clientID) {
+        final List<String> tokens = topic.getSharedFilter().getTokens();
         Action res;
         do {
-            res = remove(clientID, topic, this.root);
+            res = remove(clientID, topic, tokens, 0, this.root, null);
         } while (res == Action.REPEAT);
     }
 
-    private Action remove(String clientId, Topic topic, INode inode) {
-        String token = topic.headToken();
-        if (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
-            Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
-            return remove(clientId, remainingTopic, nextInode);
+    private Action remove(String clientId, Topic topicFilter, List<String> tokens, int idx, INode inode,
+                          INode parent) {
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            contract(parent);
+            return Action.REPEAT;
+        }
+        if (idx < tokens.size() && cnode.anyChildrenMatch(tokens.get(idx))) {
+            INode nextInode = cnode.childOf(tokens.get(idx));
+            final Action res = remove(clientId, topicFilter, tokens, idx + 1, nextInode, inode);
+            if (res == Action.OK && nextInode.mainNode() instanceof TNode) {
+                // the removal emptied the child, compress the path
+                contract(inode);
+            }
+            return res;
+        } else if (idx < tokens.size()) {
+            // the topic filter isn't present in the tree, nothing to remove
+            return Action.OK;
         } else {
-            final CNode cnode = inode.mainNode();
-            if (cnode.containsOnly(clientId)) {
-                TNode tnode = new TNode();
-                return inode.compareAndSet(cnode, tnode) ? Action.OK : Action.REPEAT;
-            } else if (cnode.contains(clientId)) {
-                CNode updatedCnode = cnode.copy();
-                updatedCnode.removeSubscriptionsFor(clientId);
-                return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
-            } else {
+            if (!cnode.contains(clientId, topicFilter)) {
                 //someone else already removed
                 return Action.OK;
             }
+            CNode updatedCnode = cnode.copy();
+            updatedCnode.removeSubscriptionsFor(clientId, topicFilter);
+            if (inode != this.root && updatedCnode.isEmpty()) {
+                return inode.compareAndSet(cnode, new TNode()) ? Action.OK : Action.REPEAT;
+            }
+            return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
         }
     }
 
+    /**
+     * Drop the tombed children of the inode. If the node remains without subscriptions and children
+     * it's tombed in turn, and its parent is compressed when the removal walks back up or by the
+     * next operation that reaches it. A failed CAS is not retried, it means that someone else updated
+     * the node.
+     */
+    private void contract(INode inode) {
+        if (inode == null) {
+            return;
+        }
+        final CNode cnode = inode.mainNode();
+        if (cnode instanceof TNode) {
+            return;
+        }
+        final CNode contracted = cnode.copyWithoutTombs();
+        if (contracted == null) {
+            return;
+        }
+        if (inode != this.root && contracted.isEmpty()) {
+            inode.compareAndSet(cnode, new TNode());
+        } else {
+            inode.compareAndSet(cnode, contracted);
+        }
+    }
     private class SubscriptionCounterVisitor implements IVisitor<Integer> {
 
         AtomicInteger accumulator = new AtomicInteger(0);
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl.subscriptions;
+
+import io.moquette.spi.ISessionsStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorates a subscriptions directory with a bounded cache of the matches resolved for each
+ * published topic.
+ *
+ * Every add or remove of a topic filter drops the cached topics that the filter matches, so the
+ * routing is the same as the one of the decorated directory. Cached topics are grouped by their
+ * first level, a filter that starts with a concrete token only scans the topics of its group.
+ */
+public class CachingSubscriptionsDirectory implements ISubscriptionsDirectory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingSubscriptionsDirectory.class);
+
+    private final ISubscriptionsDirectory delegate;
+    private final int maxSize;
+
+    private final ConcurrentMap<String, ConcurrentMap<Topic, List<Subscription>>> cache = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    // incremented on each change of the subscriptions, used to discard matches computed concurrently with it
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CachingSubscriptionsDirectory(ISubscriptionsDirectory delegate, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("The size of the match cache must be positive, was " + maxSize);
+        }
+        this.delegate = delegate;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public void init(ISessionsStore sessionsStore) {
+        this.delegate.init(sessionsStore);
+        this.generation.incrementAndGet();
+        this.cache.clear();
+        this.size.set(0);
+    }
+
+    @Override
+    public void add(Subscription newSubscription) {
+        this.delegate.add(newSubscription);
+        invalidate(newSubscription.getTopicFilter());
+    }
+
+    @Override
+    public void removeSubscription(Topic topic, String clientID) {
+        this.delegate.removeSubscription(topic, clientID);
+        invalidate(topic);
+    }
+
+    @Override
+    public List<Subscription> matches(Topic topic) {
+        final List<String> tokens = topic.getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            return this.delegate.matches(topic);
+        }
+        final String headToken = tokens.get(0);
+        final ConcurrentMap<Topic, List<Subscription>> group = this.cache.get(headToken);
+        final List<Subscription> cached = group == null ? null : group.get(topic);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        final long startGeneration = this.generation.get();
+        final List<Subscription> matching = Collections.unmodifiableList(this.delegate.matches(topic));
+        // the group is filled while the map locks its entry, so it can't be dropped as empty meanwhile
+        final boolean[] added = new boolean[1];
+        final ConcurrentMap<Topic, List<Subscription>> targetGroup = this.cache.compute(headToken, (k, g) -> {
+            final ConcurrentMap<Topic, List<Subscription>> current = g == null ? new ConcurrentHashMap<>() : g;
+            added[0] = current.putIfAbsent(topic, matching) == null;
+            return current;
+        });
+        if (added[0]) {
+            if (this.size.incrementAndGet() > this.maxSize) {
+                evictOne(headToken, targetGroup, topic);
+            }
+            // a subscription changed while matching, the result could be stale
+            if (this.generation.get() != startGeneration && targetGroup.remove(topic, matching)) {
+                this.size.decrementAndGet();
+                removeIfEmpty(headToken);
+            }
+        }
+        return matching;
+    }
+
+    private void evictOne(String preferredHeadToken, ConcurrentMap<Topic, List<Subscription>> preferredGroup,
+                          Topic justAdded) {
+        if (evictFrom(preferredHeadToken, preferredGroup, justAdded)) {
+            return;
+        }
+        for (Map.Entry<String, ConcurrentMap<Topic, List<Subscription>>> group : this.cache.entrySet()) {
+            if (evictFrom(group.getKey(), group.getValue(), justAdded)) {
+                return;
+            }
+        }
+    }
+
+    private boolean evictFrom(String headToken, ConcurrentMap<Topic, List<Subscription>> group, Topic justAdded) {
+        final Iterator<Topic> topics = group.keySet().iterator();
+        while (topics.hasNext()) {
+            final Topic candidate = topics.next();
+            if (!candidate.equals(justAdded) && group.remove(candidate) != null) {
+                this.size.decrementAndGet();
+                this.evictions.incrementAndGet();
+                removeIfEmpty(headToken);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the group of the head token if it has no more cached topics, the map locks the entry so a topic
+     * being cached meanwhile is either seen here or added to a new group.
+     */
+    private void removeIfEmpty(String headToken) {
+        this.cache.computeIfPresent(headToken, (k, group) -> group.isEmpty() ? null : group);
+    }
+
+    private void invalidate(Topic subscribedFilter) {
+        this.generation.incrementAndGet();
+        final Topic topicFilter = subscribedFilter.getSharedFilter();
+        final List<String> tokens = topicFilter.getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            return;
+        }
+        final String headToken = tokens.get(0);
+        if (headToken.equals(Tokens.MULTI) || headToken.equals(Tokens.SINGLE)) {
+            for (Map.Entry<String, ConcurrentMap<Topic, List<Subscription>>> group : this.cache.entrySet()) {
+                invalidateMatching(group.getKey(), group.getValue(), topicFilter);
+            }
+            return;
+        }
+
+        final ConcurrentMap<Topic, List<Subscription>> group = this.cache.get(headToken);
+        if (group == null) {
+            return;
+        }
+        if (tokens.contains(Tokens.MULTI) || tokens.contains(Tokens.SINGLE)) {
+            invalidateMatching(headToken, group, topicFilter);
+        } else if (group.remove(topicFilter) != null) {
+            // a filter without wildcards matches only the topic with the same name
+            this.size.decrementAndGet();
+            removeIfEmpty(headToken);
+        }
+    }
+
+    private void invalidateMatching(String headToken, ConcurrentMap<Topic, List<Subscription>> group,
+                                    Topic topicFilter) {
+        boolean removed = false;
+        for (Map.Entry<Topic, List<Subscription>> entry : group.entrySet()) {
+            if (entry.getKey().match(topicFilter) && group.remove(entry.getKey(), entry.getValue())) {
+                this.size.decrementAndGet();
+                removed = true;
+            }
+        }
+        if (removed) {
+            removeIfEmpty(headToken);
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.delegate.size();
+    }
+
+    @Override
+    public String dumpTree() {
+        return this.delegate.dumpTree();
+    }
+
+    public int cachedTopics() {
+        return this.size.get();
+    }
+
+    /**
+     * @return the number of first levels that have cached topics.
+     */
+    int cachedGroups() {
+        return this.cache.size();
+    }
+
+    public long hits() {
+        return this.hits.get();
+    }
+
+    public long misses() {
+        return this.misses.get();
+    }
+
+    public long evictions() {
+        return this.evictions.get();
+    }
+
+    public void logStatistics() {
+        LOG.info("Subscriptions match cache statistics. Cached topics={}, hits={}, misses={}, evictions={}",
+            cachedTopics(), hits(), misses(), evictions());
+    }
+}
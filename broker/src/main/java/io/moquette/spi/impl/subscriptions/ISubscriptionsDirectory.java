@@ -16,7 +16,6 @@
 package io.moquette.spi.impl.subscriptions;
 
 import io.moquette.spi.ISessionsStore;
-import io.moquette.spi.ISubscriptionsStore;
 
 import java.util.List;
 
@@ -24,7 +23,7 @@ public interface ISubscriptionsDirectory {
 
     void init(ISessionsStore sessionsStore);
 
-    void add(ISubscriptionsStore.ClientTopicCouple newSubscription);
+    void add(Subscription newSubscription);
 
     void removeSubscription(Topic topic, String clientID);
 
@@ -101,7 +101,7 @@ public class SubscriptionsDirectory implements ISubscriptionsDirectory {
         for (ClientTopicCouple clientTopic : subscriptions) {
             LOG.info("Re-subscribing client to topic CId={}, topicFilter={}", clientTopic.clientID,
                 clientTopic.topicFilter);
-            add(clientTopic);
+            addCouple(clientTopic);
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("Stored subscriptions have been reloaded. SubscriptionTree = {}", dumpTree());
@@ -109,7 +109,11 @@ public class SubscriptionsDirectory implements ISubscriptionsDirectory {
     }
 
     @Override
-    public void add(ClientTopicCouple newSubscription) {
+    public void add(Subscription newSubscription) {
+        addCouple(newSubscription.asClientTopicCouple());
+    }
+
+    private void addCouple(ClientTopicCouple newSubscription) {
         /*
          * The topic filters have already been validated at the ProtocolProcessor. We can assume
          * they are valid.
@@ -33,7 +33,7 @@ class TNode extends CNode {
     }
 
     @Override
-    CNode addSubscription(String clientId, Topic topic) {
+    CNode addSubscription(Subscription newSubscription) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
@@ -43,12 +43,12 @@ class TNode extends CNode {
     }
 
     @Override
-    public boolean contains(String clientId) {
+    public boolean contains(String clientId, Topic topicFilter) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    void removeSubscriptionsFor(String clientId) {
+    void removeSubscriptionsFor(String clientId, Topic topicFilter) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
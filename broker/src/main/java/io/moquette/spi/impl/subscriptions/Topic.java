@@ -34,6 +34,10 @@ public class Topic implements Serializable {
 
     public static int rootLength = 1;
 
+    private static final String SHARE_PREFIX = "$share";
+
+    private static volatile TopicCache internedTopics = new TopicCache(TopicCache.DEFAULT_MAX_SIZE);
+
     private final String topic;
 
     private transient List<String> tokens;
@@ -51,6 +55,24 @@ public class Topic implements Serializable {
         return new Topic(s);
     }
 
+    /**
+     * Return the topic for the string, already tokenized and shared with the other invocations for
+     * the same string while it's in the cache of the frequently used topics. Meant for the topic names
+     * of the published messages, to avoid parsing them at every PUBLISH.
+     */
+    public static Topic intern(String s) {
+        return internedTopics.intern(s);
+    }
+
+    /**
+     * @param maxSize
+     *            the number of recently used topics kept by {@link #intern(String)}, 0 disables the
+     *            cache.
+     */
+    public static void configureInternCache(int maxSize) {
+        internedTopics = new TopicCache(maxSize);
+    }
+
     public Topic(String topic) {
         this.topic = topic;
     }
@@ -82,32 +104,37 @@ public class Topic implements Serializable {
     }
 
     private List<String> parseTopic(String topic) throws ParseException {
-        List<String> res = new ArrayList<>();
-        String[] splitted = topic.split("/");
-
-        if (splitted.length == 0) {
-            res.add(Tokens.EMPTY);
+        // split on every separator, in a single pass
+        final String[] splitted = new String[countSeparators(topic) + 1];
+        int size = 0;
+        int start = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                splitted[size++] = topic.substring(start, i);
+                start = i + 1;
+            }
         }
+        splitted[size++] = topic.substring(start);
 
-        if (topic.endsWith("/")) {
-            // Add a fictious space
-            String[] newSplitted = new String[splitted.length + 1];
-            System.arraycopy(splitted, 0, newSplitted, 0, splitted.length);
-            newSplitted[splitted.length] = "";
-            splitted = newSplitted;
+        // many trailing empty tokens count as one, as String.split followed by the fictious space did
+        int last = size - 1;
+        while (last >= 0 && splitted[last].isEmpty()) {
+            last--;
+        }
+        if (last < 0) {
+            size = topic.isEmpty() ? 1 : 2;
+        } else if (last < size - 1) {
+            size = last + 2;
         }
 
-        for (int i = 0; i < splitted.length; i++) {
+        final List<String> res = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
             String s = splitted[i];
             if (s.isEmpty()) {
-                // if (i != 0) {
-                // throw new ParseException("Bad format of topic, expetec topic name between
-                // separators", i);
-                // }
                 res.add(Tokens.EMPTY);
             } else if (s.equals("#")) {
                 // check that multi is the last symbol
-                if (i != splitted.length - 1) {
+                if (i != size - 1) {
                     throw new ParseException(
                             "Bad format of topic, the multi symbol (#) has to be the last one after a separator",
                             i);
@@ -127,6 +154,16 @@ public class Topic implements Serializable {
         return Collections.unmodifiableList(res);
     }
 
+    private static int countSeparators(String topic) {
+        int count = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                count++;
+            }
+        }
+        return count;
+    }
+
     public String headToken() {
         final List<String> tokens = getTokens();
         if (tokens.isEmpty()) {
@@ -149,18 +186,50 @@ public class Topic implements Serializable {
         if (tokens.isEmpty()) {
             return new Topic(Collections.emptyList());
         }
-        List<String> tokensCopy = new ArrayList<>(tokens);
-        tokensCopy.remove(0);
-        return new Topic(tokensCopy);
+        return new Topic(tokens.subList(1, tokens.size()));
     }
 
     public boolean isValid() {
         if (tokens == null)
             getTokens();
 
+        if (valid && isShared()) {
+            // $share/<share name>/<filter>, the share name can't be empty or a wildcard
+            final String shareName = tokens.get(1);
+            return tokens.size() > 2 && !shareName.isEmpty() && !Tokens.MULTI.equals(shareName)
+                && !Tokens.SINGLE.equals(shareName);
+        }
         return valid;
     }
 
+    /**
+     * @return true if this is the topic filter of a shared subscription, in the form
+     * $share/&lt;share name&gt;/&lt;filter&gt;.
+     */
+    public boolean isShared() {
+        final List<String> tokens = getTokens();
+        return tokens != null && tokens.size() > 1 && SHARE_PREFIX.equals(tokens.get(0));
+    }
+
+    /**
+     * @return the name of the group of a shared subscription, null if the filter isn't shared.
+     */
+    public String getShareName() {
+        return isShared() ? getTokens().get(1) : null;
+    }
+
+    /**
+     * @return the filter that a shared subscription applies to the published topics, this topic if it
+     * isn't shared.
+     */
+    public Topic getSharedFilter() {
+        if (!isShared()) {
+            return this;
+        }
+        final List<String> tokens = getTokens();
+        return new Topic(tokens.subList(2, tokens.size()));
+    }
+
     /**
      * Verify if the 2 topics matching respecting the rules of MQTT Appendix A
      *
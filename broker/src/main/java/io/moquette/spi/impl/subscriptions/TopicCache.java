@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.spi.impl.subscriptions;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded cache of tokenized topics, keyed by the topic string. The topics are kept in two
+ * generations: the lookups are served by the young one and by the old one, that promotes the found
+ * topics to the young one. When the young generation is full it replaces the old one, so the
+ * topics not used since the last rotation are dropped and at most twice maxSize topics are kept.
+ */
+final class TopicCache {
+
+    static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final int maxSize;
+    private volatile ConcurrentMap<String, Topic> young = new ConcurrentHashMap<>();
+    private volatile Map<String, Topic> old = Collections.emptyMap();
+
+    TopicCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    Topic intern(String topicName) {
+        if (maxSize <= 0) {
+            return new Topic(topicName);
+        }
+        Topic topic = young.get(topicName);
+        if (topic != null) {
+            return topic;
+        }
+        topic = old.get(topicName);
+        if (topic == null) {
+            topic = new Topic(topicName);
+            // tokenize before publishing the topic to the other threads
+            topic.isValid();
+        }
+        if (young.size() >= maxSize) {
+            rotate();
+        }
+        final Topic existing = young.putIfAbsent(topicName, topic);
+        return existing != null ? existing : topic;
+    }
+
+    private synchronized void rotate() {
+        if (young.size() >= maxSize) {
+            old = young;
+            young = new ConcurrentHashMap<>();
+        }
+    }
+
+    int size() {
+        return young.size() + old.size();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.spi.impl.subscriptions;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Index of values by topic name, a tree with a node for each topic level, used to find the retained
+ * messages matching a topic filter without scanning all of them. A filter without wildcards is a lookup of
+ * its levels, a single level wildcard visits the children of a level and a multi level wildcard the whole
+ * subtree.
+ *
+ * The updates are serialized, the lookups don't lock and see the index as it was while they walk it.
+ */
+public class TopicIndex<V> {
+
+    private static final class Node<V> {
+
+        final ConcurrentMap<String, Node<V>> children = new ConcurrentHashMap<>();
+        volatile Topic topic;
+        volatile V value;
+
+        boolean isRemovable() {
+            return value == null && children.isEmpty();
+        }
+    }
+
+    private final Node<V> root = new Node<>();
+    private volatile int size;
+
+    /**
+     * @return the value previously indexed for the topic, if any.
+     */
+    public synchronized V put(Topic topic, V value) {
+        final List<String> tokens = topic.getTokens();
+        if (tokens == null) {
+            throw new IllegalArgumentException("Can't index the invalid topic " + topic);
+        }
+        Node<V> node = root;
+        for (String token : tokens) {
+            node = node.children.computeIfAbsent(token, t -> new Node<>());
+        }
+        final V previous = node.value;
+        node.topic = topic;
+        node.value = value;
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    public V get(Topic topic) {
+        final Node<V> node = find(topic);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * @return the value indexed for the topic, null if there was none.
+     */
+    public synchronized V remove(Topic topic) {
+        final List<String> tokens = topic.getTokens();
+        if (tokens == null) {
+            return null;
+        }
+        final V previous = remove(root, tokens, 0);
+        if (previous != null) {
+            size--;
+        }
+        return previous;
+    }
+
+    private V remove(Node<V> node, List<String> tokens, int level) {
+        if (level == tokens.size()) {
+            final V previous = node.value;
+            node.value = null;
+            node.topic = null;
+            return previous;
+        }
+        final Node<V> child = node.children.get(tokens.get(level));
+        if (child == null) {
+            return null;
+        }
+        final V previous = remove(child, tokens, level + 1);
+        if (child.isRemovable()) {
+            node.children.remove(tokens.get(level));
+        }
+        return previous;
+    }
+
+    private Node<V> find(Topic topic) {
+        final List<String> tokens = topic.getTokens();
+        if (tokens == null) {
+            return null;
+        }
+        Node<V> node = root;
+        for (int i = 0; i < tokens.size() && node != null; i++) {
+            node = node.children.get(tokens.get(i));
+        }
+        return node;
+    }
+
+    /**
+     * Pass to the action the topics matching the filter, with their values.
+     */
+    public void forEachMatching(Topic topicFilter, BiConsumer<Topic, V> action) {
+        final Matching<V> matching = new Matching<>(root, topicFilter);
+        while (matching.hasNext()) {
+            matching.next();
+            action.accept(matching.topic, matching.value);
+        }
+    }
+
+    /**
+     * @return the topics matching the filter, the tree is walked while the iterator is consumed so the
+     * matching topics are never collected all together.
+     */
+    public Iterator<Topic> matchingTopics(Topic topicFilter) {
+        return new Matching<>(root, topicFilter);
+    }
+
+    /**
+     * @return the values that the lookup returns for the topics matching the filter, skipping the topics it
+     * returns null for. The lookup is called while the iterator is consumed, so the stores can keep in the index
+     * only the keys of the values and read each value when it's needed.
+     */
+    public <R> Iterator<R> matchingValues(Topic topicFilter, Function<Topic, R> lookup) {
+        return new LookupIterator<>(matchingTopics(topicFilter), lookup);
+    }
+
+    private static final class LookupIterator<R> implements Iterator<R> {
+
+        private final Iterator<Topic> topics;
+        private final Function<Topic, R> lookup;
+        private R next;
+
+        LookupIterator(Iterator<Topic> topics, Function<Topic, R> lookup) {
+            this.topics = topics;
+            this.lookup = lookup;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && topics.hasNext()) {
+                next = lookup.apply(topics.next());
+            }
+            return next != null;
+        }
+
+        @Override
+        public R next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final R value = next;
+            next = null;
+            return value;
+        }
+    }
+
+    /**
+     * Walk of the nodes matching a filter, the stack holds an iterator on the nodes still to visit for each
+     * level being walked.
+     */
+    private static final class Matching<V> implements Iterator<Topic> {
+
+        private static final class Level<V> {
+
+            final Iterator<Node<V>> nodes;
+            final int tokenIndex;
+            final boolean subtree;
+
+            Level(Iterator<Node<V>> nodes, int tokenIndex, boolean subtree) {
+                this.nodes = nodes;
+                this.tokenIndex = tokenIndex;
+                this.subtree = subtree;
+            }
+        }
+
+        private final List<String> tokens;
+        private final Deque<Level<V>> stack = new ArrayDeque<>();
+        private Topic nextTopic;
+        private V nextValue;
+        Topic topic;
+        V value;
+
+        Matching(Node<V> root, Topic topicFilter) {
+            this.tokens = topicFilter.getTokens();
+            if (tokens != null) {
+                stack.push(new Level<>(Collections.singletonList(root).iterator(), 0, false));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextTopic == null && !stack.isEmpty()) {
+                final Level<V> level = stack.peek();
+                if (!level.nodes.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                final Node<V> node = level.nodes.next();
+                if (level.subtree) {
+                    stack.push(new Level<>(node.children.values().iterator(), 0, true));
+                    select(node);
+                } else if (level.tokenIndex == tokens.size()) {
+                    select(node);
+                } else {
+                    final String token = tokens.get(level.tokenIndex);
+                    if (token == Tokens.MULTI) {
+                        // the multi level wildcard matches also the parent level
+                        stack.push(new Level<>(Collections.singletonList(node).iterator(), 0, true));
+                    } else if (token == Tokens.SINGLE) {
+                        stack.push(new Level<>(node.children.values().iterator(), level.tokenIndex + 1, false));
+                    } else {
+                        final Node<V> child = node.children.get(token);
+                        if (child != null) {
+                            stack.push(new Level<>(Collections.singletonList(child).iterator(),
+                                level.tokenIndex + 1, false));
+                        }
+                    }
+                }
+            }
+            return nextTopic != null;
+        }
+
+        private void select(Node<V> node) {
+            final Topic nodeTopic = node.topic;
+            final V nodeValue = node.value;
+            if (nodeTopic != null && nodeValue != null) {
+                nextTopic = nodeTopic;
+                nextValue = nodeValue;
+            }
+        }
+
+        @Override
+        public Topic next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            topic = nextTopic;
+            value = nextValue;
+            nextTopic = null;
+            nextValue = null;
+            return topic;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        root.children.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GroupCommitterTest {
+
+    private ScheduledExecutorService scheduler;
+    private AtomicInteger commits;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+        commits = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testActionsRunAfterASingleCommitWhenTheBatchIsFull() throws InterruptedException {
+        // the delay is long enough that only the size of the batch can trigger the commit
+        GroupCommitter sut = new GroupCommitter(commits::incrementAndGet, scheduler, 3,
+            TimeUnit.HOURS.toMicros(1));
+        CountDownLatch acks = new CountDownLatch(3);
+        AtomicInteger commitsSeenByAcks = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            sut.whenDurable(() -> {
+                commitsSeenByAcks.addAndGet(commits.get());
+                acks.countDown();
+            });
+        }
+
+        assertTrue(acks.await(1, TimeUnit.SECONDS));
+        assertEquals(1, commits.get());
+        assertEquals("every action runs after the commit", 3, commitsSeenByAcks.get());
+    }
+
+    @Test
+    public void testActionRunsAfterTheMaxDelay() throws InterruptedException {
+        GroupCommitter sut = new GroupCommitter(commits::incrementAndGet, scheduler, 100, 1000);
+        CountDownLatch ack = new CountDownLatch(1);
+
+        sut.whenDurable(ack::countDown);
+
+        assertTrue(ack.await(1, TimeUnit.SECONDS));
+        assertEquals(1, commits.get());
+    }
+
+    @Test
+    public void testActionsAreDroppedWhenTheCommitFails() throws InterruptedException {
+        CountDownLatch commitAttempted = new CountDownLatch(1);
+        GroupCommitter sut = new GroupCommitter(() -> {
+            commitAttempted.countDown();
+            throw new IllegalStateException("disk full");
+        }, scheduler, 1, 1000);
+        CountDownLatch ack = new CountDownLatch(1);
+
+        sut.whenDurable(ack::countDown);
+
+        assertTrue(commitAttempted.await(1, TimeUnit.SECONDS));
+        assertFalse(ack.await(100, TimeUnit.MILLISECONDS));
+    }
+}
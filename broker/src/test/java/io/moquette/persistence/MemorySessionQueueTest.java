@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.persistence.MemorySessionQueue.OverflowPolicy;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemorySessionQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MemorySessionQueue queue(OverflowPolicy policy, long maxSpillBytes) {
+        return new MemorySessionQueue("client", 2, policy, folder.getRoot(), maxSpillBytes,
+            StoreCodecs.binary(new TopicDictionary(new ConcurrentHashMap<>(), new ConcurrentHashMap<>()))
+                .storedMessages());
+    }
+
+    private static StoredMessage message(String payload) {
+        return new StoredMessage(payload.getBytes(StandardCharsets.UTF_8), MqttQoS.AT_LEAST_ONCE, "/topic");
+    }
+
+    private static String payload(StoredMessage msg) {
+        return msg.getPayload().toString(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> drain(MemorySessionQueue queue) {
+        List<String> payloads = new ArrayList<>();
+        StoredMessage msg;
+        while ((msg = queue.poll()) != null) {
+            payloads.add(payload(msg));
+        }
+        return payloads;
+    }
+
+    @Test
+    public void testDropNewestRejectsTheMessagesBeyondTheCapacity() {
+        MemorySessionQueue sut = queue(OverflowPolicy.DROP_NEWEST, 0);
+        sut.offer(message("1"));
+        sut.offer(message("2"));
+
+        assertFalse(sut.offer(message("3")));
+        assertEquals(1, sut.metrics().dropped());
+        assertEquals(listOf("1", "2"), drain(sut));
+    }
+
+    @Test
+    public void testDropOldestKeepsTheNewestMessages() {
+        MemorySessionQueue sut = queue(OverflowPolicy.DROP_OLDEST, 0);
+        sut.offer(message("1"));
+        sut.offer(message("2"));
+
+        assertTrue(sut.offer(message("3")));
+        assertEquals(1, sut.metrics().dropped());
+        assertEquals(listOf("2", "3"), drain(sut));
+    }
+
+    @Test
+    public void testSpilledMessagesAreReadBackInOrder() {
+        MemorySessionQueue sut = queue(OverflowPolicy.SPILL, 1024 * 1024);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(sut.offer(message(String.valueOf(i))));
+        }
+
+        QueueMetrics metrics = sut.metrics();
+        assertEquals(5, metrics.depth());
+        assertEquals(2, metrics.inMemory());
+        assertEquals(3, metrics.spilled());
+        assertEquals(listOf("1", "2", "3", "4", "5"), asPayloads(sut));
+
+        assertEquals("1", payload(sut.poll()));
+        sut.offer(message("6"));
+        assertEquals(listOf("2", "3", "4", "5", "6"), drain(sut));
+        assertNull(sut.poll());
+        sut.close();
+    }
+
+    @Test
+    public void testMessagesBeyondTheSpillLimitAreDropped() {
+        // a spilled message of a single byte takes 8 bytes
+        MemorySessionQueue sut = queue(OverflowPolicy.SPILL, 8);
+        sut.offer(message("1"));
+        sut.offer(message("2"));
+        assertTrue(sut.offer(message("3")));
+
+        assertFalse(sut.offer(message("4")));
+        assertEquals(1, sut.metrics().dropped());
+        assertEquals(listOf("1", "2", "3"), drain(sut));
+        sut.close();
+    }
+
+    @Test
+    public void testSpillLimitCountsOnlyTheMessagesStillSpilled() {
+        MemorySessionQueue sut = queue(OverflowPolicy.SPILL, 16);
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(sut.offer(message(String.valueOf(i))));
+        }
+        assertFalse(sut.offer(message("dropped")));
+
+        // "3" is moved back in memory, its bytes in the spill file no longer count
+        assertEquals("1", payload(sut.poll()));
+        assertTrue(sut.offer(message("5")));
+        assertEquals(listOf("2", "3", "4", "5"), drain(sut));
+        sut.close();
+    }
+
+    @Test
+    public void testSpillFileIsCompactedAsTheQueueDrains() {
+        MemorySessionQueue sut = queue(OverflowPolicy.SPILL, 1024 * 1024);
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        for (int i = 0; i < 200; i++) {
+            sut.offer(message(i + new String(padding)));
+        }
+        assertTrue(sut.metrics().spillFileBytes() > 198 * 1000);
+
+        for (int i = 0; i < 120; i++) {
+            assertEquals(String.valueOf(i), payload(sut.poll()).substring(0, String.valueOf(i).length()));
+        }
+
+        assertTrue(sut.metrics().spillFileBytes() < 150 * 1000);
+        List<String> remaining = drain(sut);
+        assertEquals(80, remaining.size());
+        for (int i = 0; i < remaining.size(); i++) {
+            assertEquals(120 + i + new String(padding), remaining.get(i));
+        }
+        sut.close();
+    }
+
+    private static List<String> asPayloads(MemorySessionQueue queue) {
+        List<String> payloads = new ArrayList<>();
+        for (StoredMessage msg : queue) {
+            payloads.add(payload(msg));
+        }
+        return payloads;
+    }
+
+    private static List<String> listOf(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
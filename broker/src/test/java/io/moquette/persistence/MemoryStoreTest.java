@@ -16,7 +16,15 @@
 
 package io.moquette.persistence;
 
+import io.moquette.BrokerConstants;
+import io.moquette.server.config.MemoryConfig;
+import io.moquette.spi.ISessionsStore;
 import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
 
 public class MemoryStoreTest extends AbstractStoreTest {
 
@@ -26,4 +34,19 @@ public class MemoryStoreTest extends AbstractStoreTest {
         messagesStore = mSS.messagesStore();
         sessionsStore = mSS.sessionsStore();
     }
+
+    @Test
+    public void queueReportsTheDroppedMessages() {
+        Properties props = new Properties();
+        props.setProperty(BrokerConstants.MEMORY_QUEUE_CAPACITY, "1");
+        ISessionsStore store = new MemoryStorageService(new MemoryConfig(props), null).sessionsStore();
+        store.createNewSession("TestClient", true, 0);
+
+        store.queue("TestClient").offer(publishToStore);
+        store.queue("TestClient").offer(publishToStore);
+
+        assertThat(store.sessionForClient("TestClient").getPendingPublishMessagesNo()).isEqualTo(1);
+        assertThat(store.sessionForClient("TestClient").getDroppedPublishMessagesNo()).isEqualTo(1);
+        assertThat(store.sessionForClient("TestClient").getSpilledPublishMessagesNo()).isEqualTo(0);
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageBodyStoreTest {
+
+    private ConcurrentMap<String, byte[]> bodies;
+    private StoreCodec<StoredMessage> messageCodec;
+    private MessageBodyStore sut;
+
+    @Before
+    public void setUp() {
+        bodies = new ConcurrentHashMap<>();
+        messageCodec = StoreCodecs.binary(new TopicDictionary(new ConcurrentHashMap<>(), new ConcurrentHashMap<>()))
+            .storedMessages();
+        sut = new MessageBodyStore(bodies, new ConcurrentHashMap<>(), messageCodec);
+    }
+
+    private static StoredMessage message() {
+        return new StoredMessage(new byte[10 * 1024], MqttQoS.AT_LEAST_ONCE, "/news");
+    }
+
+    private byte[] enqueue(StoredMessage msg) {
+        sut.retain(msg);
+        return sut.references().toBytes(msg);
+    }
+
+    @Test
+    public void testMessageQueuedManyTimesIsStoredOnce() {
+        StoredMessage msg = message();
+
+        byte[] first = enqueue(msg);
+        byte[] second = enqueue(msg);
+
+        assertEquals(1, bodies.size());
+        assertTrue("the references don't carry the payload", first.length < 32);
+        assertEquals(10 * 1024, sut.references().fromBytes(second).getPayload().readableBytes());
+        assertEquals("/news", sut.references().fromBytes(first).getTopic());
+    }
+
+    @Test
+    public void testBodyIsRemovedWithItsLastReference() {
+        StoredMessage msg = message();
+        byte[] first = enqueue(msg);
+        byte[] second = enqueue(msg);
+
+        sut.release(first);
+        assertEquals(1, bodies.size());
+
+        sut.release(second);
+        assertTrue(bodies.isEmpty());
+    }
+
+    @Test
+    public void testMessagesQueuedByThePreviousVersionsAreRead() {
+        StoredMessage msg = new StoredMessage("legacy".getBytes(StandardCharsets.UTF_8), MqttQoS.EXACTLY_ONCE, "/a");
+        byte[] encoded = messageCodec.toBytes(msg);
+
+        StoredMessage decoded = sut.references().fromStored(encoded);
+        sut.release(encoded);
+        sut.release(msg);
+
+        assertEquals("legacy", decoded.getPayload().toString(StandardCharsets.UTF_8));
+        assertEquals(MqttQoS.EXACTLY_ONCE, decoded.getQos());
+        assertEquals(msg, sut.references().fromStored(msg));
+    }
+
+    @Test
+    public void testEncodingTheReferenceDoesNotStoreTheBody() {
+        StoredMessage msg = message();
+        sut.retain(msg);
+        sut.references().toBytes(msg);
+        sut.references().toBytes(msg);
+
+        sut.release(sut.references().toBytes(msg));
+
+        assertTrue(bodies.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMessageNotRetainedCantBeEncoded() {
+        sut.references().toBytes(message());
+    }
+}
@@ -12,6 +12,7 @@ import org.junit.Test;
 import com.google.common.collect.Sets;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,6 +21,8 @@ import static io.moquette.spi.impl.subscriptions.Topic.asTopic;
 import static io.netty.handler.codec.mqtt.MqttQoS.AT_MOST_ONCE;
 import static io.netty.handler.codec.mqtt.MqttQoS.EXACTLY_ONCE;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.assertj.core.api.Assertions.*;
 
 /**
@@ -68,6 +71,23 @@ public abstract class MessageStoreTCK {
         assertEquals("Hello", new String(content));
     }
 
+    @Test
+    public void testRetainedMatchingReadsTheMessagesOfTheFilter() {
+        for (String topic : Arrays.asList("/sensors/1", "/sensors/2", "/actuators/1")) {
+            StoredMessage msgStored = new StoredMessage(topic.getBytes(), MqttQoS.AT_LEAST_ONCE, topic);
+            msgStored.setClientID(TEST_CLIENT);
+            messagesStore.storeRetained(asTopic(topic), msgStored);
+        }
+        messagesStore.cleanRetained(asTopic("/sensors/2"));
+
+        Subscription sub = new Subscription("clientId", new Topic("/sensors/+"), MqttQoS.AT_LEAST_ONCE);
+        Iterator<Message> matching = messagesStore.retainedMatching(sub);
+
+        assertTrue(matching.hasNext());
+        assertEquals("/sensors/1", matching.next().getTopic());
+        assertFalse(matching.hasNext());
+    }
+
     @Test
     public void givenSubscriptionAlreadyStoredIsOverwrittenByAnotherWithSameTopic() {
         ClientSession session1 = sessionsStore.createNewSession("SESSION_ID_1", true, 0);
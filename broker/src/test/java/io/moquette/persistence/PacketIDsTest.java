@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PacketIDsTest {
+
+    private final PacketIDs sut = new PacketIDs();
+
+    @Test
+    public void testNextSkipsTheIdentifiersInUse() {
+        sut.use(1);
+        sut.use(2);
+        sut.use(4);
+
+        assertEquals(3, sut.next());
+        assertEquals(5, sut.next());
+        assertEquals(5, sut.size());
+    }
+
+    @Test
+    public void testReleasedIdentifierIsNotReusedBeforeTheWrap() {
+        assertEquals(1, sut.next());
+        assertEquals(2, sut.next());
+        sut.release(1);
+
+        assertEquals(3, sut.next());
+        assertEquals(2, sut.size());
+    }
+
+    @Test
+    public void testWrapsAroundToTheFreeIdentifiers() {
+        for (int i = 1; i <= PacketIDs.MAX_PACKET_ID; i++) {
+            sut.next();
+        }
+        sut.release(7);
+        sut.release(3);
+
+        assertEquals(3, sut.next());
+        assertEquals(7, sut.next());
+    }
+
+    @Test
+    public void testShrinksOnceTheIdentifiersAreReleased() {
+        for (int i = 1; i <= 1000; i++) {
+            sut.next();
+        }
+        for (int i = 1; i <= 1000; i++) {
+            sut.release(i);
+        }
+
+        assertEquals(0, sut.size());
+        assertEquals(1001, sut.next());
+    }
+}
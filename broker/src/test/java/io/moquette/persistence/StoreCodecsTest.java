@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence;
+
+import io.moquette.spi.IMessagesStore.Message;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static io.moquette.spi.impl.subscriptions.Topic.asTopic;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StoreCodecsTest {
+
+    private ConcurrentMap<String, Integer> topicIds;
+    private ConcurrentMap<Integer, String> topicNames;
+    private StoreCodecs sut;
+
+    @Before
+    public void setUp() {
+        topicIds = new ConcurrentHashMap<>();
+        topicNames = new ConcurrentHashMap<>();
+        sut = StoreCodecs.binary(new TopicDictionary(topicIds, topicNames));
+    }
+
+    private static StoredMessage storedMessage() {
+        StoredMessage msg = new StoredMessage("temperature=21".getBytes(StandardCharsets.UTF_8),
+            MqttQoS.EXACTLY_ONCE, "/sensors/kitchen/temperature");
+        msg.setClientID("sensor-42");
+        msg.setGuid(UUID.randomUUID());
+        msg.setRetained(true);
+        return msg;
+    }
+
+    @Test
+    public void testStoredMessageRoundTrip() {
+        StoredMessage msg = storedMessage();
+
+        StoredMessage decoded = sut.storedMessages().fromBytes(sut.storedMessages().toBytes(msg));
+
+        assertEquals(msg, decoded);
+        assertEquals(msg.getClientID(), decoded.getClientID());
+        assertEquals(msg.getGuid(), decoded.getGuid());
+        assertTrue(decoded.isRetained());
+    }
+
+    @Test
+    public void testMessageCodecKeepsTheKindOfMessage() {
+        Message plain = new Message("on".getBytes(StandardCharsets.UTF_8), MqttQoS.AT_LEAST_ONCE, "/lights");
+
+        Message decodedPlain = sut.messages().fromBytes(sut.messages().toBytes(plain));
+        Message decodedStored = sut.messages().fromBytes(sut.messages().toBytes(storedMessage()));
+
+        assertEquals(plain, decodedPlain);
+        assertFalse(decodedPlain instanceof StoredMessage);
+        assertTrue(decodedStored instanceof StoredMessage);
+    }
+
+    @Test
+    public void testSubscriptionAndSessionRoundTrip() {
+        Subscription subscription = new Subscription("client", asTopic("/sensors/+/temperature"),
+            MqttQoS.AT_LEAST_ONCE);
+
+        Subscription decoded = sut.subscriptions().fromBytes(sut.subscriptions().toBytes(subscription));
+        PersistentSession session = sut.sessions().fromBytes(
+            sut.sessions().toBytes(new PersistentSession(false, 1500000000000L)));
+
+        assertEquals(subscription, decoded);
+        assertEquals(MqttQoS.AT_LEAST_ONCE, decoded.getRequestedQos());
+        assertFalse(session.cleanSession);
+        assertEquals(1500000000000L, session.lastContatct);
+    }
+
+    @Test
+    public void testEncodedMessageIsSmallerThanTheSerializedOne() throws IOException {
+        StoredMessage msg = storedMessage();
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(msg);
+        }
+
+        int encodedSize = sut.storedMessages().toBytes(msg).length;
+
+        assertTrue("encoded " + encodedSize + " bytes, serialized " + serialized.size(),
+            encodedSize * 4 < serialized.size());
+    }
+
+    @Test
+    public void testValuesStoredByThePreviousVersionsAreReadAsTheyAre() {
+        PersistentSession session = new PersistentSession(true, 0);
+
+        assertSame(session, sut.sessions().fromStored(session));
+    }
+
+    @Test
+    public void testDictionariesSharingTheMapsAssignDistinctIds() {
+        TopicDictionary first = new TopicDictionary(topicIds, topicNames);
+        TopicDictionary second = new TopicDictionary(topicIds, topicNames);
+
+        int idA = first.idOf("/a");
+        int idB = second.idOf("/b");
+
+        assertNotEquals(idA, idB);
+        assertEquals(idA, second.idOf("/a"));
+        assertEquals("/b", first.topicOf(idB));
+    }
+
+    @Test
+    public void testTheIdClaimedByADictionaryLosingTheRaceIsFreed() {
+        // the topic is assigned by another dictionary between the lookup and the claim of this one
+        TopicDictionary other = new TopicDictionary(topicIds, topicNames);
+        ConcurrentMap<String, Integer> racingIds = new ConcurrentHashMap<String, Integer>() {
+
+            @Override
+            public Integer get(Object key) {
+                return null;
+            }
+
+            @Override
+            public Integer putIfAbsent(String key, Integer value) {
+                other.idOf(key);
+                return topicIds.putIfAbsent(key, value);
+            }
+        };
+        TopicDictionary sut = new TopicDictionary(racingIds, topicNames);
+
+        int id = sut.idOf("/a");
+
+        assertEquals(other.idOf("/a"), id);
+        assertEquals(1, topicNames.size());
+    }
+
+    @Test
+    public void testReclaimRemovesTheIdsNotReferencedByTheStoredMessages() {
+        TopicDictionary dictionary = new TopicDictionary(topicIds, topicNames);
+        StoreCodec<Message> codec = StoreCodecs.binary(dictionary).messages();
+        codec.toBytes(new Message("a".getBytes(StandardCharsets.UTF_8), MqttQoS.AT_MOST_ONCE, "/a"));
+        byte[] stored = codec.toBytes(new Message("b".getBytes(StandardCharsets.UTF_8), MqttQoS.AT_MOST_ONCE,
+            "/b"));
+        int idB = dictionary.idOf("/b");
+
+        assertEquals(1, dictionary.reclaim(action -> {
+            action.accept(stored);
+            action.accept(new PersistentSession(true, 0));
+        }));
+
+        assertEquals(1, topicIds.size());
+        assertEquals("/b", codec.fromBytes(stored).getTopic());
+        // the free identifier is assigned again
+        assertNotEquals(idB, dictionary.idOf("/c"));
+        assertEquals(2, topicNames.size());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublishBatchTest {
+
+    private static final class FlushCounter extends ChannelOutboundHandlerAdapter {
+
+        int flushes;
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            flushes++;
+            super.flush(ctx);
+        }
+    }
+
+    @Test
+    public void testMessagesAreWrittenAndFlushedOncePerChannel() {
+        FlushCounter counter1 = new FlushCounter();
+        EmbeddedChannel channel1 = new EmbeddedChannel(counter1);
+        FlushCounter counter2 = new FlushCounter();
+        EmbeddedChannel channel2 = new EmbeddedChannel(counter2);
+        ConnectionDescriptor descriptor1 = new ConnectionDescriptor("Subscriber1", channel1, true);
+        ConnectionDescriptor descriptor2 = new ConnectionDescriptor("Subscriber2", channel2, true);
+
+        PublishBatch batch = new PublishBatch();
+        batch.add(descriptor1, "first");
+        batch.add(descriptor2, "first");
+        batch.add(descriptor1, "second");
+        assertThat(channel1.outboundMessages()).isEmpty();
+
+        // Exercise
+        batch.flush();
+
+        // Verify
+        assertTrue(batch.isEmpty());
+        assertThat(channel1.outboundMessages()).containsExactly("first", "second");
+        assertThat(channel2.outboundMessages()).containsExactly("first");
+        assertEquals(1, counter1.flushes);
+        assertEquals(1, counter2.flushes);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class EncodedPublishEncoderTest {
+
+    private static final String TOPIC = "/sensors/temperature/kitchen";
+
+    @Test
+    public void testEncodesAsTheMqttEncoderWithoutPacketId() {
+        verifyEncodingOf(MqttQoS.AT_MOST_ONCE, 0, 16);
+    }
+
+    @Test
+    public void testEncodesAsTheMqttEncoderWithPacketId() {
+        verifyEncodingOf(MqttQoS.AT_LEAST_ONCE, 1234, 16);
+    }
+
+    @Test
+    public void testEncodesAsTheMqttEncoderWithLongRemainingLength() {
+        verifyEncodingOf(MqttQoS.EXACTLY_ONCE, 42, 20000);
+    }
+
+    private void verifyEncodingOf(MqttQoS qos, int messageId, int payloadSize) {
+        ByteBuf payload = Unpooled.buffer(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            payload.writeByte(i);
+        }
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0);
+        MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(TOPIC, messageId);
+
+        EmbeddedChannel mqttChannel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        mqttChannel.writeOutbound(new MqttPublishMessage(fixedHeader, varHeader, payload.retainedDuplicate()));
+        ByteBuf expected = mqttChannel.readOutbound();
+
+        ByteBuf encodedHeader = EncodedPublishMessage.encodeHeader(ByteBufAllocator.DEFAULT, qos,
+            TOPIC.getBytes(StandardCharsets.UTF_8), payloadSize);
+        EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE, EncodedPublishEncoder.INSTANCE);
+        channel.writeOutbound(new EncodedPublishMessage(fixedHeader, varHeader, payload.retainedDuplicate(),
+            encodedHeader));
+        ByteBuf encoded = channel.readOutbound();
+
+        assertEquals(ByteBufUtil.hexDump(expected), ByteBufUtil.hexDump(encoded));
+        expected.release();
+        encoded.release();
+        assertEquals(0, encodedHeader.refCnt());
+        assertEquals(1, payload.refCnt());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server.netty;
+
+import io.moquette.server.config.MemoryConfig;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.MultithreadEventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.epoll.Epoll;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.util.Properties;
+
+import static io.moquette.BrokerConstants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class NettyAcceptorTest {
+
+    private static final int PORT = 1883;
+
+    private NettyAcceptor sut;
+
+    private void initialize(Properties props) throws Exception {
+        props.setProperty(PORT_PROPERTY_NAME, String.valueOf(PORT));
+        sut = new NettyAcceptor();
+        sut.initialize(null, new MemoryConfig(props), null);
+    }
+
+    @After
+    public void tearDown() {
+        if (sut != null) {
+            sut.close();
+        }
+    }
+
+    @Test
+    public void testEventLoopGroupsAreSizedByTheConfiguration() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(NETTY_BOSS_THREADS_PROPERTY_NAME, "1");
+        props.setProperty(NETTY_WORKER_THREADS_PROPERTY_NAME, "3");
+
+        initialize(props);
+
+        assertEquals(1, ((MultithreadEventLoopGroup) sut.m_bossGroup).executorCount());
+        assertEquals(3, ((MultithreadEventLoopGroup) sut.m_workerGroup).executorCount());
+        assertEquals(1, sut.serverChannels.size());
+    }
+
+    @Test
+    public void testReusePortBindsManyAcceptorsOnTheSamePort() throws Exception {
+        assumeTrue(Epoll.isAvailable());
+        Properties props = new Properties();
+        props.setProperty(NETTY_EPOLL_PROPERTY_NAME, "true");
+        props.setProperty(NETTY_BOSS_THREADS_PROPERTY_NAME, "2");
+        props.setProperty(NETTY_SO_REUSEPORT_PROPERTY_NAME, "true");
+        props.setProperty(NETTY_ACCEPTORS_PROPERTY_NAME, "2");
+
+        initialize(props);
+
+        assertEquals(2, sut.serverChannels.size());
+        try (Socket socket = new Socket("localhost", PORT)) {
+            assertTrue(socket.isConnected());
+        }
+    }
+
+    @Test
+    public void testReusePortIsIgnoredWithoutEpoll() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(NETTY_SO_REUSEPORT_PROPERTY_NAME, "true");
+        props.setProperty(NETTY_ACCEPTORS_PROPERTY_NAME, "2");
+
+        initialize(props);
+
+        assertEquals(1, sut.serverChannels.size());
+    }
+
+    private ChannelPipeline mqttPipeline() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        sut.configureMQTTPipeline(channel.pipeline(), new MoquetteIdleTimeoutHandler(), new NettyMQTTHandler(null));
+        return channel.pipeline();
+    }
+
+    @Test
+    public void testMetricsHandlersAreInstalledByDefault() throws Exception {
+        initialize(new Properties());
+
+        ChannelPipeline pipeline = mqttPipeline();
+
+        assertNotNull(pipeline.get("bytemetrics"));
+        assertNotNull(pipeline.get("metrics"));
+        assertNotNull(pipeline.get("handler"));
+    }
+
+    @Test
+    public void testDisabledHandlersAreLeftOutOfThePipeline() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(NETTY_BYTES_METRICS_PROPERTY_NAME, "false");
+        props.setProperty(NETTY_MESSAGE_METRICS_PROPERTY_NAME, "false");
+        props.setProperty(NETTY_MESSAGE_LOGGER_PROPERTY_NAME, "false");
+
+        initialize(props);
+        ChannelPipeline pipeline = mqttPipeline();
+
+        assertNull(pipeline.get("bytemetrics"));
+        assertNull(pipeline.get("metrics"));
+        assertNull(pipeline.get("messageLogger"));
+        assertNotNull(pipeline.get("decoder"));
+    }
+}
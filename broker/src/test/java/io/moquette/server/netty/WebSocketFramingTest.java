@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class WebSocketFramingTest {
+
+    @Test
+    public void testEncoderWrapsTheBufferWithoutCopying() {
+        ByteBuf encoded = Unpooled.copiedBuffer("MQTT packet", StandardCharsets.UTF_8);
+        EmbeddedChannel channel = new EmbeddedChannel(new NettyAcceptor.ByteBufToWebSocketFrameEncoder());
+
+        channel.writeOutbound(encoded);
+        BinaryWebSocketFrame frame = channel.readOutbound();
+
+        assertSame(encoded, frame.content());
+        assertEquals(1, encoded.refCnt());
+        frame.release();
+    }
+
+    @Test
+    public void testDecodesPacketSpanningManyFrames() {
+        ByteBuf payload = Unpooled.copiedBuffer("temperature=21", StandardCharsets.UTF_8);
+        MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE,
+            false, 0);
+        EmbeddedChannel mqttChannel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        mqttChannel.writeOutbound(new MqttPublishMessage(fixedHeader,
+            new MqttPublishVariableHeader("/sensors/kitchen", 0), payload));
+        ByteBuf packet = mqttChannel.readOutbound();
+
+        EmbeddedChannel channel = new EmbeddedChannel(new NettyAcceptor.WebSocketFrameToByteBufDecoder(),
+            new MqttDecoder());
+        int half = packet.readableBytes() / 2;
+        channel.writeInbound(new BinaryWebSocketFrame(false, 0, packet.readRetainedSlice(half)));
+        assertNull(channel.readInbound());
+        channel.writeInbound(new ContinuationWebSocketFrame(true, 0, packet.readRetainedSlice(
+            packet.readableBytes())));
+        packet.release();
+
+        MqttPublishMessage msg = channel.readInbound();
+        assertEquals("/sensors/kitchen", msg.variableHeader().topicName());
+        assertEquals("temperature=21", msg.payload().toString(StandardCharsets.UTF_8));
+        msg.release();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testRemovesTheAggregatorAfterTheHandshake() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast("aggregator", new HttpObjectAggregator(65536));
+        channel.pipeline().addLast("ws2bytebufDecoder", new NettyAcceptor.WebSocketFrameToByteBufDecoder());
+        assertNotNull(channel.pipeline().get("aggregator"));
+
+        channel.pipeline().fireUserEventTriggered(
+            WebSocketServerProtocolHandler.ServerHandshakeStateEvent.HANDSHAKE_COMPLETE);
+
+        assertNull(channel.pipeline().get("aggregator"));
+    }
+}
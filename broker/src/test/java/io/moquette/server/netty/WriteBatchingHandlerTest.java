@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server.netty;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WriteBatchingHandlerTest {
+
+    private int flushes;
+
+    private EmbeddedChannel channel(WriteBatchingHandler.Batching batching, ChannelInboundHandlerAdapter handler) {
+        return new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+
+            @Override
+            public void flush(ChannelHandlerContext ctx) throws Exception {
+                flushes++;
+                super.flush(ctx);
+            }
+        }, new WriteBatchingHandler(batching), handler);
+    }
+
+    private static ChannelInboundHandlerAdapter echo() {
+        return new ChannelInboundHandlerAdapter() {
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ctx.channel().writeAndFlush(msg);
+            }
+        };
+    }
+
+    @Test
+    public void testFlushesOnceAtTheEndOfTheReadBatch() {
+        EmbeddedChannel channel = channel(new WriteBatchingHandler.Batching(64, 65536, 50), echo());
+
+        channel.writeInbound("a", "b", "c");
+
+        assertEquals(1, flushes);
+        assertEquals("a", channel.readOutbound());
+        assertEquals("b", channel.readOutbound());
+        assertEquals("c", channel.readOutbound());
+    }
+
+    @Test
+    public void testFlushesWhenTheMessagesReachTheThreshold() {
+        EmbeddedChannel channel = channel(new WriteBatchingHandler.Batching(2, 65536, 50), echo());
+
+        channel.writeInbound("a", "b", "c", "d", "e");
+
+        // after "b", after "d" and at the end of the read
+        assertEquals(3, flushes);
+        assertEquals(5, channel.outboundMessages().size());
+    }
+
+    @Test
+    public void testFlushesTheWritesNotFollowedByAFlush() throws InterruptedException {
+        EmbeddedChannel channel = channel(new WriteBatchingHandler.Batching(64, 65536, 1),
+            new ChannelInboundHandlerAdapter());
+
+        channel.write("straggler");
+        assertNull(channel.readOutbound());
+
+        Thread.sleep(10);
+        channel.runPendingTasks();
+
+        assertEquals("straggler", channel.readOutbound());
+    }
+
+    @Test
+    public void testFlushesTheDeferredWritesBeforeClosing() {
+        EmbeddedChannel channel = channel(new WriteBatchingHandler.Batching(64, 65536, 50),
+            new ChannelInboundHandlerAdapter() {
+
+                @Override
+                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    ctx.channel().writeAndFlush(msg);
+                    ctx.channel().close();
+                }
+            });
+
+        channel.writeInbound("connack");
+
+        assertEquals("connack", channel.readOutbound());
+    }
+}
@@ -50,12 +50,12 @@ public class ClientSessionTest {
         // Subscribe on /topic with QOSType.MOST_ONE
         Subscription oldSubscription = new Subscription(session1.clientID, new Topic("/topic"), AT_MOST_ONCE);
         session1.subscribe(oldSubscription);
-        store.add(oldSubscription.asClientTopicCouple());
+        store.add(oldSubscription);
 
         // Subscribe on /topic again that overrides the previous subscription.
         Subscription overrindingSubscription = new Subscription(session1.clientID, new Topic("/topic"), EXACTLY_ONCE);
         session1.subscribe(overrindingSubscription);
-        store.add(overrindingSubscription.asClientTopicCouple());
+        store.add(overrindingSubscription);
 
         // Verify
         List<Subscription> subscriptions = store.matches(new Topic("/topic"));
@@ -27,6 +27,7 @@ import io.netty.channel.Channel;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.mqtt.*;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static io.netty.handler.codec.mqtt.MqttConnectReturnCode.CONNECTION_ACCEPTED;
@@ -326,7 +327,7 @@ abstract class AbstractProtocolProcessorCommonUtils {
 
     protected void verifyPublishIsReceived(EmbeddedChannel channel) {
         final MqttPublishMessage publishReceived = channel.readOutbound();
-        String payloadMessage = new String(publishReceived.payload().array());
+        String payloadMessage = publishReceived.payload().toString(StandardCharsets.UTF_8);
         assertEquals("Sent and received payload must be identical", HELLO_WORLD_MQTT, payloadMessage);
     }
 
@@ -340,7 +341,7 @@ abstract class AbstractProtocolProcessorCommonUtils {
 
     protected void verifyPublishIsReceived(EmbeddedChannel channel, String expectedPayload, MqttQoS expectedQoS) {
         final MqttPublishMessage publishReceived = channel.readOutbound();
-        String payloadMessage = new String(publishReceived.payload().array());
+        String payloadMessage = publishReceived.payload().toString(StandardCharsets.UTF_8);
         assertEquals("Sent and received payload must be identical", expectedPayload, payloadMessage);
         assertEquals("Expected QoS don't match", expectedQoS, publishReceived.fixedHeader().qosLevel());
     }
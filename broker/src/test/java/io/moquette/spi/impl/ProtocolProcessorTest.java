@@ -17,7 +17,9 @@
 package io.moquette.spi.impl;
 
 import io.moquette.persistence.MemoryStorageService;
+import io.moquette.server.ConnectionDescriptor;
 import io.moquette.server.netty.NettyUtils;
+import io.moquette.spi.ClientSession;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.IMessagesStore.Message;
 import io.moquette.spi.IMessagesStore.StoredMessage;
@@ -28,11 +30,13 @@ import io.moquette.spi.impl.subscriptions.SubscriptionsDirectory;
 import io.moquette.spi.impl.subscriptions.Topic;
 import io.moquette.spi.security.IAuthorizator;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.mqtt.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static io.moquette.spi.impl.NettyChannelAssertions.assertConnAckAccepted;
@@ -324,4 +328,119 @@ public class ProtocolProcessorTest extends AbstractProtocolProcessorCommonUtils
         Subscription subQos2 = new Subscription("Sub B", new Topic("a/+"), MqttQoS.EXACTLY_ONCE);
         assertEquals(MqttQoS.EXACTLY_ONCE, lowerQosToTheSubscriptionDesired(subQos2, MqttQoS.EXACTLY_ONCE));
     }
+
+    @Test
+    public void testPublishesToAnUnwritableChannelAreQueuedOrDropped() {
+        connect();
+        m_channel.readOutbound();
+        subscribe("/qos1", AT_LEAST_ONCE);
+        subscribe("/qos0", AT_MOST_ONCE);
+        // an unflushed write over the high water mark makes the channel unwritable
+        m_channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 2));
+        m_channel.write("pending");
+        assertFalse(m_channel.isWritable());
+
+        internalPublishTo("/qos1", AT_LEAST_ONCE, false);
+        internalPublishTo("/qos0", AT_MOST_ONCE, false);
+
+        assertEquals(1, m_sessionStore.queue(FAKE_CLIENT_ID).size());
+        ConnectionDescriptor descriptor = m_processor.connectionDescriptors.getConnection(FAKE_CLIENT_ID);
+        assertEquals(1, descriptor.getDeferredPublishes());
+        assertEquals(1, descriptor.getDroppedPublishes());
+
+        // Exercise
+        m_channel.flush();
+        m_processor.notifyChannelWritable(m_channel);
+
+        // Verify
+        assertEquals("pending", m_channel.readOutbound());
+        MqttPublishMessage deferred = m_channel.readOutbound();
+        assertEquals("/qos1", deferred.variableHeader().topicName());
+        assertNotEquals(0, deferred.variableHeader().packetId());
+        assertNull(m_channel.readOutbound());
+        assertTrue(m_sessionStore.queue(FAKE_CLIENT_ID).isEmpty());
+    }
+
+    @Test
+    public void testPublishesDoNotOvertakeTheQueuedOnes() {
+        connect();
+        m_channel.readOutbound();
+        subscribe("/qos1", AT_LEAST_ONCE);
+        m_channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 2));
+        m_channel.write("pending");
+        internalPublishTo("/qos1", AT_LEAST_ONCE, false);
+        m_channel.flush();
+        assertTrue(m_channel.isWritable());
+        assertEquals("pending", m_channel.readOutbound());
+        m_channel.config().setWriteBufferWaterMark(WriteBufferWaterMark.DEFAULT);
+
+        // Exercise
+        MqttPublishMessage publish = MqttMessageBuilders.publish()
+            .topicName("/qos1")
+            .qos(AT_LEAST_ONCE)
+            .payload(Unpooled.copiedBuffer("second", StandardCharsets.UTF_8)).build();
+        m_processor.internalPublish(publish, "INTRPUBL", false);
+
+        // Verify
+        assertEquals(2, m_sessionStore.queue(FAKE_CLIENT_ID).size());
+        assertNull(m_channel.readOutbound());
+        // the drain is scheduled on the event loop of the channel
+        m_channel.runPendingTasks();
+        MqttPublishMessage first = m_channel.readOutbound();
+        MqttPublishMessage second = m_channel.readOutbound();
+        assertEquals("second", second.payload().toString(StandardCharsets.UTF_8));
+        assertNotEquals("second", first.payload().toString(StandardCharsets.UTF_8));
+        assertTrue(m_sessionStore.queue(FAKE_CLIENT_ID).isEmpty());
+    }
+
+    @Test
+    public void testReconnectRepublishesTheQueuedMessagesWhileTheChannelIsWritable() {
+        ClientSession session = m_sessionStore.sessionForClient(FAKE_CLIENT_ID2);
+        final int queued = 100;
+        for (int i = 0; i < queued; i++) {
+            session.enqueue(new StoredMessage(HELLO_WORLD_MQTT.getBytes(), AT_LEAST_ONCE, "/qos1"));
+        }
+        EmbeddedChannel channel = new EmbeddedChannel();
+        // the first publish written makes the channel unwritable
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 2));
+
+        // Exercise
+        MqttConnectMessage connectMessage = MqttMessageBuilders.connect()
+            .clientId(FAKE_CLIENT_ID2)
+            .cleanSession(false)
+            .build();
+        m_processor.processConnect(channel, connectMessage);
+
+        // Verify
+        assertConnAckAccepted(channel);
+        int republished = channel.outboundMessages().size();
+        assertTrue("a batch is written before the channel is unwritable", republished > 0);
+        assertTrue("the republish stops once the channel is unwritable", republished < queued);
+        assertEquals(queued - republished, m_sessionStore.queue(FAKE_CLIENT_ID2).size());
+
+        // the rest is published once the client reads the previous ones
+        channel.outboundMessages().clear();
+        m_processor.notifyChannelWritable(channel);
+        assertEquals(queued - republished, channel.outboundMessages().size());
+        assertTrue(m_sessionStore.queue(FAKE_CLIENT_ID2).isEmpty());
+    }
+
+    @Test
+    public void testEachMessageIsPublishedToOneMemberOfTheSharedGroup() {
+        connect();
+        subscribe("$share/group/a/+", AT_MOST_ONCE);
+        EmbeddedChannel secondMemberChannel = new EmbeddedChannel();
+        connectAsClient(secondMemberChannel, FAKE_CLIENT_ID2);
+        subscribe(secondMemberChannel, "$share/group/a/+", AT_MOST_ONCE);
+
+        // Exercise
+        internalPublishNotRetainedTo("a/b");
+        internalPublishNotRetainedTo("a/b");
+
+        // Verify
+        verifyPublishIsReceived(m_channel);
+        verifyPublishIsReceived(secondMemberChannel);
+        verifyNoPublishIsReceived();
+        assertNull(secondMemberChannel.readOutbound());
+    }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.spi.impl;
+
+import io.moquette.persistence.MemorySessionStore;
+import io.moquette.server.ConnectionDescriptor;
+import io.moquette.server.ConnectionDescriptorStore;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import io.moquette.spi.impl.subscriptions.Topic;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static io.moquette.spi.impl.subscriptions.Topic.asTopic;
+import static io.netty.handler.codec.mqtt.MqttQoS.AT_LEAST_ONCE;
+import static org.junit.Assert.assertEquals;
+
+public class SharedSubscriptionsSelectorTest {
+
+    private static final Topic GROUP = asTopic("$share/group/a/+");
+
+    private MemorySessionStore sessionsStore;
+    private ConnectionDescriptorStore connections;
+    private List<Subscription> members;
+
+    @Before
+    public void setUp() {
+        sessionsStore = new MemorySessionStore();
+        connections = new ConnectionDescriptorStore(sessionsStore);
+        for (String clientID : Arrays.asList("A", "B", "C")) {
+            sessionsStore.createNewSession(clientID, false, 0);
+        }
+        members = Arrays.asList(member("A"), member("B"), member("C"));
+    }
+
+    private static Subscription member(String clientID) {
+        return new Subscription(clientID, GROUP, AT_LEAST_ONCE);
+    }
+
+    private void connect(String clientID) {
+        connections.addConnection(new ConnectionDescriptor(clientID, new EmbeddedChannel(), false));
+    }
+
+    private void inflight(String clientID, int messageID) {
+        sessionsStore.inFlight(clientID, messageID, new StoredMessage("Hello".getBytes(), AT_LEAST_ONCE, "a/b"));
+    }
+
+    private String selectedBy(SharedSubscriptionsSelector sut) {
+        return sut.select(members).getClientId();
+    }
+
+    @Test
+    public void testRoundRobinRotatesAcrossTheConnectedMembers() {
+        connect("A");
+        connect("C");
+        SharedSubscriptionsSelector sut = new SharedSubscriptionsSelector(
+            SharedSubscriptionsSelector.Strategy.ROUND_ROBIN, connections, sessionsStore);
+
+        assertEquals("A", selectedBy(sut));
+        assertEquals("C", selectedBy(sut));
+        assertEquals("A", selectedBy(sut));
+        assertEquals("C", selectedBy(sut));
+    }
+
+    @Test
+    public void testRoundRobinRestartsOnceAMemberLeaves() {
+        connect("A");
+        connect("B");
+        SharedSubscriptionsSelector sut = new SharedSubscriptionsSelector(
+            SharedSubscriptionsSelector.Strategy.ROUND_ROBIN, connections, sessionsStore);
+        assertEquals("A", selectedBy(sut));
+
+        sut.memberRemoved(GROUP);
+
+        assertEquals("A", selectedBy(sut));
+    }
+
+    @Test
+    public void testLeastInflightSelectsTheConnectedMemberWithTheFewestInflight() {
+        connect("A");
+        connect("B");
+        inflight("A", 1);
+        inflight("A", 2);
+        inflight("B", 1);
+        SharedSubscriptionsSelector sut = new SharedSubscriptionsSelector(
+            SharedSubscriptionsSelector.Strategy.LEAST_INFLIGHT, connections, sessionsStore);
+
+        // C has no message in flight but it's offline
+        assertEquals("B", selectedBy(sut));
+        inflight("B", 2);
+        inflight("B", 3);
+        assertEquals("A", selectedBy(sut));
+    }
+
+    @Test
+    public void testOfflineMembersAreSelectedOnlyWhenNoMemberIsConnected() {
+        SharedSubscriptionsSelector sut = new SharedSubscriptionsSelector(
+            SharedSubscriptionsSelector.Strategy.ROUND_ROBIN, connections, sessionsStore);
+
+        assertEquals("A", selectedBy(sut));
+        assertEquals("B", selectedBy(sut));
+        assertEquals("C", selectedBy(sut));
+
+        connect("B");
+        for (int i = 0; i < 3; i++) {
+            assertEquals("B", selectedBy(sut));
+        }
+    }
+}
@@ -18,7 +18,6 @@ import io.moquette.persistence.MemoryStorageService;
 import io.moquette.spi.ClientSession;
 import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.ISubscriptionsStore;
-import io.moquette.spi.ISubscriptionsStore.ClientTopicCouple;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -54,11 +53,11 @@ public class CTrieSubscriptionDirectoryMatchingTest {
 
     @Test
     public void testMatchSimple() {
-        ClientTopicCouple slashSub = clientSubOnTopic("TempSensor1", "/");
+        Subscription slashSub = clientSubOnTopic("TempSensor1", "/");
         sut.add(slashSub);
         assertThat(sut.recursiveMatch(asTopic("finance"), sut.root)).isEmpty();
 
-        ClientTopicCouple slashFinanceSub = clientSubOnTopic("TempSensor1", "/finance");
+        Subscription slashFinanceSub = clientSubOnTopic("TempSensor1", "/finance");
         sut.add(slashFinanceSub);
         assertThat(sut.recursiveMatch(asTopic("finance"), sut.root)).isEmpty();
 
@@ -68,19 +67,19 @@ public class CTrieSubscriptionDirectoryMatchingTest {
 
     @Test
     public void testMatchSimpleMulti() {
-        ClientTopicCouple anySub = clientSubOnTopic("TempSensor1", "#");
+        Subscription anySub = clientSubOnTopic("TempSensor1", "#");
         sut.add(anySub);
         assertThat(sut.recursiveMatch(asTopic("finance"), sut.root)).contains(anySub);
 
-        ClientTopicCouple financeAnySub = clientSubOnTopic("TempSensor1", "finance/#");
+        Subscription financeAnySub = clientSubOnTopic("TempSensor1", "finance/#");
         sut.add(financeAnySub);
         assertThat(sut.recursiveMatch(asTopic("finance"), sut.root)).containsExactlyInAnyOrder(financeAnySub, anySub);
     }
 
     @Test
     public void testMatchingDeepMulti_one_layer() {
-        ClientTopicCouple anySub = clientSubOnTopic("AllSensor1", "#");
-        ClientTopicCouple financeAnySub = clientSubOnTopic("FinanceSensor", "finance/#");
+        Subscription anySub = clientSubOnTopic("AllSensor1", "#");
+        Subscription financeAnySub = clientSubOnTopic("FinanceSensor", "finance/#");
         sut.add(anySub);
         sut.add(financeAnySub);
 
@@ -93,7 +92,7 @@ public class CTrieSubscriptionDirectoryMatchingTest {
 
     @Test
     public void testMatchingDeepMulti_two_layer() {
-        ClientTopicCouple financeAnySub = clientSubOnTopic("FinanceSensor", "finance/stock/#");
+        Subscription financeAnySub = clientSubOnTopic("FinanceSensor", "finance/stock/#");
         sut.add(financeAnySub);
 
         // Verify
@@ -102,18 +101,18 @@ public class CTrieSubscriptionDirectoryMatchingTest {
 
     @Test
     public void testMatchSimpleSingle() {
-        ClientTopicCouple anySub = clientSubOnTopic("AnySensor", "+");
+        Subscription anySub = clientSubOnTopic("AnySensor", "+");
         sut.add(anySub);
         assertThat(sut.recursiveMatch(asTopic("finance"), sut.root)).containsExactly(anySub);
 
-        ClientTopicCouple financeOne = clientSubOnTopic("AnySensor", "finance/+");
+        Subscription financeOne = clientSubOnTopic("AnySensor", "finance/+");
         sut.add(financeOne);
         assertThat(sut.recursiveMatch(asTopic("finance/stock"), sut.root)).containsExactly(financeOne);
     }
 
     @Test
     public void testMatchManySingle() {
-        ClientTopicCouple manySub = clientSubOnTopic("AnySensor", "+/+");
+        Subscription manySub = clientSubOnTopic("AnySensor", "+/+");
         sut.add(manySub);
 
         // verify
@@ -122,9 +121,9 @@ public class CTrieSubscriptionDirectoryMatchingTest {
 
     @Test
     public void testMatchSlashSingle() {
-        ClientTopicCouple slashPlusSub = clientSubOnTopic("AnySensor", "/+");
+        Subscription slashPlusSub = clientSubOnTopic("AnySensor", "/+");
         sut.add(slashPlusSub);
-        ClientTopicCouple anySub = clientSubOnTopic("AnySensor", "+");
+        Subscription anySub = clientSubOnTopic("AnySensor", "+");
         sut.add(anySub);
 
         // Verify
@@ -134,9 +133,9 @@ public class CTrieSubscriptionDirectoryMatchingTest {
 
     @Test
     public void testMatchManyDeepSingle() {
-        ClientTopicCouple slashPlusSub = clientSubOnTopic("FinanceSensor1", "/finance/+/ibm");
+        Subscription slashPlusSub = clientSubOnTopic("FinanceSensor1", "/finance/+/ibm");
         sut.add(slashPlusSub);
-        ClientTopicCouple slashPlusDeepSub = clientSubOnTopic("FinanceSensor2", "/+/stock/+");
+        Subscription slashPlusDeepSub = clientSubOnTopic("FinanceSensor2", "/+/stock/+");
         sut.add(slashPlusDeepSub);
 
         // Verify
@@ -146,7 +145,7 @@ public class CTrieSubscriptionDirectoryMatchingTest {
 
     @Test
     public void testMatchSimpleMulti_allTheTree() {
-        ClientTopicCouple sub = clientSubOnTopic("AnySensor1", "#");
+        Subscription sub = clientSubOnTopic("AnySensor1", "#");
         sut.add(sub);
 
         assertThat(sut.recursiveMatch(asTopic("finance"), sut.root)).isNotEmpty();
@@ -183,7 +182,7 @@ public class CTrieSubscriptionDirectoryMatchingTest {
         ISessionsStore aSessionsStore = memStore.sessionsStore();
         sut.init(aSessionsStore);
 
-        ClientTopicCouple sub = clientSubOnTopic("AnySensor1", s);
+        Subscription sub = clientSubOnTopic("AnySensor1", s);
         sut.add(sub);
 
         assertThat(sut.recursiveMatch(asTopic(t), sut.root)).isNotEmpty();
@@ -195,24 +194,53 @@ public class CTrieSubscriptionDirectoryMatchingTest {
         ISessionsStore aSessionsStore = memStore.sessionsStore();
         sut.init(aSessionsStore);
 
-        ClientTopicCouple sub = clientSubOnTopic("AnySensor1", subscription);
+        Subscription sub = clientSubOnTopic("AnySensor1", subscription);
         sut.add(sub);
 
         assertThat(sut.recursiveMatch(asTopic(topic), sut.root)).isEmpty();
     }
 
+    @Test
+    public void testMatchAmongManySiblings() {
+        for (int i = 0; i < 1000; i++) {
+            sut.add(clientSubOnTopic("Sensor" + i, "devices/" + i + "/temp"));
+        }
+        Subscription anyDeviceSub = clientSubOnTopic("Collector", "devices/+/temp");
+        sut.add(anyDeviceSub);
+        Subscription allDevicesSub = clientSubOnTopic("Auditor", "devices/#");
+        sut.add(allDevicesSub);
+
+        // Verify
+        assertThat(sut.recursiveMatch(asTopic("devices/42/temp"), sut.root))
+            .containsExactlyInAnyOrder(clientSubOnTopic("Sensor42", "devices/42/temp"), anyDeviceSub, allDevicesSub);
+        assertThat(sut.recursiveMatch(asTopic("devices/1000/temp"), sut.root))
+            .containsExactlyInAnyOrder(anyDeviceSub, allDevicesSub);
+        assertThat(sut.recursiveMatch(asTopic("devices"), sut.root)).containsExactly(allDevicesSub);
+    }
+
+    @Test
+    public void testSubscribeAgainAfterRemoval() {
+        sut.add(clientSubOnTopic("Sensor1", "/topic"));
+        sut.removeSubscription(asTopic("/topic"), "Sensor1");
+
+        // Exercise
+        Subscription newSub = clientSubOnTopic("Sensor2", "/topic");
+        sut.add(newSub);
+
+        // Verify
+        assertThat(sut.recursiveMatch(asTopic("/topic"), sut.root)).containsExactly(newSub);
+    }
+
     @Test
     public void testOverlappingSubscriptions() {
         Subscription sub = new Subscription("Sensor1", asTopic("a/+"), MqttQoS.AT_MOST_ONCE);
-        ClientTopicCouple genericSub = sub.asClientTopicCouple();
         this.subscriptionsStore.addNewSubscription(sub);
         storageService.sessionsStore().createNewSession("Sensor1", false, 0);
-        sut.add(genericSub);
+        sut.add(sub);
 
         Subscription sub2 = new Subscription("Sensor1", asTopic("a/b"), MqttQoS.AT_MOST_ONCE);
-        ClientTopicCouple specificSub = sub2.asClientTopicCouple();
         this.subscriptionsStore.addNewSubscription(sub2);
-        sut.add(specificSub);
+        sut.add(sub2);
 
         // Verify
         assertThat(sut.match(asTopic("a/b")).size()).isEqualTo(1);
@@ -220,33 +248,72 @@ public class CTrieSubscriptionDirectoryMatchingTest {
 
     @Test
     public void removeSubscription_withDifferentClients_subscribedSameTopic() {
-        ClientTopicCouple slashSub = clientSubOnTopic("Sensor1", "/topic");
+        Subscription slashSub = clientSubOnTopic("Sensor1", "/topic");
         sut.add(slashSub);
-        ClientTopicCouple slashSub2 = clientSubOnTopic("Sensor2", "/topic");
+        Subscription slashSub2 = clientSubOnTopic("Sensor2", "/topic");
         sut.add(slashSub2);
 
         // Exercise
-        sut.removeSubscription(asTopic("/topic"), slashSub2.clientID);
+        sut.removeSubscription(asTopic("/topic"), slashSub2.clientId);
 
         // Verify
-        ClientTopicCouple remainedSubscription = sut.recursiveMatch(asTopic("/topic"), sut.root).iterator().next();
-        assertThat(remainedSubscription.clientID).isEqualTo(slashSub.clientID);
-        assertEquals(slashSub.clientID, remainedSubscription.clientID);
+        Subscription remainedSubscription = sut.recursiveMatch(asTopic("/topic"), sut.root).iterator().next();
+        assertThat(remainedSubscription.clientId).isEqualTo(slashSub.clientId);
+        assertEquals(slashSub.clientId, remainedSubscription.clientId);
     }
 
     @Test
     public void removeSubscription_sameClients_subscribedSameTopic() {
-        ClientTopicCouple slashSub = clientSubOnTopic("Sensor1", "/topic");
+        Subscription slashSub = clientSubOnTopic("Sensor1", "/topic");
         sut.add(slashSub);
 
         // Exercise
-        sut.removeSubscription(asTopic("/topic"), slashSub.clientID);
+        sut.removeSubscription(asTopic("/topic"), slashSub.clientId);
 
         // Verify
-        final Set<ClientTopicCouple> matchingSubscriptions = sut.recursiveMatch(asTopic("/topic"), sut.root);
+        final Set<Subscription> matchingSubscriptions = sut.recursiveMatch(asTopic("/topic"), sut.root);
         assertThat(matchingSubscriptions).isEmpty();
     }
 
+    @Test
+    public void testMatchReadsSubscriptionsFromTheTree() {
+        // the subscription isn't in the store, the QoS must come from the tree
+        Subscription sub = new Subscription("Sensor1", asTopic("a/+"), MqttQoS.AT_LEAST_ONCE);
+        sut.add(sub);
+
+        List<Subscription> matching = sut.matches(asTopic("a/b"));
+
+        assertThat(matching).containsExactly(sub);
+        assertEquals(MqttQoS.AT_LEAST_ONCE, matching.get(0).getRequestedQos());
+    }
+
+    @Test
+    public void testSharedSubscriptionsAreMatchedByTheirFilter() {
+        Subscription sub = clientSubOnTopic("Sensor1", "a/+");
+        sut.add(sub);
+        Subscription sharedSub1 = clientSubOnTopic("Sensor1", "$share/group/a/+");
+        sut.add(sharedSub1);
+        Subscription sharedSub2 = clientSubOnTopic("Sensor2", "$share/group/a/+");
+        sut.add(sharedSub2);
+
+        // Verify, the shared subscriptions of a client don't overlap with its not shared ones
+        assertThat(sut.matches(asTopic("a/b"))).containsExactlyInAnyOrder(sub, sharedSub1, sharedSub2);
+        assertThat(sut.matches(asTopic("$share/group/a/b"))).isEmpty();
+    }
+
+    @Test
+    public void testRemoveSharedSubscriptionKeepsTheNotSharedOne() {
+        Subscription sub = clientSubOnTopic("Sensor1", "a/b");
+        sut.add(sub);
+        sut.add(clientSubOnTopic("Sensor1", "$share/group/a/b"));
+
+        // Exercise
+        sut.removeSubscription(asTopic("$share/group/a/b"), "Sensor1");
+
+        // Verify
+        assertThat(sut.matches(asTopic("a/b"))).containsExactly(sub);
+    }
+
     /*
      * Test for Issue #49
      */
@@ -255,15 +322,15 @@ public class CTrieSubscriptionDirectoryMatchingTest {
         ClientSession session2 = sessionsStore.createNewSession("client2", true, 0);
         Subscription client2Sub = new Subscription("client2", asTopic("client/test/b"), MqttQoS.AT_MOST_ONCE);
         session2.subscribe(client2Sub);
-        this.sut.add(client2Sub.asClientTopicCouple());
+        this.sut.add(client2Sub);
         ClientSession session1 = sessionsStore.createNewSession("client1", true, 0);
         Subscription client1SubQoS0 = new Subscription("client1", asTopic("client/test/b"), MqttQoS.AT_MOST_ONCE);
         session1.subscribe(client1SubQoS0);
-        this.sut.add(client1SubQoS0.asClientTopicCouple());
+        this.sut.add(client1SubQoS0);
 
         Subscription client1SubQoS2 = new Subscription("client1", asTopic("client/test/b"), MqttQoS.EXACTLY_ONCE);
         session1.subscribe(client1SubQoS2);
-        this.sut.add(client1SubQoS2.asClientTopicCouple());
+        this.sut.add(client1SubQoS2);
 
         // Verify
         Set<Subscription> subscriptions = this.sut.match(asTopic("client/test/b"));
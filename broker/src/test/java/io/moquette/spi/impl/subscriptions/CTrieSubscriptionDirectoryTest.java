@@ -16,12 +16,19 @@
 
 import io.moquette.persistence.MemoryStorageService;
 import io.moquette.spi.ISessionsStore;
-import io.moquette.spi.ISubscriptionsStore.ClientTopicCouple;
+import io.moquette.spi.ISubscriptionsStore;
+import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static io.moquette.spi.impl.subscriptions.Topic.asTopic;
 import static org.junit.Assert.*;
@@ -73,7 +80,7 @@ public class CTrieSubscriptionDirectoryTest {
 
     @Test
     public void testLookup() {
-        final ClientTopicCouple existingSubscription = clientSubOnTopic("TempSensor1", "/temp");
+        final Subscription existingSubscription = clientSubOnTopic("TempSensor1", "/temp");
         sut.add(existingSubscription);
 
         //Exercise
@@ -85,17 +92,17 @@ public class CTrieSubscriptionDirectoryTest {
 
     @Test
     public void testAddNewSubscriptionOnExistingNode() {
-        final ClientTopicCouple existingSubscription = clientSubOnTopic("TempSensor1", "/temp");
+        final Subscription existingSubscription = clientSubOnTopic("TempSensor1", "/temp");
         sut.add(existingSubscription);
 
         //Exercise
-        final ClientTopicCouple newSubscription = clientSubOnTopic("TempSensor2", "/temp");
+        final Subscription newSubscription = clientSubOnTopic("TempSensor2", "/temp");
         sut.add(newSubscription);
 
         //Verify
         final Optional<CNode> matchedNode = sut.lookup(asTopic("/temp"));
         assertTrue("Node on path /temp must be present", matchedNode.isPresent());
-        final Set<ClientTopicCouple> subscriptions = matchedNode.get().subscriptions;
+        final Set<Subscription> subscriptions = matchedNode.get().subscriptions;
         assertTrue(subscriptions.contains(newSubscription));
     }
 
@@ -104,18 +111,18 @@ public class CTrieSubscriptionDirectoryTest {
         sut.add(clientSubOnTopic("TempSensorRM", "/italy/roma/temp"));
         sut.add(clientSubOnTopic("TempSensorFI", "/italy/firenze/temp"));
         sut.add(clientSubOnTopic("HumSensorFI", "/italy/roma/humidity"));
-        final ClientTopicCouple happinessSensor = clientSubOnTopic("HappinessSensor", "/italy/happiness");
+        final Subscription happinessSensor = clientSubOnTopic("HappinessSensor", "/italy/happiness");
         sut.add(happinessSensor);
 
         //Verify
         final Optional<CNode> matchedNode = sut.lookup(asTopic("/italy/happiness"));
         assertTrue("Node on path /italy/happiness must be present", matchedNode.isPresent());
-        final Set<ClientTopicCouple> subscriptions = matchedNode.get().subscriptions;
+        final Set<Subscription> subscriptions = matchedNode.get().subscriptions;
         assertTrue(subscriptions.contains(happinessSensor));
     }
 
-    static ClientTopicCouple clientSubOnTopic(String clientID, String topicName) {
-        return new ClientTopicCouple(clientID, asTopic(topicName));
+    static Subscription clientSubOnTopic(String clientID, String topicName) {
+        return new Subscription(clientID, asTopic(topicName), MqttQoS.AT_MOST_ONCE);
     }
 
     @Test
@@ -135,10 +142,92 @@ public class CTrieSubscriptionDirectoryTest {
         sut.add(clientSubOnTopic("TempSensor1", "/temp"));
 
         //Exercise
-        final Set<ClientTopicCouple> matchingSubs = sut.recursiveMatch(asTopic("/temp"), sut.root);
+        final Set<Subscription> matchingSubs = sut.recursiveMatch(asTopic("/temp"), sut.root);
 
         //Verify
-        final ClientTopicCouple expectedMatchingsub = new ClientTopicCouple("TempSensor1", asTopic("/temp"));
+        final Subscription expectedMatchingsub = clientSubOnTopic("TempSensor1", "/temp");
         assertThat(matchingSubs).contains(expectedMatchingsub);
     }
+
+    @Test
+    public void givenDeepNodeWhenRemoveLastSubscriptionThenEmptyPathIsCompressed() {
+        sut.add(clientSubOnTopic("TempSensor1", "/italy/roma/temp"));
+        sut.add(clientSubOnTopic("TempSensor2", "/italy"));
+
+        //Exercise
+        sut.removeSubscription(asTopic("/italy/roma/temp"), "TempSensor1");
+
+        //Verify
+        assertFalse("Node on path /italy/roma can't be present", sut.lookup(asTopic("/italy/roma")).isPresent());
+        final Optional<CNode> italyNode = sut.lookup(asTopic("/italy"));
+        assertTrue("Node on path /italy must be present", italyNode.isPresent());
+        assertTrue(italyNode.get().allChildren().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentSubscribeAndUnsubscribe() throws Exception {
+        final int threads = 8;
+        final int subscriptionsPerThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final String clientID = "Client" + t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < subscriptionsPerThread; i++) {
+                        sut.add(clientSubOnTopic(clientID, "/sensors/" + (i % 50) + "/" + i));
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(threads * subscriptionsPerThread, sut.size());
+
+            results.clear();
+            for (int t = 0; t < threads; t++) {
+                final String clientID = "Client" + t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < subscriptionsPerThread; i++) {
+                        sut.removeSubscription(asTopic("/sensors/" + (i % 50) + "/" + i), clientID);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        //Verify
+        assertEquals(0, sut.size());
+        assertFalse("Node on path /sensors can't be present", sut.lookup(asTopic("/sensors")).isPresent());
+    }
+
+    @Test
+    public void testInitReloadsStoredSubscriptions() {
+        MemoryStorageService memStore = new MemoryStorageService(null, null);
+        ISessionsStore aSessionsStore = memStore.sessionsStore();
+        ISubscriptionsStore subscriptionsStore = aSessionsStore.subscriptionStore();
+        final int clients = 3000;
+        for (int i = 0; i < clients; i++) {
+            final String clientID = "Sensor" + i;
+            aSessionsStore.createNewSession(clientID, false, 0);
+            subscriptionsStore.addNewSubscription(clientSubOnTopic(clientID, "/sensors/" + i + "/temp"));
+            subscriptionsStore.addNewSubscription(clientSubOnTopic(clientID, "/sensors/+/humidity"));
+        }
+        subscriptionsStore.addNewSubscription(clientSubOnTopic("Sensor0", "#"));
+
+        //Exercise
+        sut.init(aSessionsStore);
+
+        //Verify
+        assertEquals(2 * clients + 1, sut.size());
+        assertEquals(2 * clients + 1, sut.reloadedSubscriptions());
+        assertThat(sut.matches(asTopic("/sensors/42/temp")))
+            .containsExactlyInAnyOrder(clientSubOnTopic("Sensor42", "/sensors/42/temp"),
+                                       clientSubOnTopic("Sensor0", "#"));
+        assertEquals(clients, sut.matches(asTopic("/sensors/1/humidity")).size());
+    }
 }
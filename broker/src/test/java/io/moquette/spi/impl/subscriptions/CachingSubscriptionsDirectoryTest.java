@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl.subscriptions;
+
+import io.moquette.persistence.MemoryStorageService;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.ISubscriptionsStore;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Before;
+import org.junit.Test;
+
+import static io.moquette.spi.impl.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+
+public class CachingSubscriptionsDirectoryTest {
+
+    private CachingSubscriptionsDirectory sut;
+    private ISubscriptionsStore subscriptionsStore;
+
+    @Before
+    public void setUp() {
+        MemoryStorageService storageService = new MemoryStorageService(null, null);
+        ISessionsStore sessionsStore = storageService.sessionsStore();
+        this.subscriptionsStore = sessionsStore.subscriptionStore();
+        sessionsStore.createNewSession("TempSensor1", true, 0);
+        sessionsStore.createNewSession("TempSensor2", true, 0);
+
+        sut = new CachingSubscriptionsDirectory(new CTrieSubscriptionDirectory(), 2);
+        sut.init(sessionsStore);
+    }
+
+    private Subscription subscribe(String clientID, String topicFilter) {
+        Subscription sub = new Subscription(clientID, asTopic(topicFilter), MqttQoS.AT_MOST_ONCE);
+        subscriptionsStore.addNewSubscription(sub);
+        sut.add(sub);
+        return sub;
+    }
+
+    @Test
+    public void testRepeatedMatchIsServedFromCache() {
+        Subscription sub = subscribe("TempSensor1", "/temp");
+
+        assertThat(sut.matches(asTopic("/temp"))).containsExactly(sub);
+        assertThat(sut.matches(asTopic("/temp"))).containsExactly(sub);
+
+        assertEquals(1, sut.misses());
+        assertEquals(1, sut.hits());
+        assertEquals(1, sut.cachedTopics());
+    }
+
+    @Test
+    public void testAddOfMatchingWildcardInvalidatesCachedTopic() {
+        Subscription sub = subscribe("TempSensor1", "/temp");
+        assertThat(sut.matches(asTopic("/temp"))).containsExactly(sub);
+
+        Subscription wildcardSub = subscribe("TempSensor2", "#");
+
+        assertThat(sut.matches(asTopic("/temp"))).containsExactlyInAnyOrder(sub, wildcardSub);
+        assertEquals(2, sut.misses());
+    }
+
+    @Test
+    public void testAddOfNotMatchingFilterKeepsCachedTopic() {
+        Subscription sub = subscribe("TempSensor1", "/temp");
+        assertThat(sut.matches(asTopic("/temp"))).containsExactly(sub);
+
+        subscribe("TempSensor2", "/humidity/+");
+
+        assertThat(sut.matches(asTopic("/temp"))).containsExactly(sub);
+        assertEquals(1, sut.hits());
+    }
+
+    @Test
+    public void testRemoveInvalidatesCachedTopic() {
+        Subscription sub = subscribe("TempSensor1", "/temp/+");
+        assertThat(sut.matches(asTopic("/temp/kitchen"))).containsExactly(sub);
+
+        subscriptionsStore.removeSubscription(asTopic("/temp/+"), "TempSensor1");
+        sut.removeSubscription(asTopic("/temp/+"), "TempSensor1");
+
+        assertThat(sut.matches(asTopic("/temp/kitchen"))).isEmpty();
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        subscribe("TempSensor1", "#");
+
+        sut.matches(asTopic("/temp/kitchen"));
+        sut.matches(asTopic("/temp/bathroom"));
+        sut.matches(asTopic("/temp/garage"));
+
+        assertEquals(2, sut.cachedTopics());
+        assertEquals(1, sut.evictions());
+    }
+
+    @Test
+    public void testEmptyGroupsAreDropped() {
+        subscribe("TempSensor1", "#");
+
+        sut.matches(asTopic("kitchen/temp"));
+        sut.matches(asTopic("garage/temp"));
+        sut.matches(asTopic("office/temp"));
+        // the evicted topic was the only one of its first level
+        assertEquals(2, sut.cachedGroups());
+
+        subscribe("TempSensor2", "+/temp");
+
+        assertEquals(0, sut.cachedTopics());
+        assertEquals(0, sut.cachedGroups());
+    }
+}
@@ -20,7 +20,6 @@ import io.moquette.persistence.MemoryStorageService;
 import io.moquette.spi.ClientSession;
 import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.ISubscriptionsStore;
-import io.moquette.spi.ISubscriptionsStore.ClientTopicCouple;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.Before;
 import org.junit.Test;
@@ -56,12 +55,12 @@ public class SubscriptionsDirectoryTest {
     public void testMatchSimple() {
         Subscription slashSub = new Subscription("FAKE_CLI_ID_1", new Topic("/"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(slashSub);
-        store.add(slashSub.asClientTopicCouple());
+        store.add(slashSub);
         assertThat(store.matches(new Topic("finance"))).isEmpty();
 
         Subscription slashFinanceSub = new Subscription("FAKE_CLI_ID_1", new Topic("/finance"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(slashFinanceSub);
-        store.add(slashFinanceSub.asClientTopicCouple());
+        store.add(slashFinanceSub);
         assertThat(store.matches(new Topic("finance"))).isEmpty();
 
         assertThat(store.matches(new Topic("/finance"))).contains(slashFinanceSub);
@@ -72,12 +71,12 @@ public class SubscriptionsDirectoryTest {
     public void testMatchSimpleMulti() {
         Subscription anySub = new Subscription("FAKE_CLI_ID_1", new Topic("#"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(anySub);
-        store.add(anySub.asClientTopicCouple());
+        store.add(anySub);
         assertThat(store.matches(new Topic("finance"))).contains(anySub);
 
         Subscription financeAnySub = new Subscription("FAKE_CLI_ID_2", new Topic("finance/#"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(financeAnySub);
-        store.add(financeAnySub.asClientTopicCouple());
+        store.add(financeAnySub);
         assertThat(store.matches(new Topic("finance"))).containsExactlyInAnyOrder(financeAnySub, anySub);
     }
 
@@ -87,8 +86,8 @@ public class SubscriptionsDirectoryTest {
         Subscription financeAnySub = new Subscription("FAKE_CLI_ID_2", new Topic("finance/#"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(anySub);
         this.subscriptionsStore.addNewSubscription(financeAnySub);
-        store.add(anySub.asClientTopicCouple());
-        store.add(financeAnySub.asClientTopicCouple());
+        store.add(anySub);
+        store.add(financeAnySub);
 
         // Verify
         assertThat(store.matches(new Topic("finance/stock"))).containsExactlyInAnyOrder(financeAnySub, anySub);
@@ -102,7 +101,7 @@ public class SubscriptionsDirectoryTest {
                 new Topic("finance/stock/#"),
                 MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(financeAnySub);
-        store.add(financeAnySub.asClientTopicCouple());
+        store.add(financeAnySub);
 
         // Verify
         assertThat(store.matches(new Topic("finance/stock/ibm"))).containsExactly(financeAnySub);
@@ -112,12 +111,12 @@ public class SubscriptionsDirectoryTest {
     public void testMatchSimpleSingle() {
         Subscription anySub = new Subscription("FAKE_CLI_ID_1", new Topic("+"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(anySub);
-        store.add(anySub.asClientTopicCouple());
+        store.add(anySub);
         assertThat(store.matches(new Topic("finance"))).containsExactly(anySub);
 
         Subscription financeOne = new Subscription("FAKE_CLI_ID_1", new Topic("finance/+"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(financeOne);
-        store.add(financeOne.asClientTopicCouple());
+        store.add(financeOne);
         assertThat(store.matches(new Topic("finance/stock"))).containsExactly(financeOne);
     }
 
@@ -125,7 +124,7 @@ public class SubscriptionsDirectoryTest {
     public void testMatchManySingle() {
         Subscription manySub = new Subscription("FAKE_CLI_ID_1", new Topic("+/+"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(manySub);
-        store.add(manySub.asClientTopicCouple());
+        store.add(manySub);
 
         // verify
         assertThat(store.matches(new Topic("/finance"))).contains(manySub);
@@ -135,10 +134,10 @@ public class SubscriptionsDirectoryTest {
     public void testMatchSlashSingle() {
         Subscription slashPlusSub = new Subscription("FAKE_CLI_ID_1", new Topic("/+"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(slashPlusSub);
-        store.add(slashPlusSub.asClientTopicCouple());
+        store.add(slashPlusSub);
         Subscription anySub = new Subscription("FAKE_CLI_ID_1", new Topic("+"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(anySub);
-        store.add(anySub.asClientTopicCouple());
+        store.add(anySub);
 
         // Verify
         assertThat(store.matches(new Topic("/finance"))).containsOnly(slashPlusSub);
@@ -152,14 +151,14 @@ public class SubscriptionsDirectoryTest {
                 new Topic("/finance/+/ibm"),
                 MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(slashPlusSub);
-        store.add(slashPlusSub.asClientTopicCouple());
+        store.add(slashPlusSub);
 
         Subscription slashPlusDeepSub = new Subscription(
                 "FAKE_CLI_ID_2",
                 new Topic("/+/stock/+"),
                 MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(slashPlusDeepSub);
-        store.add(slashPlusDeepSub.asClientTopicCouple());
+        store.add(slashPlusDeepSub);
 
         // Verify
         assertThat(store.matches(new Topic("/finance/stock/ibm")))
@@ -170,7 +169,7 @@ public class SubscriptionsDirectoryTest {
     public void testMatchSimpleMulti_allTheTree() {
         Subscription sub = new Subscription("FAKE_CLI_ID_1", new Topic("#"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(sub);
-        store.add(sub.asClientTopicCouple());
+        store.add(sub);
         assertThat(store.matches(new Topic("finance"))).isNotEmpty();
         assertThat(store.matches(new Topic("finance/ibm"))).isNotEmpty();
     }
@@ -180,7 +179,7 @@ public class SubscriptionsDirectoryTest {
         // check MULTI in case of zero level match
         Subscription sub = new Subscription("FAKE_CLI_ID_1", new Topic("finance/#"), MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(sub);
-        store.add(sub.asClientTopicCouple());
+        store.add(sub);
         assertThat(store.matches(new Topic("finance"))).isNotEmpty();
     }
 
@@ -218,7 +217,7 @@ public class SubscriptionsDirectoryTest {
         store.init(aSessionsStore);
         Subscription sub = new Subscription("FAKE_CLI_ID_1", subscription, MqttQoS.AT_MOST_ONCE);
         aSessionsStore.subscriptionStore().addNewSubscription(sub);
-        store.add(sub.asClientTopicCouple());
+        store.add(sub);
         assertThat(store.matches(topic)).isNotEmpty();
     }
 
@@ -230,7 +229,7 @@ public class SubscriptionsDirectoryTest {
         store.init(memStore.sessionsStore());
         Subscription sub = new Subscription("FAKE_CLI_ID_1", subscription, MqttQoS.AT_MOST_ONCE);
         this.subscriptionsStore.addNewSubscription(sub);
-        store.add(sub.asClientTopicCouple());
+        store.add(sub);
         assertThat(store.matches(topic)).isEmpty();
     }
 
@@ -238,10 +237,10 @@ public class SubscriptionsDirectoryTest {
     public void testOverlappingSubscriptions() {
         Subscription genericSub = new Subscription("FAKE_CLI_ID_1", new Topic("a/+"), MqttQoS.EXACTLY_ONCE);
         this.subscriptionsStore.addNewSubscription(genericSub);
-        store.add(genericSub.asClientTopicCouple());
+        store.add(genericSub);
         Subscription specificSub = new Subscription("FAKE_CLI_ID_1", new Topic("a/b"), MqttQoS.AT_LEAST_ONCE);
         this.subscriptionsStore.addNewSubscription(specificSub);
-        store.add(specificSub.asClientTopicCouple());
+        store.add(specificSub);
 
         // Verify
         assertThat(store.matches(new Topic("a/b")).size()).isEqualTo(1);
@@ -257,12 +256,12 @@ public class SubscriptionsDirectoryTest {
         sessionsStore.createNewSession("FAKE_CLI_ID_1", true, 0);
         Subscription slashSub = new Subscription("FAKE_CLI_ID_1", new Topic("/topic"), MqttQoS.AT_MOST_ONCE);
         sessionsStore.subscriptionStore().addNewSubscription(slashSub);
-        aStore.add(slashSub.asClientTopicCouple());
+        aStore.add(slashSub);
 
         // subscribe an active clientID2 to /topic
         Subscription slashSub2 = new Subscription("FAKE_CLI_ID_2", new Topic("/topic"), MqttQoS.AT_MOST_ONCE);
         sessionsStore.subscriptionStore().addNewSubscription(slashSub2);
-        aStore.add(new ClientTopicCouple("FAKE_CLI_ID_2", new Topic("/topic")));
+        aStore.add(slashSub2);
 
         // Exercise
         aStore.removeSubscription(new Topic("/topic"), slashSub2.getClientId());
@@ -280,15 +279,15 @@ public class SubscriptionsDirectoryTest {
         ClientSession session2 = sessionsStore.createNewSession("client2", true, 0);
         Subscription client2Sub = new Subscription("client2", new Topic("client/test/b"), MqttQoS.AT_MOST_ONCE);
         session2.subscribe(client2Sub);
-        store.add(client2Sub.asClientTopicCouple());
+        store.add(client2Sub);
         ClientSession session1 = sessionsStore.createNewSession("client1", true, 0);
         Subscription client1SubQoS0 = new Subscription("client1", new Topic("client/test/b"), MqttQoS.AT_MOST_ONCE);
         session1.subscribe(client1SubQoS0);
-        store.add(client1SubQoS0.asClientTopicCouple());
+        store.add(client1SubQoS0);
 
         Subscription client1SubQoS2 = new Subscription("client1", new Topic("client/test/b"), MqttQoS.EXACTLY_ONCE);
         session1.subscribe(client1SubQoS2);
-        store.add(client1SubQoS2.asClientTopicCouple());
+        store.add(client1SubQoS2);
 
         System.out.println(store.dumpTree());
 
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.spi.impl.subscriptions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static io.moquette.spi.impl.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TopicIndexTest {
+
+    private static final String[] TOPICS = {"finance", "finance/stock", "finance/stock/ibm", "finance/bond/ibm",
+        "/finance", "sport/tennis"};
+
+    private TopicIndex<String> sut;
+
+    @Before
+    public void setUp() {
+        sut = new TopicIndex<>();
+        for (String topic : TOPICS) {
+            sut.put(asTopic(topic), topic);
+        }
+    }
+
+    private List<String> matching(String topicFilter) {
+        final List<String> values = new ArrayList<>();
+        sut.forEachMatching(asTopic(topicFilter), (topic, value) -> values.add(value));
+        return values;
+    }
+
+    /**
+     * The index has to find the same topics as {@link Topic#match(Topic)}.
+     */
+    @Test
+    public void testMatchesLikeTheTopicMatch() {
+        final String[] filters = {"#", "finance/#", "finance/+", "finance/+/ibm", "+/+", "+", "/+", "+/stock/#",
+            "finance/stock/ibm", "finance/stock/ibm/#", "finance/stock/ibm/+", "sport", "unknown/#"};
+        for (String filter : filters) {
+            final List<String> expected = new ArrayList<>();
+            for (String topic : TOPICS) {
+                if (asTopic(topic).match(asTopic(filter))) {
+                    expected.add(topic);
+                }
+            }
+            assertThat(matching(filter)).as(filter).containsOnlyElementsOf(expected).hasSameSizeAs(expected);
+
+            final List<String> iterated = new ArrayList<>();
+            sut.matchingTopics(asTopic(filter)).forEachRemaining(topic -> iterated.add(topic.toString()));
+            assertThat(iterated).as(filter).containsOnlyElementsOf(expected).hasSameSizeAs(expected);
+        }
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        assertEquals("finance/stock", sut.put(asTopic("finance/stock"), "replaced"));
+        assertEquals("replaced", sut.get(asTopic("finance/stock")));
+        assertEquals(TOPICS.length, sut.size());
+
+        assertEquals("finance/stock/ibm", sut.remove(asTopic("finance/stock/ibm")));
+        assertNull(sut.remove(asTopic("finance/stock/ibm")));
+        assertNull(sut.get(asTopic("finance/stock/ibm")));
+        assertEquals(TOPICS.length - 1, sut.size());
+        assertThat(matching("finance/stock/#")).containsExactly("replaced");
+    }
+
+    @Test
+    public void testMatchingValuesSkipsTheTopicsWithoutValue() {
+        final Iterator<String> values = sut.matchingValues(asTopic("finance/#"),
+            topic -> topic.toString().endsWith("ibm") ? null : topic.toString().toUpperCase());
+
+        final List<String> found = new ArrayList<>();
+        values.forEachRemaining(found::add);
+
+        assertThat(found).containsExactlyInAnyOrder("FINANCE", "FINANCE/STOCK");
+        assertFalse(values.hasNext());
+    }
+}
@@ -20,6 +20,10 @@ import org.assertj.core.api.Assertions;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class TopicTest {
 
@@ -188,6 +192,53 @@ public class TopicTest {
         assertEquals(Topic.asTopic("a/b"), Topic.asTopic("/a/b").exceptHeadToken());
     }
 
+    @Test
+    public void sharedSubscriptionTopics() {
+        Topic shared = Topic.asTopic("$share/group/a/+");
+        assertTrue(shared.isShared());
+        assertEquals("group", shared.getShareName());
+        assertEquals(Topic.asTopic("a/+"), shared.getSharedFilter());
+        assertThatTopic("$share/group/a/+").isValid();
+
+        assertFalse(Topic.asTopic("a/+").isShared());
+        assertThatTopic("$share/group").isInValid();
+        assertThatTopic("$share/+/a").isInValid();
+        assertThatTopic("$share//a").isInValid();
+    }
+
+    @Test
+    public void parsingKeepsOneTrailingEmptyToken() {
+        assertThatTopic("").containsToken("");
+        assertThatTopic("/").containsToken("", "");
+        assertThatTopic("//").containsToken("", "");
+        assertThatTopic("a//b").containsToken("a", "", "b");
+        assertThatTopic("a//").containsToken("a", "");
+        assertThatTopic("/a//").containsToken("", "a", "");
+        assertThatTopic("#//").isInValid();
+    }
+
+    @Test
+    public void internReturnsTheSameTokenizedTopic() {
+        Topic interned = Topic.intern("sensors/temperature");
+
+        assertSame(interned, Topic.intern("sensors/temperature"));
+        assertEquals(Topic.asTopic("sensors/temperature"), interned);
+        assertThat(interned).isValid().containsToken("sensors", "temperature");
+    }
+
+    @Test
+    public void topicCacheIsBounded() {
+        TopicCache cache = new TopicCache(2);
+        Topic first = cache.intern("a");
+        cache.intern("b");
+        cache.intern("c");
+        cache.intern("d");
+        cache.intern("e");
+
+        assertEquals(3, cache.size());
+        assertNotSame(first, cache.intern("a"));
+    }
+
 
     public static TopicAssert assertThat(Topic topic) {
         return new TopicAssert(topic);
@@ -17,14 +17,18 @@
 package io.moquette.persistence.h2;
 
 import io.moquette.HashColletions;
+import io.moquette.persistence.StoreCodec;
+import io.moquette.persistence.StoreCodecs;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.impl.subscriptions.Subscription;
 import io.moquette.spi.impl.subscriptions.Topic;
+import io.moquette.spi.impl.subscriptions.TopicIndex;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.*;
+import java.util.function.Consumer;
 
 class H2MessagesStore implements IMessagesStore {
 
@@ -32,50 +36,88 @@ class H2MessagesStore implements IMessagesStore {
 
     private final MVStore mvStore;
 
-    private MVMap<Topic, Message> retainedStore;
+    private final StoreCodec<Message> codec;
+    // maps topic name -> encoded message, the previous versions used the topic as key and the message as value
+    private MVMap<Object, Object> retainedStore;
+    // the keys of the retained messages, to search the ones matching a filter
+    private final TopicIndex<String> retainedTopics = new TopicIndex<>();
 
     public H2MessagesStore(MVStore mvStore) {
+        this(mvStore, H2PersistentStore.binaryCodecs(mvStore));
+    }
+
+    public H2MessagesStore(MVStore mvStore, StoreCodecs codecs) {
         this.mvStore = mvStore;
+        this.codec = codecs.messages();
     }
 
     @Override
     public void initStore() {
         retainedStore = mvStore.openMap("retained");
-        LOG.info("Initialized message H2 store");
+        final List<Topic> previousKeys = new ArrayList<>();
+        for (Object key : retainedStore.keySet()) {
+            if (key instanceof Topic) {
+                previousKeys.add((Topic) key);
+            } else {
+                retainedTopics.put(new Topic((String) key), (String) key);
+            }
+        }
+        for (Topic topic : previousKeys) {
+            final Message storedMessage = codec.fromStored(retainedStore.remove(topic));
+            storeRetained(topic, storedMessage);
+        }
+        LOG.info("Initialized message H2 store. RetainedMessages={}", retainedTopics.size());
+    }
+
+    /**
+     * Pass to the action the stored values of the retained messages.
+     */
+    void forEachStoredMessage(Consumer<Object> action) {
+        retainedStore.values().forEach(action);
     }
 
     @Override
     public void storeRetained(Topic topic, Message storedMessage) {
         LOG.debug("Store retained message for topic={}", topic);
-        retainedStore.put(topic, storedMessage);
+        final String key = topic.toString();
+        retainedStore.put(key, codec.toBytes(storedMessage));
+        retainedTopics.put(topic, key);
+    }
+
+    private Message retained(String key) {
+        return codec.fromStored(retainedStore.get(key));
     }
 
     @Override
     public Map<Subscription, Collection<Message>> searchMatching(List<Subscription> newSubscriptions) {
-        LOG.debug("Scanning retained messages");
+        LOG.debug("Searching retained messages");
         Map<Subscription, Collection<Message>> results = HashColletions.createHashMap(newSubscriptions.size());
 
         for (Subscription sub : newSubscriptions) {
-            retainedStore.forEach((topic, storedMsg) -> {
-
-                //TODO this is ugly, it does a linear scan on potential big dataset
-                if (topic.match(sub.getTopicFilter())) {
-                    results.computeIfAbsent(sub, k -> new LinkedHashSet<>());
-                    results.get(sub).add(storedMsg);
+            retainedTopics.forEachMatching(sub.getTopicFilter(), (topic, key) -> {
+                final Message storedMsg = retained(key);
+                if (storedMsg != null) {
+                    results.computeIfAbsent(sub, k -> new LinkedHashSet<>()).add(storedMsg);
                 }
             });
         }
 
         if (LOG.isTraceEnabled()) {
-            LOG.trace("Retained messages have been scanned matchingMessages={}", results);
+            LOG.trace("Retained messages have been searched matchingMessages={}", results);
         }
 
         return results;
     }
 
+    @Override
+    public Iterator<Message> retainedMatching(Subscription newSubscription) {
+        return retainedTopics.matchingValues(newSubscription.getTopicFilter(), topic -> retained(topic.toString()));
+    }
+
     @Override
     public void cleanRetained(Topic topic) {
         LOG.debug("Cleaning retained messages. Topic={}", topic);
-        retainedStore.remove(topic);
+        retainedTopics.remove(topic);
+        retainedStore.remove(topic.toString());
     }
 }
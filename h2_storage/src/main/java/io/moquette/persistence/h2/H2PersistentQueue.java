@@ -1,88 +1,274 @@
 package io.moquette.persistence.h2;
 
+import io.moquette.persistence.StoreCodec;
+import io.moquette.spi.ISessionQueue;
+import org.h2.mvstore.Cursor;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.AbstractQueue;
-import java.util.Iterator;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.*;
+import java.util.function.Consumer;
 
-class H2PersistentQueue<T> extends AbstractQueue<T> {
+/**
+ * FIFO queue persisted in the map shared by all the queues, the entries are keyed by queue name and
+ * sequence number so that the elements of a queue are contiguous and sorted by insertion order. The head
+ * and tail sequences are kept in memory and rebuilt from the keys when the queue is opened; the changes
+ * are persisted by the periodic commit of the store.
+ */
+class H2PersistentQueue<T> extends AbstractQueue<T> implements ISessionQueue<T> {
 
-    private final MVMap<Long, T> queueMap;
-    private final MVMap<String, Long> metadataMap;
-    private final AtomicLong head;
-    private final AtomicLong tail;
+    private static final Logger LOG = LoggerFactory.getLogger(H2PersistentQueue.class);
+
+    static final String QUEUES_MAP = "queues";
+    private static final String LEGACY_QUEUE_PREFIX = "queue_";
+    private static final String LEGACY_META_SUFFIX = "_meta";
+    private static final char KEY_SEPARATOR = '\u0000';
+    private static final char KEY_RANGE_END = '\u0001';
+    private static final int SEQUENCE_LENGTH = 16;
+
+    private final MVMap<String, Object> queueMap;
+    private final String keyPrefix;
+    // null to store the elements as they are
+    private final StoreCodec<T> codec;
+    private final Consumer<T> added;
+    private final Consumer<Object> removed;
+    // sequence of the next element to insert
+    private long head;
+    // sequence of the next element to remove
+    private long tail;
 
     H2PersistentQueue(MVStore store, String queueName) {
+        this(store, queueName, null, element -> { }, stored -> { });
+    }
+
+    /**
+     * @param codec
+     *            encodes the elements, the elements stored as objects by the previous versions are read as
+     *            they are.
+     * @param added
+     *            notified with each element before it's added to the queue.
+     * @param removed
+     *            notified with the stored value of each element removed from the queue.
+     */
+    H2PersistentQueue(MVStore store, String queueName, StoreCodec<T> codec, Consumer<T> added,
+                      Consumer<Object> removed) {
         if (queueName == null || queueName.isEmpty()) {
             throw new IllegalArgumentException("queueName parameter can't be empty or null");
         }
-        this.queueMap = store.openMap("queue_" + queueName);
-        this.metadataMap = store.openMap("queue_" + queueName + "_meta");
+        this.queueMap = store.openMap(QUEUES_MAP);
+        this.keyPrefix = queueName + KEY_SEPARATOR;
+        this.codec = codec;
+        this.added = added;
+        this.removed = removed;
 
-        //setup head index
-        long headIdx = 0L;
-        if (this.metadataMap.containsKey("head")) {
-            headIdx = this.metadataMap.get("head");
+        final String first = this.queueMap.ceilingKey(this.keyPrefix);
+        if (first == null || !first.startsWith(this.keyPrefix)) {
+            this.head = 0L;
+            this.tail = 0L;
         } else {
-            this.metadataMap.put("head", headIdx);
+            this.tail = sequenceOf(first);
+            this.head = sequenceOf(this.queueMap.lowerKey(queueName + KEY_RANGE_END)) + 1;
         }
-        this.head = new AtomicLong(headIdx);
+    }
 
-        //setup tail index
-        long tailIdx = 0L;
-        if (this.metadataMap.containsKey("tail")) {
-            tailIdx = this.metadataMap.get("tail");
-        } else {
-            this.metadataMap.put("tail", tailIdx);
+    static void dropQueue(MVStore store, String queueName) {
+        final MVMap<String, ?> queueMap = store.openMap(QUEUES_MAP);
+        final String keyPrefix = queueName + KEY_SEPARATOR;
+        final List<String> keys = new ArrayList<>();
+        final Iterator<String> keyIt = queueMap.keyIterator(keyPrefix);
+        while (keyIt.hasNext()) {
+            final String key = keyIt.next();
+            if (!key.startsWith(keyPrefix)) {
+                break;
+            }
+            keys.add(key);
+        }
+        for (String key : keys) {
+            queueMap.remove(key);
         }
-        this.tail = new AtomicLong(tailIdx);
     }
 
-    static void dropQueue(MVStore store, String queueName) {
-        store.removeMap(store.openMap("queue_" + queueName));
-        store.removeMap(store.openMap("queue_" + queueName + "_meta"));
+    /**
+     * Move the queues stored with the previous layout, a map plus a metadata map per queue, to the
+     * shared map.
+     */
+    static void migrateQueues(MVStore store) {
+        final Set<String> mapNames = store.getMapNames();
+        final List<String> legacyQueues = new ArrayList<>();
+        for (String mapName : mapNames) {
+            if (mapName.startsWith(LEGACY_QUEUE_PREFIX) && mapNames.contains(mapName + LEGACY_META_SUFFIX)) {
+                legacyQueues.add(mapName);
+            }
+        }
+        if (legacyQueues.isEmpty()) {
+            return;
+        }
+        LOG.info("Migrating {} queues to the shared queues map", legacyQueues.size());
+        for (String mapName : legacyQueues) {
+            final MVMap<Long, Object> legacyMap = store.openMap(mapName);
+            final MVMap<String, Long> legacyMeta = store.openMap(mapName + LEGACY_META_SUFFIX);
+            final long legacyHead = legacyMeta.containsKey("head") ? legacyMeta.get("head") : 0L;
+            final long legacyTail = legacyMeta.containsKey("tail") ? legacyMeta.get("tail") : 0L;
+
+            final H2PersistentQueue<Object> queue =
+                new H2PersistentQueue<>(store, mapName.substring(LEGACY_QUEUE_PREFIX.length()));
+            for (long seq = legacyTail; seq < legacyHead; seq++) {
+                final Object element = legacyMap.get(seq);
+                if (element != null) {
+                    queue.offer(element);
+                }
+            }
+            store.removeMap(legacyMap);
+            store.removeMap(legacyMeta);
+        }
+        store.commit();
+    }
+
+    private String key(long sequence) {
+        final String hex = Long.toHexString(sequence);
+        final StringBuilder sb = new StringBuilder(this.keyPrefix.length() + SEQUENCE_LENGTH).append(this.keyPrefix);
+        for (int i = hex.length(); i < SEQUENCE_LENGTH; i++) {
+            sb.append('0');
+        }
+        return sb.append(hex).toString();
+    }
+
+    private Object encode(T element) {
+        return this.codec == null ? element : this.codec.toBytes(element);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T decode(Object stored) {
+        return this.codec == null ? (T) stored : this.codec.fromStored(stored);
+    }
+
+    private long sequenceOf(String key) {
+        return Long.parseUnsignedLong(key.substring(this.keyPrefix.length()), 16);
     }
 
     @Override
     public Iterator<T> iterator() {
-        return null;
+        final long from;
+        final long to;
+        synchronized (this) {
+            from = this.tail;
+            to = this.head;
+        }
+        final Cursor<String, Object> cursor = this.queueMap.cursor(key(from));
+        final String endKey = key(to);
+        return new Iterator<T>() {
+
+            private T next = advance();
+
+            private T advance() {
+                if (!cursor.hasNext()) {
+                    return null;
+                }
+                final String key = cursor.next();
+                if (key.compareTo(endKey) >= 0 || !key.startsWith(keyPrefix)) {
+                    return null;
+                }
+                return decode(cursor.getValue());
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final T current = next;
+                next = advance();
+                return current;
+            }
+        };
     }
 
     @Override
-    public int size() {
-        return this.head.intValue() - this.tail.intValue();
+    public synchronized int size() {
+        return (int) (this.head - this.tail);
     }
 
     @Override
-    public boolean offer(T t) {
+    public synchronized boolean offer(T t) {
         if (t == null) {
             throw new NullPointerException("Inserted element can't be null");
         }
-        final long nextHead = head.getAndIncrement();
-        this.queueMap.put(nextHead, t);
-        this.metadataMap.put("head", nextHead + 1);
+        this.added.accept(t);
+        this.queueMap.put(key(this.head), encode(t));
+        this.head++;
         return true;
     }
 
     @Override
-    public T poll() {
-        if (head.equals(tail)) {
+    public synchronized T poll() {
+        if (this.head == this.tail) {
             return null;
         }
-        final long nextTail = tail.getAndIncrement();
-        final T tail = this.queueMap.get(nextTail);
-        this.metadataMap.put("tail", nextTail + 1);
-        return tail;
+        final Object stored = this.queueMap.remove(key(this.tail));
+        this.tail++;
+        final T element = decode(stored);
+        this.removed.accept(stored);
+        return element;
     }
 
     @Override
-    public T peek() {
-        if (head.equals(tail)) {
+    public synchronized T peek() {
+        if (this.head == this.tail) {
             return null;
         }
-        return this.queueMap.get(tail.get());
+        return decode(this.queueMap.get(key(this.tail)));
+    }
+
+    /**
+     * Remove all the elements without decoding them.
+     */
+    @Override
+    public synchronized void clear() {
+        while (this.head != this.tail) {
+            this.removed.accept(this.queueMap.remove(key(this.tail)));
+            this.tail++;
+        }
     }
 
+    /**
+     * Remove at most maxElements from the head of the queue, reading them with a single range scan.
+     */
+    @Override
+    public synchronized int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("Can't drain a queue into itself");
+        }
+        final int count = (int) Math.min(maxElements, this.head - this.tail);
+        if (count <= 0) {
+            return 0;
+        }
+        final List<String> keys = new ArrayList<>(count);
+        final List<Object> values = new ArrayList<>(count);
+        final Cursor<String, Object> cursor = this.queueMap.cursor(key(this.tail));
+        boolean exhausted = false;
+        while (keys.size() < count && cursor.hasNext()) {
+            final String key = cursor.next();
+            if (!key.startsWith(this.keyPrefix)) {
+                // the elements of this queue are over, the key belongs to the next queue of the map
+                exhausted = true;
+                break;
+            }
+            keys.add(key);
+            values.add(cursor.getValue());
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            c.add(decode(values.get(i)));
+            this.queueMap.remove(keys.get(i));
+            this.removed.accept(values.get(i));
+        }
+        this.tail = exhausted ? this.head : this.tail + keys.size();
+        return keys.size();
+    }
 }
@@ -16,6 +16,9 @@
 package io.moquette.persistence.h2;
 
 import io.moquette.BrokerConstants;
+import io.moquette.persistence.GroupCommitter;
+import io.moquette.persistence.StoreCodecs;
+import io.moquette.persistence.TopicDictionary;
 import io.moquette.server.config.IConfig;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.ISessionsStore;
@@ -33,6 +36,8 @@ public class H2PersistentStore implements IStore {
 
     private final String storePath;
     private final int autosaveInterval; // in seconds
+    private final int groupCommitRecords;
+    private final long groupCommitMaxDelay; // in microseconds
     protected final ScheduledExecutorService scheduler;
     private MVStore mvStore;
 
@@ -42,6 +47,10 @@ public class H2PersistentStore implements IStore {
     public H2PersistentStore(IConfig props, ScheduledExecutorService scheduler) {
         this.storePath = props.getProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
         this.autosaveInterval = Integer.parseInt(props.getProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, "30"));
+        this.groupCommitRecords = Integer.parseInt(
+            props.getProperty(BrokerConstants.GROUP_COMMIT_RECORDS_PROPERTY_NAME, "0"));
+        this.groupCommitMaxDelay = Long.parseLong(
+            props.getProperty(BrokerConstants.GROUP_COMMIT_MAX_DELAY_PROPERTY_NAME, "1000"));
         this.scheduler = scheduler;
     }
 
@@ -69,11 +78,45 @@ public class H2PersistentStore implements IStore {
             }
         }, this.autosaveInterval, this.autosaveInterval, TimeUnit.SECONDS);
 
-        messageStore = new H2MessagesStore(mvStore);
-        messageStore.initStore();
+        final TopicDictionary topics = topicDictionary(mvStore);
+        final StoreCodecs codecs = StoreCodecs.binary(topics);
+        final H2MessagesStore messagesStore = new H2MessagesStore(mvStore, codecs);
+        messagesStore.initStore();
+        messageStore = messagesStore;
+
+        GroupCommitter groupCommitter = null;
+        if (this.groupCommitRecords > 0) {
+            LOG.info("Enabling H2 group commit. Records={}, maxDelayMicros={}", this.groupCommitRecords,
+                this.groupCommitMaxDelay);
+            groupCommitter = new GroupCommitter(() -> {
+                mvStore.commit();
+                mvStore.sync();
+            }, scheduler, this.groupCommitRecords, this.groupCommitMaxDelay);
+        }
+        final H2SessionsStore h2SessionsStore = new H2SessionsStore(mvStore, groupCommitter, codecs);
+        h2SessionsStore.initStore();
+        sessionsStore = h2SessionsStore;
+
+        // the messages encoded so far are all in the store, the identifiers they do not reference are unused
+        final int reclaimed = topics.reclaim(action -> {
+            messagesStore.forEachStoredMessage(action);
+            h2SessionsStore.forEachStoredMessage(action);
+        });
+        if (reclaimed > 0) {
+            mvStore.commit();
+        }
+        LOG.info("Reclaimed the unused topic identifiers. Count={}", reclaimed);
+    }
+
+    private static TopicDictionary topicDictionary(MVStore mvStore) {
+        return new TopicDictionary(mvStore.openMap("topicIds"), mvStore.openMap("topicNames"));
+    }
 
-        sessionsStore = new H2SessionsStore(mvStore);
-        sessionsStore.initStore();
+    /**
+     * The binary codecs, with the topics dictionary kept in the store.
+     */
+    static StoreCodecs binaryCodecs(MVStore mvStore) {
+        return StoreCodecs.binary(topicDictionary(mvStore));
     }
 
     @Override
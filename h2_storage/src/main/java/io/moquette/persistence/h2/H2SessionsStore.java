@@ -15,11 +15,15 @@
  */
 package io.moquette.persistence.h2;
 
+import io.moquette.persistence.GroupCommitter;
+import io.moquette.persistence.MessageBodyStore;
+import io.moquette.persistence.PacketIDs;
 import io.moquette.persistence.PersistentSession;
+import io.moquette.persistence.StoreCodecs;
 import io.moquette.spi.ClientSession;
-import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.IMessagesStore.Message;
 import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISessionQueue;
 import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.ISubscriptionsStore;
 import io.moquette.spi.impl.subscriptions.Subscription;
@@ -32,33 +36,83 @@ import org.slf4j.LoggerFactory;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(H2SessionsStore.class);
 
+    private static final String CLIENT_SUBSCRIPTIONS_MAP_PREFIX = "subscriptions_";
+    private static final String OUTBOUND_FLIGHT_CLIENT_MAP = "outboundFlight";
+    private static final String SECOND_PHASE_CLIENT_MAP = "secondPhase";
+    private static final String INFLIGHT_IDS_MAP = "inflightPacketIDs";
+    private static final String INBOUND_INFLIGHT_MAP_PREFIX = "inboundInflight_";
+    private static final String MESSAGE_BODIES_MAP = "messageBodies";
+    private static final char KEY_SEPARATOR = '\u0000';
+
     private final MVStore mvStore;
-    private ConcurrentMap<String, PersistentSession> sessions;
-    // maps clientID->[MessageId -> msg]
-    private ConcurrentMap<String, ConcurrentMap<Integer, Message>> outboundFlightMessages;
-    // map clientID <-> set of currently in flight packet identifiers
-    private Map<String, Set<Integer>> inFlightIds;
-    // maps clientID->[MessageId -> guid]
-    private ConcurrentMap<String, ConcurrentMap<Integer, Message>> secondPhaseStore;
+    private final GroupCommitter groupCommitter;
+    private final StoreCodecs codecs;
+    // the values of the maps are encoded by the codecs, the ones written by the previous versions are objects
+    private MVMap<String, Object> sessions;
+    // maps clientID + separator + topic filter -> subscription
+    private MVMap<String, Object> subscriptions;
+    // maps clientID + separator + packet ID -> msg
+    private MVMap<String, Object> outboundFlightMessages;
+    // maps clientID + separator + packet ID -> msg
+    private MVMap<String, Object> secondPhaseStore;
+    // the queues keep references to the bodies of the messages, shared by the queues
+    private MessageBodyStore messageBodies;
+    // the packet identifiers in use by the clients, rebuilt from the stored messages at first use
+    private final ConcurrentMap<String, PacketIDs> packetIDs = new ConcurrentHashMap<>();
+    // the open queues, their head and tail are tracked in memory
+    private final ConcurrentMap<String, H2PersistentQueue<StoredMessage>> queues = new ConcurrentHashMap<>();
 
     public H2SessionsStore(MVStore mvStore) {
+        this(mvStore, null);
+    }
+
+    /**
+     * @param groupCommitter
+     *            commits the store before the acknowledges, null to rely only on the periodic commit.
+     */
+    public H2SessionsStore(MVStore mvStore, GroupCommitter groupCommitter) {
+        this(mvStore, groupCommitter, H2PersistentStore.binaryCodecs(mvStore));
+    }
+
+    /**
+     * @param codecs
+     *            encode the values stored in the maps.
+     */
+    public H2SessionsStore(MVStore mvStore, GroupCommitter groupCommitter, StoreCodecs codecs) {
         this.mvStore = mvStore;
+        this.groupCommitter = groupCommitter;
+        this.codecs = codecs;
     }
 
     @Override
     public void initStore() {
         this.sessions = mvStore.openMap("sessions");
-        this.outboundFlightMessages = mvStore.openMap("outboundFlight");
-        this.inFlightIds = mvStore.openMap("inflightPacketIDs");
-        this.secondPhaseStore = mvStore.openMap("secondPhase");
+        this.outboundFlightMessages = mvStore.openMap("outboundInflight");
+        this.secondPhaseStore = mvStore.openMap("secondPhaseInflight");
+        this.subscriptions = mvStore.openMap("subscriptions");
+        this.messageBodies = new MessageBodyStore(mvStore.openMap(MESSAGE_BODIES_MAP),
+            mvStore.openMap("messageReferences"), this.codecs.storedMessages());
+        migrateClientSubscriptionMaps();
+        migrateClientInflightMaps();
+        H2PersistentQueue.migrateQueues(this.mvStore);
         LOG.info("Initialized sessions H2 store");
     }
 
+    @Override
+    public void whenDurable(Runnable action) {
+        if (this.groupCommitter == null) {
+            action.run();
+            return;
+        }
+        this.groupCommitter.whenDurable(action);
+    }
+
     @Override
     public ISubscriptionsStore subscriptionStore() {
         return this;
@@ -67,10 +121,10 @@ public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
     @Override
     public void updateCleanStatus(String clientID, boolean cleanSession) {
         LOG.info("Updating cleanSession flag. CId={}, cleanSession={}", clientID, cleanSession);
-        PersistentSession old = this.sessions.get(clientID);
+        PersistentSession old = storedSession(clientID);
         long lastContact = old == null ? 0 : old.lastContatct;
 
-        this.sessions.put(clientID, new PersistentSession(cleanSession, lastContact));
+        storeSession(clientID, new PersistentSession(cleanSession, lastContact));
     }
 
     @Override
@@ -78,39 +132,35 @@ public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
         LOG.info("Adding new subscription CId={}, topics={}", newSubscription.getClientId(),
             newSubscription.getTopicFilter());
         final String clientID = newSubscription.getClientId();
-        final MVMap<Object, Object> sessionSubscriptions = this.mvStore.openMap("subscriptions_" + clientID);
-        sessionSubscriptions.put(newSubscription.getTopicFilter(), newSubscription);
+        this.subscriptions.put(subscriptionKey(clientID, newSubscription.getTopicFilter()),
+            this.codecs.subscriptions().toBytes(newSubscription));
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("Subscription has been added CId={}, topics={}, clientSubscriptions={}",
-                newSubscription.getClientId(), newSubscription.getTopicFilter(), sessionSubscriptions);
+                newSubscription.getClientId(), newSubscription.getTopicFilter(), getClientSubscriptions(clientID));
         }
     }
 
     @Override
     public void removeSubscription(Topic topicFilter, String clientID) {
         LOG.info("Removing subscription. CId={}, topics={}", clientID, topicFilter);
-        if (!this.mvStore.hasMap("subscriptions_" + clientID)) {
-            return;
-        }
-        final MVMap<Object, Object> sessionsSubscriptions = this.mvStore.openMap("subscriptions_" + clientID);
-        sessionsSubscriptions.remove(topicFilter);
+        this.subscriptions.remove(subscriptionKey(clientID, topicFilter));
         if (LOG.isDebugEnabled()) {
             LOG.debug("Subscription has been removed. CId={}, topics={}, clientSubscriptions={}", clientID,
-                topicFilter, sessionsSubscriptions);
+                topicFilter, getClientSubscriptions(clientID));
         }
     }
 
     @Override
     public void wipeSubscriptions(String sessionID) {
         LOG.info("Wiping subscriptions. CId={}", sessionID);
-        if (!this.mvStore.hasMap("subscriptions_" + sessionID)) {
-            return;
+        final List<String> keys = new ArrayList<>();
+        forEachClientSubscriptionKey(sessionID, keys::add);
+        for (String key : keys) {
+            this.subscriptions.remove(key);
         }
-        final MVMap<Object, Object> subscriptions = this.mvStore.openMap("subscriptions_" + sessionID);
-        this.mvStore.removeMap(subscriptions);
         if (LOG.isDebugEnabled()) {
-            LOG.debug("Subscriptions have been removed. CId={}, clientSubscriptions={}", sessionID, subscriptions);
+            LOG.debug("Subscriptions have been removed. CId={}, subscriptionsNo={}", sessionID, keys.size());
         }
     }
 
@@ -118,11 +168,8 @@ public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
     public List<ClientTopicCouple> listAllSubscriptions() {
         LOG.info("Retrieving existing subscriptions");
         final List<ClientTopicCouple> allSubscriptions = new ArrayList<>();
-        for (String clientID : this.sessions.keySet()) {
-            ConcurrentMap<Topic, Subscription> clientSubscriptions = this.mvStore.openMap("subscriptions_" + clientID);
-            for (Topic topicFilter : clientSubscriptions.keySet()) {
-                allSubscriptions.add(new ClientTopicCouple(clientID, topicFilter));
-            }
+        for (Object stored : this.subscriptions.values()) {
+            allSubscriptions.add(this.codecs.subscriptions().fromStored(stored).asClientTopicCouple());
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("The existing subscriptions have been retrieved. Result={}", allSubscriptions);
@@ -133,25 +180,154 @@ public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
     @Override
     public List<Subscription> getSubscriptions() {
         LOG.debug("Retrieving existing subscriptions...");
-        List<Subscription> subscriptions = new ArrayList<>();
-        for (String clientID : this.sessions.keySet()) {
-            ConcurrentMap<Topic, Subscription> clientSubscriptions = this.mvStore.openMap("subscriptions_" + clientID);
-            subscriptions.addAll(clientSubscriptions.values());
-        }
+        List<Subscription> subscriptions = new ArrayList<>(this.subscriptions.size());
+        forEachSubscription(subscriptions::add);
         LOG.debug("Existing subscriptions has been retrieved Result={}", subscriptions);
         return subscriptions;
     }
 
+    @Override
+    public void forEachSubscription(Consumer<Subscription> action) {
+        for (Object stored : this.subscriptions.values()) {
+            action.accept(this.codecs.subscriptions().fromStored(stored));
+        }
+    }
+
+    @Override
+    public List<Subscription> getClientSubscriptions(String clientID) {
+        final List<Subscription> clientSubscriptions = new ArrayList<>();
+        forEachClientSubscriptionKey(clientID, key -> {
+            Subscription subscription = this.codecs.subscriptions().fromStored(this.subscriptions.get(key));
+            if (subscription != null) {
+                clientSubscriptions.add(subscription);
+            }
+        });
+        return clientSubscriptions;
+    }
+
     @Override
     public Subscription getSubscription(ClientTopicCouple couple) {
-        ConcurrentMap<Topic, Subscription> clientSubscriptions = this.mvStore.openMap("subscriptions_" + couple.clientID);
-        LOG.debug("Retrieving subscriptions CId={}, subscriptions={}", couple.clientID, clientSubscriptions);
-        return clientSubscriptions.get(couple.topicFilter);
+        LOG.debug("Retrieving subscription CId={}, topicFilter={}", couple.clientID, couple.topicFilter);
+        return this.codecs.subscriptions().fromStored(
+            this.subscriptions.get(subscriptionKey(couple.clientID, couple.topicFilter)));
     }
 
     @Override
     public boolean contains(String clientID) {
-        return this.mvStore.hasMap("subscriptions_" + clientID);
+        final String key = this.subscriptions.ceilingKey(clientPrefix(clientID));
+        return key != null && key.startsWith(clientPrefix(clientID));
+    }
+
+    /**
+     * The subscriptions of all the clients are kept in a single map, the key is the client ID followed
+     * by the topic filter, so that the subscriptions of a client are contiguous.
+     */
+    private static String subscriptionKey(String clientID, Topic topicFilter) {
+        return clientPrefix(clientID) + topicFilter;
+    }
+
+    private static String clientPrefix(String clientID) {
+        // NUL can't be part of an MQTT UTF-8 string, the prefix of a client isn't the prefix of another
+        return clientID + KEY_SEPARATOR;
+    }
+
+    private void forEachClientSubscriptionKey(String clientID, Consumer<String> action) {
+        forEachClientKey(this.subscriptions, clientID, action);
+    }
+
+    /**
+     * The inflight messages are keyed by the client ID followed by the packet ID, as fixed width hex, so that
+     * an update stores only the message and the messages of a client are contiguous.
+     */
+    private static String inflightKey(String clientID, int packetID) {
+        return clientPrefix(clientID) + Integer.toHexString(0x10000 | packetID).substring(1);
+    }
+
+    private static int packetID(String inflightKey) {
+        return Integer.parseInt(inflightKey.substring(inflightKey.length() - 4), 16);
+    }
+
+    private static void forEachClientKey(MVMap<String, ?> map, String clientID, Consumer<String> action) {
+        final String prefix = clientPrefix(clientID);
+        final Iterator<String> keys = map.keyIterator(prefix);
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            action.accept(key);
+        }
+    }
+
+    /**
+     * Move the subscriptions stored with the previous layout, a map per client, to the single map.
+     */
+    private void migrateClientSubscriptionMaps() {
+        final List<String> clientMaps = new ArrayList<>();
+        for (String mapName : this.mvStore.getMapNames()) {
+            if (mapName.startsWith(CLIENT_SUBSCRIPTIONS_MAP_PREFIX)) {
+                clientMaps.add(mapName);
+            }
+        }
+        if (clientMaps.isEmpty()) {
+            return;
+        }
+        LOG.info("Migrating the subscriptions of {} clients to the single subscriptions map", clientMaps.size());
+        int migrated = 0;
+        for (String mapName : clientMaps) {
+            final MVMap<Topic, Subscription> clientSubscriptions = this.mvStore.openMap(mapName);
+            for (Subscription subscription : clientSubscriptions.values()) {
+                this.subscriptions.put(subscriptionKey(subscription.getClientId(), subscription.getTopicFilter()),
+                    this.codecs.subscriptions().toBytes(subscription));
+                migrated++;
+            }
+            this.mvStore.removeMap(clientSubscriptions);
+        }
+        this.mvStore.commit();
+        LOG.info("The subscriptions have been migrated. SubscriptionsNo={}", migrated);
+    }
+
+    /**
+     * Move the inflight messages stored with the previous layout, a map of messages per client, to the maps
+     * keyed by message.
+     */
+    private void migrateClientInflightMaps() {
+        if (!this.mvStore.hasMap(OUTBOUND_FLIGHT_CLIENT_MAP) && !this.mvStore.hasMap(SECOND_PHASE_CLIENT_MAP)) {
+            return;
+        }
+        LOG.info("Migrating the inflight messages to the maps keyed by message");
+        int migrated = migrateClientInflightMap(OUTBOUND_FLIGHT_CLIENT_MAP, this.outboundFlightMessages);
+        migrated += migrateClientInflightMap(SECOND_PHASE_CLIENT_MAP, this.secondPhaseStore);
+        if (this.mvStore.hasMap(INFLIGHT_IDS_MAP)) {
+            this.mvStore.removeMap(this.mvStore.openMap(INFLIGHT_IDS_MAP));
+        }
+        this.mvStore.commit();
+        LOG.info("The inflight messages have been migrated. MessagesNo={}", migrated);
+    }
+
+    private int migrateClientInflightMap(String mapName, MVMap<String, Object> target) {
+        if (!this.mvStore.hasMap(mapName)) {
+            return 0;
+        }
+        int migrated = 0;
+        final MVMap<String, Map<Integer, Message>> clientMaps = this.mvStore.openMap(mapName);
+        for (Map.Entry<String, Map<Integer, Message>> clientMap : clientMaps.entrySet()) {
+            for (Map.Entry<Integer, Message> inflight : clientMap.getValue().entrySet()) {
+                target.put(inflightKey(clientMap.getKey(), inflight.getKey()),
+                    this.codecs.messages().toBytes(inflight.getValue()));
+                migrated++;
+            }
+        }
+        this.mvStore.removeMap(clientMaps);
+        return migrated;
+    }
+
+    private PersistentSession storedSession(String clientID) {
+        return this.codecs.sessions().fromStored(this.sessions.get(clientID));
+    }
+
+    private void storeSession(String clientID, PersistentSession session) {
+        this.sessions.put(clientID, this.codecs.sessions().toBytes(session));
     }
 
     @Override
@@ -162,7 +338,7 @@ public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
             throw new IllegalArgumentException("Can't create a session with the ID of an already existing" + clientID);
         }
         LOG.debug("Creating new session. CId={}, cleanSession={}", clientID, cleanSession);
-        sessions.putIfAbsent(clientID, new PersistentSession(cleanSession, now));
+        sessions.putIfAbsent(clientID, this.codecs.sessions().toBytes(new PersistentSession(cleanSession, now)));
         return new ClientSession(clientID, this, this, cleanSession, now);
     }
 
@@ -173,134 +349,164 @@ public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
             LOG.warn("Session does not exist. CId={}", clientID);
             return null;
         }
-        PersistentSession storedSession = this.sessions.get(clientID);
+        PersistentSession storedSession = storedSession(clientID);
         return new ClientSession(clientID, this, this, storedSession.cleanSession, storedSession.lastContatct);
     }
 
     @Override
     public Message inFlightAck(String clientID, int messageID) {
         LOG.debug("Acknowledging inflight message CId={}, messageId={}", clientID, messageID);
-        ConcurrentMap<Integer, Message> m = this.outboundFlightMessages.get(clientID);
-        if (m == null) {
-            LOG.error("Can't find the inFlight record for client <{}>", clientID);
-            throw new RuntimeException("Can't find the inFlight record for client <" + clientID + ">");
-        }
-        Message msg = m.remove(messageID);
-        this.outboundFlightMessages.put(clientID, m);
-
-        // remove from the ids store
-        Set<Integer> inFlightForClient = this.inFlightIds.get(clientID);
-        if (inFlightForClient != null) {
-            inFlightForClient.remove(messageID);
+        final Message msg = this.codecs.messages().fromStored(
+            this.outboundFlightMessages.remove(inflightKey(clientID, messageID)));
+        if (!this.secondPhaseStore.containsKey(inflightKey(clientID, messageID))) {
+            packetIDs(clientID).release(messageID);
         }
         return msg;
     }
 
     @Override
     public void inFlight(String clientID, int messageID, Message msg) {
-        ConcurrentMap<Integer, IMessagesStore.Message> messages = this.outboundFlightMessages.get(clientID);
-        if (messages == null) {
-            messages = new ConcurrentHashMap<>();
-        }
-        messages.put(messageID, msg);
-        this.outboundFlightMessages.put(clientID, messages);
+        this.outboundFlightMessages.put(inflightKey(clientID, messageID), this.codecs.messages().toBytes(msg));
+        packetIDs(clientID).use(messageID);
     }
 
+    /**
+     * Return the next packet identifier not in use, after the last one returned.
+     */
     @Override
     public int nextPacketID(String clientID) {
         LOG.debug("Generating next packet ID CId={}", clientID);
-        Set<Integer> inFlightForClient = this.inFlightIds.get(clientID);
-        if (inFlightForClient == null) {
-            int nextPacketId = 1;
-            inFlightForClient = Collections.newSetFromMap(new ConcurrentHashMap<>());
-            inFlightForClient.add(nextPacketId);
-            this.inFlightIds.put(clientID, inFlightForClient);
-            return nextPacketId;
-        }
-
-        int maxId = inFlightForClient.isEmpty() ? 0 : Collections.max(inFlightForClient);
-        int nextPacketId = (maxId % 0xFFFF) + 1;
-        inFlightForClient.add(nextPacketId);
+        final int nextPacketId = packetIDs(clientID).next();
         LOG.debug("Next packet ID has been generated CId={}, result={}", clientID, nextPacketId);
         return nextPacketId;
     }
 
+    private PacketIDs packetIDs(String clientID) {
+        PacketIDs clientPacketIDs = this.packetIDs.get(clientID);
+        if (clientPacketIDs == null) {
+            clientPacketIDs = this.packetIDs.computeIfAbsent(clientID, id -> {
+                final PacketIDs loaded = new PacketIDs();
+                forEachClientKey(this.outboundFlightMessages, id, key -> loaded.use(packetID(key)));
+                forEachClientKey(this.secondPhaseStore, id, key -> loaded.use(packetID(key)));
+                return loaded;
+            });
+        }
+        return clientPacketIDs;
+    }
+
     @Override
-    public Queue<StoredMessage> queue(String clientID) {
-        return new H2PersistentQueue<>(this.mvStore, clientID);
+    public ISessionQueue<StoredMessage> queue(String clientID) {
+        H2PersistentQueue<StoredMessage> queue = this.queues.get(clientID);
+        if (queue == null) {
+            queue = this.queues.computeIfAbsent(clientID, id -> new H2PersistentQueue<>(this.mvStore, id,
+                this.messageBodies.references(), this.messageBodies::retain, this.messageBodies::release));
+        }
+        return queue;
     }
 
     @Override
     public void dropQueue(String clientID) {
+        // clearing the queue releases the references to the message bodies
+        queue(clientID).clear();
+        this.queues.remove(clientID);
         H2PersistentQueue.dropQueue(this.mvStore, clientID);
     }
 
     @Override
     public void moveInFlightToSecondPhaseAckWaiting(String clientID, int messageID, Message msg) {
         LOG.debug("Moving inflight message to 2nd phase ack state CId={}, messageID={}", clientID, messageID);
-        ConcurrentMap<Integer, Message> m = this.secondPhaseStore.get(clientID);
-        if (m == null) {
-            String error = String.format("Can't find the inFlight record for client <%s> during the second phase of " +
-                "QoS2 pub", clientID);
-            LOG.error(error);
-            throw new RuntimeException(error);
+        this.secondPhaseStore.put(inflightKey(clientID, messageID), this.codecs.messages().toBytes(msg));
+        packetIDs(clientID).use(messageID);
+    }
+
+    /**
+     * The message is copied to the second phase before it's removed from the flight zone, so its packet
+     * identifier stays in use.
+     */
+    @Override
+    public Message moveInFlightToSecondPhase(String clientID, int messageID) {
+        LOG.debug("Moving inflight message to 2nd phase ack state CId={}, messageID={}", clientID, messageID);
+        final String key = inflightKey(clientID, messageID);
+        final Object stored = this.outboundFlightMessages.get(key);
+        if (stored == null) {
+            return null;
         }
-        m.put(messageID, msg);
-        this.outboundFlightMessages.put(clientID, m);
+        this.secondPhaseStore.put(key, stored);
+        this.outboundFlightMessages.remove(key);
+        return this.codecs.messages().fromStored(stored);
     }
 
     @Override
     public Message secondPhaseAcknowledged(String clientID, int messageID) {
         LOG.debug("Processing second phase ACK CId={}, messageId={}", clientID, messageID);
-        final ConcurrentMap<Integer, Message> m = this.secondPhaseStore.get(clientID);
-        if (m == null) {
-            String error = String.format("Can't find the inFlight record for client <%s> during the second phase " +
-                "acking of QoS2 pub", clientID);
-            LOG.error(error);
-            throw new RuntimeException(error);
+        final Message msg = this.codecs.messages().fromStored(
+            this.secondPhaseStore.remove(inflightKey(clientID, messageID)));
+        if (!this.outboundFlightMessages.containsKey(inflightKey(clientID, messageID))) {
+            packetIDs(clientID).release(messageID);
         }
-
-        Message msg = m.remove(messageID);
-        this.secondPhaseStore.put(clientID, m);
         return msg;
     }
 
     @Override
     public int getInflightMessagesNo(String clientID) {
-        int totalInflight = 0;
-        ConcurrentMap<Integer, Message> inflightPerClient = this.mvStore.openMap(inboundStoreForClient(clientID));
-        if (inflightPerClient != null) {
-            totalInflight += inflightPerClient.size();
+        // the outbound messages of both phases hold a packet identifier, counted in memory
+        int totalInflight = packetIDs(clientID).size();
+        final String inboundMapName = inboundStoreForClient(clientID);
+        if (this.mvStore.hasMap(inboundMapName)) {
+            totalInflight += this.mvStore.<Integer, Object>openMap(inboundMapName).size();
         }
+        return totalInflight;
+    }
 
-        Map<Integer, Message> secondPhaseInFlight = this.secondPhaseStore.get(clientID);
-        if (secondPhaseInFlight != null) {
-            totalInflight += secondPhaseInFlight.size();
-        }
+    private static int countClientKeys(MVMap<String, ?> map, String clientID) {
+        final int[] count = new int[1];
+        forEachClientKey(map, clientID, key -> count[0]++);
+        return count[0];
+    }
 
-        Map<Integer, Message> outboundPerClient = outboundFlightMessages.get(clientID);
-        if (outboundPerClient != null) {
-            totalInflight += outboundPerClient.size();
+    private static void removeClientKeys(MVMap<String, ?> map, String clientID) {
+        final List<String> keys = new ArrayList<>();
+        forEachClientKey(map, clientID, keys::add);
+        for (String key : keys) {
+            map.remove(key);
         }
-
-        return totalInflight;
     }
 
     private static String inboundStoreForClient(String clientID) {
-        return "inboundInflight_" + clientID;
+        return INBOUND_INFLIGHT_MAP_PREFIX + clientID;
+    }
+
+    /**
+     * Pass to the action the values of the maps that keep encoded messages.
+     */
+    void forEachStoredMessage(Consumer<Object> action) {
+        this.outboundFlightMessages.values().forEach(action);
+        this.secondPhaseStore.values().forEach(action);
+        this.mvStore.<String, Object>openMap(MESSAGE_BODIES_MAP).values().forEach(action);
+        // the queues keep references to the bodies, and the whole messages queued by the previous versions
+        this.mvStore.<String, Object>openMap(H2PersistentQueue.QUEUES_MAP).values().forEach(action);
+        final List<String> inboundMaps = new ArrayList<>();
+        for (String mapName : this.mvStore.getMapNames()) {
+            if (mapName.startsWith(INBOUND_INFLIGHT_MAP_PREFIX)) {
+                inboundMaps.add(mapName);
+            }
+        }
+        for (String mapName : inboundMaps) {
+            this.mvStore.<Integer, Object>openMap(mapName).values().forEach(action);
+        }
     }
 
     @Override
     public StoredMessage inboundInflight(String clientID, int messageID) {
         LOG.debug("Mapping inbound message ID to GUID CId={}, messageId={}", clientID, messageID);
-        ConcurrentMap<Integer, StoredMessage> messageIdToGuid = this.mvStore.openMap(inboundStoreForClient(clientID));
-        return messageIdToGuid.get(messageID);
+        MVMap<Integer, Object> messageIdToGuid = this.mvStore.openMap(inboundStoreForClient(clientID));
+        return this.codecs.storedMessages().fromStored(messageIdToGuid.get(messageID));
     }
 
     @Override
     public void markAsInboundInflight(String clientID, int messageID, StoredMessage msg) {
-        ConcurrentMap<Integer, StoredMessage> messageIdToGuid = this.mvStore.openMap(inboundStoreForClient(clientID));
-        messageIdToGuid.put(messageID, msg);
+        MVMap<Integer, Object> messageIdToGuid = this.mvStore.openMap(inboundStoreForClient(clientID));
+        messageIdToGuid.put(messageID, this.codecs.storedMessages().toBytes(msg));
     }
 
     @Override
@@ -310,9 +516,7 @@ public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
 
     @Override
     public int getSecondPhaseAckPendingMessages(String clientID) {
-        if (!this.secondPhaseStore.containsKey(clientID))
-            return 0;
-        return this.secondPhaseStore.get(clientID).size();
+        return countClientKeys(this.secondPhaseStore, clientID);
     }
 
     @Override
@@ -320,9 +524,9 @@ public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
         // remove also the messages stored of type QoS1/2
         LOG.info("Removing stored messages with QoS 1 and 2. ClientId={}", clientID);
 
-        this.secondPhaseStore.remove(clientID);
-        this.outboundFlightMessages.remove(clientID);
-        this.inFlightIds.remove(clientID);
+        removeClientKeys(this.secondPhaseStore, clientID);
+        removeClientKeys(this.outboundFlightMessages, clientID);
+        this.packetIDs.remove(clientID);
 
         LOG.info("Wiping existing subscriptions. ClientId={}", clientID);
         wipeSubscriptions(clientID);
@@ -338,9 +542,9 @@ public class H2SessionsStore implements ISessionsStore, ISubscriptionsStore {
 
     @Override
     public void updateValidity(String clientID, long now) {
-        PersistentSession old = this.sessions.get(clientID);
+        PersistentSession old = storedSession(clientID);
         boolean cleanSession = old == null ? true : old.cleanSession;
-        sessions.put(clientID, new PersistentSession(cleanSession, now));
+        storeSession(clientID, new PersistentSession(cleanSession, now));
     }
 
     @Override
@@ -8,6 +8,8 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -95,4 +97,60 @@ public class H2PersistentQueueTest {
         assertEquals("world", after.poll());
         assertTrue("should be empty", after.isEmpty());
     }
+
+    @Test
+    public void testDrainTo() {
+        H2PersistentQueue<String> sut = new H2PersistentQueue<>(this.mvStore, "test");
+        sut.add("Hello");
+        sut.add("crazy");
+        sut.add("world");
+
+        List<String> drained = new ArrayList<>();
+        assertEquals(2, sut.drainTo(drained, 2));
+        assertEquals(2, drained.size());
+        assertEquals("Hello", drained.get(0));
+        assertEquals("crazy", drained.get(1));
+        assertEquals(1, sut.size());
+
+        assertEquals(1, sut.drainTo(drained, 10));
+        assertEquals("world", drained.get(2));
+        assertTrue("should be empty", sut.isEmpty());
+    }
+
+    @Test
+    public void testDrainToStopsAtTheElementsOfTheNextQueue() {
+        H2PersistentQueue<String> first = new H2PersistentQueue<>(this.mvStore, "test");
+        H2PersistentQueue<String> second = new H2PersistentQueue<>(this.mvStore, "test2");
+        first.add("Hello");
+        first.add("crazy");
+        second.add("world");
+        // the elements are removed behind the back of the first queue
+        H2PersistentQueue.dropQueue(this.mvStore, "test");
+
+        List<String> drained = new ArrayList<>();
+        assertEquals(0, first.drainTo(drained, 10));
+        assertTrue(drained.isEmpty());
+        assertTrue("should be empty", first.isEmpty());
+        assertEquals("world", second.poll());
+    }
+
+    @Test
+    public void testQueuesDoNotOverlap() {
+        H2PersistentQueue<String> first = new H2PersistentQueue<>(this.mvStore, "test");
+        H2PersistentQueue<String> second = new H2PersistentQueue<>(this.mvStore, "test2");
+        first.add("Hello");
+        second.add("world");
+        first.add("crazy");
+
+        List<String> elements = new ArrayList<>();
+        first.iterator().forEachRemaining(elements::add);
+        assertEquals(2, elements.size());
+        assertEquals("Hello", elements.get(0));
+        assertEquals("crazy", elements.get(1));
+
+        H2PersistentQueue.dropQueue(this.mvStore, "test");
+        H2PersistentQueue<String> reopened = new H2PersistentQueue<>(this.mvStore, "test");
+        assertTrue("dropped queue should be empty", reopened.isEmpty());
+        assertEquals("world", second.poll());
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.h2;
+
+import io.moquette.persistence.PacketIDs;
+import io.moquette.persistence.PersistentSession;
+import io.moquette.persistence.TopicDictionary;
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.IMessagesStore.Message;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import io.moquette.spi.impl.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static io.moquette.spi.impl.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class H2SessionsStoreTest {
+
+    private MVStore mvStore;
+
+    @Before
+    public void setUp() {
+        mvStore = new MVStore.Builder().open();
+    }
+
+    @After
+    public void tearDown() {
+        mvStore.close();
+    }
+
+    @Test
+    public void testClientSubscriptionsDoNotIncludeTheOnesOfOtherClients() {
+        H2SessionsStore sut = new H2SessionsStore(mvStore);
+        sut.initStore();
+        Subscription sub = new Subscription("client", asTopic("/temp"), MqttQoS.AT_MOST_ONCE);
+        sut.addNewSubscription(sub);
+        Subscription otherSub = new Subscription("client1", asTopic("/temp"), MqttQoS.AT_MOST_ONCE);
+        sut.addNewSubscription(otherSub);
+
+        assertThat(sut.getClientSubscriptions("client")).containsExactly(sub);
+
+        sut.wipeSubscriptions("client");
+
+        assertFalse(sut.contains("client"));
+        assertThat(sut.getSubscriptions()).containsExactly(otherSub);
+    }
+
+    @Test
+    public void testSubscriptionsOfThePreviousLayoutAreMigrated() {
+        Subscription sub = new Subscription("client", asTopic("/temp"), MqttQoS.AT_LEAST_ONCE);
+        MVMap<Topic, Subscription> clientSubscriptions = mvStore.openMap("subscriptions_client");
+        clientSubscriptions.put(sub.getTopicFilter(), sub);
+
+        H2SessionsStore sut = new H2SessionsStore(mvStore);
+        sut.initStore();
+
+        assertFalse(mvStore.hasMap("subscriptions_client"));
+        assertTrue(sut.contains("client"));
+        assertThat(sut.getClientSubscriptions("client")).containsExactly(sub);
+    }
+
+    private static StoredMessage message(String topic) {
+        return new StoredMessage("payload".getBytes(), MqttQoS.AT_LEAST_ONCE, topic);
+    }
+
+    @Test
+    public void testNextPacketIDSkipsTheStoredInflightIDs() {
+        H2SessionsStore sut = new H2SessionsStore(mvStore);
+        sut.initStore();
+        sut.inFlight("client", 2, message("/inflight"));
+        sut.moveInFlightToSecondPhaseAckWaiting("client", 3, message("/second_phase"));
+
+        H2SessionsStore reopened = new H2SessionsStore(mvStore);
+        reopened.initStore();
+
+        assertEquals(2, reopened.getInflightMessagesNo("client"));
+        assertEquals(1, reopened.nextPacketID("client"));
+        assertEquals(4, reopened.nextPacketID("client"));
+        assertEquals("/inflight", reopened.inFlightAck("client", 2).getTopic());
+        assertEquals("/second_phase", reopened.secondPhaseAcknowledged("client", 3).getTopic());
+        assertEquals(2, reopened.getInflightMessagesNo("client"));
+    }
+
+    @Test
+    public void testPacketIDMovedToSecondPhaseStaysInUse() {
+        H2SessionsStore sut = new H2SessionsStore(mvStore);
+        sut.initStore();
+        assertEquals(1, sut.nextPacketID("client"));
+        assertEquals(2, sut.nextPacketID("client"));
+        sut.inFlight("client", 1, message("/second_phase"));
+        sut.inFlight("client", 2, message("/acked"));
+
+        assertEquals("/second_phase", sut.moveInFlightToSecondPhase("client", 1).getTopic());
+        sut.inFlightAck("client", 2);
+        for (int i = 3; i <= PacketIDs.MAX_PACKET_ID; i++) {
+            sut.nextPacketID("client");
+        }
+
+        assertEquals(2, sut.nextPacketID("client"));
+        assertEquals("/second_phase", sut.secondPhaseAcknowledged("client", 1).getTopic());
+    }
+
+    @Test
+    public void testInflightOfThePreviousLayoutAreMigrated() {
+        MVMap<String, Map<Integer, Message>> outboundFlight = mvStore.openMap("outboundFlight");
+        outboundFlight.put("client", Collections.singletonMap(5, message("/inflight")));
+
+        H2SessionsStore sut = new H2SessionsStore(mvStore);
+        sut.initStore();
+
+        assertFalse(mvStore.hasMap("outboundFlight"));
+        assertEquals(1, sut.getInflightMessagesNo("client"));
+        assertEquals("/inflight", sut.inFlightAck("client", 5).getTopic());
+    }
+
+    @Test
+    public void testValuesOfThePreviousVersionsAreRead() {
+        MVMap<String, Object> sessions = mvStore.openMap("sessions");
+        sessions.put("client", new PersistentSession(false, 42));
+
+        H2SessionsStore sut = new H2SessionsStore(mvStore);
+        sut.initStore();
+        ClientSession session = sut.sessionForClient("client");
+
+        assertFalse(session.isCleanSession());
+        assertEquals(42, session.getLastContact());
+        sut.updateValidity("client", 43);
+        assertTrue(sessions.get("client") instanceof byte[]);
+    }
+
+    @Test
+    public void testMessageQueuedToManySessionsIsStoredOnce() {
+        H2SessionsStore sut = new H2SessionsStore(mvStore);
+        sut.initStore();
+        StoredMessage msg = message("/news");
+        sut.queue("client1").add(msg);
+        sut.queue("client2").add(msg);
+        MVMap<String, byte[]> bodies = mvStore.openMap("messageBodies");
+
+        assertEquals(1, bodies.size());
+        assertEquals("/news", sut.queue("client1").poll().getTopic());
+        assertEquals(1, bodies.size());
+        sut.dropQueue("client2");
+        assertTrue(bodies.isEmpty());
+    }
+
+    @Test
+    public void testTopicIdsOfTheStoredMessagesAreNotReclaimed() {
+        H2SessionsStore sut = new H2SessionsStore(mvStore);
+        sut.initStore();
+        sut.queue("client").add(message("/delivered"));
+        sut.queue("client").add(message("/queued"));
+        sut.queue("client").poll();
+        sut.inFlight("client", 1, message("/inflight"));
+        MVMap<Integer, String> topicNames = mvStore.openMap("topicNames");
+
+        TopicDictionary topics = new TopicDictionary(mvStore.openMap("topicIds"), topicNames);
+        assertEquals(1, topics.reclaim(sut::forEachStoredMessage));
+
+        assertThat(topicNames.values()).containsOnly("/queued", "/inflight");
+        assertEquals("/queued", sut.queue("client").poll().getTopic());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mapdb;
+
+import io.moquette.persistence.StoreCodec;
+import io.moquette.spi.ISessionQueue;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/**
+ * View of a MapDB queue that stores its elements encoded by a codec. The elements stored as objects by the
+ * previous versions are read as they are. Each element added to the queue, and the stored value of each
+ * element removed from it, are passed to listeners.
+ */
+final class MapDBEncodedQueue<T> extends AbstractQueue<T> implements ISessionQueue<T> {
+
+    private final Queue<Object> queue;
+    private final StoreCodec<T> codec;
+    private final Consumer<T> added;
+    private final Consumer<Object> removed;
+
+    MapDBEncodedQueue(Queue<Object> queue, StoreCodec<T> codec, Consumer<T> added, Consumer<Object> removed) {
+        this.queue = queue;
+        this.codec = codec;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Iterator<Object> stored = queue.iterator();
+        return new Iterator<T>() {
+
+            @Override
+            public boolean hasNext() {
+                return stored.hasNext();
+            }
+
+            private Object current;
+
+            @Override
+            public T next() {
+                current = stored.next();
+                return codec.fromStored(current);
+            }
+
+            @Override
+            public void remove() {
+                stored.remove();
+                removed.accept(current);
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean offer(T element) {
+        added.accept(element);
+        return queue.offer(codec.toBytes(element));
+    }
+
+    @Override
+    public T poll() {
+        final Object stored = queue.poll();
+        if (stored == null) {
+            return null;
+        }
+        final T element = codec.fromStored(stored);
+        removed.accept(stored);
+        return element;
+    }
+
+    /**
+     * Remove all the elements without decoding them.
+     */
+    @Override
+    public void clear() {
+        Object stored;
+        while ((stored = queue.poll()) != null) {
+            removed.accept(stored);
+        }
+    }
+
+    @Override
+    public T peek() {
+        return codec.fromStored(queue.peek());
+    }
+}
@@ -17,18 +17,23 @@
 package io.moquette.persistence.mapdb;
 
 import io.moquette.HashColletions;
+import io.moquette.persistence.StoreCodec;
+import io.moquette.persistence.StoreCodecs;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.impl.subscriptions.Subscription;
 import io.moquette.spi.impl.subscriptions.Topic;
+import io.moquette.spi.impl.subscriptions.TopicIndex;
 import org.mapdb.DB;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 /**
  * IMessagesStore implementation backed by MapDB.
@@ -39,51 +44,72 @@ class MapDBMessagesStore implements IMessagesStore {
 
     private DB m_db;
 
-    private ConcurrentMap<Topic, Message> m_retainedStore;
+    private final StoreCodec<Message> m_codec;
 
-    MapDBMessagesStore(DB db) {
+    // the messages are encoded by the codec, the ones written by the previous versions are objects
+    private ConcurrentMap<Topic, Object> m_retainedStore;
+    // the topics of the retained messages, to search the ones matching a filter
+    private final TopicIndex<Topic> m_retainedTopics = new TopicIndex<>();
+
+    MapDBMessagesStore(DB db, StoreCodecs codecs) {
         m_db = db;
+        m_codec = codecs.messages();
     }
 
     @Override
     public void initStore() {
         m_retainedStore = m_db.getHashMap("retained");
-        LOG.info("Initialized store");
+        for (Topic topic : m_retainedStore.keySet()) {
+            m_retainedTopics.put(topic, topic);
+        }
+        LOG.info("Initialized store. RetainedMessages={}", m_retainedTopics.size());
+    }
+
+    /**
+     * Pass to the action the stored values of the retained messages.
+     */
+    void forEachStoredMessage(Consumer<Object> action) {
+        m_retainedStore.values().forEach(action);
     }
 
     @Override
     public Map<Subscription, Collection<Message>> searchMatching(List<Subscription> newSubscriptions) {
-        LOG.debug("Scanning retained messages");
+        LOG.debug("Searching retained messages");
         Map<Subscription, Collection<Message>> results = HashColletions.createHashMap(newSubscriptions.size());
 
         for (Subscription sub : newSubscriptions) {
-            for (Map.Entry<Topic, Message> entry : m_retainedStore.entrySet()) {
-                Message storedMsg = entry.getValue();
-
-                //TODO this is ugly, it does a linear scan on potential big dataset
-                if (entry.getKey().match(sub.getTopicFilter())) {
-                    results.computeIfAbsent(sub, k -> new LinkedHashSet<>());
-                    results.get(sub).add(storedMsg);
+            m_retainedTopics.forEachMatching(sub.getTopicFilter(), (topic, key) -> {
+                final Message storedMsg = m_codec.fromStored(m_retainedStore.get(key));
+                if (storedMsg != null) {
+                    results.computeIfAbsent(sub, k -> new LinkedHashSet<>()).add(storedMsg);
                 }
-            }
+            });
         }
 
         if (LOG.isTraceEnabled()) {
-            LOG.trace("Retained messages have been scanned matchingMessages={}", results);
+            LOG.trace("Retained messages have been searched matchingMessages={}", results);
         }
 
         return results;
     }
 
+    @Override
+    public Iterator<Message> retainedMatching(Subscription newSubscription) {
+        return m_retainedTopics.matchingValues(newSubscription.getTopicFilter(),
+            topic -> m_codec.fromStored(m_retainedStore.get(topic)));
+    }
+
     @Override
     public void cleanRetained(Topic topic) {
         LOG.debug("Cleaning retained messages. Topic={}", topic);
+        m_retainedTopics.remove(topic);
         m_retainedStore.remove(topic);
     }
 
     @Override
     public void storeRetained(Topic topic, Message storedMessage) {
         LOG.debug("Store retained message for topic={}", topic);
-        m_retainedStore.put(topic, storedMessage);
+        m_retainedStore.put(topic, m_codec.toBytes(storedMessage));
+        m_retainedTopics.put(topic, topic);
     }
 }
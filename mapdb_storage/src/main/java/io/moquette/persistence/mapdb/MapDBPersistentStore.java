@@ -17,6 +17,9 @@
 package io.moquette.persistence.mapdb;
 
 import io.moquette.BrokerConstants;
+import io.moquette.persistence.GroupCommitter;
+import io.moquette.persistence.StoreCodecs;
+import io.moquette.persistence.TopicDictionary;
 import io.moquette.server.config.IConfig;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.ISessionsStore;
@@ -41,6 +44,8 @@ public class MapDBPersistentStore implements IStore {
     private DB m_db;
     private final String m_storePath;
     private final int m_autosaveInterval; // in seconds
+    private final int m_groupCommitRecords;
+    private final long m_groupCommitMaxDelay; // in microseconds
 
     protected final ScheduledExecutorService m_scheduler;
     private IMessagesStore m_messageStore;
@@ -50,6 +55,10 @@ public class MapDBPersistentStore implements IStore {
         this.m_storePath = props.getProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
         this.m_autosaveInterval = Integer
                 .parseInt(props.getProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, "30"));
+        this.m_groupCommitRecords = Integer
+                .parseInt(props.getProperty(BrokerConstants.GROUP_COMMIT_RECORDS_PROPERTY_NAME, "0"));
+        this.m_groupCommitMaxDelay = Long
+                .parseLong(props.getProperty(BrokerConstants.GROUP_COMMIT_MAX_DELAY_PROPERTY_NAME, "1000"));
         this.m_scheduler = scheduler;
     }
 
@@ -90,11 +99,33 @@ public class MapDBPersistentStore implements IStore {
         }, this.m_autosaveInterval, this.m_autosaveInterval, TimeUnit.SECONDS);
 
         // TODO check m_db is valid and
-        m_messageStore = new MapDBMessagesStore(m_db);
-        m_messageStore.initStore();
+        final TopicDictionary topics = new TopicDictionary(m_db.getHashMap("topicIds"),
+            m_db.getHashMap("topicNames"));
+        final StoreCodecs codecs = StoreCodecs.binary(topics);
+        final MapDBMessagesStore messagesStore = new MapDBMessagesStore(m_db, codecs);
+        messagesStore.initStore();
+        m_messageStore = messagesStore;
 
-        m_sessionsStore = new MapDBSessionsStore(m_db);
-        m_sessionsStore.initStore();
+        GroupCommitter groupCommitter = null;
+        if (m_groupCommitRecords > 0) {
+            LOG.info("Enabling MapDB group commit. Records={}, maxDelayMicros={}", m_groupCommitRecords,
+                m_groupCommitMaxDelay);
+            groupCommitter = new GroupCommitter(m_db::commit, m_scheduler, m_groupCommitRecords,
+                m_groupCommitMaxDelay);
+        }
+        final MapDBSessionsStore sessionsStore = new MapDBSessionsStore(m_db, groupCommitter, codecs);
+        sessionsStore.initStore();
+        m_sessionsStore = sessionsStore;
+
+        // the messages encoded so far are all in the store, the identifiers they do not reference are unused
+        final int reclaimed = topics.reclaim(action -> {
+            messagesStore.forEachStoredMessage(action);
+            sessionsStore.forEachStoredMessage(action);
+        });
+        if (reclaimed > 0) {
+            m_db.commit();
+        }
+        LOG.info("Reclaimed the unused topic identifiers. Count={}", reclaimed);
     }
 
     @Override
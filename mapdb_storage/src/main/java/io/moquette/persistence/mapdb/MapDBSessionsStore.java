@@ -16,10 +16,14 @@
 
 package io.moquette.persistence.mapdb;
 
+import io.moquette.persistence.GroupCommitter;
+import io.moquette.persistence.MessageBodyStore;
 import io.moquette.persistence.PersistentSession;
+import io.moquette.persistence.StoreCodecs;
 import io.moquette.spi.ClientSession;
 import io.moquette.spi.IMessagesStore.Message;
 import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISessionQueue;
 import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.ISubscriptionsStore;
 import io.moquette.spi.impl.subscriptions.Subscription;
@@ -31,6 +35,7 @@ import org.slf4j.LoggerFactory;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 /**
  * ISessionsStore implementation backed by MapDB.
@@ -39,18 +44,25 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(MapDBSessionsStore.class);
 
+    // the stored values are encoded by the codecs, the ones written by the previous versions are objects
     // maps clientID->[MessageId -> msg]
-    private ConcurrentMap<String, ConcurrentMap<Integer, Message>> outboundFlightMessages;
+    private ConcurrentMap<String, ConcurrentMap<Integer, Object>> outboundFlightMessages;
     // map clientID <-> set of currently in flight packet identifiers
     private Map<String, Set<Integer>> m_inFlightIds;
-    private ConcurrentMap<String, PersistentSession> m_persistentSessions;
+    private ConcurrentMap<String, Object> m_persistentSessions;
     // maps clientID->[MessageId -> guid]
-    private ConcurrentMap<String, ConcurrentMap<Integer, Message>> m_secondPhaseStore;
+    private ConcurrentMap<String, ConcurrentMap<Integer, Object>> m_secondPhaseStore;
 
     private final DB m_db;
+    private final GroupCommitter m_groupCommitter;
+    private final StoreCodecs m_codecs;
+    // the queues keep references to the bodies of the messages, shared by the queues
+    private MessageBodyStore m_messageBodies;
 
-    MapDBSessionsStore(DB db) {
+    MapDBSessionsStore(DB db, GroupCommitter groupCommitter, StoreCodecs codecs) {
         m_db = db;
+        m_groupCommitter = groupCommitter;
+        m_codecs = codecs;
     }
 
     @Override
@@ -59,6 +71,17 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
         m_inFlightIds = m_db.getHashMap("inflightPacketIDs");
         m_persistentSessions = m_db.getHashMap("sessions");
         m_secondPhaseStore = m_db.getHashMap("secondPhase");
+        m_messageBodies = new MessageBodyStore(m_db.getHashMap("messageBodies"),
+            m_db.getHashMap("messageReferences"), m_codecs.storedMessages());
+    }
+
+    @Override
+    public void whenDurable(Runnable action) {
+        if (m_groupCommitter == null) {
+            action.run();
+            return;
+        }
+        m_groupCommitter.whenDurable(action);
     }
 
     @Override
@@ -71,7 +94,8 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
         LOG.info("Adding new subscription. ClientId={}, topics={}", newSubscription.getClientId(),
             newSubscription.getTopicFilter());
         final String clientID = newSubscription.getClientId();
-        m_db.getHashMap("subscriptions_" + clientID).put(newSubscription.getTopicFilter(), newSubscription);
+        m_db.getHashMap("subscriptions_" + clientID).put(newSubscription.getTopicFilter(),
+            m_codecs.subscriptions().toBytes(newSubscription));
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("Subscription has been added. ClientId={}, topics={}, clientSubscriptions={}",
@@ -108,7 +132,7 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
         LOG.debug("Retrieving existing subscriptions");
         final List<ClientTopicCouple> allSubscriptions = new ArrayList<>();
         for (String clientID : m_persistentSessions.keySet()) {
-            ConcurrentMap<Topic, Subscription> clientSubscriptions = m_db.getHashMap("subscriptions_" + clientID);
+            ConcurrentMap<Topic, Object> clientSubscriptions = m_db.getHashMap("subscriptions_" + clientID);
             for (Topic topicFilter : clientSubscriptions.keySet()) {
                 allSubscriptions.add(new ClientTopicCouple(clientID, topicFilter));
             }
@@ -121,20 +145,40 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
 
     @Override
     public Subscription getSubscription(ClientTopicCouple couple) {
-        ConcurrentMap<Topic, Subscription> clientSubscriptions = m_db.getHashMap("subscriptions_" + couple.clientID);
+        ConcurrentMap<Topic, Object> clientSubscriptions = m_db.getHashMap("subscriptions_" + couple.clientID);
         LOG.debug("Retrieving subscriptions. CId={}, subscriptions={}", couple.clientID, clientSubscriptions);
-        return clientSubscriptions.get(couple.topicFilter);
+        return m_codecs.subscriptions().fromStored(clientSubscriptions.get(couple.topicFilter));
     }
 
     @Override
     public List<Subscription> getSubscriptions() {
         LOG.debug("Retrieving existing subscriptions...");
         List<Subscription> subscriptions = new ArrayList<>();
+        forEachSubscription(subscriptions::add);
+        LOG.debug("Existing subscriptions has been retrieved Result={}", subscriptions);
+        return subscriptions;
+    }
+
+    @Override
+    public void forEachSubscription(Consumer<Subscription> action) {
         for (String clientID : m_persistentSessions.keySet()) {
-            ConcurrentMap<Topic, Subscription> clientSubscriptions = m_db.getHashMap("subscriptions_" + clientID);
-            subscriptions.addAll(clientSubscriptions.values());
+            ConcurrentMap<Topic, Object> clientSubscriptions = m_db.getHashMap("subscriptions_" + clientID);
+            for (Object stored : clientSubscriptions.values()) {
+                action.accept(m_codecs.subscriptions().fromStored(stored));
+            }
+        }
+    }
+
+    @Override
+    public List<Subscription> getClientSubscriptions(String clientID) {
+        if (!m_db.exists("subscriptions_" + clientID)) {
+            return Collections.emptyList();
+        }
+        ConcurrentMap<Topic, Object> clientSubscriptions = m_db.getHashMap("subscriptions_" + clientID);
+        List<Subscription> subscriptions = new ArrayList<>(clientSubscriptions.size());
+        for (Object stored : clientSubscriptions.values()) {
+            subscriptions.add(m_codecs.subscriptions().fromStored(stored));
         }
-        LOG.debug("Existing subscriptions has been retrieved Result={}", subscriptions);
         return subscriptions;
     }
 
@@ -151,7 +195,8 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
             throw new IllegalArgumentException("Can't create a session with the ID of an already existing" + clientID);
         }
         LOG.debug("Creating new session. CId={}, cleanSession={}", clientID, cleanSession);
-        m_persistentSessions.putIfAbsent(clientID, new PersistentSession(cleanSession, now));
+        m_persistentSessions.putIfAbsent(clientID,
+            m_codecs.sessions().toBytes(new PersistentSession(cleanSession, now)));
         return new ClientSession(clientID, this, this, cleanSession, now);
     }
 
@@ -163,15 +208,23 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
             return null;
         }
 
-        PersistentSession storedSession = m_persistentSessions.get(clientID);
+        PersistentSession storedSession = storedSession(clientID);
         return new ClientSession(clientID, this, this, storedSession.cleanSession, storedSession.lastContatct);
     }
 
+    private PersistentSession storedSession(String clientID) {
+        return m_codecs.sessions().fromStored(m_persistentSessions.get(clientID));
+    }
+
+    private void storeSession(String clientID, PersistentSession session) {
+        m_persistentSessions.put(clientID, m_codecs.sessions().toBytes(session));
+    }
+
     @Override
     public void updateCleanStatus(String clientID, boolean cleanSession) {
         LOG.info("Updating cleanSession flag. CId={}, cleanSession={}", clientID, cleanSession);
-        PersistentSession storedSession = m_persistentSessions.get(clientID);
-        m_persistentSessions.put(clientID, new PersistentSession(cleanSession, storedSession.lastContatct));
+        PersistentSession storedSession = storedSession(clientID);
+        storeSession(clientID, new PersistentSession(cleanSession, storedSession.lastContatct));
     }
 
     /**
@@ -200,12 +253,12 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
     @Override
     public Message inFlightAck(String clientID, int messageID) {
         LOG.debug("Acknowledging inflight message CId={}, messageId={}", clientID, messageID);
-        ConcurrentMap<Integer, Message> m = this.outboundFlightMessages.get(clientID);
+        ConcurrentMap<Integer, Object> m = this.outboundFlightMessages.get(clientID);
         if (m == null) {
             LOG.error("Can't find the inFlight record for client <{}>", clientID);
             throw new RuntimeException("Can't find the inFlight record for client <" + clientID + ">");
         }
-        Message msg = m.remove(messageID);
+        Message msg = m_codecs.messages().fromStored(m.remove(messageID));
         this.outboundFlightMessages.put(clientID, m);
 
         // remove from the ids store
@@ -218,44 +271,47 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
 
     @Override
     public void inFlight(String clientID, int messageID, Message msg) {
-        ConcurrentMap<Integer, Message> messages = outboundFlightMessages.get(clientID);
+        ConcurrentMap<Integer, Object> messages = outboundFlightMessages.get(clientID);
         if (messages == null) {
             messages = new ConcurrentHashMap<>();
         }
-        messages.put(messageID, msg);
+        messages.put(messageID, m_codecs.messages().toBytes(msg));
         outboundFlightMessages.put(clientID, messages);
     }
 
     @Override
-    public Queue<StoredMessage> queue(String clientID) {
+    public ISessionQueue<StoredMessage> queue(String clientID) {
         LOG.info("Queuing pending message. CId={}, guid={}", clientID);
-        return this.m_db.getQueue(clientID);
+        return new MapDBEncodedQueue<>(this.m_db.getQueue(clientID), m_messageBodies.references(),
+            m_messageBodies::retain, m_messageBodies::release);
     }
 
     @Override
     public void dropQueue(String clientID) {
         LOG.info("Removing pending messages. CId={}", clientID);
+        // clearing the queue releases the references to the message bodies
+        queue(clientID).clear();
         this.m_db.delete(clientID);
     }
 
     @Override
     public void moveInFlightToSecondPhaseAckWaiting(String clientID, int messageID, Message msg) {
         LOG.debug("Moving inflight message to 2nd phase ack state. CId={}, messageID={}", clientID, messageID);
-        ConcurrentMap<Integer, Message> m = this.m_secondPhaseStore.get(clientID);
+        ConcurrentMap<Integer, Object> m = this.m_secondPhaseStore.get(clientID);
         if (m == null) {
             String error = String.format("Can't find the inFlight record for client <%s> during the second phase of " +
                 "QoS2 pub", clientID);
             LOG.error(error);
             throw new RuntimeException(error);
         }
-        m.put(messageID, msg);
+        m.put(messageID, m_codecs.messages().toBytes(msg));
         this.outboundFlightMessages.put(clientID, m);
     }
 
     @Override
     public Message secondPhaseAcknowledged(String clientID, int messageID) {
         LOG.debug("Processing second phase ACK CId={}, messageId={}", clientID, messageID);
-        final ConcurrentMap<Integer, Message> m = this.m_secondPhaseStore.get(clientID);
+        final ConcurrentMap<Integer, Object> m = this.m_secondPhaseStore.get(clientID);
         if (m == null) {
             String error = String.format("Can't find the inFlight record for client <%s> during the second phase " +
                 "acking of QoS2 pub", clientID);
@@ -263,7 +319,7 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
             throw new RuntimeException(error);
         }
 
-        Message msg = m.remove(messageID);
+        Message msg = m_codecs.messages().fromStored(m.remove(messageID));
         m_secondPhaseStore.put(clientID, m);
         return msg;
     }
@@ -271,17 +327,17 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
     @Override
     public int getInflightMessagesNo(String clientID) {
         int totalInflight = 0;
-        ConcurrentMap<Integer, StoredMessage> inflightPerClient = m_db.getHashMap(inboundMessageId2MessagesMapName(clientID));
-        if (inflightPerClient != null) {
-            totalInflight += inflightPerClient.size();
+        final String inboundMapName = inboundMessageId2MessagesMapName(clientID);
+        if (m_db.exists(inboundMapName)) {
+            totalInflight += m_db.getHashMap(inboundMapName).size();
         }
 
-        Map<Integer, Message> secondPhaseInFlight = this.m_secondPhaseStore.get(clientID);
+        Map<Integer, Object> secondPhaseInFlight = this.m_secondPhaseStore.get(clientID);
         if (secondPhaseInFlight != null) {
             totalInflight += secondPhaseInFlight.size();
         }
 
-        Map<Integer, Message> outboundPerClient = outboundFlightMessages.get(clientID);
+        Map<Integer, Object> outboundPerClient = outboundFlightMessages.get(clientID);
         if (outboundPerClient != null) {
             totalInflight += outboundPerClient.size();
         }
@@ -292,14 +348,14 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
     @Override
     public StoredMessage inboundInflight(String clientID, int messageID) {
         LOG.debug("Mapping inbound message ID to GUID CId={}, messageId={}", clientID, messageID);
-        ConcurrentMap<Integer, StoredMessage> messageIdToGuid = m_db.getHashMap(inboundMessageId2MessagesMapName(clientID));
-        return messageIdToGuid.get(messageID);
+        ConcurrentMap<Integer, Object> messageIdToGuid = m_db.getHashMap(inboundMessageId2MessagesMapName(clientID));
+        return m_codecs.storedMessages().fromStored(messageIdToGuid.get(messageID));
     }
 
     @Override
     public void markAsInboundInflight(String clientID, int messageID, StoredMessage msg) {
-        ConcurrentMap<Integer, StoredMessage> messageIdToGuid = m_db.getHashMap(inboundMessageId2MessagesMapName(clientID));
-        messageIdToGuid.put(messageID, msg);
+        ConcurrentMap<Integer, Object> messageIdToGuid = m_db.getHashMap(inboundMessageId2MessagesMapName(clientID));
+        messageIdToGuid.put(messageID, m_codecs.storedMessages().toBytes(msg));
     }
 
     @Override
@@ -333,6 +389,25 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
         return "inboundInflight_" + clientID;
     }
 
+    /**
+     * Pass to the action the values of the collections that keep encoded messages.
+     */
+    void forEachStoredMessage(Consumer<Object> action) {
+        outboundFlightMessages.values().forEach(messages -> messages.values().forEach(action));
+        m_secondPhaseStore.values().forEach(messages -> messages.values().forEach(action));
+        m_db.getHashMap("messageBodies").values().forEach(action);
+        for (String clientID : m_persistentSessions.keySet()) {
+            // the queues keep references to the bodies, and the whole messages queued by the previous versions
+            if (m_db.exists(clientID)) {
+                m_db.getQueue(clientID).forEach(action);
+            }
+            final String inboundMapName = inboundMessageId2MessagesMapName(clientID);
+            if (m_db.exists(inboundMapName)) {
+                m_db.getHashMap(inboundMapName).values().forEach(action);
+            }
+        }
+    }
+
     @Override
     public Set<String> getClientIDs() {
         return m_persistentSessions.keySet();
@@ -346,8 +421,8 @@ class MapDBSessionsStore implements ISessionsStore, ISubscriptionsStore {
 
     @Override
     public void updateValidity(String clientID, long now) {
-        PersistentSession storedSession = m_persistentSessions.get(clientID);
+        PersistentSession storedSession = storedSession(clientID);
         boolean cleanSession = storedSession == null ? true : storedSession.cleanSession;
-        m_persistentSessions.put(clientID, new PersistentSession(cleanSession, now));
+        storeSession(clientID, new PersistentSession(cleanSession, now));
     }
 }
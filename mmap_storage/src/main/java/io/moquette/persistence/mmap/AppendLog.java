@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mmap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Append only log of variable length entries, stored in memory mapped segment files. An entry is referenced
+ * by the segment id in the upper 32 bits and the position in the segment in the lower 32 bits; each entry is
+ * preceded by its length, so that a zero length marks the end of the written part of a segment.
+ *
+ * The entries are never overwritten: the log keeps track of the bytes still referenced in each segment, and
+ * a segment is deleted once none of its entries is referenced anymore.
+ *
+ * Not thread safe, the owner serializes the access.
+ */
+final class AppendLog {
+
+    static final class Segment {
+
+        final int id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        long liveBytes;
+
+        Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        double liveRatio() {
+            return writePosition == 0 ? 1.0 : (double) liveBytes / writePosition;
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(AppendLog.class);
+
+    static final int HEADER_SIZE = 4;
+    private static final String SEGMENT_PREFIX = "log-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File directory;
+    private final int segmentSize;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+
+    AppendLog(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        final File[] files = directory.listFiles((dir, name) ->
+            name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                final int id = Integer.parseInt(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                final Segment segment = new Segment(id, file, map(file, file.length()));
+                segment.writePosition = scanWritePosition(segment.buffer);
+                segments.put(id, segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            active = createSegment(0, segmentSize);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        LOG.info("Opened the append log. Path={}, segments={}", directory, segments.size());
+    }
+
+    static int segmentId(long ref) {
+        return (int) (ref >>> 32);
+    }
+
+    private static int position(long ref) {
+        return (int) ref;
+    }
+
+    private static long ref(int segmentId, int position) {
+        return ((long) segmentId << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    private static int scanWritePosition(ByteBuffer buffer) {
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            final int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private Segment createSegment(int id, int capacity) {
+        final File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        try {
+            final Segment segment = new Segment(id, file, map(file, capacity));
+            segments.put(id, segment);
+            LOG.debug("Created log segment. Path={}, capacity={}", file, capacity);
+            return segment;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Can't create the log segment " + file, ex);
+        }
+    }
+
+    /**
+     * Append an entry of the given length, the writer has to fill the buffer it receives.
+     *
+     * @return the reference to the entry.
+     */
+    long append(int length, Consumer<ByteBuffer> writer) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Log entries can't be empty");
+        }
+        final int entrySize = HEADER_SIZE + length;
+        if (active.writePosition + entrySize > active.capacity()) {
+            // an entry bigger than the segment size gets a segment of its own
+            active = createSegment(active.id + 1, Math.max(segmentSize, entrySize));
+        }
+        final int position = active.writePosition;
+        final ByteBuffer data = active.buffer.duplicate();
+        data.position(position + HEADER_SIZE);
+        data.limit(position + entrySize);
+        writer.accept(data.slice());
+        // the length is written last, it marks the entry as complete
+        active.buffer.putInt(position, length);
+        active.writePosition += entrySize;
+        active.liveBytes += entrySize;
+        return ref(active.id, position);
+    }
+
+    /**
+     * @return a view of the referenced entry, it stays valid also after the entry has been released.
+     */
+    ByteBuffer read(long ref) {
+        final Segment segment = segments.get(segmentId(ref));
+        final int position = position(ref);
+        final ByteBuffer data = segment.buffer.duplicate();
+        data.position(position + HEADER_SIZE);
+        data.limit(position + HEADER_SIZE + segment.buffer.getInt(position));
+        return data.slice();
+    }
+
+    /**
+     * @return true iff the reference points to an entry completely written.
+     */
+    boolean isValid(long ref) {
+        final Segment segment = segments.get(segmentId(ref));
+        final int position = position(ref);
+        if (segment == null || position < 0 || position + HEADER_SIZE > segment.writePosition) {
+            return false;
+        }
+        final int length = segment.buffer.getInt(position);
+        return length > 0 && position + HEADER_SIZE + length <= segment.writePosition;
+    }
+
+    private int entrySize(Segment segment, long ref) {
+        return HEADER_SIZE + segment.buffer.getInt(position(ref));
+    }
+
+    /**
+     * Account the entry as referenced, used when the references are loaded from the disk.
+     */
+    void markLive(long ref) {
+        final Segment segment = segments.get(segmentId(ref));
+        segment.liveBytes += entrySize(segment, ref);
+    }
+
+    /**
+     * Account the entry as not referenced anymore.
+     */
+    void release(long ref) {
+        final Segment segment = segments.get(segmentId(ref));
+        if (segment == null) {
+            LOG.warn("Releasing an entry of a deleted segment. Segment={}", segmentId(ref));
+            return;
+        }
+        segment.liveBytes -= entrySize(segment, ref);
+    }
+
+    /**
+     * Append a copy of the entry at the end of the log, the original entry is not released.
+     */
+    long copy(long ref) {
+        final ByteBuffer source = read(ref);
+        return append(source.remaining(), target -> target.put(source));
+    }
+
+    /**
+     * @return the sealed segment with the lowest ratio of live bytes, if below maxLiveRatio, else null.
+     */
+    Segment sparsestSealedSegment(double maxLiveRatio) {
+        Segment sparsest = null;
+        for (Segment segment : segments.values()) {
+            // the dead segments are just deleted
+            if (segment != active && segment.liveBytes > 0 && segment.liveRatio() < maxLiveRatio
+                    && (sparsest == null || segment.liveRatio() < sparsest.liveRatio())) {
+                sparsest = segment;
+            }
+        }
+        return sparsest;
+    }
+
+    boolean hasDeadSegments() {
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.liveBytes == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delete the sealed segments without live entries.
+     *
+     * @return the number of deleted segments.
+     */
+    int deleteDeadSegments() {
+        int deleted = 0;
+        final Iterator<Map.Entry<Integer, Segment>> it = segments.entrySet().iterator();
+        while (it.hasNext()) {
+            final Segment segment = it.next().getValue();
+            if (segment == active || segment.liveBytes > 0) {
+                continue;
+            }
+            it.remove();
+            // the mapping is released by the GC, the views already handed out stay readable
+            if (!segment.file.delete()) {
+                LOG.warn("Can't delete the log segment. Path={}", segment.file);
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    List<MappedByteBuffer> buffers() {
+        final List<MappedByteBuffer> buffers = new ArrayList<>(segments.size());
+        for (Segment segment : segments.values()) {
+            buffers.add(segment.buffer);
+        }
+        return buffers;
+    }
+
+    int segmentsNo() {
+        return segments.size();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mmap;
+
+/**
+ * FIFO of ints backed by a growable circular array, used to keep the record indexes of a queue without
+ * boxing them.
+ */
+final class IntRing {
+
+    private int[] elements = new int[8];
+    private int head;
+    private int size;
+
+    void add(int element) {
+        if (size == elements.length) {
+            final int[] grown = new int[elements.length * 2];
+            final int tailLength = elements.length - head;
+            System.arraycopy(elements, head, grown, 0, tailLength);
+            System.arraycopy(elements, 0, grown, tailLength, head);
+            elements = grown;
+            head = 0;
+        }
+        elements[(head + size) % elements.length] = element;
+        size++;
+    }
+
+    /**
+     * @return the element at index, 0 being the head.
+     */
+    int get(int index) {
+        return elements[(head + index) % elements.length];
+    }
+
+    int remove() {
+        final int element = elements[head];
+        head = (head + 1) % elements.length;
+        size--;
+        return element;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+}
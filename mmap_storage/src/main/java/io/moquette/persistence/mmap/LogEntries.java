@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mmap;
+
+import io.moquette.spi.IMessagesStore.Message;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import io.moquette.spi.impl.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Binary layout of the entries of the append log. Every entry starts with its kind, so that no entry is empty.
+ */
+final class LogEntries {
+
+    private static final byte CLIENT_ID = 1;
+    private static final byte SUBSCRIPTION = 2;
+    private static final byte MESSAGE = 3;
+    private static final byte STORED_MESSAGE = 4;
+
+    private LogEntries() {
+    }
+
+    static long appendClientID(AppendLog log, String clientID) {
+        final byte[] id = clientID.getBytes(StandardCharsets.UTF_8);
+        return log.append(1 + id.length, buffer -> buffer.put(CLIENT_ID).put(id));
+    }
+
+    static String readClientID(ByteBuffer entry) {
+        entry.get();
+        return readString(entry, entry.remaining());
+    }
+
+    static long appendSubscription(AppendLog log, Subscription subscription) {
+        final byte[] filter = subscription.getTopicFilter().toString().getBytes(StandardCharsets.UTF_8);
+        return log.append(2 + filter.length, buffer -> buffer
+            .put(SUBSCRIPTION)
+            .put((byte) subscription.getRequestedQos().value())
+            .put(filter));
+    }
+
+    static Subscription readSubscription(ByteBuffer entry, String clientID) {
+        entry.get();
+        final MqttQoS qos = MqttQoS.valueOf(entry.get());
+        return new Subscription(clientID, Topic.intern(readString(entry, entry.remaining())), qos);
+    }
+
+    /**
+     * The payload is copied from the message without detaching it.
+     */
+    static long appendMessage(AppendLog log, Message msg) {
+        final byte[] topic = msg.getTopic().getBytes(StandardCharsets.UTF_8);
+        final boolean stored = msg instanceof StoredMessage;
+        byte[] clientID = null;
+        UUID guid = null;
+        if (stored) {
+            final StoredMessage storedMsg = (StoredMessage) msg;
+            clientID = storedMsg.getClientID() == null ? null
+                : storedMsg.getClientID().getBytes(StandardCharsets.UTF_8);
+            guid = storedMsg.getGuid();
+        }
+        final ByteBuf payload = msg.getPayload();
+        final int length = 3 + 4 + topic.length
+            + (stored ? 4 + (clientID == null ? 0 : clientID.length) + 1 + (guid == null ? 0 : 16) : 0)
+            + payload.readableBytes();
+        final byte[] storedClientID = clientID;
+        final UUID storedGuid = guid;
+        return log.append(length, buffer -> {
+            buffer.put(stored ? STORED_MESSAGE : MESSAGE)
+                .put((byte) msg.getQos().value())
+                .put((byte) (msg.isRetained() ? 1 : 0))
+                .putInt(topic.length)
+                .put(topic);
+            if (stored) {
+                if (storedClientID == null) {
+                    buffer.putInt(-1);
+                } else {
+                    buffer.putInt(storedClientID.length).put(storedClientID);
+                }
+                if (storedGuid == null) {
+                    buffer.put((byte) 0);
+                } else {
+                    buffer.put((byte) 1)
+                        .putLong(storedGuid.getMostSignificantBits())
+                        .putLong(storedGuid.getLeastSignificantBits());
+                }
+            }
+            payload.getBytes(payload.readerIndex(), buffer);
+        });
+    }
+
+    /**
+     * The payload of the returned message refers to the mapped log, it isn't copied on the heap.
+     */
+    static Message readMessage(ByteBuffer entry) {
+        final boolean stored = entry.get() == STORED_MESSAGE;
+        final MqttQoS qos = MqttQoS.valueOf(entry.get());
+        final boolean retained = entry.get() == 1;
+        final String topic = readString(entry, entry.getInt());
+        if (!stored) {
+            final Message msg = new Message(Unpooled.wrappedBuffer(entry.slice()), qos, topic);
+            msg.setRetained(retained);
+            return msg;
+        }
+        final int clientIDLength = entry.getInt();
+        final String clientID = clientIDLength < 0 ? null : readString(entry, clientIDLength);
+        final UUID guid = entry.get() == 0 ? null : new UUID(entry.getLong(), entry.getLong());
+        final StoredMessage msg = new StoredMessage(Unpooled.wrappedBuffer(entry.slice()), qos, topic);
+        msg.setRetained(retained);
+        msg.setClientID(clientID);
+        msg.setGuid(guid);
+        return msg;
+    }
+
+    static StoredMessage readStoredMessage(ByteBuffer entry) {
+        final Message msg = readMessage(entry);
+        if (msg instanceof StoredMessage) {
+            return (StoredMessage) msg;
+        }
+        final StoredMessage storedMsg = new StoredMessage(msg.getPayload(), msg.getQos(), msg.getTopic());
+        storedMsg.setRetained(msg.isRetained());
+        return storedMsg;
+    }
+
+    static String readMessageTopic(ByteBuffer entry) {
+        entry.position(entry.position() + 3);
+        return readString(entry, entry.getInt());
+    }
+
+    private static String readString(ByteBuffer entry, int length) {
+        final byte[] bytes = new byte[length];
+        entry.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
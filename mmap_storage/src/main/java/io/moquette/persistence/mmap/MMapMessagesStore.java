@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mmap;
+
+import io.moquette.HashColletions;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import io.moquette.spi.impl.subscriptions.Topic;
+import io.moquette.spi.impl.subscriptions.TopicIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Retained messages store, each retained message is a record of the records table referencing the message
+ * in the append log.
+ */
+public class MMapMessagesStore implements IMessagesStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MMapMessagesStore.class);
+
+    private final RecordTable table;
+    private final AppendLog log;
+    private final Object lock;
+    private final TopicIndex<Integer> retainedRecords = new TopicIndex<>();
+
+    MMapMessagesStore(RecordTable table, AppendLog log, Object lock) {
+        this.table = table;
+        this.log = log;
+        this.lock = lock;
+    }
+
+    @Override
+    public void initStore() {
+        synchronized (lock) {
+            table.forEachUsed(record -> {
+                if (table.type(record) == RecordTable.RETAINED) {
+                    final String topic = LogEntries.readMessageTopic(log.read(table.ref(record)));
+                    retainedRecords.put(Topic.intern(topic), record);
+                }
+            });
+            LOG.info("Initialized messages mmap store. RetainedMessages={}", retainedRecords.size());
+        }
+    }
+
+    @Override
+    public Map<Subscription, Collection<Message>> searchMatching(List<Subscription> newSubscriptions) {
+        LOG.debug("Searching retained messages...");
+        Map<Subscription, Collection<Message>> results = HashColletions.createHashMap(newSubscriptions.size());
+
+        synchronized (lock) {
+            for (Subscription sub : newSubscriptions) {
+                retainedRecords.forEachMatching(sub.getTopicFilter(), (topic, record) ->
+                    results.computeIfAbsent(sub, k -> new LinkedList<>())
+                        .add(LogEntries.readMessage(log.read(table.ref(record)))));
+            }
+        }
+
+        LOG.trace("The retained messages have been searched. MatchingMessages = {}.", results);
+        return results;
+    }
+
+    /**
+     * The matching topics are walked without locking, each message is read from the log under the lock of
+     * the store so that its record can't be released meanwhile.
+     */
+    @Override
+    public Iterator<Message> retainedMatching(Subscription newSubscription) {
+        return retainedRecords.matchingValues(newSubscription.getTopicFilter(), topic -> {
+            synchronized (lock) {
+                final Integer record = retainedRecords.get(topic);
+                return record == null ? null : LogEntries.readMessage(log.read(table.ref(record)));
+            }
+        });
+    }
+
+    @Override
+    public void cleanRetained(Topic topic) {
+        synchronized (lock) {
+            final Integer record = retainedRecords.remove(topic);
+            if (record != null) {
+                log.release(table.ref(record));
+                table.free(record);
+            }
+        }
+    }
+
+    @Override
+    public void storeRetained(Topic topic, Message storedMessage) {
+        LOG.debug("Store retained message for topic={}", topic);
+        synchronized (lock) {
+            final long ref = LogEntries.appendMessage(log, storedMessage);
+            final Integer previous = retainedRecords.put(topic,
+                table.allocate(RecordTable.RETAINED, (byte) 0, -1, ref, 0L));
+            if (previous != null) {
+                log.release(table.ref(previous));
+                table.free(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mmap;
+
+import io.moquette.BrokerConstants;
+import io.moquette.persistence.GroupCommitter;
+import io.moquette.server.config.IConfig;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.IStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store of the session state in memory mapped files, made of a table of fixed layout records and an append
+ * only log with the messages and the other variable length data. The persistent_store property is the
+ * directory of the files.
+ *
+ * The mapped files are forced to the disk every autosave_interval, a background task deletes the log
+ * segments no longer referenced and moves the live entries out of the sparsest segment.
+ */
+public class MMapPersistentStore implements IStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MMapPersistentStore.class);
+
+    private final String storePath;
+    private final int autosaveInterval; // in seconds
+    private final int segmentSize;
+    private final int compactionInterval; // in seconds
+    private final double compactionLiveRatio;
+    private final int groupCommitRecords;
+    private final long groupCommitMaxDelay; // in microseconds
+    protected final ScheduledExecutorService scheduler;
+    private final Object lock = new Object();
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+
+    private File directory;
+    private boolean temporaryDirectory;
+    private RecordTable table;
+    private AppendLog log;
+    private IMessagesStore messageStore;
+    private MMapSessionsStore sessionsStore;
+
+    public MMapPersistentStore(IConfig props, ScheduledExecutorService scheduler) {
+        this.storePath = props.getProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
+        this.autosaveInterval = Integer.parseInt(
+            props.getProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, "30"));
+        this.segmentSize = Integer.parseInt(props.getProperty(BrokerConstants.MMAP_STORAGE_SEGMENT_SIZE, "67108864"));
+        this.compactionInterval = Integer.parseInt(
+            props.getProperty(BrokerConstants.MMAP_STORAGE_COMPACTION_INTERVAL, "60"));
+        this.compactionLiveRatio = Double.parseDouble(
+            props.getProperty(BrokerConstants.MMAP_STORAGE_COMPACTION_LIVE_RATIO, "0.5"));
+        this.groupCommitRecords = Integer.parseInt(
+            props.getProperty(BrokerConstants.GROUP_COMMIT_RECORDS_PROPERTY_NAME, "0"));
+        this.groupCommitMaxDelay = Long.parseLong(
+            props.getProperty(BrokerConstants.GROUP_COMMIT_MAX_DELAY_PROPERTY_NAME, "1000"));
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void initStore() {
+        LOG.info("Initializing mmap store");
+        try {
+            if (storePath == null || storePath.isEmpty()) {
+                directory = Files.createTempDirectory("moquette-mmap").toFile();
+                temporaryDirectory = true;
+                LOG.warn("mmap store path is empty, using a temporary directory. Path={}", directory);
+            } else {
+                directory = new File(storePath);
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Can't create the directory " + directory);
+                }
+            }
+            synchronized (lock) {
+                log = new AppendLog(directory, segmentSize);
+                table = new RecordTable(directory);
+                loadReferences();
+            }
+        } catch (IOException ex) {
+            LOG.error("Unable to open the mmap store. Path={}", storePath, ex);
+            throw new RuntimeException("Can't open the mmap store [" + storePath + "]", ex);
+        }
+
+        GroupCommitter groupCommitter = null;
+        if (groupCommitRecords > 0) {
+            LOG.info("Enabling mmap group commit. Records={}, maxDelayMicros={}", groupCommitRecords,
+                groupCommitMaxDelay);
+            groupCommitter = new GroupCommitter(this::force, scheduler, groupCommitRecords, groupCommitMaxDelay);
+        }
+
+        LOG.info("Scheduling mmap force and compaction tasks");
+        tasks.add(scheduler.scheduleWithFixedDelay(this::force, autosaveInterval, autosaveInterval, TimeUnit.SECONDS));
+        tasks.add(scheduler.scheduleWithFixedDelay(this::compact, compactionInterval, compactionInterval,
+            TimeUnit.SECONDS));
+
+        messageStore = new MMapMessagesStore(table, log, lock);
+        messageStore.initStore();
+
+        sessionsStore = new MMapSessionsStore(table, log, lock, groupCommitter);
+        sessionsStore.initStore();
+    }
+
+    /**
+     * Drop the records whose log entry has not been completely written, and account the live entries of the log.
+     */
+    private void loadReferences() {
+        final int[] dropped = new int[1];
+        // the queue records of a message published to many sessions share its entry
+        final Set<Long> queuedRefs = new HashSet<>();
+        table.forEachUsed(record -> {
+            final long ref = table.ref(record);
+            if (log.isValid(ref)) {
+                if (table.type(record) != RecordTable.QUEUED || queuedRefs.add(ref)) {
+                    log.markLive(ref);
+                }
+            } else {
+                table.free(record);
+                dropped[0]++;
+            }
+        });
+        if (dropped[0] > 0) {
+            LOG.warn("Dropped the records referencing incomplete log entries. Records={}", dropped[0]);
+        }
+    }
+
+    void force() {
+        final List<MappedByteBuffer> buffers;
+        synchronized (lock) {
+            buffers = table.buffers();
+            buffers.addAll(log.buffers());
+        }
+        LOG.debug("Forcing mmap store to disk");
+        for (MappedByteBuffer buffer : buffers) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Move the live entries of the sparsest segment at the end of the log, then delete the segments without
+     * live entries. The log and the record table are forced before deleting, so that after a crash no record
+     * on disk refers to a deleted segment.
+     */
+    void compact() {
+        synchronized (lock) {
+            final AppendLog.Segment sparsest = log.sparsestSealedSegment(compactionLiveRatio);
+            if (sparsest != null) {
+                LOG.debug("Compacting log segment. Segment={}, liveBytes={}", sparsest.id, sparsest.liveBytes);
+                final Map<Long, Long> moved = new HashMap<>();
+                table.forEachUsed(record -> {
+                    final long ref = table.ref(record);
+                    if (AppendLog.segmentId(ref) != sparsest.id) {
+                        return;
+                    }
+                    // the entries shared by many records are moved once
+                    Long newRef = moved.get(ref);
+                    if (newRef == null) {
+                        newRef = log.copy(ref);
+                        moved.put(ref, newRef);
+                        log.release(ref);
+                    }
+                    table.setRef(record, newRef);
+                });
+                sessionsStore.queuedBodiesMoved(moved);
+            }
+            if (!log.hasDeadSegments()) {
+                return;
+            }
+            force();
+            final int deleted = log.deleteDeadSegments();
+            LOG.info("Deleted log segments. Deleted={}, remaining={}", deleted, log.segmentsNo());
+        }
+    }
+
+    @Override
+    public void close() {
+        for (ScheduledFuture<?> task : tasks) {
+            task.cancel(false);
+        }
+        if (log == null) {
+            return;
+        }
+        LOG.info("Performing last force of the mmap store");
+        force();
+        if (temporaryDirectory) {
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+        LOG.info("mmap store has been closed successfully");
+    }
+
+    @Override
+    public IMessagesStore messagesStore() {
+        return messageStore;
+    }
+
+    @Override
+    public ISessionsStore sessionsStore() {
+        return sessionsStore;
+    }
+}
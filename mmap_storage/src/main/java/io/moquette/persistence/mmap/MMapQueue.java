@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mmap;
+
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISessionQueue;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+
+/**
+ * View of the queue of a session, the messages are kept by the sessions store.
+ */
+final class MMapQueue extends AbstractQueue<StoredMessage> implements ISessionQueue<StoredMessage> {
+
+    private final MMapSessionsStore sessionsStore;
+    private final String clientID;
+
+    MMapQueue(MMapSessionsStore sessionsStore, String clientID) {
+        this.sessionsStore = sessionsStore;
+        this.clientID = clientID;
+    }
+
+    /**
+     * @return an iterator over a snapshot of the queue.
+     */
+    @Override
+    public Iterator<StoredMessage> iterator() {
+        return sessionsStore.queuedMessages(clientID).iterator();
+    }
+
+    @Override
+    public int size() {
+        return sessionsStore.queuedNo(clientID);
+    }
+
+    @Override
+    public boolean offer(StoredMessage msg) {
+        if (msg == null) {
+            throw new NullPointerException("Inserted element can't be null");
+        }
+        return sessionsStore.offerQueued(clientID, msg);
+    }
+
+    @Override
+    public StoredMessage poll() {
+        return sessionsStore.pollQueued(clientID);
+    }
+
+    @Override
+    public StoredMessage peek() {
+        return sessionsStore.peekQueued(clientID);
+    }
+}
@@ -0,0 +1,735 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mmap;
+
+import io.moquette.persistence.GroupCommitter;
+import io.moquette.persistence.PacketIDs;
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.IMessagesStore.Message;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISessionQueue;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.ISubscriptionsStore;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import io.moquette.spi.impl.subscriptions.Topic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Sessions store keeping the state of each session in the records table: a record for the session, one per
+ * subscription, per inflight message and per queued message. The messages and the other variable length
+ * data are entries of the append log referenced by the records.
+ *
+ * On heap there is only the index of the records of each session, the messages are read from the mapped
+ * log when requested, without copying the payload.
+ */
+public class MMapSessionsStore implements ISessionsStore, ISubscriptionsStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MMapSessionsStore.class);
+
+    private static final byte CLEAN_SESSION_FLAG = 1;
+
+    /**
+     * Index of the records of a session, the keys are the packet identifiers and the values the record indexes.
+     */
+    private static final class Session {
+
+        final String clientID;
+        final int record;
+        final Map<Topic, Integer> subscriptions = new HashMap<>();
+        final Map<Integer, Integer> outboundFlightMessages = new HashMap<>();
+        final Map<Integer, Integer> secondPhaseStore = new HashMap<>();
+        final Map<Integer, Integer> inboundFlightMessages = new HashMap<>();
+        final IntRing queue = new IntRing();
+        final PacketIDs packetIDs = new PacketIDs();
+
+        Session(String clientID, int record) {
+            this.clientID = clientID;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Log entry of a queued message, shared by the queue records of the sessions the message is published to.
+     */
+    private static final class QueuedBody {
+
+        long ref;
+        // null for the bodies loaded at startup
+        final UUID guid;
+        int references;
+
+        QueuedBody(long ref, UUID guid) {
+            this.ref = ref;
+            this.guid = guid;
+        }
+    }
+
+    private final RecordTable table;
+    private final AppendLog log;
+    private final Object lock;
+    private final GroupCommitter groupCommitter;
+    private final Map<String, Session> sessions = new HashMap<>();
+    private long nextQueueSequence;
+    // the queued bodies by log reference and by the guid of the message
+    private final Map<Long, QueuedBody> queuedBodies = new HashMap<>();
+    private final Map<UUID, QueuedBody> queuedBodiesByGuid = new HashMap<>();
+
+    MMapSessionsStore(RecordTable table, AppendLog log, Object lock, GroupCommitter groupCommitter) {
+        this.table = table;
+        this.log = log;
+        this.lock = lock;
+        this.groupCommitter = groupCommitter;
+    }
+
+    @Override
+    public void initStore() {
+        synchronized (lock) {
+            final Map<Integer, Session> sessionsByRecord = new HashMap<>();
+            table.forEachUsed(record -> {
+                if (table.type(record) == RecordTable.SESSION) {
+                    final String clientID = LogEntries.readClientID(log.read(table.ref(record)));
+                    final Session session = new Session(clientID, record);
+                    sessions.put(clientID, session);
+                    sessionsByRecord.put(record, session);
+                }
+            });
+
+            final List<long[]> queued = new ArrayList<>();
+            final List<Integer> orphanQueued = new ArrayList<>();
+            table.forEachUsed(record -> {
+                final byte type = table.type(record);
+                if (type == RecordTable.SESSION || type == RecordTable.RETAINED) {
+                    return;
+                }
+                if (type == RecordTable.QUEUED) {
+                    queuedBodies.computeIfAbsent(table.ref(record), ref -> new QueuedBody(ref, null)).references++;
+                }
+                final Session session = sessionsByRecord.get(table.owner(record));
+                if (session == null) {
+                    LOG.warn("Dropping a record of a removed session. Record={}, type={}", record, type);
+                    if (type == RecordTable.QUEUED) {
+                        // released once all the references to the body are counted
+                        orphanQueued.add(record);
+                    } else {
+                        release(record);
+                    }
+                    return;
+                }
+                final int packetID = (int) table.value(record);
+                switch (type) {
+                    case RecordTable.SUBSCRIPTION:
+                        session.subscriptions.put(readSubscription(session, record).getTopicFilter(), record);
+                        break;
+                    case RecordTable.OUTBOUND_INFLIGHT:
+                        session.outboundFlightMessages.put(packetID, record);
+                        session.packetIDs.use(packetID);
+                        break;
+                    case RecordTable.SECOND_PHASE:
+                        session.secondPhaseStore.put(packetID, record);
+                        session.packetIDs.use(packetID);
+                        break;
+                    case RecordTable.INBOUND_INFLIGHT:
+                        session.inboundFlightMessages.put(packetID, record);
+                        break;
+                    case RecordTable.QUEUED:
+                        queued.add(new long[] {table.value(record), record});
+                        break;
+                    default:
+                        LOG.warn("Dropping a record of unknown type. Record={}, type={}", record, type);
+                        release(record);
+                }
+            });
+
+            orphanQueued.forEach(this::releaseQueued);
+
+            // the sequence is shared by all the queues, sorting by it restores the order of each queue
+            queued.sort(Comparator.comparingLong(entry -> entry[0]));
+            for (long[] entry : queued) {
+                final int record = (int) entry[1];
+                sessionsByRecord.get(table.owner(record)).queue.add(record);
+                nextQueueSequence = entry[0] + 1;
+            }
+            LOG.info("Initialized sessions mmap store. Sessions={}, queuedMessages={}", sessions.size(),
+                queued.size());
+        }
+    }
+
+    private void release(int record) {
+        log.release(table.ref(record));
+        table.free(record);
+    }
+
+    /**
+     * Free a queue record, the log entry of the message is released with its last reference.
+     */
+    private void releaseQueued(int record) {
+        final long ref = table.ref(record);
+        table.free(record);
+        final QueuedBody body = queuedBodies.get(ref);
+        if (body != null && --body.references > 0) {
+            return;
+        }
+        if (body != null) {
+            queuedBodies.remove(ref);
+            if (body.guid != null) {
+                queuedBodiesByGuid.remove(body.guid);
+            }
+        }
+        log.release(ref);
+    }
+
+    /**
+     * Update the references of the queued bodies to the log entries moved by a compaction.
+     *
+     * @param moved
+     *            the new reference of each moved entry, by the old one.
+     */
+    void queuedBodiesMoved(Map<Long, Long> moved) {
+        synchronized (lock) {
+            for (Map.Entry<Long, Long> entry : moved.entrySet()) {
+                final QueuedBody body = queuedBodies.remove(entry.getKey());
+                if (body != null) {
+                    body.ref = entry.getValue();
+                    queuedBodies.put(body.ref, body);
+                }
+            }
+        }
+    }
+
+    private Subscription readSubscription(Session session, int record) {
+        return LogEntries.readSubscription(log.read(table.ref(record)), session.clientID);
+    }
+
+    private Message readMessage(int record) {
+        return LogEntries.readMessage(log.read(table.ref(record)));
+    }
+
+    private StoredMessage readStoredMessage(int record) {
+        return LogEntries.readStoredMessage(log.read(table.ref(record)));
+    }
+
+    private Session getSession(String clientID) {
+        Session session = sessions.get(clientID);
+        if (session == null) {
+            LOG.error("Can't find the session for client <{}>", clientID);
+            throw new RuntimeException("Can't find the session for client <" + clientID + ">");
+        }
+        return session;
+    }
+
+    /**
+     * Store the message with a new record that replaces the record of the same packet identifier, if any.
+     */
+    private void putMessage(Session session, Map<Integer, Integer> records, byte type, int packetID, Message msg) {
+        final long ref = LogEntries.appendMessage(log, msg);
+        final Integer previous = records.put(packetID, table.allocate(type, (byte) 0, session.record, ref, packetID));
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    private static void releasePacketID(Session session, int packetID) {
+        if (!session.outboundFlightMessages.containsKey(packetID) && !session.secondPhaseStore.containsKey(packetID)) {
+            session.packetIDs.release(packetID);
+        }
+    }
+
+    @Override
+    public void whenDurable(Runnable action) {
+        if (groupCommitter == null) {
+            action.run();
+            return;
+        }
+        groupCommitter.whenDurable(action);
+    }
+
+    @Override
+    public ISubscriptionsStore subscriptionStore() {
+        return this;
+    }
+
+    @Override
+    public void updateCleanStatus(String clientID, boolean cleanSession) {
+        LOG.info("Updating cleanSession flag. CId={}, cleanSession={}", clientID, cleanSession);
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return;
+            }
+            table.setFlags(session.record, cleanSession ? CLEAN_SESSION_FLAG : 0);
+        }
+    }
+
+    @Override
+    public void addNewSubscription(Subscription newSubscription) {
+        LOG.info("Adding new subscription CId={}, topics={}", newSubscription.getClientId(),
+            newSubscription.getTopicFilter());
+        synchronized (lock) {
+            final Session session = sessions.get(newSubscription.getClientId());
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", newSubscription.getClientId());
+                return;
+            }
+            final long ref = LogEntries.appendSubscription(log, newSubscription);
+            final Integer previous = session.subscriptions.put(newSubscription.getTopicFilter(),
+                table.allocate(RecordTable.SUBSCRIPTION, (byte) 0, session.record, ref, 0L));
+            if (previous != null) {
+                release(previous);
+            }
+        }
+    }
+
+    @Override
+    public void removeSubscription(Topic topicFilter, String clientID) {
+        LOG.info("Removing subscription. CId={}, topics={}", clientID, topicFilter);
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return;
+            }
+            final Integer record = session.subscriptions.remove(topicFilter);
+            if (record != null) {
+                release(record);
+            }
+        }
+    }
+
+    @Override
+    public void wipeSubscriptions(String sessionID) {
+        LOG.info("Wiping subscriptions. CId={}", sessionID);
+        synchronized (lock) {
+            final Session session = sessions.get(sessionID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", sessionID);
+                return;
+            }
+            wipeSubscriptions(session);
+        }
+    }
+
+    private void wipeSubscriptions(Session session) {
+        for (Integer record : session.subscriptions.values()) {
+            release(record);
+        }
+        session.subscriptions.clear();
+    }
+
+    @Override
+    public List<ClientTopicCouple> listAllSubscriptions() {
+        LOG.info("Retrieving existing subscriptions");
+        final List<ClientTopicCouple> allSubscriptions = new ArrayList<>();
+        synchronized (lock) {
+            for (Session session : sessions.values()) {
+                for (Topic topicFilter : session.subscriptions.keySet()) {
+                    allSubscriptions.add(new ClientTopicCouple(session.clientID, topicFilter));
+                }
+            }
+        }
+        return allSubscriptions;
+    }
+
+    @Override
+    public Subscription getSubscription(ClientTopicCouple couple) {
+        synchronized (lock) {
+            final Session session = sessions.get(couple.clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", couple.clientID);
+                return null;
+            }
+            final Integer record = session.subscriptions.get(couple.topicFilter);
+            return record == null ? null : readSubscription(session, record);
+        }
+    }
+
+    @Override
+    public List<Subscription> getSubscriptions() {
+        final List<Subscription> subscriptions = new ArrayList<>();
+        synchronized (lock) {
+            for (Session session : sessions.values()) {
+                for (Integer record : session.subscriptions.values()) {
+                    subscriptions.add(readSubscription(session, record));
+                }
+            }
+        }
+        return subscriptions;
+    }
+
+    @Override
+    public void forEachSubscription(Consumer<Subscription> action) {
+        // the action runs out of the lock
+        getSubscriptions().forEach(action);
+    }
+
+    @Override
+    public List<Subscription> getClientSubscriptions(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                return Collections.emptyList();
+            }
+            final List<Subscription> subscriptions = new ArrayList<>(session.subscriptions.size());
+            for (Integer record : session.subscriptions.values()) {
+                subscriptions.add(readSubscription(session, record));
+            }
+            return subscriptions;
+        }
+    }
+
+    @Override
+    public boolean contains(String clientID) {
+        synchronized (lock) {
+            return sessions.containsKey(clientID);
+        }
+    }
+
+    @Override
+    public ClientSession createNewSession(String clientID, boolean cleanSession, long now) {
+        synchronized (lock) {
+            if (sessions.containsKey(clientID)) {
+                LOG.error("Unable to create a new session: the client ID is already in use. CId={}, cleanSession={}",
+                    clientID, cleanSession);
+                throw new IllegalArgumentException("Can't create a session with the ID of an already existing" +
+                    clientID);
+            }
+            LOG.debug("Creating new session. CId={}, cleanSession={}", clientID, cleanSession);
+            final long ref = LogEntries.appendClientID(log, clientID);
+            final int record = table.allocate(RecordTable.SESSION, cleanSession ? CLEAN_SESSION_FLAG : 0, -1,
+                ref, now);
+            sessions.put(clientID, new Session(clientID, record));
+        }
+        return new ClientSession(clientID, this, this, cleanSession, now);
+    }
+
+    @Override
+    public ClientSession sessionForClient(String clientID) {
+        final boolean cleanSession;
+        final long lastContact;
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.debug("Can't find the session for client <{}>", clientID);
+                return null;
+            }
+            cleanSession = table.flags(session.record) == CLEAN_SESSION_FLAG;
+            lastContact = table.value(session.record);
+        }
+        return new ClientSession(clientID, this, this, cleanSession, lastContact);
+    }
+
+    @Override
+    public Message inFlightAck(String clientID, int messageID) {
+        LOG.debug("Acknowledging inflight message CId={}, messageId={}", clientID, messageID);
+        synchronized (lock) {
+            final Session session = getSession(clientID);
+            final Integer record = session.outboundFlightMessages.remove(messageID);
+            releasePacketID(session, messageID);
+            if (record == null) {
+                return null;
+            }
+            final Message msg = readMessage(record);
+            release(record);
+            return msg;
+        }
+    }
+
+    @Override
+    public void inFlight(String clientID, int messageID, Message msg) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return;
+            }
+            putMessage(session, session.outboundFlightMessages, RecordTable.OUTBOUND_INFLIGHT, messageID, msg);
+            session.packetIDs.use(messageID);
+        }
+    }
+
+    /**
+     * Return the next packet identifier not in use, after the last one returned.
+     */
+    @Override
+    public int nextPacketID(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return -1;
+            }
+            return session.packetIDs.next();
+        }
+    }
+
+    @Override
+    public ISessionQueue<StoredMessage> queue(String clientID) {
+        return new MMapQueue(this, clientID);
+    }
+
+    boolean offerQueued(String clientID, StoredMessage msg) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return false;
+            }
+            // a message published to many sessions is appended once and shared by their queues
+            UUID guid = msg.getGuid();
+            if (guid == null) {
+                guid = UUID.randomUUID();
+                msg.setGuid(guid);
+            }
+            QueuedBody body = queuedBodiesByGuid.get(guid);
+            if (body == null) {
+                body = new QueuedBody(LogEntries.appendMessage(log, msg), guid);
+                queuedBodies.put(body.ref, body);
+                queuedBodiesByGuid.put(guid, body);
+            }
+            body.references++;
+            session.queue.add(table.allocate(RecordTable.QUEUED, (byte) 0, session.record, body.ref,
+                nextQueueSequence++));
+            return true;
+        }
+    }
+
+    StoredMessage pollQueued(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null || session.queue.isEmpty()) {
+                return null;
+            }
+            final int record = session.queue.remove();
+            final StoredMessage msg = readStoredMessage(record);
+            releaseQueued(record);
+            return msg;
+        }
+    }
+
+    StoredMessage peekQueued(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null || session.queue.isEmpty()) {
+                return null;
+            }
+            return readStoredMessage(session.queue.get(0));
+        }
+    }
+
+    List<StoredMessage> queuedMessages(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                return Collections.emptyList();
+            }
+            final List<StoredMessage> messages = new ArrayList<>(session.queue.size());
+            for (int i = 0; i < session.queue.size(); i++) {
+                messages.add(readStoredMessage(session.queue.get(i)));
+            }
+            return messages;
+        }
+    }
+
+    int queuedNo(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            return session == null ? 0 : session.queue.size();
+        }
+    }
+
+    @Override
+    public void dropQueue(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return;
+            }
+            dropQueue(session);
+        }
+    }
+
+    private void dropQueue(Session session) {
+        while (!session.queue.isEmpty()) {
+            releaseQueued(session.queue.remove());
+        }
+    }
+
+    @Override
+    public void moveInFlightToSecondPhaseAckWaiting(String clientID, int messageID, Message msg) {
+        LOG.debug("Moving inflight message to 2nd phase ack state CId={}, messageID={}", clientID, messageID);
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return;
+            }
+            putMessage(session, session.secondPhaseStore, RecordTable.SECOND_PHASE, messageID, msg);
+            session.packetIDs.use(messageID);
+        }
+    }
+
+    /**
+     * Moves the record under the lock without releasing the packet identifier in between.
+     */
+    @Override
+    public Message moveInFlightToSecondPhase(String clientID, int messageID) {
+        LOG.debug("Moving inflight message to 2nd phase ack state CId={}, messageID={}", clientID, messageID);
+        synchronized (lock) {
+            final Session session = getSession(clientID);
+            final Integer record = session.outboundFlightMessages.remove(messageID);
+            if (record == null) {
+                return null;
+            }
+            final Message msg = readMessage(record);
+            release(record);
+            putMessage(session, session.secondPhaseStore, RecordTable.SECOND_PHASE, messageID, msg);
+            return msg;
+        }
+    }
+
+    @Override
+    public Message secondPhaseAcknowledged(String clientID, int messageID) {
+        LOG.debug("Processing second phase ACK CId={}, messageId={}", clientID, messageID);
+        synchronized (lock) {
+            final Session session = getSession(clientID);
+            final Integer record = session.secondPhaseStore.remove(messageID);
+            releasePacketID(session, messageID);
+            if (record == null) {
+                return null;
+            }
+            final Message msg = readMessage(record);
+            release(record);
+            return msg;
+        }
+    }
+
+    @Override
+    public int getInflightMessagesNo(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return 0;
+            }
+            return session.inboundFlightMessages.size() + session.secondPhaseStore.size()
+                + session.outboundFlightMessages.size();
+        }
+    }
+
+    @Override
+    public StoredMessage inboundInflight(String clientID, int messageID) {
+        synchronized (lock) {
+            final Integer record = getSession(clientID).inboundFlightMessages.get(messageID);
+            return record == null ? null : readStoredMessage(record);
+        }
+    }
+
+    @Override
+    public void markAsInboundInflight(String clientID, int messageID, StoredMessage msg) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return;
+            }
+            putMessage(session, session.inboundFlightMessages, RecordTable.INBOUND_INFLIGHT, messageID, msg);
+        }
+    }
+
+    @Override
+    public int getPendingPublishMessagesNo(String clientID) {
+        return queuedNo(clientID);
+    }
+
+    @Override
+    public int getSecondPhaseAckPendingMessages(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            return session == null ? 0 : session.secondPhaseStore.size();
+        }
+    }
+
+    @Override
+    public void cleanSession(String clientID) {
+        LOG.info("Removing stored messages with QoS 1 and 2. ClientId={}", clientID);
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return;
+            }
+            cleanSession(session);
+        }
+    }
+
+    private void cleanSession(Session session) {
+        for (Map<Integer, Integer> records : Arrays.asList(session.outboundFlightMessages,
+                session.secondPhaseStore, session.inboundFlightMessages)) {
+            for (Integer record : records.values()) {
+                release(record);
+            }
+            records.clear();
+        }
+        session.packetIDs.clear();
+        wipeSubscriptions(session);
+        dropQueue(session);
+    }
+
+    @Override
+    public Set<String> getClientIDs() {
+        synchronized (lock) {
+            return new HashSet<>(sessions.keySet());
+        }
+    }
+
+    @Override
+    public int size() {
+        synchronized (lock) {
+            return sessions.size();
+        }
+    }
+
+    @Override
+    public void remove(String clientID) {
+        synchronized (lock) {
+            final Session session = sessions.remove(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return;
+            }
+            cleanSession(session);
+            release(session.record);
+        }
+    }
+
+    @Override
+    public void updateValidity(String clientID, long now) {
+        synchronized (lock) {
+            final Session session = sessions.get(clientID);
+            if (session == null) {
+                LOG.error("Can't find the session for client <{}>", clientID);
+                return;
+            }
+            table.setValue(session.record, now);
+        }
+    }
+}
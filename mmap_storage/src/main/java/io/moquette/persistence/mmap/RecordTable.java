@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mmap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Table of fixed layout records stored in memory mapped segment files. Each record is:
+ * <pre>
+ *  0 type   byte, 0 for a free record
+ *  1 flags  byte
+ *  4 owner  int, the index of the session record the record belongs to
+ *  8 ref    long, the reference to an entry of the append log
+ * 16 value  long
+ * </pre>
+ * so updating a field of a record touches only those bytes. The free records are tracked in memory and
+ * reused before the table grows.
+ *
+ * Not thread safe, the owner serializes the access.
+ */
+final class RecordTable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecordTable.class);
+
+    // kinds of records
+    static final byte SESSION = 1;
+    static final byte SUBSCRIPTION = 2;
+    static final byte OUTBOUND_INFLIGHT = 3;
+    static final byte SECOND_PHASE = 4;
+    static final byte INBOUND_INFLIGHT = 5;
+    static final byte QUEUED = 6;
+    static final byte RETAINED = 7;
+
+    static final int RECORD_SIZE = 24;
+    static final int RECORDS_PER_SEGMENT = 1 << 20;
+    private static final int TYPE_OFFSET = 0;
+    private static final int FLAGS_OFFSET = 1;
+    private static final int OWNER_OFFSET = 4;
+    private static final int REF_OFFSET = 8;
+    private static final int VALUE_OFFSET = 16;
+    private static final String SEGMENT_PREFIX = "records-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File directory;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private int[] freeRecords = new int[64];
+    private int freeRecordsNo;
+    // index of the first record never used
+    private int nextRecord;
+
+    RecordTable(File directory) throws IOException {
+        this.directory = directory;
+        File segmentFile = segmentFile(0);
+        while (segmentFile.exists()) {
+            segments.add(map(segmentFile));
+            segmentFile = segmentFile(segments.size());
+        }
+
+        int lastUsed = -1;
+        final int capacity = segments.size() * RECORDS_PER_SEGMENT;
+        for (int record = 0; record < capacity; record++) {
+            if (type(record) != 0) {
+                lastUsed = record;
+            }
+        }
+        nextRecord = lastUsed + 1;
+        for (int record = 0; record < nextRecord; record++) {
+            if (type(record) == 0) {
+                pushFree(record);
+            }
+        }
+        LOG.info("Opened the records table. Path={}, records={}, free={}", directory, nextRecord,
+            freeRecordsNo);
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) RECORDS_PER_SEGMENT * RECORD_SIZE);
+        }
+    }
+
+    private void pushFree(int record) {
+        if (freeRecordsNo == freeRecords.length) {
+            freeRecords = Arrays.copyOf(freeRecords, freeRecords.length * 2);
+        }
+        freeRecords[freeRecordsNo++] = record;
+    }
+
+    private MappedByteBuffer segment(int record) {
+        return segments.get(record / RECORDS_PER_SEGMENT);
+    }
+
+    private static int offset(int record, int field) {
+        return (record % RECORDS_PER_SEGMENT) * RECORD_SIZE + field;
+    }
+
+    /**
+     * @return the index of the new record.
+     */
+    int allocate(byte type, byte flags, int owner, long ref, long value) {
+        final int record;
+        if (freeRecordsNo > 0) {
+            record = freeRecords[--freeRecordsNo];
+        } else {
+            record = nextRecord++;
+            if (record / RECORDS_PER_SEGMENT == segments.size()) {
+                final File file = segmentFile(segments.size());
+                try {
+                    segments.add(map(file));
+                } catch (IOException ex) {
+                    nextRecord--;
+                    throw new IllegalStateException("Can't create the records segment " + file, ex);
+                }
+            }
+        }
+        final MappedByteBuffer segment = segment(record);
+        segment.put(offset(record, FLAGS_OFFSET), flags);
+        segment.putInt(offset(record, OWNER_OFFSET), owner);
+        segment.putLong(offset(record, REF_OFFSET), ref);
+        segment.putLong(offset(record, VALUE_OFFSET), value);
+        // the type is written last, it marks the record as used
+        segment.put(offset(record, TYPE_OFFSET), type);
+        return record;
+    }
+
+    void free(int record) {
+        segment(record).put(offset(record, TYPE_OFFSET), (byte) 0);
+        pushFree(record);
+    }
+
+    byte type(int record) {
+        return segment(record).get(offset(record, TYPE_OFFSET));
+    }
+
+    byte flags(int record) {
+        return segment(record).get(offset(record, FLAGS_OFFSET));
+    }
+
+    void setFlags(int record, byte flags) {
+        segment(record).put(offset(record, FLAGS_OFFSET), flags);
+    }
+
+    int owner(int record) {
+        return segment(record).getInt(offset(record, OWNER_OFFSET));
+    }
+
+    long ref(int record) {
+        return segment(record).getLong(offset(record, REF_OFFSET));
+    }
+
+    void setRef(int record, long ref) {
+        segment(record).putLong(offset(record, REF_OFFSET), ref);
+    }
+
+    long value(int record) {
+        return segment(record).getLong(offset(record, VALUE_OFFSET));
+    }
+
+    void setValue(int record, long value) {
+        segment(record).putLong(offset(record, VALUE_OFFSET), value);
+    }
+
+    void forEachUsed(IntConsumer action) {
+        for (int record = 0; record < nextRecord; record++) {
+            if (type(record) != 0) {
+                action.accept(record);
+            }
+        }
+    }
+
+    List<MappedByteBuffer> buffers() {
+        return new ArrayList<>(segments);
+    }
+}
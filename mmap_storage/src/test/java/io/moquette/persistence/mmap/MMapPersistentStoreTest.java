@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.persistence.mmap;
+
+import io.moquette.BrokerConstants;
+import io.moquette.persistence.MessageStoreTCK;
+import io.moquette.persistence.PacketIDs;
+import io.moquette.server.config.MemoryConfig;
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.IMessagesStore.Message;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISubscriptionsStore.ClientTopicCouple;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import io.moquette.spi.impl.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static io.moquette.spi.impl.subscriptions.Topic.asTopic;
+import static org.junit.Assert.*;
+
+public class MMapPersistentStoreTest extends MessageStoreTCK {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MMapPersistentStore storageService;
+    private ScheduledExecutorService scheduler;
+    private File storeDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = Executors.newScheduledThreadPool(1);
+        storeDirectory = folder.newFolder("store");
+        open("67108864");
+    }
+
+    private void open(String segmentSize) {
+        Properties props = new Properties();
+        props.setProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, storeDirectory.getAbsolutePath());
+        props.setProperty(BrokerConstants.MMAP_STORAGE_SEGMENT_SIZE, segmentSize);
+        storageService = new MMapPersistentStore(new MemoryConfig(props), scheduler);
+        storageService.initStore();
+        messagesStore = storageService.messagesStore();
+        sessionsStore = storageService.sessionsStore();
+    }
+
+    private void reopen(String segmentSize) {
+        storageService.close();
+        open(segmentSize);
+    }
+
+    @After
+    public void tearDown() {
+        if (storageService != null) {
+            storageService.close();
+        }
+        scheduler.shutdown();
+    }
+
+    private static StoredMessage message(String payload) {
+        StoredMessage msg = new StoredMessage(payload.getBytes(StandardCharsets.UTF_8), MqttQoS.AT_LEAST_ONCE,
+            "/topic");
+        msg.setClientID(TEST_CLIENT);
+        return msg;
+    }
+
+    private static String payload(Message msg) {
+        return msg.getPayload().toString(StandardCharsets.UTF_8);
+    }
+
+    private int logSegments() {
+        return storeDirectory.list((dir, name) -> name.startsWith("log-")).length;
+    }
+
+    @Test
+    public void testReloadFromPersistedState() {
+        ClientSession session = sessionsStore.createNewSession(TEST_CLIENT, false, 42);
+        session.subscribe(new Subscription(TEST_CLIENT, new Topic("/topic/#"), MqttQoS.EXACTLY_ONCE));
+        int packetID = session.inFlightAckWaiting(message("inflight"));
+        session.enqueue(message("first"));
+        session.enqueue(message("second"));
+        session.markAsInboundInflight(7, message("inbound"));
+        messagesStore.storeRetained(asTopic("/topic"), message("retained"));
+
+        reopen("67108864");
+
+        ClientSession reloaded = sessionsStore.sessionForClient(TEST_CLIENT);
+        assertNotNull(reloaded);
+        assertFalse(reloaded.isCleanSession());
+        assertEquals(42, reloaded.getLastContact());
+        Subscription subscription = sessionsStore.subscriptionStore()
+            .getSubscription(new ClientTopicCouple(TEST_CLIENT, new Topic("/topic/#")));
+        assertEquals(MqttQoS.EXACTLY_ONCE, subscription.getRequestedQos());
+        assertEquals("inbound", payload(reloaded.inboundInflight(7)));
+        assertEquals(2, reloaded.getInflightMessagesNo());
+
+        Queue<StoredMessage> queue = reloaded.queue();
+        assertEquals("first", payload(queue.poll()));
+        assertEquals("second", payload(queue.poll()));
+        assertNull(queue.poll());
+
+        assertEquals("inflight", payload(reloaded.inFlightAcknowledged(packetID)));
+        Subscription retainedSub = new Subscription("other", new Topic("/topic"), MqttQoS.AT_LEAST_ONCE);
+        Map<Subscription, Collection<Message>> retained =
+            messagesStore.searchMatching(Collections.singletonList(retainedSub));
+        assertEquals("retained", payload(retained.get(retainedSub).iterator().next()));
+    }
+
+    @Test
+    public void testRemovedSessionIsNotReloaded() {
+        ClientSession session = sessionsStore.createNewSession(TEST_CLIENT, false, 0);
+        session.enqueue(message("pending"));
+        sessionsStore.remove(TEST_CLIENT);
+
+        reopen("67108864");
+
+        assertNull(sessionsStore.sessionForClient(TEST_CLIENT));
+        assertTrue(sessionsStore.getClientIDs().isEmpty());
+    }
+
+    @Test
+    public void testNextPacketIDSkipsTheInflightIDs() {
+        sessionsStore.createNewSession(TEST_CLIENT, false, 0);
+        sessionsStore.inFlight(TEST_CLIENT, 2, message("inflight"));
+
+        assertEquals(1, sessionsStore.nextPacketID(TEST_CLIENT));
+        assertEquals(3, sessionsStore.nextPacketID(TEST_CLIENT));
+    }
+
+    @Test
+    public void testPacketIDMovedToSecondPhaseStaysInUse() {
+        sessionsStore.createNewSession(TEST_CLIENT, false, 0);
+        assertEquals(1, sessionsStore.nextPacketID(TEST_CLIENT));
+        assertEquals(2, sessionsStore.nextPacketID(TEST_CLIENT));
+        sessionsStore.inFlight(TEST_CLIENT, 1, message("second_phase"));
+        sessionsStore.inFlight(TEST_CLIENT, 2, message("acked"));
+
+        assertEquals("second_phase", payload(sessionsStore.moveInFlightToSecondPhase(TEST_CLIENT, 1)));
+        sessionsStore.inFlightAck(TEST_CLIENT, 2);
+        for (int i = 3; i <= PacketIDs.MAX_PACKET_ID; i++) {
+            sessionsStore.nextPacketID(TEST_CLIENT);
+        }
+
+        assertEquals(2, sessionsStore.nextPacketID(TEST_CLIENT));
+        assertEquals("second_phase", payload(sessionsStore.secondPhaseAcknowledged(TEST_CLIENT, 1)));
+    }
+
+    @Test
+    public void testCompactionMovesTheLiveMessages() throws Exception {
+        // a new store with segments of about 2 messages each
+        storageService.close();
+        storeDirectory = folder.newFolder("small_segments");
+        open("100");
+        ClientSession session = sessionsStore.createNewSession(TEST_CLIENT, false, 0);
+        for (int i = 0; i < 10; i++) {
+            session.enqueue(message("message-" + i));
+        }
+        Queue<StoredMessage> queue = session.queue();
+        for (int i = 0; i < 7; i++) {
+            queue.poll();
+        }
+
+        int segmentsBefore = logSegments();
+        storageService.compact();
+        storageService.compact();
+        assertTrue("the released segments are deleted", logSegments() < segmentsBefore);
+
+        assertEquals("message-7", payload(queue.poll()));
+
+        reopen("100");
+        queue = sessionsStore.queue(TEST_CLIENT);
+        assertEquals("message-8", payload(queue.poll()));
+        assertEquals("message-9", payload(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testMessageQueuedToManySessionsIsSharedAcrossReloadsAndCompactions() throws Exception {
+        storageService.close();
+        storeDirectory = folder.newFolder("shared_bodies");
+        open("100");
+        sessionsStore.createNewSession("client1", false, 0);
+        sessionsStore.createNewSession("client2", false, 0);
+        // the segment of the shared message is left sparse, so that the compaction moves it
+        sessionsStore.queue("client1").add(message("dropped"));
+        StoredMessage shared = message("shared");
+        sessionsStore.queue("client1").add(shared);
+        sessionsStore.queue("client2").add(shared);
+        sessionsStore.queue("client1").poll();
+        for (int i = 0; i < 3; i++) {
+            sessionsStore.queue("client2").add(message("filler-" + i));
+        }
+
+        storageService.compact();
+        reopen("100");
+
+        assertEquals("shared", payload(sessionsStore.queue("client1").poll()));
+        assertEquals("shared", payload(sessionsStore.queue("client2").poll()));
+        sessionsStore.dropQueue("client2");
+        storageService.compact();
+        assertEquals("the segments of the released messages are deleted", 1, logSegments());
+    }
+
+    @Test
+    public void testCompactedStoreIsReadWithoutClosingIt() throws Exception {
+        storageService.close();
+        storeDirectory = folder.newFolder("not_closed");
+        open("100");
+        ClientSession session = sessionsStore.createNewSession(TEST_CLIENT, false, 0);
+        for (int i = 0; i < 10; i++) {
+            session.enqueue(message("message-" + i));
+        }
+        for (int i = 0; i < 7; i++) {
+            session.queue().poll();
+        }
+        storageService.compact();
+
+        // the store isn't closed, as after a crash, only what compact() forced is read
+        MMapPersistentStore crashed = storageService;
+        storageService = null;
+        try {
+            open("100");
+            Queue<StoredMessage> queue = sessionsStore.queue(TEST_CLIENT);
+            assertEquals("message-7", payload(queue.poll()));
+            assertEquals("message-8", payload(queue.poll()));
+            assertEquals("message-9", payload(queue.poll()));
+            assertNull(queue.poll());
+        } finally {
+            crashed.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012-2017 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.server.netty;
+
+import io.moquette.server.netty.metrics.BytesMetricsCollector;
+import io.moquette.server.netty.metrics.BytesMetricsHandler;
+import io.moquette.server.netty.metrics.MQTTMessageLogger;
+import io.moquette.server.netty.metrics.MessageMetricsCollector;
+import io.moquette.server.netty.metrics.MessageMetricsHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-message cost of each optional handler of the connection pipelines: a PUBLISH is read
+ * through the MQTT decoder, or written through the MQTT encoder, with only the handler under test added, and
+ * "none" is the baseline of the codecs alone. The logger writes to the "messageLogger" logger as configured
+ * by the log4j configuration on the classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipelineHandlersBenchmark {
+
+    @Param({"none", "bytesMetrics", "messageMetrics", "messageLogger", "sampledLogger"})
+    private String handler;
+
+    private EmbeddedChannel channel;
+    private ByteBuf encodedPublish;
+    private ByteBuf payload;
+    private MqttFixedHeader fixedHeader;
+    private MqttPublishVariableHeader variableHeader;
+
+    @Setup
+    public void setUp() {
+        payload = Unpooled.copiedBuffer(new byte[64]);
+        fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0);
+        variableHeader = new MqttPublishVariableHeader("/sensors/kitchen/temperature", 0);
+        EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encoder.writeOutbound(publish());
+        encodedPublish = encoder.readOutbound();
+
+        channel = new EmbeddedChannel();
+        ChannelPipeline pipeline = channel.pipeline();
+        pipeline.addLast("sink", new ChannelOutboundHandlerAdapter() {
+
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                ReferenceCountUtil.release(msg);
+                promise.setSuccess();
+            }
+        });
+        if ("bytesMetrics".equals(handler)) {
+            pipeline.addLast("bytemetrics", new BytesMetricsHandler(new BytesMetricsCollector()));
+        }
+        pipeline.addLast("decoder", new MqttDecoder());
+        pipeline.addLast("encoder", MqttEncoder.INSTANCE);
+        if ("messageMetrics".equals(handler)) {
+            pipeline.addLast("metrics", new MessageMetricsHandler(new MessageMetricsCollector()));
+        } else if ("messageLogger".equals(handler)) {
+            pipeline.addLast("messageLogger", new MQTTMessageLogger());
+        } else if ("sampledLogger".equals(handler)) {
+            pipeline.addLast("messageLogger", new MQTTMessageLogger(100, 0));
+        }
+        pipeline.addLast("handler", new ChannelInboundHandlerAdapter() {
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ReferenceCountUtil.release(msg);
+            }
+        });
+        // the handlers keep their per-channel state in the attributes set when the channel is active
+        pipeline.fireChannelActive();
+    }
+
+    private MqttPublishMessage publish() {
+        return new MqttPublishMessage(fixedHeader, variableHeader, payload.retainedDuplicate());
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        encodedPublish.release();
+        payload.release();
+    }
+
+    @Benchmark
+    public void read() {
+        channel.pipeline().fireChannelRead(encodedPublish.retainedDuplicate());
+    }
+
+    @Benchmark
+    public void write() {
+        channel.pipeline().write(publish());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PipelineHandlersBenchmark.class.getSimpleName()).build()).run();
+    }
+}
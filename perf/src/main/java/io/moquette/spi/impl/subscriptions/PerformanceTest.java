@@ -34,7 +34,7 @@ public final class PerformanceTest {
        cpufreq-set -g performance -u 800MHz -c 3
      */
     public static void main(String[] args) throws IOException, InterruptedException {
-        ISubscriptionsDirectory store = new SubscriptionsDirectory();
+        ISubscriptionsDirectory store = new CTrieSubscriptionDirectory();
         MemoryStorageService memStore = new MemoryStorageService(null, null);
         ISessionsStore aSessionsStore = memStore.sessionsStore();
         store.init(aSessionsStore);
@@ -57,7 +57,7 @@ public final class PerformanceTest {
 
             Subscription sub = new Subscription("CLI_ID_" + (i % users), topics[i], MqttQoS.AT_MOST_ONCE);
             aSessionsStore.subscriptionStore().addNewSubscription(sub);
-            store.add(sub.asClientTopicCouple());
+            store.add(sub);
         }
 
         long min = Long.MAX_VALUE;